@@ -0,0 +1,174 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Renders a model with many world matrices, e.g. a turntable, to numbered PNG files. Frames are rendered by a pool of
+ * render threads, each with its own {@link OffscreenRenderer}, and finished frames are encoded by a separate
+ * pool of encode threads while the next frames render. The two pools share a fixed set of frame buffers, so
+ * rendering waits for encoding instead of using more memory when encoding falls behind.
+ */
+public class BatchRenderer {
+    private final int renderThreadCount;
+    private final int encodeThreadCount;
+    private final int frameBufferCount;
+
+    /**
+     * Uses a render thread per core and an encode thread per two cores
+     */
+    public BatchRenderer() {
+        this(Runtime.getRuntime().availableProcessors(), Math.max(Runtime.getRuntime().availableProcessors() / 2, 1));
+    }
+
+    public BatchRenderer(int renderThreadCount, int encodeThreadCount) {
+        if (renderThreadCount < 1 || encodeThreadCount < 1) {
+            throw new IllegalArgumentException("There must be at least one render thread and one encode thread");
+        }
+        this.renderThreadCount = renderThreadCount;
+        this.encodeThreadCount = encodeThreadCount;
+        // one being rendered by each render thread, one being encoded by each encode thread and one waiting for each
+        // encode thread
+        frameBufferCount = renderThreadCount + encodeThreadCount * 2;
+    }
+
+    /**
+     * Creates world matrices that turn the model a full circle around the y axis, framed the same way as
+     * {@code ModelViewer} frames a newly loaded model
+     */
+    public static Matrix4x4[] createTurntable(Model model, int frameCount, int width, int height) {
+        final Matrix4x4 placement = OffscreenRenderer.createFramingMatrix(model.getMaxSize(), width, height);
+        final Matrix4x4[] worldMatrices = new Matrix4x4[frameCount];
+        for (int i = 0; i < frameCount; ++i) {
+            worldMatrices[i] = placement.mul(Matrix4x4.getRotationY((float)(2.0 * Math.PI * i / frameCount)));
+        }
+        return worldMatrices;
+    }
+
+    /**
+     * Renders a frame for each world matrix and writes them to PNG files
+     *
+     * @param texture The texture to draw the model with, or null to draw it without one.
+     * @param outputPattern A {@link String#format} pattern that is given the frame number, e.g. "frame%04d.png".
+     * @throws IOException If a frame couldn't be written. Frames that have already been written are kept.
+     */
+    public void render(final Model model, final Texture2D texture, final Matrix4x4[] worldMatrices, final int width,
+                       final int height, final String outputPattern) throws IOException, InterruptedException {
+        final Matrix4x4 projectionMatrix = Canvas.createProjectionMatrix(width, height);
+        final BlockingQueue<BufferedImage> freeFrames = new ArrayBlockingQueue<>(frameBufferCount);
+        for (int i = 0; i < frameBufferCount; ++i) {
+            freeFrames.add(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+        }
+        final AtomicInteger nextFrame = new AtomicInteger();
+        final AtomicReference<IOException> error = new AtomicReference<>();
+
+        final ExecutorService renderPool = Executors.newFixedThreadPool(renderThreadCount);
+        final ExecutorService encodePool = Executors.newFixedThreadPool(encodeThreadCount);
+        try {
+            final List<Future<?>> renderTasks = new ArrayList<>(renderThreadCount);
+            for (int i = 0; i < renderThreadCount; ++i) {
+                renderTasks.add(renderPool.submit(() -> {
+                    final OffscreenRenderer renderer = new OffscreenRenderer(texture);
+                    while (error.get() == null) {
+                        final int frame = nextFrame.getAndIncrement();
+                        if (frame >= worldMatrices.length) break;
+                        final BufferedImage image = freeFrames.take();
+                        renderer.render(model, worldMatrices[frame], projectionMatrix, image);
+                        final File file = new File(String.format(outputPattern, frame));
+                        encodePool.execute(() -> {
+                            try {
+                                if (!ImageIO.write(image, "png", file)) {
+                                    throw new IOException("No PNG writer is available");
+                                }
+                            } catch (IOException e) {
+                                error.compareAndSet(null, new IOException("Could not write " + file.toString() +
+                                        ": " + e.getMessage(), e));
+                            } finally {
+                                freeFrames.add(image);
+                            }
+                        });
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> renderTask : renderTasks) {
+                try {
+                    renderTask.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Rendering a frame failed", e.getCause());
+                }
+            }
+            encodePool.shutdown();
+            encodePool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            renderPool.shutdownNow();
+            encodePool.shutdownNow();
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    /**
+     * Renders a turntable of a model from the command line. The arguments are the model file, the number of frames,
+     * the width and height of the frames, the output file pattern and optionally a texture file.
+     */
+    public static void main(String[] args) {
+        if (args.length < 5 || args.length > 6) {
+            System.err.println("Usage: java BatchRenderer <model.dat> <frame count> <width> <height> " +
+                    "<output pattern, e.g. frame%04d.png> [texture]");
+            System.exit(1);
+        }
+        final int frameCount;
+        final int width;
+        final int height;
+        try {
+            frameCount = Integer.parseInt(args[1]);
+            width = Integer.parseInt(args[2]);
+            height = Integer.parseInt(args[3]);
+        } catch (NumberFormatException e) {
+            System.err.println("The frame count, width and height must be whole numbers: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (frameCount < 1 || width < 1 || height < 1) {
+            System.err.println("The frame count, width and height must be at least 1");
+            System.exit(1);
+        }
+
+        final Model model = new ModelCache(ModelCache.getDefaultDirectory(), ModelCache.defaultMaxSize).
+                load(new File(args[0]), null);
+        if (model == null) {
+            System.exit(1);
+        }
+        Texture2D texture = null;
+        if (args.length == 6) {
+            try {
+                texture = Texture2D.loadTexture(new File(args[5]));
+            } catch (IOException e) {
+                System.err.println("Could not load texture " + args[5] + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        final BatchRenderer renderer = new BatchRenderer();
+        final long start = System.nanoTime();
+        try {
+            renderer.render(model, texture, createTurntable(model, frameCount, width, height), width, height, args[4]);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.err.println("Rendering was interrupted");
+            System.exit(1);
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Rendered %d frames in %.2f seconds (%.1f frames per second)%n", frameCount, seconds,
+                frameCount / seconds);
+    }
+}
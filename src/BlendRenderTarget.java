@@ -0,0 +1,91 @@
+/**
+ * Blends the colors from the pixel shader into an {@code ImageRenderTarget} the way a {@code GraphicsEngine.BlendMode}
+ * says, using the alpha in the top 8 bits of the color. The image is always left opaque.
+ */
+class BlendRenderTarget implements GraphicsEngine.RenderTarget {
+    private final ImageRenderTarget renderTarget;
+    private final GraphicsEngine.BlendMode blendMode;
+    // the image's pixels or null if the image isn't stored as packed ints
+    private final int[] pixels;
+    private final int width;
+
+    BlendRenderTarget(ImageRenderTarget renderTarget, GraphicsEngine.BlendMode blendMode) {
+        this.renderTarget = renderTarget;
+        this.blendMode = blendMode;
+        pixels = renderTarget.getPixels();
+        width = renderTarget.getWidth();
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return renderTarget.getHeight();
+    }
+
+    @Override
+    public void write(int x, int y, GraphicsEngine.PixelShader pixelShader, Object[] rootSignature,
+                      Vector4[] pixelShaderInput) {
+        writeBlended(x, y, pixelShader.run(rootSignature, pixelShaderInput), 256);
+    }
+
+    /**
+     * blends as if the pixel shader's alpha was scaled by coverage
+     */
+    @Override
+    public void writeCoverage(int x, int y, int coverage, GraphicsEngine.PixelShader pixelShader,
+                              Object[] rootSignature, Vector4[] pixelShaderInput) {
+        writeBlended(x, y, pixelShader.run(rootSignature, pixelShaderInput), coverage);
+    }
+
+    private void writeBlended(int x, int y, int color, int coverage) {
+        if(pixels != null) {
+            final int index = y * width + x;
+            pixels[index] = blend(pixels[index], color, coverage);
+        } else {
+            renderTarget.getImage().setRGB(x, y, blend(renderTarget.getImage().getRGB(x, y), color, coverage));
+        }
+    }
+
+    /**
+     * @param coverage From 0 to 256, scales the source's alpha and for premultiplied colors the whole source.
+     */
+    private int blend(int destination, int source, int coverage) {
+        // alpha from 0 to 256
+        final int alpha = (((source >>> 24) + ((source >>> 31) & 1)) * coverage) >>> 8;
+        switch(blendMode) {
+            case alpha: {
+                final int inverse = 256 - alpha;
+                final int redBlue = (((source & 0xff00ff) * alpha + (destination & 0xff00ff) * inverse) >>> 8) &
+                        0xff00ff;
+                final int green = (((source & 0xff00) * alpha + (destination & 0xff00) * inverse) >>> 8) & 0xff00;
+                return 0xff000000 | redBlue | green;
+            }
+            case additive:
+                return 0xff000000 |
+                        (addChannel(destination >>> 16, source >>> 16, alpha) << 16) |
+                        (addChannel(destination >>> 8, source >>> 8, alpha) << 8) |
+                        addChannel(destination, source, alpha);
+            case premultiplied: {
+                final int inverse = 256 - alpha;
+                return 0xff000000 |
+                        (addPremultipliedChannel(destination >>> 16, source >>> 16, coverage, inverse) << 16) |
+                        (addPremultipliedChannel(destination >>> 8, source >>> 8, coverage, inverse) << 8) |
+                        addPremultipliedChannel(destination, source, coverage, inverse);
+            }
+            default:
+                return source | 0xff000000;
+        }
+    }
+
+    private static int addChannel(int destination, int source, int alpha) {
+        return Math.min(255, (destination & 0xff) + (((source & 0xff) * alpha) >>> 8));
+    }
+
+    private static int addPremultipliedChannel(int destination, int source, int coverage, int inverse) {
+        return Math.min(255, (((source & 0xff) * coverage + (destination & 0xff) * inverse) >>> 8));
+    }
+}
@@ -0,0 +1,622 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A binary space partitioning tree of a model's triangles that gives a back to front order for any camera position by
+ * walking the tree, without sorting. Every node has a plane, the triangles that lie in it, and the nodes in front of
+ * and behind it. Triangles that cross a plane are split in two, so the tree has its own vertex and index buffers:
+ * the model's vertices followed by the vertices made by splitting.
+ */
+public class BspTree {
+    // subtrees with more triangles than this are built in parallel
+    private static final int parallelThreshold = 2048;
+    // how many triangles are tried as the plane of each node
+    private static final int candidateCount = 8;
+    // how much worse splitting a triangle is than one triangle of imbalance between the sides of a plane
+    private static final int splitCost = 8;
+    // below this depth planes through the middle of the triangles along each axis are also tried, deeper nodes only
+    // use the planes of triangles so that building always finishes
+    private static final int maxAxisPlaneDepth = 48;
+    // points closer to a plane than this fraction of the model's size are on the plane
+    private static final float planeThickness = 1e-5f;
+    // what classify returns for a triangle that crosses a plane
+    private static final int splitSide = 2;
+
+    private final Model.Vertex[] vertexBuffer;
+    private final int[] indexBuffer;
+    // a, b, c and d of each node's plane, a point p is in front when a * p.x + b * p.y + c * p.z + d > 0
+    private final float[] planes;
+    // the node in front of and behind each node, or -1
+    private final int[] front;
+    private final int[] back;
+    // the first triangle of each node, the triangles facing the same way as the plane come first
+    private final int[] firstTriangle;
+    private final int[] sameFacingCounts;
+    private final int[] oppositeFacingCounts;
+    private final int maxDepth;
+    private VertexStreams vertexStreams;
+
+    private BspTree(Model.Vertex[] vertexBuffer, int[] indexBuffer, float[] planes, int[] front, int[] back,
+                    int[] firstTriangle, int[] sameFacingCounts, int[] oppositeFacingCounts) {
+        this.vertexBuffer = vertexBuffer;
+        this.indexBuffer = indexBuffer;
+        this.planes = planes;
+        this.front = front;
+        this.back = back;
+        this.firstTriangle = firstTriangle;
+        this.sameFacingCounts = sameFacingCounts;
+        this.oppositeFacingCounts = oppositeFacingCounts;
+        maxDepth = calculateMaxDepth();
+    }
+
+    /**
+     * Builds a tree of the triangles in indexBuffer. Subtrees are built in parallel. Building can be cancelled by
+     * interrupting the calling thread.
+     *
+     * @throws CancellationException If the thread has been interrupted.
+     */
+    public static BspTree build(Model.Vertex[] vertexBuffer, int[] indexBuffer) {
+        float maxSize = 0f;
+        for(Model.Vertex vertex : vertexBuffer) {
+            maxSize = Math.max(maxSize, Math.max(Math.abs(vertex.x), Math.max(Math.abs(vertex.y),
+                    Math.abs(vertex.z))));
+        }
+        final List<Model.Vertex[]> triangles = new ArrayList<>(indexBuffer.length / 3);
+        for(int i = 0; i < indexBuffer.length; i += 3) {
+            triangles.add(new Model.Vertex[]{vertexBuffer[indexBuffer[i]], vertexBuffer[indexBuffer[i + 1]],
+                    vertexBuffer[indexBuffer[i + 2]]});
+        }
+        Node root = null;
+        if(!triangles.isEmpty()) {
+            root = new Node();
+            // invoke doesn't return when the thread is interrupted, so the tasks watch the thread and stop instead
+            ForkJoinPool.commonPool().invoke(new BuildTask(triangles, maxSize * planeThickness, 0, root,
+                    Thread.currentThread()));
+        }
+        return flatten(root, vertexBuffer);
+    }
+
+    /**
+     * @return The model's vertices followed by the vertices made by splitting triangles
+     */
+    public Model.Vertex[] getVertexBuffer() {
+        return vertexBuffer;
+    }
+
+    /**
+     * @return The number of indices that {@link #order} can write
+     */
+    public int getIndexCount() {
+        return indexBuffer.length;
+    }
+
+    public int getNodeCount() {
+        return front.length;
+    }
+
+    /**
+     * @return The vertex buffer as packed streams for {@link GraphicsEngine#runVertexStage}
+     */
+    public synchronized VertexStreams getVertexStreams() {
+        if(vertexStreams == null) {
+            vertexStreams = VertexStreams.create(vertexBuffer);
+        }
+        return vertexStreams;
+    }
+
+    /**
+     * Writes the indices of the triangles in the order they must be drawn in for a camera at a model space position,
+     * furthest first
+     *
+     * @param cullBackFaces True to leave out the triangles that face away from the camera.
+     * @param indices Receives the indices, it must be at least {@link #getIndexCount()} long.
+     * @return The number of indices written
+     */
+    public int order(float eyeX, float eyeY, float eyeZ, boolean cullBackFaces, int[] indices) {
+        if(front.length == 0) return 0;
+        // a node number n means visit the node, ~n means write its triangles
+        final int[] stack = new int[maxDepth * 2 + 1];
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        int count = 0;
+        while(stackSize != 0) {
+            final int item = stack[--stackSize];
+            if(item < 0) {
+                final int node = ~item;
+                final int plane = node * 4;
+                final float distance = planes[plane] * eyeX + planes[plane + 1] * eyeY + planes[plane + 2] * eyeZ +
+                        planes[plane + 3];
+                int first = firstTriangle[node];
+                int triangleCount = sameFacingCounts[node] + oppositeFacingCounts[node];
+                // the triangles facing the same way as the plane face the camera when it is in front of the plane
+                if(cullBackFaces && distance > 0f) {
+                    triangleCount = sameFacingCounts[node];
+                } else if(cullBackFaces && distance < 0f) {
+                    first += sameFacingCounts[node];
+                    triangleCount = oppositeFacingCounts[node];
+                }
+                System.arraycopy(indexBuffer, first * 3, indices, count, triangleCount * 3);
+                count += triangleCount * 3;
+                continue;
+            }
+            final int plane = item * 4;
+            final float distance = planes[plane] * eyeX + planes[plane + 1] * eyeY + planes[plane + 2] * eyeZ +
+                    planes[plane + 3];
+            // the side the camera is on is drawn last
+            final int near = distance >= 0f ? front[item] : back[item];
+            final int far = distance >= 0f ? back[item] : front[item];
+            if(near >= 0) stack[stackSize++] = near;
+            stack[stackSize++] = ~item;
+            if(far >= 0) stack[stackSize++] = far;
+        }
+        return count;
+    }
+
+    /**
+     * Writes the tree in the format read by {@link #readBinary}. The model's vertices aren't written.
+     */
+    void writeBinary(DataOutputStream output, int modelVertexCount) throws IOException {
+        output.writeInt(front.length);
+        output.writeInt(vertexBuffer.length - modelVertexCount);
+        output.writeInt(indexBuffer.length);
+        for(int i = modelVertexCount; i < vertexBuffer.length; ++i) {
+            final Model.Vertex vertex = vertexBuffer[i];
+            output.writeFloat(vertex.x);
+            output.writeFloat(vertex.y);
+            output.writeFloat(vertex.z);
+            output.writeFloat(vertex.nx);
+            output.writeFloat(vertex.ny);
+            output.writeFloat(vertex.nz);
+            output.writeFloat(vertex.u);
+            output.writeFloat(vertex.v);
+        }
+        for(int index : indexBuffer) {
+            output.writeInt(index);
+        }
+        for(float value : planes) {
+            output.writeFloat(value);
+        }
+        for(int i = 0; i < front.length; ++i) {
+            output.writeInt(front[i]);
+            output.writeInt(back[i]);
+            output.writeInt(firstTriangle[i]);
+            output.writeInt(sameFacingCounts[i]);
+            output.writeInt(oppositeFacingCounts[i]);
+        }
+    }
+
+    /**
+     * Reads a tree written by {@link #writeBinary}, leaving the buffer's position after it
+     *
+     * @param modelVertices The vertex buffer of the model the tree was built from.
+     * @throws java.nio.BufferUnderflowException If the buffer ends before the tree does.
+     * @throws IllegalArgumentException If the data isn't a valid tree.
+     */
+    static BspTree readBinary(ByteBuffer buffer, Model.Vertex[] modelVertices) {
+        final int nodeCount = buffer.getInt();
+        final int splitVertexCount = buffer.getInt();
+        final int indexCount = buffer.getInt();
+        if(nodeCount < 0 || splitVertexCount < 0 || indexCount < 0 || indexCount % 3 != 0) {
+            throw new IllegalArgumentException("Invalid BSP tree sizes");
+        }
+        // 8 floats per vertex, and 4 floats and 5 ints per node
+        Model.checkRemaining(buffer, splitVertexCount, 32);
+        Model.checkRemaining(buffer, indexCount, 4);
+        Model.checkRemaining(buffer, nodeCount, 36);
+        final int vertexCount = modelVertices.length + splitVertexCount;
+        final Model.Vertex[] vertexBuffer = new Model.Vertex[vertexCount];
+        System.arraycopy(modelVertices, 0, vertexBuffer, 0, modelVertices.length);
+        final float[] vertexData = new float[splitVertexCount * 8];
+        final FloatBuffer floats = buffer.asFloatBuffer();
+        floats.get(vertexData);
+        buffer.position(buffer.position() + vertexData.length * 4);
+        for(int i = 0, j = 0; i < splitVertexCount; ++i, j += 8) {
+            final Model.Vertex vertex = new Model.Vertex();
+            vertex.x = vertexData[j];
+            vertex.y = vertexData[j + 1];
+            vertex.z = vertexData[j + 2];
+            vertex.nx = vertexData[j + 3];
+            vertex.ny = vertexData[j + 4];
+            vertex.nz = vertexData[j + 5];
+            vertex.u = vertexData[j + 6];
+            vertex.v = vertexData[j + 7];
+            vertexBuffer[modelVertices.length + i] = vertex;
+        }
+
+        final int[] indexBuffer = new int[indexCount];
+        final IntBuffer ints = buffer.asIntBuffer();
+        ints.get(indexBuffer);
+        buffer.position(buffer.position() + indexCount * 4);
+        for(int index : indexBuffer) {
+            if(index < 0 || index >= vertexCount) {
+                throw new IllegalArgumentException("Vertex index " + index + " is out of range");
+            }
+        }
+
+        final float[] planes = new float[nodeCount * 4];
+        buffer.asFloatBuffer().get(planes);
+        buffer.position(buffer.position() + planes.length * 4);
+        final int[] front = new int[nodeCount];
+        final int[] back = new int[nodeCount];
+        final int[] firstTriangle = new int[nodeCount];
+        final int[] sameFacingCounts = new int[nodeCount];
+        final int[] oppositeFacingCounts = new int[nodeCount];
+        final int triangleCount = indexCount / 3;
+        for(int i = 0; i < nodeCount; ++i) {
+            front[i] = buffer.getInt();
+            back[i] = buffer.getInt();
+            firstTriangle[i] = buffer.getInt();
+            sameFacingCounts[i] = buffer.getInt();
+            oppositeFacingCounts[i] = buffer.getInt();
+            // children always come after their parent, which also rules out cycles
+            if(front[i] < -1 || front[i] >= nodeCount || (front[i] >= 0 && front[i] <= i) ||
+                    back[i] < -1 || back[i] >= nodeCount || (back[i] >= 0 && back[i] <= i) ||
+                    firstTriangle[i] < 0 || sameFacingCounts[i] < 0 || oppositeFacingCounts[i] < 0 ||
+                    (long)firstTriangle[i] + sameFacingCounts[i] + oppositeFacingCounts[i] > triangleCount) {
+                throw new IllegalArgumentException("Invalid BSP tree node " + i);
+            }
+        }
+        return new BspTree(vertexBuffer, indexBuffer, planes, front, back, firstTriangle, sameFacingCounts,
+                oppositeFacingCounts);
+    }
+
+    /**
+     * @return The number of nodes on the longest path from the root to a leaf
+     */
+    private int calculateMaxDepth() {
+        if(front.length == 0) return 0;
+        // children come after their parents so each node's depth is known before its children are reached
+        final int[] depths = new int[front.length];
+        depths[0] = 1;
+        int max = 0;
+        for(int i = 0; i < front.length; ++i) {
+            max = Math.max(max, depths[i]);
+            if(front[i] >= 0) depths[front[i]] = depths[i] + 1;
+            if(back[i] >= 0) depths[back[i]] = depths[i] + 1;
+        }
+        return max;
+    }
+
+    /**
+     * A node while the tree is being built
+     */
+    private static class Node {
+        float a, b, c, d;
+        Node front, back;
+        final List<Model.Vertex[]> sameFacing = new ArrayList<>();
+        final List<Model.Vertex[]> oppositeFacing = new ArrayList<>();
+    }
+
+    /**
+     * Builds the subtree of a list of triangles into a node. The smaller side of each plane is built by another task,
+     * in parallel if it is big, and the bigger side by the same task, so that however unbalanced the tree is the
+     * tasks never nest deeply.
+     */
+    private static class BuildTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Model.Vertex[]> triangles;
+        private final float thickness;
+        private final int depth;
+        private final Node node;
+        // the thread that started the build, every task stops when it is interrupted
+        private final Thread owner;
+
+        BuildTask(List<Model.Vertex[]> triangles, float thickness, int depth, Node node, Thread owner) {
+            this.triangles = triangles;
+            this.thickness = thickness;
+            this.depth = depth;
+            this.node = node;
+            this.owner = owner;
+        }
+
+        @Override
+        protected void compute() {
+            final List<BuildTask> forked = new ArrayList<>();
+            final float[] plane = new float[4];
+            List<Model.Vertex[]> triangles = this.triangles;
+            Node node = this.node;
+            for(int depth = this.depth; ; ++depth) {
+                if(owner.isInterrupted()) throw new CancellationException();
+                if(!choosePlane(triangles, depth, plane)) {
+                    // only degenerate triangles are left, they cover no pixels so their order doesn't matter
+                    node.sameFacing.addAll(triangles);
+                    break;
+                }
+                node.a = plane[0];
+                node.b = plane[1];
+                node.c = plane[2];
+                node.d = plane[3];
+                final List<Model.Vertex[]> frontTriangles = new ArrayList<>();
+                final List<Model.Vertex[]> backTriangles = new ArrayList<>();
+                for(Model.Vertex[] triangle : triangles) {
+                    partition(triangle, plane, thickness, node, frontTriangles, backTriangles);
+                }
+
+                final boolean frontIsBigger = frontTriangles.size() >= backTriangles.size();
+                final List<Model.Vertex[]> smaller = frontIsBigger ? backTriangles : frontTriangles;
+                final List<Model.Vertex[]> bigger = frontIsBigger ? frontTriangles : backTriangles;
+                if(!smaller.isEmpty()) {
+                    final Node child = new Node();
+                    if(frontIsBigger) node.back = child;
+                    else node.front = child;
+                    final BuildTask task = new BuildTask(smaller, thickness, depth + 1, child, owner);
+                    if(smaller.size() > parallelThreshold) {
+                        task.fork();
+                        forked.add(task);
+                    } else {
+                        task.compute();
+                    }
+                }
+                if(bigger.isEmpty()) break;
+                final Node child = new Node();
+                if(frontIsBigger) node.front = child;
+                else node.back = child;
+                node = child;
+                triangles = bigger;
+            }
+            for(BuildTask task : forked) {
+                task.join();
+            }
+        }
+
+        /**
+         * Picks the plane that splits the fewest triangles while leaving a similar number on each side from the
+         * planes of some of the triangles and, near the root, planes through the middle of the triangles along each
+         * axis
+         *
+         * @return False if every triangle is degenerate
+         */
+        private boolean choosePlane(List<Model.Vertex[]> triangles, int depth, float[] plane) {
+            final float[] candidate = new float[4];
+            long bestScore = Long.MAX_VALUE;
+            final int step = Math.max(triangles.size() / candidateCount, 1);
+            for(int i = 0; i < triangles.size(); i += step) {
+                if(!calculatePlane(triangles.get(i), candidate)) continue;
+                // the plane holds at least one triangle so the sides always get smaller
+                final long score = score(triangles, candidate, false);
+                if(score < bestScore) {
+                    bestScore = score;
+                    System.arraycopy(candidate, 0, plane, 0, 4);
+                }
+            }
+            if(bestScore == Long.MAX_VALUE) {
+                // the sampled triangles were degenerate, fall back to any triangle that isn't
+                for(Model.Vertex[] triangle : triangles) {
+                    if(calculatePlane(triangle, plane)) return true;
+                }
+                return false;
+            }
+            if(depth < maxAxisPlaneDepth) {
+                float centerX = 0f, centerY = 0f, centerZ = 0f;
+                for(Model.Vertex[] triangle : triangles) {
+                    centerX += triangle[0].x + triangle[1].x + triangle[2].x;
+                    centerY += triangle[0].y + triangle[1].y + triangle[2].y;
+                    centerZ += triangle[0].z + triangle[1].z + triangle[2].z;
+                }
+                final float scale = 1f / (triangles.size() * 3);
+                for(int axis = 0; axis < 3; ++axis) {
+                    candidate[0] = axis == 0 ? 1f : 0f;
+                    candidate[1] = axis == 1 ? 1f : 0f;
+                    candidate[2] = axis == 2 ? 1f : 0f;
+                    candidate[3] = -(axis == 0 ? centerX : axis == 1 ? centerY : centerZ) * scale;
+                    final long score = score(triangles, candidate, true);
+                    if(score < bestScore) {
+                        bestScore = score;
+                        System.arraycopy(candidate, 0, plane, 0, 4);
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @param needBothSides True if the plane must have triangles on both sides to be used.
+         * @return How bad a plane is, lower is better
+         */
+        private long score(List<Model.Vertex[]> triangles, float[] plane, boolean needBothSides) {
+            int frontCount = 0, backCount = 0, splitCount = 0;
+            for(Model.Vertex[] triangle : triangles) {
+                final int side = classify(triangle, plane, thickness);
+                if(side == splitSide) ++splitCount;
+                else if(side > 0) ++frontCount;
+                else if(side < 0) ++backCount;
+            }
+            if(needBothSides && (frontCount == 0 || backCount == 0)) return Long.MAX_VALUE;
+            return (long)splitCount * splitCost + Math.abs(frontCount - backCount);
+        }
+    }
+
+    /**
+     * @return 1 if the triangle is in front of the plane, -1 if it is behind, 0 if it is in the plane, or
+     * {@link #splitSide} if it crosses it
+     */
+    private static int classify(Model.Vertex[] triangle, float[] plane, float thickness) {
+        boolean inFront = false, behind = false;
+        for(Model.Vertex vertex : triangle) {
+            final float distance = distance(plane, vertex);
+            if(distance > thickness) inFront = true;
+            else if(distance < -thickness) behind = true;
+        }
+        if(inFront && behind) return splitSide;
+        return inFront ? 1 : behind ? -1 : 0;
+    }
+
+    private static float distance(float[] plane, Model.Vertex vertex) {
+        return plane[0] * vertex.x + plane[1] * vertex.y + plane[2] * vertex.z + plane[3];
+    }
+
+    /**
+     * Puts a triangle in the node if it is in the node's plane, otherwise in the list of the side it is on, splitting
+     * it if it is on both sides
+     */
+    private static void partition(Model.Vertex[] triangle, float[] plane, float thickness, Node node,
+                                  List<Model.Vertex[]> frontTriangles, List<Model.Vertex[]> backTriangles) {
+        final int side = classify(triangle, plane, thickness);
+        if(side == 1) {
+            frontTriangles.add(triangle);
+        } else if(side == -1) {
+            backTriangles.add(triangle);
+        } else if(side == 0) {
+            final float[] normal = new float[4];
+            // degenerate triangles in the plane cover no pixels so it doesn't matter which way they face
+            if(!calculatePlane(triangle, normal) ||
+                    normal[0] * plane[0] + normal[1] * plane[1] + normal[2] * plane[2] >= 0f) {
+                node.sameFacing.add(triangle);
+            } else {
+                node.oppositeFacing.add(triangle);
+            }
+        } else {
+            split(triangle, plane, thickness, frontTriangles, backTriangles);
+        }
+    }
+
+    /**
+     * Cuts a triangle along a plane into a polygon on each side and adds the polygons as fans of triangles with the
+     * same winding as the original
+     */
+    private static void split(Model.Vertex[] triangle, float[] plane, float thickness,
+                              List<Model.Vertex[]> frontTriangles, List<Model.Vertex[]> backTriangles) {
+        final Model.Vertex[] frontPolygon = new Model.Vertex[4];
+        final Model.Vertex[] backPolygon = new Model.Vertex[4];
+        int frontCount = 0, backCount = 0;
+        for(int i = 0; i < 3; ++i) {
+            final Model.Vertex current = triangle[i];
+            final Model.Vertex next = triangle[(i + 1) % 3];
+            final float currentDistance = distance(plane, current);
+            final float nextDistance = distance(plane, next);
+            final int currentSide = currentDistance > thickness ? 1 : currentDistance < -thickness ? -1 : 0;
+            final int nextSide = nextDistance > thickness ? 1 : nextDistance < -thickness ? -1 : 0;
+            if(currentSide >= 0) frontPolygon[frontCount++] = current;
+            if(currentSide <= 0) backPolygon[backCount++] = current;
+            if(currentSide * nextSide < 0) {
+                final Model.Vertex intersection = interpolate(current, next,
+                        currentDistance / (currentDistance - nextDistance));
+                frontPolygon[frontCount++] = intersection;
+                backPolygon[backCount++] = intersection;
+            }
+        }
+        for(int i = 2; i < frontCount; ++i) {
+            frontTriangles.add(new Model.Vertex[]{frontPolygon[0], frontPolygon[i - 1], frontPolygon[i]});
+        }
+        for(int i = 2; i < backCount; ++i) {
+            backTriangles.add(new Model.Vertex[]{backPolygon[0], backPolygon[i - 1], backPolygon[i]});
+        }
+    }
+
+    /**
+     * @return A new vertex part of the way from vertex1 to vertex2
+     */
+    private static Model.Vertex interpolate(Model.Vertex vertex1, Model.Vertex vertex2, float amount) {
+        final Model.Vertex vertex = new Model.Vertex();
+        vertex.x = vertex1.x + (vertex2.x - vertex1.x) * amount;
+        vertex.y = vertex1.y + (vertex2.y - vertex1.y) * amount;
+        vertex.z = vertex1.z + (vertex2.z - vertex1.z) * amount;
+        float nx = vertex1.nx + (vertex2.nx - vertex1.nx) * amount;
+        float ny = vertex1.ny + (vertex2.ny - vertex1.ny) * amount;
+        float nz = vertex1.nz + (vertex2.nz - vertex1.nz) * amount;
+        final float length = (float)Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if(length != 0f) {
+            nx /= length;
+            ny /= length;
+            nz /= length;
+        }
+        vertex.nx = nx;
+        vertex.ny = ny;
+        vertex.nz = nz;
+        vertex.u = vertex1.u + (vertex2.u - vertex1.u) * amount;
+        vertex.v = vertex1.v + (vertex2.v - vertex1.v) * amount;
+        return vertex;
+    }
+
+    /**
+     * Calculates the normalized plane of a triangle with the same normal as {@link Model} uses
+     *
+     * @return False if the triangle is degenerate
+     */
+    private static boolean calculatePlane(Model.Vertex[] triangle, float[] plane) {
+        final Model.Vertex vertex1 = triangle[0], vertex2 = triangle[1], vertex3 = triangle[2];
+        final float x2 = vertex2.x - vertex1.x, y2 = vertex2.y - vertex1.y, z2 = vertex2.z - vertex1.z;
+        final float x3 = vertex3.x - vertex1.x, y3 = vertex3.y - vertex1.y, z3 = vertex3.z - vertex1.z;
+        final float nx = y2 * z3 - z2 * y3;
+        final float ny = z2 * x3 - x2 * z3;
+        final float nz = x2 * y3 - y2 * x3;
+        final float length = (float)Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if(length == 0f || Float.isNaN(length)) return false;
+        plane[0] = nx / length;
+        plane[1] = ny / length;
+        plane[2] = nz / length;
+        plane[3] = -(plane[0] * vertex1.x + plane[1] * vertex1.y + plane[2] * vertex1.z);
+        return true;
+    }
+
+    /**
+     * Numbers the nodes with every child after its parent and gathers the triangles into an index buffer, giving the
+     * vertices made by splitting numbers after the model's vertices
+     */
+    private static BspTree flatten(Node root, Model.Vertex[] modelVertices) {
+        final List<Node> nodes = new ArrayList<>();
+        if(root != null) nodes.add(root);
+        int triangleCount = 0;
+        for(int i = 0; i < nodes.size(); ++i) {
+            final Node node = nodes.get(i);
+            triangleCount += node.sameFacing.size() + node.oppositeFacing.size();
+            if(node.front != null) nodes.add(node.front);
+            if(node.back != null) nodes.add(node.back);
+        }
+
+        final IdentityHashMap<Model.Vertex, Integer> vertexNumbers = new IdentityHashMap<>(modelVertices.length * 2);
+        final List<Model.Vertex> vertices = new ArrayList<>(modelVertices.length);
+        for(Model.Vertex vertex : modelVertices) {
+            vertexNumbers.put(vertex, vertices.size());
+            vertices.add(vertex);
+        }
+        final int nodeCount = nodes.size();
+        final float[] planes = new float[nodeCount * 4];
+        final int[] front = new int[nodeCount];
+        final int[] back = new int[nodeCount];
+        final int[] firstTriangle = new int[nodeCount];
+        final int[] sameFacingCounts = new int[nodeCount];
+        final int[] oppositeFacingCounts = new int[nodeCount];
+        final int[] indexBuffer = new int[triangleCount * 3];
+        int index = 0;
+        // children were added in the same order as they are numbered here
+        int nextChild = 1;
+        for(int i = 0; i < nodeCount; ++i) {
+            final Node node = nodes.get(i);
+            planes[i * 4] = node.a;
+            planes[i * 4 + 1] = node.b;
+            planes[i * 4 + 2] = node.c;
+            planes[i * 4 + 3] = node.d;
+            front[i] = node.front != null ? nextChild++ : -1;
+            back[i] = node.back != null ? nextChild++ : -1;
+            firstTriangle[i] = index / 3;
+            sameFacingCounts[i] = node.sameFacing.size();
+            oppositeFacingCounts[i] = node.oppositeFacing.size();
+            for(int facing = 0; facing < 2; ++facing) {
+                for(Model.Vertex[] triangle : facing == 0 ? node.sameFacing : node.oppositeFacing) {
+                    for(Model.Vertex vertex : triangle) {
+                        Integer number = vertexNumbers.get(vertex);
+                        if(number == null) {
+                            number = vertices.size();
+                            vertexNumbers.put(vertex, number);
+                            vertices.add(vertex);
+                        }
+                        indexBuffer[index++] = number;
+                    }
+                }
+            }
+        }
+        return new BspTree(vertices.toArray(new Model.Vertex[0]), indexBuffer, planes, front, back, firstTriangle,
+                sameFacingCounts, oppositeFacingCounts);
+    }
+}
@@ -3,101 +3,527 @@ import java.awt.*;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * The drawing area.
  */
 class Canvas extends JPanel {
     private static final long serialVersionUID = 1L;
+    // how opaque solid surfaces are when they are drawn transparent
+    private static final float transparentOpacity = 0.35f;
+    // the brightness range across a tile of the last frame below which adaptive shading shades it at a coarser rate
+    private static final int adaptiveShadingThreshold = 24;
+
+    /**
+     * How solid surfaces are blended. weightedBlended doesn't need the triangles sorted.
+     */
+    public enum Transparency {
+        opaque, alphaBlended, additive, premultiplied, weightedBlended
+    }
 
 
     private BufferedImage backBuffer;
+    private ImageRenderTarget backBufferTarget;
+    private GBuffer gBuffer;
+    private LightTiles lightTiles;
+    private MultisampleRenderTarget multisampleTarget;
+    private int multisampleCount = 1;
     private Model model;
     private GraphicsEngine.PipelineState filledPipelineState;
     private GraphicsEngine.PipelineState wireFramePipelineState;
+    private GraphicsEngine.PipelineState deferredPipelineState;
+    private GraphicsEngine.PixelShader deferredLightingPS = new DeferredPhongPS();
+    private PhongVS phongVS = new PhongVS();
+    private GraphicsEngine.PixelShader phongPS = new PhongPS();
+    private GraphicsEngine.PixelShader deferredMaterialPS = (Object[] rootSignature, Vector4[] in) ->
+            (GBuffer.lit << 24) + 0xffffff;
+    private TexturedPhongVS texturedPhongVS = new TexturedPhongVS();
+    private GraphicsEngine.PixelShader texturedPhongPS = new TexturedPhongPS();
+    private GraphicsEngine.VertexShader gouraudVS = new GouraudVS();
+    private GraphicsEngine.PixelShader gouraudPS = new GouraudPS();
+    private GraphicsEngine.PixelShader deferredTexturedMaterialPS = (Object[] rootSignature, Vector4[] in) ->
+            (GBuffer.lit << 24) + (TexturedPhongPS.sampleAlbedo(rootSignature, in) & 0xffffff);
     private Matrix4x4 worldMatrix = Matrix4x4.getIdentity();
     private Matrix4x4 projectionMatrix;
-    private Object[] rootArguments = new Object[3];
+    // projectionMatrix * worldMatrix, updated in place
+    private final Matrix4x4 wvpMatrix = Matrix4x4.getIdentity();
+    private final Vector4 chunkCenter = new Vector4();
+    // the camera's position in model space
+    private final Vector4 eye = new Vector4();
+    private Object[] rootArguments = new Object[5];
     private boolean wireFrame = true;
     private boolean fill = true;
+    private boolean deferred = false;
+    private boolean gouraud = false;
+    private boolean flatShading = false;
+    private final DynamicResolution dynamicResolution = new DynamicResolution(16f);
+    private boolean dynamicResolutionEnabled = false;
+    private final MeshletCuller meshletCuller = new MeshletCuller();
+    // the sorted triangles of the meshlets that weren't culled
+    private int[] visibleIndices = new int[0];
+    private int visibleIndexCount = 0;
+    // the meshlet triangle number of each visible triangle, for sorting them starting from the last frame's order
+    private int[] visibleTriangleIds = new int[0];
+    private TriangleSorter triangleSorter;
+    // true if visibleIndices are in painter's order
+    private boolean sorted = false;
+    // set when the transforms change, the model is culled and sorted again when the next frame is drawn
+    private boolean transformChanged = true;
+    // true to order the triangles by walking the model's BSP tree, if it has one, instead of sorting them
+    private boolean bspOrdering = false;
+    // used instead of model for models that don't fit in memory
+    private StreamingModel streamingModel;
+    // the chunks of the streaming model that are on screen, furthest first
+    private int[] visibleChunks = new int[0];
+    private int visibleChunkCount = 0;
+    private long[] chunkSortKeys = new long[0];
+    // the output of the vertex stage of the pipeline state being drawn
+    private final TransformedVertices transformedVertices = new TransformedVertices();
+    private boolean depthPrepass = false;
+    private DepthBuffer depthBuffer;
+    // the pixel counts of the last frame drawn with the depth pre-pass
+    private final PipelineStatistics pipelineStatistics = new PipelineStatistics();
+    // what the heat map shows, or null to draw the model normally
+    private HeatmapRenderTarget.Mode heatmapMode;
+    private HeatmapRenderTarget heatmapTarget;
+    private long lastHistogramTime;
+    private Transparency transparency = Transparency.opaque;
+    private OitRenderTarget oitTarget;
+    private boolean adaptiveShadingRate = false;
+    // the shading rate of each tile for adaptive shading, calculated from the last frame
+    private ShadingRateImage shadingRateImage;
 
     public Canvas() {
         setOpaque(true);
 
-        GraphicsEngine.VertexShader phongVS = new PhongVS();
-        GraphicsEngine.VertexShader wireFrameVS = (Object vert, Object[] rootSignature, Vector4[] out) -> {
-            Model.Vertex vertex = (Model.Vertex) vert;
-            Matrix4x4 wvpMatrix = (Matrix4x4) rootSignature[0];
-            Vector4 pos = out[0];
-            pos.x = vertex.x;
-            pos.y = vertex.y;
-            pos.z = vertex.z;
-            pos.w = 1.f;
-            wvpMatrix.transform(pos);
-        };
-
-        GraphicsEngine.PixelShader phongPS = new PhongPS();
         GraphicsEngine.PixelShader wireFramePS = (Object[] rootSignature, Vector4[] in) -> (255 << 24) + (140 << 16);
+        GraphicsEngine.PixelShader deferredWireFramePS = (Object[] rootSignature, Vector4[] in) ->
+                (GBuffer.unlit << 24) + (140 << 16);
 
         filledPipelineState = new GraphicsEngine.PipelineState();
         filledPipelineState.cullBackFace = true;
-        filledPipelineState.fillMode = GraphicsEngine.FillMode.solid;
+        filledPipelineState.fillMode = GraphicsEngine.FillMode.solidWireFrame;
+        filledPipelineState.wireFramePixelShader = wireFramePS;
         filledPipelineState.vertexShaderInterpolateCount = PhongVS.interpolateCount;
         filledPipelineState.vertexShader = phongVS;
+        filledPipelineState.batchVertexShader = phongVS;
         filledPipelineState.pixelShader = phongPS;
 
         wireFramePipelineState = new GraphicsEngine.PipelineState();
         wireFramePipelineState.cullBackFace = true;
         wireFramePipelineState.fillMode = GraphicsEngine.FillMode.wireFrame;
-        wireFramePipelineState.vertexShaderInterpolateCount = 1;
+        wireFramePipelineState.vertexShaderInterpolateCount = WireFrameVS.interpolateCount;
+        final WireFrameVS wireFrameVS = new WireFrameVS();
         wireFramePipelineState.vertexShader = wireFrameVS;
+        wireFramePipelineState.batchVertexShader = wireFrameVS;
         wireFramePipelineState.pixelShader = wireFramePS;
 
+        deferredPipelineState = new GraphicsEngine.PipelineState();
+        deferredPipelineState.cullBackFace = true;
+        deferredPipelineState.fillMode = GraphicsEngine.FillMode.solidWireFrame;
+        deferredPipelineState.wireFramePixelShader = deferredWireFramePS;
+        deferredPipelineState.vertexShaderInterpolateCount = PhongVS.interpolateCount;
+        deferredPipelineState.vertexShader = phongVS;
+        deferredPipelineState.batchVertexShader = phongVS;
+        deferredPipelineState.pixelShader = deferredMaterialPS;
+
+
         addComponentListener(new Resizer());
+        PointLight pointLight = new PointLight(10f, 5f, -5f, 0.f, 0.f, 6.f);
         rootArguments[1] = worldMatrix;
-        rootArguments[2] = new PointLight(10f, 5f, -5f, 0.f, 0.f, 6.f);
+        rootArguments[2] = pointLight;
+        LightList lights = new LightList();
+        lights.add(pointLight);
+        rootArguments[3] = lights;
     }
 
     /**
-     * resizes the backbuffer and recalculates projection matrix
+     * recreates the render targets at the new size of the canvas
      */
     private class Resizer extends ComponentAdapter {
         @Override
         public void componentResized(ComponentEvent e) {
-            final int width = Math.max(Canvas.this.getWidth(), 1);
-            final int height = Math.max(Canvas.this.getHeight(), 1);
-            backBuffer = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().
-                    getDefaultConfiguration().createCompatibleImage(width, height);
-            float aspectRatio = (float)width / (float)height;
-            projectionMatrix = (Matrix4x4.getScale(width / 2, -height / 2, 1f)).
-                    mul(Matrix4x4.getTranslation(1.f, -1.f, 0f).
-                            mul(Matrix4x4.getProjection(0.2f, -0.2f, -0.2f * aspectRatio, 0.2f * aspectRatio,
-                                    0.2f, 100000f)));
-            rootArguments[0] = projectionMatrix.mul(worldMatrix);
-
+            createRenderTargets();
             repaint();
         }
     }
 
+    /**
+     * Creates the backbuffer at the size of the canvas multiplied by the render scale and recalculates the projection
+     * matrix. The other render targets are dropped and created again at the new size by their getters the next time a
+     * frame uses them, so a resize only allocates the targets of the modes that are on.
+     */
+    private void createRenderTargets() {
+        final float scale = dynamicResolutionEnabled ? dynamicResolution.getScale() : 1f;
+        final int width = Math.max(Math.round(getWidth() * scale), 1);
+        final int height = Math.max(Math.round(getHeight() * scale), 1);
+        backBuffer = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().
+                getDefaultConfiguration().createCompatibleImage(width, height);
+        backBufferTarget = new ImageRenderTarget(backBuffer);
+        gBuffer = null;
+        depthBuffer = null;
+        heatmapTarget = null;
+        oitTarget = null;
+        lightTiles = null;
+        multisampleTarget = null;
+        shadingRateImage = null;
+        projectionMatrix = createProjectionMatrix(width, height);
+        transformChanged = true;
+    }
+
+    private GBuffer getGBuffer() {
+        if(gBuffer == null) gBuffer = new GBuffer(backBuffer.getWidth(), backBuffer.getHeight());
+        return gBuffer;
+    }
+
+    private LightTiles getLightTiles() {
+        if(lightTiles == null) lightTiles = new LightTiles(backBuffer.getWidth(), backBuffer.getHeight());
+        return lightTiles;
+    }
+
+    private DepthBuffer getDepthBuffer() {
+        if(depthBuffer == null) depthBuffer = new DepthBuffer(backBuffer.getWidth(), backBuffer.getHeight());
+        return depthBuffer;
+    }
+
+    private HeatmapRenderTarget getHeatmapTarget() {
+        if(heatmapTarget == null) {
+            heatmapTarget = new HeatmapRenderTarget(backBuffer.getWidth(), backBuffer.getHeight());
+        }
+        return heatmapTarget;
+    }
+
+    private OitRenderTarget getOitTarget() {
+        if(oitTarget == null) oitTarget = new OitRenderTarget(backBuffer.getWidth(), backBuffer.getHeight());
+        return oitTarget;
+    }
+
+    /**
+     * @return The multisample target for the current sample count, or null if multisampling is off
+     */
+    private MultisampleRenderTarget getMultisampleTarget() {
+        if(!usesMultisampling()) return null;
+        if(multisampleTarget == null) {
+            multisampleTarget = new MultisampleRenderTarget(backBuffer.getWidth(), backBuffer.getHeight(),
+                    multisampleCount);
+        }
+        return multisampleTarget;
+    }
+
+    /**
+     * @return True if anti-aliasing is on and no heat map is shown, because the heat map can't see the samples that
+     * the multisampled rasterizer writes
+     */
+    private boolean usesMultisampling() {
+        return multisampleCount > 1 && heatmapMode == null;
+    }
+
+    /**
+     * @return The matrix that projects view space onto a screen with the specified size in pixels
+     */
+    static Matrix4x4 createProjectionMatrix(int width, int height) {
+        float aspectRatio = (float)width / (float)height;
+        return (Matrix4x4.getScale(width / 2, -height / 2, 1f)).
+                mul(Matrix4x4.getTranslation(1.f, -1.f, 0f).
+                        mul(Matrix4x4.getProjection(0.2f, -0.2f, -0.2f * aspectRatio, 0.2f * aspectRatio,
+                                0.2f, 100000f)));
+    }
+
     public Matrix4x4 getWorldMatrix() {
         return worldMatrix;
     }
 
     public void setModel(final Model model) {
         this.model = model;
+        streamingModel = null;
+        visibleIndices = new int[model.bspTree != null ? Math.max(model.indexBuffer.length,
+                model.bspTree.getIndexCount()) : model.indexBuffer.length];
+        visibleIndexCount = 0;
+        visibleTriangleIds = new int[model.indexBuffer.length / 3];
+        triangleSorter = new TriangleSorter(model.indexBuffer.length / 3);
+        visibleChunkCount = 0;
+        transformChanged = true;
+    }
+
+    /**
+     * Draws a model that is read from disk a chunk at a time instead of a {@link Model}. Triangles are only sorted
+     * within each chunk and the chunks are drawn furthest first.
+     */
+    public void setStreamingModel(final StreamingModel streamingModel) {
+        this.streamingModel = streamingModel;
+        model = null;
+        visibleIndices = new int[0];
+        visibleIndexCount = 0;
+        visibleTriangleIds = new int[0];
+        triangleSorter = null;
+        visibleChunks = new int[streamingModel.getChunkCount()];
+        chunkSortKeys = new long[streamingModel.getChunkCount()];
+        visibleChunkCount = 0;
+        transformChanged = true;
     }
 
+    /**
+     * When both wire frame and fill are on, the edges are drawn by the solid pipeline states in the same pass as the
+     * triangles
+     */
     public void setWireFrame(boolean value) {
         this.wireFrame = value;
+        final GraphicsEngine.FillMode fillMode = value ? GraphicsEngine.FillMode.solidWireFrame :
+                GraphicsEngine.FillMode.solid;
+        filledPipelineState.fillMode = fillMode;
+        deferredPipelineState.fillMode = fillMode;
     }
 
     public void setFill(boolean value){
         this.fill = value;
     }
 
+    /**
+     * When deferred shading is on, solid surfaces are drawn to a G-buffer and lit once per pixel by the lights in
+     * the light list that reach the pixel's 16x16 tile.
+     */
+    public void setDeferred(boolean value) {
+        this.deferred = value;
+    }
+
+    /**
+     * When dynamic resolution is on, the model is drawn at a lower resolution and scaled up to the size of the
+     * canvas whenever frames take longer than the frame time budget.
+     */
+    public void setDynamicResolution(boolean value) {
+        if(value == dynamicResolutionEnabled) return;
+        dynamicResolutionEnabled = value;
+        dynamicResolution.reset();
+        if(backBuffer != null) {
+            createRenderTargets();
+        }
+    }
+
+    /**
+     * When the depth pre-pass is on, solid surfaces are drawn to a depth buffer first so that each pixel is only
+     * shaded once. It isn't used for streamed models, Gouraud shading, multisampling or coarse shading rates. The
+     * number of pixels shaded is drawn in the corner of the canvas.
+     */
+    public void setDepthPrepass(boolean value) {
+        depthPrepass = value;
+        repaint();
+    }
+
+    /**
+     * When BSP ordering is on and the model has a {@link BspTree}, the triangles are put in painter's order by walking
+     * the tree instead of culling meshlets and sorting the triangles. The tree's split triangles are drawn, so the
+     * wire frame also shows the edges where triangles were split.
+     */
+    public void setBspOrdering(boolean value) {
+        bspOrdering = value;
+        invalidateTransform();
+    }
+
+    /**
+     * Draws a heat map of how many fragments each pixel received or how long shading each tile took instead of the
+     * model, and prints a histogram of it at most once a second. Multisampling is turned off and Gouraud colors are
+     * interpolated by a pixel shader while it is shown, because those rasterizers write pixels directly.
+     *
+     * @param mode What to show, or null to draw the model normally.
+     */
+    public void setHeatmapMode(HeatmapRenderTarget.Mode mode) {
+        heatmapMode = mode;
+        lastHistogramTime = 0L;
+        repaint();
+    }
+
+    public PipelineStatistics getPipelineStatistics() {
+        return pipelineStatistics;
+    }
+
+    /**
+     * Sets the number of milliseconds that dynamic resolution tries to render each frame in
+     */
+    public void setFrameTimeBudget(float milliseconds) {
+        dynamicResolution.setFrameTimeBudget(milliseconds);
+    }
+
+    /**
+     * Sets the number of samples per pixel for multisample anti-aliasing. 1 turns anti-aliasing off, otherwise it
+     * must be 2, 4 or 8. Deferred shading isn't anti-aliased and neither is a heat map.
+     */
+    public void setMultisampleCount(int count) {
+        if(count == multisampleCount) return;
+        multisampleCount = count;
+        // created by getMultisampleTarget when a frame needs it
+        multisampleTarget = null;
+    }
+
+    /**
+     * Sets the point lights used by deferred shading
+     */
+    public void setLights(LightList lights) {
+        rootArguments[3] = lights;
+    }
+
+    /**
+     * Sets the texture to draw solid surfaces with, or null to draw them without a texture
+     */
+    public void setTexture(Texture2D texture) {
+        rootArguments[4] = texture;
+        updateShaders();
+    }
+
+    /**
+     * When Gouraud shading is on, lighting is calculated per vertex instead of per pixel and textures aren't drawn.
+     * Deferred shading still lights per pixel. The colors are normally stepped across each span without running a
+     * pixel shader, but while a heat map is shown they are interpolated by a pixel shader so that it can be measured.
+     */
+    public void setGouraud(boolean value) {
+        gouraud = value;
+        updateShaders();
+    }
+
+    /**
+     * When flat shading is on, each Gouraud shaded triangle has the color of its first vertex. It has no effect
+     * without Gouraud shading.
+     */
+    public void setFlatShading(boolean value) {
+        flatShading = value;
+        updateShaders();
+    }
+
+    /**
+     * Sets how solid surfaces are blended with what is behind them. Transparent surfaces are drawn opaque when
+     * multisampling, shading deferred or showing a heat map, and weightedBlended falls back to alphaBlended when the
+     * model is streamed or Gouraud shaded.
+     */
+    public void setTransparency(Transparency transparency) {
+        this.transparency = transparency;
+        updateShaders();
+        repaint();
+    }
+
+    /**
+     * picks the shaders for solid surfaces from the shading options
+     */
+    private void updateShaders() {
+        final boolean textured = rootArguments[4] != null;
+        if(gouraud) {
+            filledPipelineState.vertexShaderInterpolateCount = GouraudVS.interpolateCount;
+            filledPipelineState.derivativeInterpolate = -1;
+            // the heat map target isn't an ImageRenderTarget, so the colors it sees are written by gouraudPS
+            filledPipelineState.colorInterpolate = GouraudVS.colorInterpolate;
+            filledPipelineState.flatShading = flatShading;
+            filledPipelineState.vertexShader = gouraudVS;
+            // the lighting done by the Gouraud vertex shader has no batch version
+            filledPipelineState.batchVertexShader = null;
+            filledPipelineState.pixelShader = gouraudPS;
+        } else if(textured) {
+            filledPipelineState.vertexShaderInterpolateCount = TexturedPhongVS.interpolateCount;
+            filledPipelineState.derivativeInterpolate = TexturedPhongVS.textureCoordinatesInterpolate;
+            filledPipelineState.colorInterpolate = -1;
+            filledPipelineState.flatShading = false;
+            filledPipelineState.vertexShader = texturedPhongVS;
+            filledPipelineState.batchVertexShader = texturedPhongVS;
+            filledPipelineState.pixelShader = texturedPhongPS;
+        } else {
+            filledPipelineState.vertexShaderInterpolateCount = PhongVS.interpolateCount;
+            filledPipelineState.derivativeInterpolate = -1;
+            filledPipelineState.colorInterpolate = -1;
+            filledPipelineState.flatShading = false;
+            filledPipelineState.vertexShader = phongVS;
+            filledPipelineState.batchVertexShader = phongVS;
+            filledPipelineState.pixelShader = phongPS;
+        }
+        if(transparency != Transparency.opaque) {
+            filledPipelineState.pixelShader = new TransparentPS(filledPipelineState.pixelShader, transparentOpacity,
+                    transparency == Transparency.premultiplied);
+        }
+        filledPipelineState.blendMode = getBlendMode();
+
+        if(textured) {
+            deferredPipelineState.vertexShaderInterpolateCount = TexturedPhongVS.interpolateCount;
+            deferredPipelineState.derivativeInterpolate = TexturedPhongVS.textureCoordinatesInterpolate;
+            deferredPipelineState.vertexShader = texturedPhongVS;
+            deferredPipelineState.batchVertexShader = texturedPhongVS;
+            deferredPipelineState.pixelShader = deferredTexturedMaterialPS;
+        } else {
+            deferredPipelineState.vertexShaderInterpolateCount = PhongVS.interpolateCount;
+            deferredPipelineState.derivativeInterpolate = -1;
+            deferredPipelineState.vertexShader = phongVS;
+            deferredPipelineState.batchVertexShader = phongVS;
+            deferredPipelineState.pixelShader = deferredMaterialPS;
+        }
+    }
+
+    /**
+     * @return How solid surfaces are blended when they aren't drawn with weighted blended order-independent
+     * transparency
+     */
+    private GraphicsEngine.BlendMode getBlendMode() {
+        switch(transparency) {
+            case alphaBlended:
+            case weightedBlended:
+                return GraphicsEngine.BlendMode.alpha;
+            case additive:
+                return GraphicsEngine.BlendMode.additive;
+            case premultiplied:
+                return GraphicsEngine.BlendMode.premultiplied;
+            default:
+                return GraphicsEngine.BlendMode.opaque;
+        }
+    }
+
+    /**
+     * Sets how many pixels wide and high the blocks that solid surfaces are shaded once per are. 1, 2 or 4.
+     */
+    public void setShadingRate(int rate) {
+        filledPipelineState.shadingRate = rate;
+        deferredPipelineState.shadingRate = rate;
+    }
+
+    /**
+     * When adaptive shading is on, each 16x16 tile is shaded at a rate picked from how much its brightness changed
+     * across the tile in the last frame, so flat areas are shaded once per 2x2 or 4x4 block. It overrides the shading
+     * rate.
+     */
+    public void setAdaptiveShadingRate(boolean value) {
+        adaptiveShadingRate = value;
+        if(!value) {
+            shadingRateImage = null;
+            filledPipelineState.shadingRateImage = null;
+            deferredPipelineState.shadingRateImage = null;
+        }
+        repaint();
+    }
+
+    /**
+     * calculates the shading rates for the frame about to be drawn from the last frame, which is still in the back
+     * buffer
+     */
+    private void updateShadingRateImage() {
+        if(shadingRateImage == null) {
+            // the back buffer was just created so there is no last frame at this size, shade every pixel
+            shadingRateImage = new ShadingRateImage(backBuffer.getWidth(), backBuffer.getHeight());
+        } else {
+            shadingRateImage.calculateFromImage(backBuffer, adaptiveShadingThreshold);
+        }
+        filledPipelineState.shadingRateImage = shadingRateImage;
+        deferredPipelineState.shadingRateImage = shadingRateImage;
+    }
+
+    /**
+     * Turns anti-aliasing of wire frame lines on or off
+     */
+    public void setAntialiasedLines(boolean value) {
+        filledPipelineState.antialiasedLines = value;
+        wireFramePipelineState.antialiasedLines = value;
+        deferredPipelineState.antialiasedLines = value;
+    }
+
     public void setCullBackFace(boolean value) {
         filledPipelineState.cullBackFace = value;
         wireFramePipelineState.cullBackFace = value;
+        deferredPipelineState.cullBackFace = value;
+        transformChanged = true;
     }
 
     public void setWorldMatrix(Matrix4x4 worldMatrix) {
@@ -106,102 +532,174 @@ class Canvas extends JPanel {
     }
 
     /**
-     * must be called after setting transforms
+     * Must be called after changing the world matrix and repaints the canvas. The model is culled and sorted once
+     * when the next frame is drawn however many times this is called before then, so input that arrives faster than
+     * frames can be drawn doesn't queue up work.
+     */
+    public void invalidateTransform() {
+        transformChanged = true;
+        repaint();
+    }
+
+    /**
+     * Culls the model's meshlets that can't be seen and sorts the triangles of the rest if the current drawing mode
+     * needs them sorted, or orders the triangles with the model's BSP tree if BSP ordering is on. Usually
+     * {@link #invalidateTransform()} should be used instead.
      */
     public void updateTransform() {
-        Matrix4x4 wvpMatrix = projectionMatrix.mul(worldMatrix);
+        transformChanged = false;
+        projectionMatrix.mulInto(worldMatrix, wvpMatrix);
         rootArguments[0] = wvpMatrix;
-        sort(model, wvpMatrix);
+        if(streamingModel != null) {
+            sortChunks(wvpMatrix);
+            return;
+        }
+        if(model == null) return;
+        if(usesBspTree()) {
+            if(worldMatrix.inverseTransformAffinePoint(0f, 0f, 0f, eye)) {
+                visibleIndexCount = model.bspTree.order(eye.x, eye.y, eye.z, filledPipelineState.cullBackFace,
+                        visibleIndices);
+            } else {
+                visibleIndexCount = 0;
+            }
+            sorted = true;
+            return;
+        }
+        visibleIndexCount = meshletCuller.cull(model.meshlets, worldMatrix, wvpMatrix, backBuffer.getWidth(),
+                backBuffer.getHeight(), filledPipelineState.cullBackFace, visibleIndices, visibleTriangleIds);
+        sorted = false;
+        sortIfNeeded();
+    }
+
+    private void sortIfNeeded() {
+        if(sorted || model == null || !needsSort()) return;
+        triangleSorter.sortCoherent(visibleIndices, visibleTriangleIds, visibleIndexCount, model.vertexBuffer,
+                wvpMatrix);
+        sorted = true;
+    }
+
+    private boolean usesBspTree() {
+        return bspOrdering && model != null && model.bspTree != null;
     }
 
     /**
-     * sorts a model to make it ready for drawing with the painter's algorithm
-     * @param model the model to sort
+     * @return False if the frame looks the same whatever order the triangles are drawn in
      */
-    private static void sort(Model model, Matrix4x4 wvpMatrix) {
-        Model.Vertex pivotVertex = model.vertexBuffer[model.indexBuffer[(model.indexBuffer.length / 6) * 3]];
-        Vector4 pivotVector = wvpMatrix.mul(new Vector4(pivotVertex.x, pivotVertex.y, pivotVertex.z, 1f));
-        float pivot = pivotVector.z / pivotVector.w;
-        sort(0, pivot, model.indexBuffer.length, model.indexBuffer, model.vertexBuffer, wvpMatrix);
+    private boolean needsSort() {
+        // wire frame lines are all the same color
+        if(!fill) return false;
+        if(deferred) return !usesDepthPrepass(deferredPipelineState, getGBuffer());
+        // adding colors gives the same result in any order
+        if(transparency == Transparency.additive) return false;
+        if(usesWeightedBlended(filledPipelineState)) return false;
+        return !usesDepthPrepass(filledPipelineState, usesMultisampling() ? getMultisampleTarget() :
+                backBufferTarget);
     }
 
     /**
-     * modified version of quicksort
+     * finds the chunks of the streaming model that are on screen and sorts them by the distance from the camera to
+     * their centers, furthest first
      */
-    private static void sort(int start, float pivot, int end, int[] indices, Model.Vertex[] vertices, Matrix4x4 wvpMatrix) {
-        if(start == end || start + 3 == end) return;
-        int middle = start;
-        for(int i = start; i != end; i += 3) {
-            float distance = calculateMeanDepth(vertices[indices[i]], vertices[indices[i + 1]],
-                    vertices[indices[i + 2]], wvpMatrix);
-            if(distance > pivot) {
-                int temp = indices[i];
-                indices[i] = indices[middle];
-                indices[middle] = temp;
-                ++middle;
-
-                temp = indices[i + 1];
-                indices[i + 1] = indices[middle];
-                indices[middle] = temp;
-                ++middle;
+    private void sortChunks(Matrix4x4 wvpMatrix) {
+        meshletCuller.setScreen(wvpMatrix, backBuffer.getWidth(), backBuffer.getHeight());
+        final Vector4 center = chunkCenter;
+        int count = 0;
+        for(int i = 0; i < streamingModel.getChunkCount(); ++i) {
+            final StreamingModel.Chunk chunk = streamingModel.getChunk(i);
+            if(!meshletCuller.isSphereOnScreen(chunk.centerX, chunk.centerY, chunk.centerZ, chunk.radius)) continue;
+            center.x = chunk.centerX;
+            center.y = chunk.centerY;
+            center.z = chunk.centerZ;
+            center.w = 1f;
+            worldMatrix.transform(center);
+            final float distance = (float)Math.sqrt(center.x * center.x + center.y * center.y + center.z * center.z);
+            // the bits of a positive float sort in the same order as the float
+            chunkSortKeys[count] = ((long)Float.floatToIntBits(distance) << 32) | i;
+            ++count;
+        }
+        Arrays.sort(chunkSortKeys, 0, count);
+        for(int i = 0; i < count; ++i) {
+            visibleChunks[i] = (int)chunkSortKeys[count - 1 - i];
+        }
+        visibleChunkCount = count;
+    }
 
-                temp = indices[i + 2];
-                indices[i + 2] = indices[middle];
-                indices[middle] = temp;
-                ++middle;
+    /**
+     * draws the visible triangles of the model or streaming model
+     */
+    private void drawModel(GraphicsEngine.PipelineState pipelineState, GraphicsEngine.RenderTarget renderTarget) {
+        if(streamingModel == null) {
+            final boolean bsp = usesBspTree();
+            if(pipelineState.batchVertexShader != null) {
+                GraphicsEngine.runVertexStage(pipelineState.batchVertexShader,
+                        pipelineState.vertexShaderInterpolateCount, rootArguments,
+                        bsp ? model.bspTree.getVertexStreams() : model.getVertexStreams(), visibleIndices,
+                        visibleIndexCount, transformedVertices);
+                if(usesWeightedBlended(pipelineState) && renderTarget == backBufferTarget) {
+                    final OitRenderTarget oitTarget = getOitTarget();
+                    oitTarget.clear();
+                    GraphicsEngine.drawWeightedBlended(pipelineState, rootArguments, transformedVertices,
+                            visibleIndices, visibleIndexCount, oitTarget);
+                    oitTarget.resolve(backBufferTarget);
+                } else if(usesDepthPrepass(pipelineState, renderTarget)) {
+                    GraphicsEngine.drawWithDepthPrepass(pipelineState, rootArguments, transformedVertices,
+                            visibleIndices, visibleIndexCount, getDepthBuffer(), renderTarget, pipelineStatistics);
+                } else {
+                    GraphicsEngine.drawTransformed(pipelineState, rootArguments, transformedVertices,
+                            visibleIndices, visibleIndexCount, renderTarget);
+                }
+            } else {
+                GraphicsEngine.draw(pipelineState, rootArguments,
+                        bsp ? model.bspTree.getVertexBuffer() : model.vertexBuffer, visibleIndices, visibleIndexCount,
+                        renderTarget);
             }
-        }
-        if(middle == start) {
-            int pivotIndex = ((end - start) / 6) * 3 + start;
-            int temp = indices[pivotIndex];
-            indices[pivotIndex] = indices[start];
-            indices[start] = temp;
-            ++start;
-            ++pivotIndex;
-
-            temp = indices[pivotIndex];
-            indices[pivotIndex] = indices[start];
-            indices[start] = temp;
-            ++start;
-            ++pivotIndex;
-
-            temp = indices[pivotIndex];
-            indices[pivotIndex] = indices[start];
-            indices[start] = temp;
-            ++start;
-            ++pivotIndex;
-
-            int newPivotIndex = ((end - start) / 6) * 3 + start;
-            float newPivot = calculateMeanDepth(vertices[indices[newPivotIndex]], vertices[indices[newPivotIndex + 1]],
-                    vertices[indices[newPivotIndex + 2]], wvpMatrix);
-            sort(start, newPivot, end, indices, vertices, wvpMatrix);
             return;
         }
-        int newPivot1Index = ((middle - start) / 6) * 3 + start;
-        float newPivot1 = calculateMeanDepth(vertices[indices[newPivot1Index]], vertices[indices[newPivot1Index + 1]],
-                vertices[indices[newPivot1Index + 2]], wvpMatrix);
-        sort(start, newPivot1, middle, indices, vertices, wvpMatrix);
-
-        int newPivot2Index = ((end - middle) / 6) * 3 + middle;
-        float newPivot2 = calculateMeanDepth(vertices[indices[newPivot2Index]], vertices[indices[newPivot2Index + 1]],
-                vertices[indices[newPivot2Index + 2]], wvpMatrix);
-        sort(middle, newPivot2, end, indices, vertices, wvpMatrix);
+        final Matrix4x4 wvpMatrix = (Matrix4x4)rootArguments[0];
+        for(int i = 0; i < visibleChunkCount; ++i) {
+            final StreamingModel.Chunk chunk;
+            try {
+                chunk = streamingModel.load(visibleChunks[i]);
+            } catch(IOException e) {
+                System.err.println("Could not read a chunk of the model: " + e.getMessage());
+                return;
+            }
+            // chunks are read again after being dropped so they are sorted when they are drawn
+            TriangleSorter.sort(chunk.indices, chunk.indexCount, chunk.vertices, wvpMatrix);
+            GraphicsEngine.draw(pipelineState, rootArguments, chunk.vertices, chunk.indices, chunk.indexCount,
+                    renderTarget);
+        }
     }
 
     /**
-     * Calculates the mean distance of a triangle from the camera
+     * @return The heat map target passing pixels on to renderTarget if a heat map is being shown, otherwise
+     * renderTarget
      */
-    private static float calculateMeanDepth(Model.Vertex vertex1, Model.Vertex vertex2, Model.Vertex vertex3, Matrix4x4 wvpMatrix) {
-        Vector4 depthVector1 = wvpMatrix.mul(new Vector4(vertex1.x, vertex1.y, vertex1.z, 1f));
-        float depth1 = depthVector1.z / depthVector1.w;
-
-        Vector4 depthVector2 = wvpMatrix.mul(new Vector4(vertex2.x, vertex2.y, vertex2.z, 1f));
-        float depth2 = depthVector2.z / depthVector2.w;
+    private GraphicsEngine.RenderTarget wrapForHeatmap(GraphicsEngine.RenderTarget renderTarget) {
+        if(heatmapMode == null) return renderTarget;
+        final HeatmapRenderTarget heatmapTarget = getHeatmapTarget();
+        heatmapTarget.begin(heatmapMode, renderTarget);
+        return heatmapTarget;
+    }
 
-        Vector4 depthVector3 = wvpMatrix.mul(new Vector4(vertex3.x, vertex3.y, vertex3.z, 1f));
-        float depth3 = depthVector3.z / depthVector3.w;
+    /**
+     * @return True if the pipeline state is drawn with weighted blended order-independent transparency, which needs
+     * the in-memory model's vertices transformed by a batch vertex shader
+     */
+    private boolean usesWeightedBlended(GraphicsEngine.PipelineState pipelineState) {
+        return transparency == Transparency.weightedBlended && pipelineState == filledPipelineState &&
+                streamingModel == null && pipelineState.batchVertexShader != null && multisampleCount == 1 &&
+                heatmapMode == null;
+    }
 
-        return (depth1 + depth2 + depth3) / 3f;
+    private boolean usesDepthPrepass(GraphicsEngine.PipelineState pipelineState,
+                                     GraphicsEngine.RenderTarget renderTarget) {
+        // transparent surfaces don't hide what is behind them
+        return depthPrepass && pipelineState.blendMode == GraphicsEngine.BlendMode.opaque &&
+                streamingModel == null && pipelineState.batchVertexShader != null &&
+                pipelineState.fillMode != GraphicsEngine.FillMode.wireFrame &&
+                pipelineState.shadingRate == 1 && pipelineState.shadingRateImage == null &&
+                !(renderTarget instanceof MultisampleRenderTarget);
     }
 
     /**
@@ -211,21 +709,72 @@ class Canvas extends JPanel {
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
         if(backBuffer == null) return;
+        final long frameStart = System.nanoTime();
+        if(transformChanged) {
+            updateTransform();
+        } else {
+            // the drawing mode may have changed to one that needs the triangles sorted
+            sortIfNeeded();
+        }
+        if(adaptiveShadingRate) {
+            updateShadingRateImage();
+        }
         GraphicsEngine.clear(backBuffer, 0);
-        if (model != null) {
-            if(fill) {
-                if(wireFrame) {
-                    GraphicsEngine.drawInterleaved(filledPipelineState, wireFramePipelineState, rootArguments,
-                            model.vertexBuffer, model.indexBuffer, backBuffer);
-                } else {
-                    GraphicsEngine.draw(filledPipelineState, rootArguments, model.vertexBuffer, model.indexBuffer,
-                            backBuffer);
+        pipelineStatistics.reset();
+        if (model != null || streamingModel != null) {
+            if(fill && deferred) {
+                final GBuffer gBuffer = getGBuffer();
+                final LightTiles lightTiles = getLightTiles();
+                gBuffer.clear();
+                drawModel(deferredPipelineState, wrapForHeatmap(gBuffer));
+                lightTiles.cull(gBuffer, (LightList)rootArguments[3], projectionMatrix);
+                GraphicsEngine.drawTiledDeferredLighting(gBuffer, lightTiles, 3, deferredLightingPS, rootArguments,
+                        backBufferTarget);
+            } else {
+                final MultisampleRenderTarget multisampleTarget = getMultisampleTarget();
+                GraphicsEngine.RenderTarget renderTarget = backBufferTarget;
+                if(multisampleTarget != null) {
+                    multisampleTarget.clear(0);
+                    renderTarget = multisampleTarget;
+                }
+                renderTarget = wrapForHeatmap(renderTarget);
+                if(fill) {
+                    drawModel(filledPipelineState, renderTarget);
+                } else if(wireFrame) {
+                    drawModel(wireFramePipelineState, renderTarget);
+                }
+                if(multisampleTarget != null) {
+                    multisampleTarget.resolve(backBuffer);
+                }
+            }
+            if(heatmapMode != null) {
+                final HeatmapRenderTarget heatmapTarget = getHeatmapTarget();
+                heatmapTarget.drawHeatmap(backBuffer);
+                final long now = System.nanoTime();
+                if(lastHistogramTime == 0L || now - lastHistogramTime > 1_000_000_000L) {
+                    heatmapTarget.printHistogram();
+                    lastHistogramTime = now;
                 }
-            } else if(wireFrame) {
-                GraphicsEngine.draw(wireFramePipelineState, rootArguments, model.vertexBuffer, model.indexBuffer,
-                        backBuffer);
             }
         }
-        g.drawImage(backBuffer, 0, 0,null);
+        if(backBuffer.getWidth() == getWidth() && backBuffer.getHeight() == getHeight()) {
+            g.drawImage(backBuffer, 0, 0,null);
+        } else {
+            Graphics2D graphics = (Graphics2D)g;
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(backBuffer, 0, 0, getWidth(), getHeight(), null);
+        }
+        if(pipelineStatistics.getShadingPassPixels() > 0) {
+            g.setColor(Color.WHITE);
+            g.drawString(String.format("Shaded %d of %d pixels (%.2fx fewer)", pipelineStatistics.getPixelsShaded(),
+                    pipelineStatistics.getShadingPassPixels(), pipelineStatistics.getShadingReduction()), 8,
+                    getHeight() - 8);
+        }
+        if(dynamicResolutionEnabled && (model != null || streamingModel != null) &&
+                dynamicResolution.addFrameTime((System.nanoTime() - frameStart) / 1e6f)) {
+            createRenderTargets();
+            // the model is culled again for the new size when the next frame is drawn
+            repaint();
+        }
     }
 }
\ No newline at end of file
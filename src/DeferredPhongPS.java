@@ -0,0 +1,47 @@
+/**
+ * The lighting shader for deferred shading. Does the same lighting as {@code PhongPS} but for every light in the
+ * LightList in rootSignature[3].
+ */
+
+public class DeferredPhongPS implements GraphicsEngine.PixelShader {
+    @Override
+    public int run(Object[] rootSignature, Vector4[] in) {
+        LightList pointLights = (LightList)rootSignature[3];
+        Vector4 worldPos = in[0];
+        Vector4 albedo = in[2];
+        Vector3 normal = in[1].xyz();
+        normal.normalize();
+        Vector3 viewDir = worldPos.xyz();
+        viewDir.normalize();
+
+        float lightR = 0.15f, lightG = 0.15f, lightB = 0.15f;
+        for(int i = 0; i < pointLights.size(); ++i) {
+            PointLight pointLight = pointLights.get(i);
+            float lightX = pointLight.x - worldPos.x;
+            float lightY = pointLight.y - worldPos.y;
+            float lightZ = pointLight.z - worldPos.z;
+            float lDotn = lightX * normal.x + lightY * normal.y + lightZ * normal.z;
+            if(lDotn > 0) {
+                float distSq = lightX * lightX + lightY * lightY + lightZ * lightZ;
+                float falloff = pointLight.falloff(distSq);
+                if(falloff == 0f) continue;
+                float lightAmount = lDotn / distSq;
+                float oneOverDist = 1f / (float)Math.sqrt(distSq);
+                float hX = viewDir.x + lightX * oneOverDist;
+                float hY = viewDir.y + lightY * oneOverDist;
+                float hZ = viewDir.z + lightZ * oneOverDist;
+                float hDotn = (hX * normal.x + hY * normal.y + hZ * normal.z) / (float)Math.sqrt(hX * hX + hY * hY + hZ * hZ);
+                lightAmount += Math.pow(Math.max(hDotn, 0f), 4) * 0.15;
+                lightAmount *= falloff;
+                lightR += pointLight.brightnessR * lightAmount;
+                lightG += pointLight.brightnessG * lightAmount;
+                lightB += pointLight.brightnessB * lightAmount;
+            }
+        }
+        float r = Math.min(lightR * albedo.x, 1f);
+        float g = Math.min(lightG * albedo.y, 1f);
+        float b = Math.min(lightB * albedo.z, 1f);
+
+        return (255 << 24) + (((int)(r * 255)) << 16) + (((int)(g * 255)) << 8) + ((int)(b * 255));
+    }
+}
@@ -0,0 +1,33 @@
+import java.util.Arrays;
+
+/**
+ * Stores the depth (z / w in clip space) of the nearest surface drawn to each pixel, for
+ * {@code GraphicsEngine.drawWithDepthPrepass}. Smaller depths are nearer the camera.
+ */
+public class DepthBuffer {
+    private final int width;
+    private final int height;
+    final float[] depths;
+
+    public DepthBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        depths = new float[width * height];
+        clear();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * sets every pixel to be further away than any surface
+     */
+    public void clear() {
+        Arrays.fill(depths, Float.POSITIVE_INFINITY);
+    }
+}
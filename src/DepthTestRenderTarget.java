@@ -0,0 +1,100 @@
+/**
+ * Wraps a render target with a depth test for the two passes of {@code GraphicsEngine.drawWithDepthPrepass}. The
+ * depth of a pixel is found from the plane through the screen space positions and z / w of the triangle being drawn,
+ * which the graphics engine sets before rasterizing each triangle. Both passes evaluate the same plane at the same
+ * pixel, so the depths they compare are exactly equal for the surface that is nearest.
+ */
+class DepthTestRenderTarget implements GraphicsEngine.TriangleRenderTarget {
+    private final GraphicsEngine.RenderTarget renderTarget;
+    private final float[] depths;
+    private final int width;
+    private final int height;
+    // true for the depth-only pass, false for the shading pass
+    private final boolean depthOnly;
+    private final PipelineStatistics statistics;
+    // depth = depthX * x + depthY * y + depthConstant for the current triangle
+    private float depthX, depthY, depthConstant;
+    // the index of the last pixel the shading pass shaded, edges can blend a second color over it
+    private int lastShadedIndex = -1;
+
+    DepthTestRenderTarget(GraphicsEngine.RenderTarget renderTarget, DepthBuffer depthBuffer, boolean depthOnly,
+                          PipelineStatistics statistics) {
+        this.renderTarget = renderTarget;
+        this.depths = depthBuffer.depths;
+        this.width = depthBuffer.getWidth();
+        this.height = depthBuffer.getHeight();
+        this.depthOnly = depthOnly;
+        this.statistics = statistics;
+    }
+
+    @Override
+    public void setTriangle(Vector4 pos1, Vector4 pos2, Vector4 pos3) {
+        final float depth1 = pos1.z / pos1.w;
+        final float depth2 = pos2.z / pos2.w;
+        final float depth3 = pos3.z / pos3.w;
+        final float x1 = pos2.x - pos1.x, y1 = pos2.y - pos1.y, z1 = depth2 - depth1;
+        final float x2 = pos3.x - pos1.x, y2 = pos3.y - pos1.y, z2 = depth3 - depth1;
+        final float area = x1 * y2 - x2 * y1;
+        if (area == 0f) {
+            // a line or point, give it the depth of its nearest vertex
+            depthX = 0f;
+            depthY = 0f;
+            depthConstant = Math.min(depth1, Math.min(depth2, depth3));
+        } else {
+            depthX = (z1 * y2 - z2 * y1) / area;
+            depthY = (x1 * z2 - x2 * z1) / area;
+            // measured at the centers of pixels like the rasterizer's coverage
+            depthConstant = depth1 - depthX * (pos1.x - 0.5f) - depthY * (pos1.y - 0.5f);
+        }
+        lastShadedIndex = -1;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return True if the pixel should be shaded
+     */
+    private boolean test(int x, int y) {
+        final int index = y * width + x;
+        final float depth = depthX * x + depthY * y + depthConstant;
+        if (depthOnly) {
+            if (depth < depths[index]) {
+                depths[index] = depth;
+            }
+            if (statistics != null) statistics.addDepthPassPixel();
+            return false;
+        }
+        final boolean visible = depth == depths[index];
+        if (visible) {
+            // so that a triangle that shares the depth at an edge doesn't shade the pixel again
+            depths[index] = Float.NEGATIVE_INFINITY;
+            lastShadedIndex = index;
+        }
+        if (statistics != null) statistics.addShadingPassPixel(visible);
+        return visible;
+    }
+
+    @Override
+    public void write(int x, int y, GraphicsEngine.PixelShader pixelShader, Object[] rootSignature,
+                      Vector4[] pixelShaderInput) {
+        if (test(x, y)) {
+            renderTarget.write(x, y, pixelShader, rootSignature, pixelShaderInput);
+        }
+    }
+
+    @Override
+    public void writeCoverage(int x, int y, int coverage, GraphicsEngine.PixelShader pixelShader,
+                              Object[] rootSignature, Vector4[] pixelShaderInput) {
+        if ((!depthOnly && y * width + x == lastShadedIndex) || test(x, y)) {
+            renderTarget.writeCoverage(x, y, coverage, pixelShader, rootSignature, pixelShaderInput);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Picks the fraction of the window's width and height to render at so that frames take about a given number of
+ * milliseconds. Frame time is assumed to grow with the number of pixels, so the scale is changed by the square root
+ * of how far the average frame time is from the budget.
+ * To stop the scale from oscillating it only changes when the average is outside a band around the budget, it is
+ * rounded to steps of {@link #scaleStep} and it is left alone for a few frames after every change so that the average
+ * can settle at the new size.
+ */
+public class DynamicResolution {
+    public static final float minScale = 0.25f;
+    public static final float maxScale = 1f;
+    public static final float scaleStep = 0.05f;
+
+    // the scale goes down when frames are slower than budget * overBudget and up when faster than budget * underBudget
+    private static final float overBudget = 1.1f;
+    private static final float underBudget = 0.75f;
+    // how much each new frame time contributes to the average
+    private static final float averageWeight = 0.25f;
+    private static final int framesBetweenChanges = 4;
+
+    private float frameTimeBudget;
+    private float scale = maxScale;
+    private float averageFrameTime = -1f;
+    private int framesSinceChange;
+
+    /**
+     * @param frameTimeBudget The target time to render a frame in milliseconds.
+     */
+    public DynamicResolution(float frameTimeBudget) {
+        this.frameTimeBudget = frameTimeBudget;
+    }
+
+    public float getFrameTimeBudget() {
+        return frameTimeBudget;
+    }
+
+    public void setFrameTimeBudget(float frameTimeBudget) {
+        this.frameTimeBudget = frameTimeBudget;
+        framesSinceChange = framesBetweenChanges;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    /**
+     * @return The average time of recent frames in milliseconds or -1 if no frames have been measured
+     */
+    public float getAverageFrameTime() {
+        return averageFrameTime;
+    }
+
+    /**
+     * Goes back to full resolution and forgets the measured frame times, e.g. after a new model is loaded
+     */
+    public void reset() {
+        scale = maxScale;
+        averageFrameTime = -1f;
+        framesSinceChange = 0;
+    }
+
+    /**
+     * Records how long a frame took to render
+     * @param frameTime The time in milliseconds.
+     * @return True if the scale changed
+     */
+    public boolean addFrameTime(float frameTime) {
+        if(averageFrameTime < 0f) {
+            averageFrameTime = frameTime;
+        } else {
+            averageFrameTime += (frameTime - averageFrameTime) * averageWeight;
+        }
+        ++framesSinceChange;
+        if(framesSinceChange < framesBetweenChanges) return false;
+        if(averageFrameTime <= frameTimeBudget * overBudget && averageFrameTime >= frameTimeBudget * underBudget) {
+            return false;
+        }
+
+        float newScale = scale * (float)Math.sqrt(frameTimeBudget / Math.max(averageFrameTime, 0.001f));
+        newScale = Math.round(newScale / scaleStep) * scaleStep;
+        newScale = Math.max(minScale, Math.min(maxScale, newScale));
+        if(newScale == scale) return false;
+
+        // the frames measured so far were at the old size, guess what they would take at the new one
+        averageFrameTime *= (newScale * newScale) / (scale * scale);
+        scale = newScale;
+        framesSinceChange = 0;
+        return true;
+    }
+}
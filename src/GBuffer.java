@@ -0,0 +1,91 @@
+import java.util.Arrays;
+
+/**
+ * Stores the surface attributes of the last fragment drawn to each pixel so that lighting only has to be done once per
+ * pixel by {@code GraphicsEngine.drawDeferredLighting}.
+ * The pixel shader input of the geometry pass must start with the world position followed by the normal. The pixel
+ * shader returns the material of the surface: the albedo in the rgb channels and the shading model in the alpha
+ * channel.
+ */
+public class GBuffer implements GraphicsEngine.RenderTarget {
+    /**
+     * Shading model of pixels that no geometry has been drawn to
+     */
+    public static final int empty = 0;
+
+    /**
+     * Shading model of pixels whose albedo is displayed without lighting, e.g. wire frames
+     */
+    public static final int unlit = 1;
+
+    /**
+     * Shading model of pixels that are lit by the lighting pass. Any alpha other than empty or unlit is also lit.
+     */
+    public static final int lit = 255;
+
+    private final int width;
+    private final int height;
+
+    public final float[] positionX, positionY, positionZ;
+    public final float[] normalX, normalY, normalZ;
+    public final int[] material;
+
+    public GBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        final int size = width * height;
+        positionX = new float[size];
+        positionY = new float[size];
+        positionZ = new float[size];
+        normalX = new float[size];
+        normalY = new float[size];
+        normalZ = new float[size];
+        material = new int[size];
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * marks every pixel as empty
+     */
+    public void clear() {
+        Arrays.fill(material, empty);
+    }
+
+    @Override
+    public void write(int x, int y, GraphicsEngine.PixelShader pixelShader, Object[] rootSignature,
+                      Vector4[] pixelShaderInput) {
+        final int index = y * width + x;
+        final int value = pixelShader.run(rootSignature, pixelShaderInput);
+        material[index] = value;
+        if((value >>> 24) == unlit) return;
+
+        Vector4 position = pixelShaderInput[0];
+        positionX[index] = position.x;
+        positionY[index] = position.y;
+        positionZ[index] = position.z;
+        Vector4 normal = pixelShaderInput[1];
+        normalX[index] = normal.x;
+        normalY[index] = normal.y;
+        normalZ[index] = normal.z;
+    }
+
+    /**
+     * The G-buffer can only store one surface per pixel so the pixel is written if it is at least half covered
+     */
+    @Override
+    public void writeCoverage(int x, int y, int coverage, GraphicsEngine.PixelShader pixelShader,
+                              Object[] rootSignature, Vector4[] pixelShaderInput) {
+        if(coverage >= 128) {
+            write(x, y, pixelShader, rootSignature, pixelShaderInput);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * Outputs the color calculated by {@code GouraudVS}. Only used for render targets that the rasterizer can't step the
+ * color across directly.
+ */
+
+public class GouraudPS implements GraphicsEngine.PixelShader {
+    @Override
+    public int run(Object[] rootSignature, Vector4[] in) {
+        Vector4 color = in[0];
+        // rounded so that a flat color interpolated with weights that don't quite add up to one stays the same
+        return (255 << 24) + (((int)(color.x + 0.5f)) << 16) + (((int)(color.y + 0.5f)) << 8) +
+                ((int)(color.z + 0.5f));
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * A vertex shader that lights each vertex with the same model as {@code PhongPS} and outputs the color, so that the
+ * rasterizer only has to interpolate it. Red, green and blue are in the x, y and z of out[1] and go from 0 to 255.
+ */
+
+public class GouraudVS implements GraphicsEngine.VertexShader {
+    @Override
+    public void run(Object v, Object[] rootSignature, Vector4[] out) {
+        Model.Vertex vertex = (Model.Vertex)v;
+        Matrix4x4 wvpMatrix = (Matrix4x4)rootSignature[0];
+        Vector4 pos = out[0];
+        pos.x = vertex.x;
+        pos.y = vertex.y;
+        pos.z = vertex.z;
+        pos.w = 1.0f;
+        wvpMatrix.transform(pos);
+
+        Matrix4x4 worldMatrix = (Matrix4x4)rootSignature[1];
+        Vector4 color = out[1];
+        color.x = vertex.x;
+        color.y = vertex.y;
+        color.z = vertex.z;
+        color.w = 1.0f;
+        worldMatrix.transform(color);
+        final float worldX = color.x, worldY = color.y, worldZ = color.z;
+        color.x = vertex.nx;
+        color.y = vertex.ny;
+        color.z = vertex.nz;
+        color.w = 0f;
+        worldMatrix.transformAsMatrix3x3(color);
+        float normalX = color.x, normalY = color.y, normalZ = color.z;
+        final float normalLength = (float)Math.sqrt(normalX * normalX + normalY * normalY + normalZ * normalZ);
+        if(normalLength != 0f) {
+            normalX /= normalLength;
+            normalY /= normalLength;
+            normalZ /= normalLength;
+        }
+
+        PointLight pointLight = (PointLight)rootSignature[2];
+        float lightR = 0.15f, lightG = 0.15f, lightB = 0.15f;
+        float lightX = pointLight.x - worldX, lightY = pointLight.y - worldY, lightZ = pointLight.z - worldZ;
+        final float lDotn = lightX * normalX + lightY * normalY + lightZ * normalZ;
+        if(lDotn > 0) {
+            final float distSq = lightX * lightX + lightY * lightY + lightZ * lightZ;
+            float lightAmount = lDotn / distSq;
+            final float oneOverDist = 1f / (float)Math.sqrt(distSq);
+            lightX *= oneOverDist;
+            lightY *= oneOverDist;
+            lightZ *= oneOverDist;
+            final float oneOverViewDist = 1f / (float)Math.sqrt(worldX * worldX + worldY * worldY + worldZ * worldZ);
+            float hX = worldX * oneOverViewDist + lightX;
+            float hY = worldY * oneOverViewDist + lightY;
+            float hZ = worldZ * oneOverViewDist + lightZ;
+            final float hLength = (float)Math.sqrt(hX * hX + hY * hY + hZ * hZ);
+            if(hLength != 0f) {
+                final float hDotn = Math.max((hX * normalX + hY * normalY + hZ * normalZ) / hLength, 0f);
+                final float hDotn2 = hDotn * hDotn;
+                lightAmount += hDotn2 * hDotn2 * 0.15f;
+            }
+            lightAmount *= pointLight.falloff(distSq);
+            lightR += pointLight.brightnessR * lightAmount;
+            lightG += pointLight.brightnessG * lightAmount;
+            lightB += pointLight.brightnessB * lightAmount;
+        }
+        color.x = Math.min(lightR, 1f) * 255f;
+        color.y = Math.min(lightG, 1f) * 255f;
+        color.z = Math.min(lightB, 1f) * 255f;
+        color.w = 255f;
+    }
+
+    public static final int interpolateCount = 2;
+    public static final int colorInterpolate = 1;
+}
@@ -1,9 +1,31 @@
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * Class for drawing shaded objects
  */
 public class GraphicsEngine {
+    // the number of vertices transformed by each task of a parallel vertex stage
+    public static final int vertexBatchSize = 16384;
+    // used vertices closer together than this are transformed as one run along with the unused vertices between them
+    private static final int vertexRunGap = 32;
+    // Finding the used vertices costs about as much as transforming them, so every vertex is transformed when there
+    // are at least this many indices per vertex, i.e. about half of the triangles of a closed mesh are drawn
+    private static final int allVerticesIndexRatio = 3;
+
+    // the number of fractional bits in the fixed point positions used to rasterize solid triangles
+    private static final int subPixelBits = 8;
+    private static final int subPixelScale = 1 << subPixelBits;
+    // triangles reaching no further than this many pixels outside the render target are rasterized without clipping,
+    // small enough that their fixed point edge functions can't overflow
+    private static final float guardBand = 4096f;
+    // the edge mask of a triangle whose edges are all drawn in solidWireFrame mode, see rasterizeTriangle
+    private static final int allEdges = 7;
+
+    // the depth-only pass of drawWithDepthPrepass never runs its pixel shader
+    private static final PixelShader depthOnlyPixelShader = (Object[] rootSignature, Vector4[] in) -> 0;
+
     /**
      * Transforms vertices into screen space
      */
@@ -11,6 +33,15 @@ public class GraphicsEngine {
          void run(Object vertex, Object[] rootSignature, Vector4[] out);
     }
 
+    /**
+     * Transforms a range of vertices at once from packed streams, writing every output of every vertex to flat arrays.
+     * It must give the same outputs as the {@link VertexShader} of the same pipeline state. Different ranges of the
+     * same streams can be run on different threads at the same time.
+     */
+    interface BatchVertexShader {
+        void run(VertexStreams vertices, Object[] rootSignature, int start, int end, TransformedVertices out);
+    }
+
     /**
      * calculates the color of a pixel fragment
      */
@@ -18,8 +49,49 @@ public class GraphicsEngine {
         int run(Object[] rootSignature, Vector4[] interpolates);
     }
 
+    /**
+     * Receives the pixels produced by the rasterizer. The render target decides whether and how to run the pixel
+     * shader for the pixel at (x, y) and where to store the result.
+     */
+    interface RenderTarget {
+        int getWidth();
+        int getHeight();
+        void write(int x, int y, PixelShader pixelShader, Object[] rootSignature, Vector4[] pixelShaderInput);
+
+        /**
+         * Like write but the pixel is only partly covered, used for anti-aliased lines
+         * @param coverage How much of the pixel is covered from 0 (none) to 256 (all).
+         */
+        void writeCoverage(int x, int y, int coverage, PixelShader pixelShader, Object[] rootSignature,
+                           Vector4[] pixelShaderInput);
+    }
+
+    /**
+     * A render target that needs the screen space positions of each triangle before its pixels are written, e.g. to
+     * find the depth of each pixel
+     */
+    interface TriangleRenderTarget extends RenderTarget {
+        /**
+         * Sets the triangle that the next pixels belong to. The positions are already divided by w in x and y but not
+         * in z or w.
+         */
+        void setTriangle(Vector4 pos1, Vector4 pos2, Vector4 pos3);
+    }
+
+    /**
+     * How the color from the pixel shader is combined with the color already in an image. The alpha of the pixel
+     * shader's color is in its top 8 bits. opaque replaces the color, alpha blends by alpha, additive adds the color
+     * times alpha and premultiplied expects a color that has already been multiplied by alpha.
+     */
+    public enum BlendMode {
+        opaque, alpha, additive, premultiplied
+    }
+
+    /**
+     * solidWireFrame draws solid triangles with their edges drawn on top in a single pass
+     */
     public enum FillMode {
-        wireFrame, solid
+        wireFrame, solid, solidWireFrame
     }
 
     /**
@@ -31,6 +103,38 @@ public class GraphicsEngine {
         public PixelShader pixelShader;
         public FillMode fillMode;
         public boolean cullBackFace;
+        // draw wire frame lines with anti-aliasing
+        public boolean antialiasedLines;
+        // Index of a vertex shader output whose screen space derivatives the pixel shader needs, e.g. for picking a
+        // texture's mip level. The x derivative and then the y derivative are added to the end of the pixel shader
+        // input. Only solid triangles have derivatives. -1 for none.
+        public int derivativeInterpolate = -1;
+        // The shader that colors the edges of triangles when fillMode is solidWireFrame, it gets the same input as
+        // pixelShader
+        public PixelShader wireFramePixelShader;
+        // The width in pixels of edges drawn by solidWireFrame
+        public float wireFrameWidth = 1f;
+        // Solid triangles run the pixel shader once per shadingRate x shadingRate block of pixels and use the color for
+        // every pixel of the block that they cover. 1, 2 or 4. Multisampled render targets ignore it.
+        public int shadingRate = 1;
+        // Overrides shadingRate with a rate per screen tile when not null and made for the size of the render target
+        public ShadingRateImage shadingRateImage;
+        // Index of a vertex shader output that holds the color of the vertex, with red, green and blue from 0 to 255 in
+        // x, y and z. Solid triangles drawn to an ImageRenderTarget then have the color stepped across each span and
+        // written directly without running the pixel shader. In solidWireFrame mode the wire frame pixel shader runs
+        // once per triangle. -1 for none.
+        public int colorInterpolate = -1;
+        // Use the color of the first vertex for the whole triangle when colorInterpolate is set. Applies to every
+        // render target, not only those the color is stepped across directly.
+        public boolean flatShading;
+        // Transforms all the vertices of a model before drawing when not null, see runVertexStage
+        public BatchVertexShader batchVertexShader;
+        // Only applied when drawing to an ImageRenderTarget, other render targets are always written opaque
+        public BlendMode blendMode = BlendMode.opaque;
+
+        int getPixelShaderInputCount() {
+            return vertexShaderInterpolateCount - 1 + (derivativeInterpolate >= 0 ? 2 : 0);
+        }
     }
 
     /**
@@ -38,13 +142,22 @@ public class GraphicsEngine {
      * @param rootArgument The values to pass to the vertex and pixel shaders.
      * @param vertexBuffer An array of vertices to draw.
      * @param indexBuffer Contains information on which order to draw the vertices. Also allows reuse of vertices.
-     * @param renderTarget The image to draw onto.
+     * @param renderTarget The image or G-buffer to draw onto.
+     */
+    public static void draw(PipelineState pipelineState, Object[] rootArgument,  Object[] vertexBuffer, int[] indexBuffer,
+                     RenderTarget renderTarget) {
+        draw(pipelineState, rootArgument, vertexBuffer, indexBuffer, indexBuffer.length, renderTarget);
+    }
+
+    /**
+     * Draws the triangles in the first indexCount indices of indexBuffer
      */
     public static void draw(PipelineState pipelineState, Object[] rootArgument,  Object[] vertexBuffer, int[] indexBuffer,
-                     BufferedImage renderTarget) {
+                            int indexCount, RenderTarget renderTarget) {
+        renderTarget = applyBlendMode(pipelineState, renderTarget);
         Vector4[] pixelShaderInput = null;
-        if(pipelineState.vertexShaderInterpolateCount - 1 > 0) {
-            pixelShaderInput = new Vector4[pipelineState.vertexShaderInterpolateCount - 1];
+        if(pipelineState.getPixelShaderInputCount() > 0) {
+            pixelShaderInput = new Vector4[pipelineState.getPixelShaderInputCount()];
             for(int i = 0; i < pixelShaderInput.length; ++i) {
                 pixelShaderInput[i] = new Vector4();
             }
@@ -53,87 +166,284 @@ public class GraphicsEngine {
         Vector4[] interpolates2 = new Vector4[pipelineState.vertexShaderInterpolateCount];
         Vector4[] interpolates3 = new Vector4[pipelineState.vertexShaderInterpolateCount];
         Vector4[] interpolates4 = new Vector4[pipelineState.vertexShaderInterpolateCount];
+        Vector4[] lineStep = new Vector4[pipelineState.vertexShaderInterpolateCount];
 
         for(int i = 0; i < pipelineState.vertexShaderInterpolateCount; ++i) {
             interpolates1[i] = new Vector4();
             interpolates2[i] = new Vector4();
             interpolates3[i] = new Vector4();
             interpolates4[i] = new Vector4();
+            lineStep[i] = new Vector4();
         }
-        for(int i = 0; i < indexBuffer.length; ++i) {
+        for(int i = 0; i < indexCount; ++i) {
             pipelineState.vertexShader.run(vertexBuffer[indexBuffer[i]], rootArgument, interpolates1);
             ++i;
             pipelineState.vertexShader.run(vertexBuffer[indexBuffer[i]], rootArgument, interpolates2);
             ++i;
             pipelineState.vertexShader.run(vertexBuffer[indexBuffer[i]], rootArgument, interpolates3);
 
-            cullTriangle(interpolates1, interpolates2, interpolates3, interpolates4, pipelineState, rootArgument,
-                    renderTarget, pixelShaderInput);
+            cullTriangle(interpolates1, interpolates2, interpolates3, interpolates4, lineStep, pipelineState,
+                    rootArgument, renderTarget, pixelShaderInput);
+        }
+    }
+
+    /**
+     * Runs a batch vertex shader over all the vertices. Large models are split into blocks of
+     * {@link #vertexBatchSize} vertices that are transformed in parallel on the common fork join pool.
+     *
+     * @param out Receives the outputs, it is resized to fit.
+     */
+    public static void runVertexStage(final BatchVertexShader vertexShader, final int interpolateCount,
+                                      final Object[] rootArgument, final VertexStreams vertices,
+                                      final TransformedVertices out) {
+        out.resize(vertices.count, interpolateCount);
+        final int blockCount = (vertices.count + vertexBatchSize - 1) / vertexBatchSize;
+        if (blockCount <= 1) {
+            vertexShader.run(vertices, rootArgument, 0, vertices.count, out);
+            return;
+        }
+        IntStream.range(0, blockCount).parallel().forEach(block -> {
+            final int start = block * vertexBatchSize;
+            vertexShader.run(vertices, rootArgument, start, Math.min(start + vertexBatchSize, vertices.count), out);
+        });
+    }
+
+    /**
+     * Like runVertexStage but only transforms the vertices used by the first indexCount indices, e.g. those of the
+     * meshlets that weren't culled. The outputs of the other vertices are left as they were. When culling didn't
+     * remove many triangles every vertex is transformed instead.
+     */
+    public static void runVertexStage(final BatchVertexShader vertexShader, final int interpolateCount,
+                                      final Object[] rootArgument, final VertexStreams vertices,
+                                      final int[] indexBuffer, final int indexCount, final TransformedVertices out) {
+        if((long)indexCount >= (long)vertices.count * allVerticesIndexRatio) {
+            runVertexStage(vertexShader, interpolateCount, rootArgument, vertices, out);
+            return;
+        }
+        out.resize(vertices.count, interpolateCount);
+        final int runCount = out.findUsedRuns(indexBuffer, indexCount, vertices.count, vertexRunGap, vertexBatchSize);
+        final int[] runs = out.getRuns();
+        int usedCount = 0;
+        for(int run = 0; run < runCount; ++run) {
+            usedCount += runs[run * 2 + 1] - runs[run * 2];
+        }
+        if(usedCount <= vertexBatchSize) {
+            for(int run = 0; run < runCount; ++run) {
+                vertexShader.run(vertices, rootArgument, runs[run * 2], runs[run * 2 + 1], out);
+            }
+            return;
         }
+        IntStream.range(0, runCount).parallel().forEach(run ->
+                vertexShader.run(vertices, rootArgument, runs[run * 2], runs[run * 2 + 1], out));
     }
 
     /**
-     * draws the first polygon using pipelineState1 and pipelineState2 and then the second etc.
+     * Like draw but takes vertices that have already been transformed by {@link #runVertexStage}, so each vertex is
+     * transformed once however many triangles use it. The pipeline state's vertex shaders are not run.
      */
-    public static void drawInterleaved(PipelineState pipelineState1, PipelineState pipelineState2, Object[] rootSignature,
-                                       Object[] vertexBuffer, int[] indexBuffer, BufferedImage renderTarget) {
+    public static void drawTransformed(PipelineState pipelineState, Object[] rootArgument, TransformedVertices vertices,
+                                       int[] indexBuffer, int indexCount, RenderTarget renderTarget) {
+        renderTarget = applyBlendMode(pipelineState, renderTarget);
         Vector4[] pixelShaderInput = null;
-        int pixelShaderInputCount = Math.max(pipelineState1.vertexShaderInterpolateCount - 1,
-                pipelineState2.vertexShaderInterpolateCount - 1);
-        if(pixelShaderInputCount > 0) {
-            pixelShaderInput = new Vector4[pixelShaderInputCount];
+        if(pipelineState.getPixelShaderInputCount() > 0) {
+            pixelShaderInput = new Vector4[pipelineState.getPixelShaderInputCount()];
             for(int i = 0; i < pixelShaderInput.length; ++i) {
                 pixelShaderInput[i] = new Vector4();
             }
         }
-        Vector4[] interpolates1 = new Vector4[pipelineState1.vertexShaderInterpolateCount];
-        Vector4[] interpolates2 = new Vector4[pipelineState1.vertexShaderInterpolateCount];
-        Vector4[] interpolates3 = new Vector4[pipelineState1.vertexShaderInterpolateCount];
-        Vector4[] interpolates4 = new Vector4[pipelineState1.vertexShaderInterpolateCount];
+        Vector4[] interpolates1 = new Vector4[pipelineState.vertexShaderInterpolateCount];
+        Vector4[] interpolates2 = new Vector4[pipelineState.vertexShaderInterpolateCount];
+        Vector4[] interpolates3 = new Vector4[pipelineState.vertexShaderInterpolateCount];
+        Vector4[] interpolates4 = new Vector4[pipelineState.vertexShaderInterpolateCount];
+        Vector4[] lineStep = new Vector4[pipelineState.vertexShaderInterpolateCount];
 
-        for(int i = 0; i < pipelineState1.vertexShaderInterpolateCount; ++i) {
+        for(int i = 0; i < pipelineState.vertexShaderInterpolateCount; ++i) {
             interpolates1[i] = new Vector4();
             interpolates2[i] = new Vector4();
             interpolates3[i] = new Vector4();
             interpolates4[i] = new Vector4();
+            lineStep[i] = new Vector4();
+        }
+        for(int i = 0; i < indexCount; i += 3) {
+            vertices.get(indexBuffer[i], interpolates1);
+            vertices.get(indexBuffer[i + 1], interpolates2);
+            vertices.get(indexBuffer[i + 2], interpolates3);
+
+            cullTriangle(interpolates1, interpolates2, interpolates3, interpolates4, lineStep, pipelineState,
+                    rootArgument, renderTarget, pixelShaderInput);
         }
+    }
 
-        Vector4[] interpolates12 = new Vector4[pipelineState2.vertexShaderInterpolateCount];
-        Vector4[] interpolates22 = new Vector4[pipelineState2.vertexShaderInterpolateCount];
-        Vector4[] interpolates32 = new Vector4[pipelineState2.vertexShaderInterpolateCount];
-        Vector4[] interpolates42 = new Vector4[pipelineState2.vertexShaderInterpolateCount];
+    /**
+     * Draws solid triangles in two passes so that the pixel shader runs only once per pixel however many triangles
+     * cover it. The first pass rasterizes only the positions into the depth buffer without running any pixel shader.
+     * The second pass runs the pixel shader only for the pixels whose depth is equal to the nearest depth found by the
+     * first pass. The triangles don't need to be sorted. Wire frames are drawn without the pre-pass and multisampled
+     * render targets aren't supported.
+     *
+     * @param depthBuffer Must be the size of the render target, it is cleared first.
+     * @param statistics Receives the pixel counts of the passes, or null.
+     */
+    public static void drawWithDepthPrepass(PipelineState pipelineState, Object[] rootArgument,
+                                            TransformedVertices vertices, int[] indexBuffer, int indexCount,
+                                            DepthBuffer depthBuffer, RenderTarget renderTarget,
+                                            PipelineStatistics statistics) {
+        if(pipelineState.fillMode == FillMode.wireFrame) {
+            drawTransformed(pipelineState, rootArgument, vertices, indexBuffer, indexCount, renderTarget);
+            return;
+        }
+        // the same rasterizer settings as the shading pass so that both passes cover the same pixels
+        final PipelineState depthPipelineState = new PipelineState();
+        depthPipelineState.vertexShaderInterpolateCount = 1;
+        depthPipelineState.fillMode = pipelineState.fillMode;
+        depthPipelineState.cullBackFace = pipelineState.cullBackFace;
+        depthPipelineState.antialiasedLines = pipelineState.antialiasedLines;
+        depthPipelineState.wireFrameWidth = pipelineState.wireFrameWidth;
+        depthPipelineState.shadingRate = pipelineState.shadingRate;
+        depthPipelineState.shadingRateImage = pipelineState.shadingRateImage;
+        depthPipelineState.pixelShader = depthOnlyPixelShader;
+        depthPipelineState.wireFramePixelShader = depthOnlyPixelShader;
+
+        depthBuffer.clear();
+        drawTransformed(depthPipelineState, rootArgument, vertices, indexBuffer, indexCount,
+                new DepthTestRenderTarget(renderTarget, depthBuffer, true, statistics));
+        drawTransformed(pipelineState, rootArgument, vertices, indexBuffer, indexCount,
+                new DepthTestRenderTarget(renderTarget, depthBuffer, false, statistics));
+    }
 
-        for(int i = 0; i < pipelineState2.vertexShaderInterpolateCount; ++i) {
-            interpolates12[i] = new Vector4();
-            interpolates22[i] = new Vector4();
-            interpolates32[i] = new Vector4();
-            interpolates42[i] = new Vector4();
+    /**
+     * @return renderTarget wrapped so that pixels are blended the way the pipeline state says, or renderTarget if they
+     * are written opaque
+     */
+    private static RenderTarget applyBlendMode(PipelineState pipelineState, RenderTarget renderTarget) {
+        if(pipelineState.blendMode == BlendMode.opaque || !(renderTarget instanceof ImageRenderTarget)) {
+            return renderTarget;
         }
+        return new BlendRenderTarget((ImageRenderTarget)renderTarget, pipelineState.blendMode);
+    }
 
-        for(int i = 0; i < indexBuffer.length; ++i) {
-            pipelineState1.vertexShader.run(vertexBuffer[indexBuffer[i]], rootSignature, interpolates1);
-            pipelineState2.vertexShader.run(vertexBuffer[indexBuffer[i]], rootSignature, interpolates12);
-            ++i;
-            pipelineState1.vertexShader.run(vertexBuffer[indexBuffer[i]], rootSignature, interpolates2);
-            pipelineState2.vertexShader.run(vertexBuffer[indexBuffer[i]], rootSignature, interpolates22);
-            ++i;
-            pipelineState1.vertexShader.run(vertexBuffer[indexBuffer[i]], rootSignature, interpolates3);
-            pipelineState2.vertexShader.run(vertexBuffer[indexBuffer[i]], rootSignature, interpolates32);
+    /**
+     * Draws transparent triangles with weighted blended order-independent transparency, so they don't need to be
+     * sorted. The triangles are put into bins by the tiles of the target that they overlap and the tiles are drawn in
+     * parallel, each only rasterizing the triangles in its bin. Pixel shaders give straight, not premultiplied,
+     * alpha. {@link OitRenderTarget#resolve} must be called afterwards to blend the result over the opaque image.
+     *
+     * @param target Must be cleared first.
+     */
+    public static void drawWeightedBlended(final PipelineState pipelineState, final Object[] rootArgument,
+                                           final TransformedVertices vertices, final int[] indexBuffer,
+                                           final int indexCount, final OitRenderTarget target) {
+        final int tileCount = target.getTileCount();
+        // the triangles of tile t are binnedTriangles[binStarts[t]] up to binnedTriangles[binStarts[t + 1]]
+        final int[] binStarts = new int[tileCount + 1];
+        final int[] tileRange = new int[4];
+        for(int i = 0; i < indexCount; i += 3) {
+            findTiles(vertices, indexBuffer, i, target, tileRange);
+            for(int tileY = tileRange[1]; tileY <= tileRange[3]; ++tileY) {
+                for(int tileX = tileRange[0]; tileX <= tileRange[2]; ++tileX) {
+                    ++binStarts[tileY * target.getTilesX() + tileX + 1];
+                }
+            }
+        }
+        for(int tile = 0; tile < tileCount; ++tile) {
+            binStarts[tile + 1] += binStarts[tile];
+        }
+        final int[] binnedTriangles = new int[binStarts[tileCount]];
+        final int[] binEnds = Arrays.copyOf(binStarts, tileCount);
+        for(int i = 0; i < indexCount; i += 3) {
+            findTiles(vertices, indexBuffer, i, target, tileRange);
+            for(int tileY = tileRange[1]; tileY <= tileRange[3]; ++tileY) {
+                for(int tileX = tileRange[0]; tileX <= tileRange[2]; ++tileX) {
+                    binnedTriangles[binEnds[tileY * target.getTilesX() + tileX]++] = i;
+                }
+            }
+        }
+
+        IntStream.range(0, tileCount).parallel().forEach(tile -> {
+            if(binStarts[tile] == binStarts[tile + 1]) return;
+            final OitRenderTarget.Tile tileTarget = target.getTile(tile);
+            final float originX = tileTarget.getOriginX();
+            final float originY = tileTarget.getOriginY();
+            Vector4[] pixelShaderInput = null;
+            if(pipelineState.getPixelShaderInputCount() > 0) {
+                pixelShaderInput = createVectors(pipelineState.getPixelShaderInputCount());
+            }
+            final Vector4[] interpolates1 = createVectors(pipelineState.vertexShaderInterpolateCount);
+            final Vector4[] interpolates2 = createVectors(pipelineState.vertexShaderInterpolateCount);
+            final Vector4[] interpolates3 = createVectors(pipelineState.vertexShaderInterpolateCount);
+            final Vector4[] interpolates4 = createVectors(pipelineState.vertexShaderInterpolateCount);
+            final Vector4[] lineStep = createVectors(pipelineState.vertexShaderInterpolateCount);
+            for(int j = binStarts[tile]; j < binStarts[tile + 1]; ++j) {
+                final int i = binnedTriangles[j];
+                vertices.get(indexBuffer[i], interpolates1);
+                vertices.get(indexBuffer[i + 1], interpolates2);
+                vertices.get(indexBuffer[i + 2], interpolates3);
+                // move the tile to the corner of the screen so that the triangles are clipped to it
+                moveOrigin(interpolates1[0], originX, originY);
+                moveOrigin(interpolates2[0], originX, originY);
+                moveOrigin(interpolates3[0], originX, originY);
+                cullTriangle(interpolates1, interpolates2, interpolates3, interpolates4, lineStep, pipelineState,
+                        rootArgument, tileTarget, pixelShaderInput);
+            }
+        });
+    }
 
-            cullTriangle(interpolates1, interpolates2, interpolates3, interpolates4, pipelineState1, rootSignature,
-                    renderTarget, pixelShaderInput);
+    /**
+     * Finds the first and last tile in x and y that a triangle's screen space bounding box overlaps
+     *
+     * @param range Receives the first x, first y, last x and last y tile, the last are less than the first if the
+     *              triangle is off screen or is culled for crossing the near plane.
+     */
+    private static void findTiles(TransformedVertices vertices, int[] indexBuffer, int first, OitRenderTarget target,
+                                  int[] range) {
+        final float[] positions = vertices.getOutput(0);
+        final int count = vertices.getCount();
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+        for(int i = first; i < first + 3; ++i) {
+            final int vertex = indexBuffer[i];
+            final float w = positions[count * 3 + vertex];
+            if(positions[count * 2 + vertex] <= 0f) {
+                // cullTriangle doesn't draw these
+                range[2] = -1;
+                range[3] = -1;
+                return;
+            }
+            final float x = positions[vertex] / w, y = positions[count + vertex] / w;
+            minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+        }
+        final int tileSize = OitRenderTarget.tileSize;
+        range[0] = (int)Math.max(Math.floor(minX / tileSize), 0.0);
+        range[1] = (int)Math.max(Math.floor(minY / tileSize), 0.0);
+        range[2] = (int)Math.min(Math.floor(maxX / tileSize), target.getTilesX() - 1);
+        range[3] = (int)Math.min(Math.floor(maxY / tileSize), target.getTilesY() - 1);
+        // NaN positions give an empty range
+        if(!(minX <= maxX && minY <= maxY)) range[2] = -1;
+    }
+
+    /**
+     * moves a clip space position so that (originX, originY) on the screen is at (0, 0)
+     */
+    private static void moveOrigin(Vector4 position, float originX, float originY) {
+        position.x -= originX * position.w;
+        position.y -= originY * position.w;
+    }
 
-            cullTriangle(interpolates12, interpolates22, interpolates32, interpolates42, pipelineState2, rootSignature,
-                    renderTarget, pixelShaderInput);
+    private static Vector4[] createVectors(int count) {
+        final Vector4[] vectors = new Vector4[count];
+        for(int i = 0; i < count; ++i) {
+            vectors[i] = new Vector4();
         }
+        return vectors;
     }
 
     /**
      * Removes offscreen triangles and draws the parts of triangles that are on screen
      */
     private static void cullTriangle(Vector4[] interpolates1, Vector4[] interpolates2, Vector4[] interpolates3,
-                                     Vector4[] interpolates4, PipelineState pipelineState,
-                                     Object[] rootSignature, BufferedImage renderTarget, Vector4[] pixelShaderInput) {
+                                     Vector4[] interpolates4, Vector4[] lineStep, PipelineState pipelineState,
+                                     Object[] rootSignature, RenderTarget renderTarget, Vector4[] pixelShaderInput) {
 
         Vector4 pos1 = interpolates1[0];
         Vector4 pos2 = interpolates2[0];
@@ -141,7 +451,7 @@ public class GraphicsEngine {
         final int widthMinusOne = renderTarget.getWidth() - 1;
         final int heightMinusOne = renderTarget.getHeight() - 1;
 
-        if(pipelineState.fillMode == FillMode.solid) {
+        if(pipelineState.fillMode != FillMode.wireFrame) {
             //TODO fix culling triangles that are to close
             if(pos1.z > 0f && pos2.z > 0f && pos3.z > 0f) {
                 pos1.x /= pos1.w;
@@ -158,17 +468,31 @@ public class GraphicsEngine {
                     final float y2 = pos3.y - pos2.y;
                     if((x1 * y2 - y1 * x2) < 0) return;
                 }
-                int pos1Zone = findZone(pos1.x, pos1.y, widthMinusOne, heightMinusOne);
-                int pos2Zone = findZone(pos2.x, pos2.y, widthMinusOne, heightMinusOne);
-                int pos3Zone = findZone(pos3.x, pos3.y, widthMinusOne, heightMinusOne);
+                if(renderTarget instanceof TriangleRenderTarget) {
+                    ((TriangleRenderTarget)renderTarget).setTriangle(pos1, pos2, pos3);
+                }
+                if(pipelineState.derivativeInterpolate >= 0) {
+                    calculateDerivatives(pos1, pos2, pos3, interpolates1[pipelineState.derivativeInterpolate],
+                            interpolates2[pipelineState.derivativeInterpolate],
+                            interpolates3[pipelineState.derivativeInterpolate],
+                            pixelShaderInput[pipelineState.vertexShaderInterpolateCount - 1],
+                            pixelShaderInput[pipelineState.vertexShaderInterpolateCount]);
+                }
+                final int width = renderTarget.getWidth();
+                final int height = renderTarget.getHeight();
+                int pos1Zone = findZone(pos1.x, pos1.y, width, height);
+                int pos2Zone = findZone(pos2.x, pos2.y, width, height);
+                int pos3Zone = findZone(pos3.x, pos3.y, width, height);
 
                 if((pos1Zone & pos2Zone & pos3Zone) == 0) {
-                    if(pos1Zone == 0 && pos2Zone == 0 && pos3Zone == 0) {
-                        drawTriangle(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3, interpolates4, rootSignature,
-                                pixelShaderInput, pipelineState.pixelShader, renderTarget);
+                    if(isInGuardBand(pos1, width, height) && isInGuardBand(pos2, width, height) &&
+                            isInGuardBand(pos3, width, height)) {
+                        // the rasterizers only visit the pixels that are on screen so there is no need to clip
+                        rasterizeTriangle(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3,
+                                rootSignature, pixelShaderInput, pipelineState, renderTarget, allEdges);
                     } else {
-                        cullTriangleTop(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3, interpolates4, rootSignature,
-                                pixelShaderInput, pipelineState.pixelShader, renderTarget);
+                        drawClippedTriangle(interpolates1, interpolates2, interpolates3, rootSignature,
+                                pixelShaderInput, pipelineState, renderTarget);
                     }
                 }
             }
@@ -188,1582 +512,1097 @@ public class GraphicsEngine {
                     final float y2 = pos3.y - pos2.y;
                     if((x1 * y2 - y1 * x2) < 0) return;
                 }
-                int pos1Zone = findZone(pos1.x, pos1.y, widthMinusOne, heightMinusOne);
-                int pos2Zone = findZone(pos2.x, pos2.y, widthMinusOne, heightMinusOne);
-                int pos3Zone = findZone(pos3.x, pos3.y, widthMinusOne, heightMinusOne);
-
-                cullLine(pos1.x, pos1.y, pos2.x, pos2.y, pos1Zone, pos2Zone, pipelineState.pixelShader, rootSignature, renderTarget,
-                        interpolates1, interpolates2, pixelShaderInput, widthMinusOne, heightMinusOne);
-                cullLine(pos1.x, pos1.y, pos3.x, pos3.y, pos1Zone, pos3Zone, pipelineState.pixelShader, rootSignature, renderTarget,
-                        interpolates1, interpolates3, pixelShaderInput, widthMinusOne, heightMinusOne);
-                cullLine(pos3.x, pos3.y, pos2.x, pos2.y, pos3Zone, pos2Zone, pipelineState.pixelShader, rootSignature, renderTarget,
-                        interpolates3, interpolates2, pixelShaderInput, widthMinusOne, heightMinusOne);
+
+                clipLine(pos1.x, pos1.y, pos2.x, pos2.y, interpolates1, interpolates2, lineStep,
+                        pipelineState.antialiasedLines, pipelineState.pixelShader, rootSignature, renderTarget,
+                        pixelShaderInput, widthMinusOne, heightMinusOne);
+                clipLine(pos1.x, pos1.y, pos3.x, pos3.y, interpolates1, interpolates3, lineStep,
+                        pipelineState.antialiasedLines, pipelineState.pixelShader, rootSignature, renderTarget,
+                        pixelShaderInput, widthMinusOne, heightMinusOne);
+                clipLine(pos3.x, pos3.y, pos2.x, pos2.y, interpolates3, interpolates2, lineStep,
+                        pipelineState.antialiasedLines, pipelineState.pixelShader, rootSignature, renderTarget,
+                        pixelShaderInput, widthMinusOne, heightMinusOne);
             } else {
-                cullZLine(pos1, pos2, interpolates1, interpolates2, interpolates4, pipelineState.pixelShader,
+                cullZLine(pos1, pos2, interpolates1, interpolates2, interpolates4, lineStep, pipelineState,
                         rootSignature, renderTarget, pixelShaderInput, widthMinusOne, heightMinusOne);
-                cullZLine(pos1, pos3, interpolates1, interpolates3, interpolates4, pipelineState.pixelShader,
+                cullZLine(pos1, pos3, interpolates1, interpolates3, interpolates4, lineStep, pipelineState,
                         rootSignature, renderTarget, pixelShaderInput, widthMinusOne, heightMinusOne);
-                cullZLine(pos3, pos2, interpolates3, interpolates2, interpolates4, pipelineState.pixelShader,
+                cullZLine(pos3, pos2, interpolates3, interpolates2, interpolates4, lineStep, pipelineState,
                         rootSignature, renderTarget, pixelShaderInput, widthMinusOne, heightMinusOne);
             }
         }
     }
 
-    private static void cullZLine(Vector4 pos1, Vector4 pos2, Vector4[] interpolates1,
-                                  Vector4[] interpolates2, Vector4[] interpolates4, PixelShader pixelShader,
-                                  Object[] rootSignature, BufferedImage renderTarget, Vector4[] pixelShaderInput,
+    /**
+     * Calculates how much an interpolate changes per pixel in the x and y directions. Interpolation is linear in
+     * screen space so the derivatives are the same for the whole triangle, including any parts created by clipping.
+     */
+    private static void calculateDerivatives(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4 value1, Vector4 value2,
+                                             Vector4 value3, Vector4 ddx, Vector4 ddy) {
+        final float x2 = pos2.x - pos1.x;
+        final float y2 = pos2.y - pos1.y;
+        final float x3 = pos3.x - pos1.x;
+        final float y3 = pos3.y - pos1.y;
+        final float determinant = x2 * y3 - x3 * y2;
+        if(determinant == 0f) {
+            ddx.x = 0f; ddx.y = 0f; ddx.z = 0f; ddx.w = 0f;
+            ddy.x = 0f; ddy.y = 0f; ddy.z = 0f; ddy.w = 0f;
+            return;
+        }
+        final float oneOverDeterminant = 1f / determinant;
+        final float dx2 = y3 * oneOverDeterminant, dx3 = -y2 * oneOverDeterminant;
+        final float dy2 = -x3 * oneOverDeterminant, dy3 = x2 * oneOverDeterminant;
+
+        float delta2 = value2.x - value1.x, delta3 = value3.x - value1.x;
+        ddx.x = delta2 * dx2 + delta3 * dx3;
+        ddy.x = delta2 * dy2 + delta3 * dy3;
+        delta2 = value2.y - value1.y; delta3 = value3.y - value1.y;
+        ddx.y = delta2 * dx2 + delta3 * dx3;
+        ddy.y = delta2 * dy2 + delta3 * dy3;
+        delta2 = value2.z - value1.z; delta3 = value3.z - value1.z;
+        ddx.z = delta2 * dx2 + delta3 * dx3;
+        ddy.z = delta2 * dy2 + delta3 * dy3;
+        delta2 = value2.w - value1.w; delta3 = value3.w - value1.w;
+        ddx.w = delta2 * dx2 + delta3 * dx3;
+        ddy.w = delta2 * dy2 + delta3 * dy3;
+    }
+
+    /**
+     * Clips a line against the near plane and draws the part in front of it. Doesn't modify pos1 or pos2 because
+     * they are shared with the triangle's other lines.
+     */
+    private static void cullZLine(Vector4 pos1, Vector4 pos2, Vector4[] interpolates1, Vector4[] interpolates2,
+                                  Vector4[] interpolates4, Vector4[] lineStep, PipelineState pipelineState,
+                                  Object[] rootSignature, RenderTarget renderTarget, Vector4[] pixelShaderInput,
                                   int widthMinusOne, int heightMinusOne) {
         if(pos1.z > 0f) {
             if(pos2.z > 0f) {
-                float x1 = pos1.x /= pos1.w;
-                float y1 = pos1.y /= pos1.w;
-                float x2 = pos2.x /= pos2.w;
-                float y2 = pos2.y /= pos2.w;
-                int pos1Zone = findZone(x1, y1, widthMinusOne, heightMinusOne);
-                int pos2Zone = findZone(x2, y2, widthMinusOne, heightMinusOne);
-                cullLine(x1, y1, x2, y2, pos1Zone, pos2Zone,
-                        pixelShader, rootSignature, renderTarget, interpolates1, interpolates2, pixelShaderInput,
-                        widthMinusOne, heightMinusOne);
+                clipLine(pos1.x / pos1.w, pos1.y / pos1.w, pos2.x / pos2.w, pos2.y / pos2.w, interpolates1,
+                        interpolates2, lineStep, pipelineState.antialiasedLines, pipelineState.pixelShader,
+                        rootSignature, renderTarget, pixelShaderInput, widthMinusOne, heightMinusOne);
             } else {
                 float amount = (-pos2.z) / (pos1.z - pos2.z);
-                createNewInterpolate(interpolates4, interpolates1, interpolates2, amount);
+                createNewInterpolate(interpolates4, interpolates2, interpolates1, amount);
                 float x4 = pos2.x - amount * (pos2.x - pos1.x);
                 float y4 = pos2.y - amount * (pos2.y - pos1.y);
                 float w4 = pos2.w - amount * (pos2.w - pos1.w);
-                x4 /= w4;
-                y4 /= w4;
-                float x1 = pos1.x / pos1.w;
-                float y1 = pos1.y / pos1.w;
-                int pos1Zone = findZone(x1, y1, widthMinusOne, heightMinusOne);
-                int pos2Zone = findZone(x4, y4, widthMinusOne, heightMinusOne);
-                cullLine(x1, y1, x4, y4, pos1Zone, pos2Zone,
-                        pixelShader, rootSignature, renderTarget, interpolates1, interpolates4, pixelShaderInput,
-                        widthMinusOne, heightMinusOne);
+                clipLine(pos1.x / pos1.w, pos1.y / pos1.w, x4 / w4, y4 / w4, interpolates1, interpolates4, lineStep,
+                        pipelineState.antialiasedLines, pipelineState.pixelShader, rootSignature, renderTarget,
+                        pixelShaderInput, widthMinusOne, heightMinusOne);
             }
         } else {
             if(pos2.z > 0f) {
                 float amount = (-pos1.z) / (pos2.z - pos1.z);
-                createNewInterpolate(interpolates4, interpolates2, interpolates1, amount);
+                createNewInterpolate(interpolates4, interpolates1, interpolates2, amount);
                 float x4 = pos1.x - amount * (pos1.x - pos2.x);
                 float y4 = pos1.y - amount * (pos1.y - pos2.y);
                 float w4 = pos1.w - amount * (pos1.w - pos2.w);
-                x4 /= w4;
-                y4 /= w4;
-                float x2 = pos2.x / pos2.w;
-                float y2 = pos2.y / pos2.w;
-                int pos4Zone = findZone(x4, y4, widthMinusOne, heightMinusOne);
-                int pos2Zone = findZone(x2, y2, widthMinusOne, heightMinusOne);
-                cullLine(x4, y4, x2, y2, pos4Zone, pos2Zone,
-                        pixelShader, rootSignature, renderTarget, interpolates4, interpolates2, pixelShaderInput,
-                        widthMinusOne, heightMinusOne);
+                clipLine(x4 / w4, y4 / w4, pos2.x / pos2.w, pos2.y / pos2.w, interpolates4, interpolates2, lineStep,
+                        pipelineState.antialiasedLines, pipelineState.pixelShader, rootSignature, renderTarget,
+                        pixelShaderInput, widthMinusOne, heightMinusOne);
             }
         }
     }
 
-    private static void cullLine(float x1, float y1, float x2, float y2, int pos1Zone, int pos2Zone, PixelShader pixelShader,
-                          Object[] rootSignature, BufferedImage renderTarget, Vector4[] interpolates1,
-                          Vector4[] interpolates2, Vector4[] pixelShaderInput, int widthMinusOne, int heightMinusOne) {
-        if((pos1Zone & pos2Zone) == 0) {
-            if(pos1Zone == 0) {
-                if(pos2Zone == 0) {
-                    rasterizeLine((int)x1, (int)y1, (int)x2, (int)y2, pixelShader,
-                            rootSignature, renderTarget, interpolates1, interpolates2, pixelShaderInput);
-                } else {
-                    Vector2 p2 = clipSecond(new Vector4(x1, y1, 0f, 1f), new Vector4(x2, y2, 0f, 1f),
-                            widthMinusOne, heightMinusOne);
-                    rasterizeLine((int)x1, (int)y1, (int)p2.x, (int)p2.y, pixelShader,
-                            rootSignature, renderTarget, interpolates1, interpolates2, pixelShaderInput);
-                }
+    /**
+     * Clips a line to the screen using the Liang-Barsky algorithm and draws the part that is on screen. The
+     * interpolates are only evaluated at the clipped ends of the line and then stepped along it.
+     */
+    private static void clipLine(float x1, float y1, float x2, float y2, Vector4[] interpolates1,
+                                 Vector4[] interpolates2, Vector4[] lineStep, boolean antialiased,
+                                 PixelShader pixelShader, Object[] rootSignature, RenderTarget renderTarget,
+                                 Vector4[] pixelShaderInput, int widthMinusOne, int heightMinusOne) {
+        final float dx = x2 - x1;
+        final float dy = y2 - y1;
+        float start = 0f;
+        float end = 1f;
+        if(dx == 0f) {
+            if(x1 < 0f || x1 > widthMinusOne) return;
+        } else {
+            final float left = -x1 / dx;
+            final float right = (widthMinusOne - x1) / dx;
+            if(dx > 0f) {
+                start = Math.max(start, left);
+                end = Math.min(end, right);
             } else {
-                if(pos2Zone == 0) {
-                    Vector2 p1 = clipSecond(new Vector4(x2, y2, 0f, 1f), new Vector4(x1, y1, 0f, 1f),
-                            widthMinusOne, heightMinusOne);
-                    rasterizeLine((int)p1.x, (int)p1.y, (int)x2, (int)y2, pixelShader,
-                            rootSignature, renderTarget, interpolates1, interpolates2, pixelShaderInput);
-                } else {
-                    clipBoth(x2, y2, x1, y1, pos1Zone, widthMinusOne, heightMinusOne, pixelShader,
-                            rootSignature, renderTarget, interpolates2, interpolates1, pixelShaderInput);
-                }
+                start = Math.max(start, right);
+                end = Math.min(end, left);
             }
         }
-    }
-
-    private static void clipBoth(float x1, float y1, float x2, float y2, int pos1Zone, int widthMinusOne, int heightMinusOne,
-                                 PixelShader pixelShader, Object[] rootSignature, BufferedImage renderTarget, Vector4[] interpolates1,
-                                 Vector4[] interpolates2, Vector4[] pixelShaderInput) {
-        if(x2 < 0) {
-            y2 += (y1 - y2) * (-x2) / (x1 - x2);
-            x2 = 0;
-        } else if(x2 > widthMinusOne) {
-            y2 += (y1 - y2) * (x2 - widthMinusOne) / (x2 - x1);
-            x2 = widthMinusOne;
-        } else if(y2 < 0) {
-            x2 += (x1 - x2) * (-y2) / (y1 - y2);
-            y2 = 0;
-        } else if(y2 > heightMinusOne) {
-            x2 += (x1 - x2) * (y2 - heightMinusOne) / (y2 - y1);
-            y2 = heightMinusOne;
-        }
-        int pos2Zone = findZone(x2, y2, widthMinusOne, heightMinusOne);
-        if((pos1Zone & pos2Zone) != 0) {
-            return;
-        } else if(pos2Zone == 0) {
-            Vector2 p1 = clipSecond(new Vector4(x2, y2, 0f, 1f), new Vector4(x1, y1, 0f, 1f), widthMinusOne, heightMinusOne);
-            rasterizeLine((int)p1.x, (int)p1.y, (int)x2, (int)y2, pixelShader,
-                    rootSignature, renderTarget, interpolates2, interpolates1, pixelShaderInput);
-            return;
+        if(dy == 0f) {
+            if(y1 < 0f || y1 > heightMinusOne) return;
+        } else {
+            final float top = -y1 / dy;
+            final float bottom = (heightMinusOne - y1) / dy;
+            if(dy > 0f) {
+                start = Math.max(start, top);
+                end = Math.min(end, bottom);
+            } else {
+                start = Math.max(start, bottom);
+                end = Math.min(end, top);
+            }
+        }
+        if(start > end) return;
+
+        final float startX = Math.min(Math.max(x1 + start * dx, 0f), widthMinusOne);
+        final float startY = Math.min(Math.max(y1 + start * dy, 0f), heightMinusOne);
+        final float endX = Math.min(Math.max(x1 + end * dx, 0f), widthMinusOne);
+        final float endY = Math.min(Math.max(y1 + end * dy, 0f), heightMinusOne);
+        if(antialiased) {
+            rasterizeAntialiasedLine(startX, startY, endX, endY, start, end, pixelShader, rootSignature, renderTarget,
+                    interpolates1, interpolates2, lineStep, pixelShaderInput, widthMinusOne, heightMinusOne);
+        } else {
+            rasterizeLine((int)startX, (int)startY, (int)endX, (int)endY, start, end, pixelShader, rootSignature,
+                    renderTarget, interpolates1, interpolates2, lineStep, pixelShaderInput);
         }
-        clipBoth(x2, y2, x1, y1, pos2Zone, widthMinusOne, heightMinusOne, pixelShader, rootSignature, renderTarget,
-                interpolates2, interpolates1, pixelShaderInput);
     }
 
-    private static int findZone(float x, float y, int widthMinusOne, int heightMinusOne) {
+    private static int findZone(float x, float y, int maxX, int maxY) {
         int posZone = 0;
         if(x < 0f) {
             posZone = 1;
         }
-        if(x > widthMinusOne) {
+        if(x > maxX) {
             posZone |= 2;
         }
         if(y < 0f) {
             posZone |= 4;
         }
-        if(y > heightMinusOne) {
+        if(y > maxY) {
             posZone |= 8;
         }
         return posZone;
     }
 
-    private static void cullThirdTop(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4 pos4, Vector4[] interpolates1,
-                                  Vector4[] interpolates2, Vector4[] interpolates3, Vector4[] interpolates4,
-                                  Vector4[] interpolates5, Object[] rootSignature, Vector4[] pixelShaderInput,
-                                  PixelShader solidPixelShader, BufferedImage renderTarget) {
-        pos4.y = 0f;
-        float amount3 = pos3.y / (pos3.y - pos1.y);
-        pos4.x = pos3.x - amount3 * (pos3.x - pos1.x);
-        createNewInterpolate(interpolates5, interpolates1, interpolates3, amount3);
-        cullTriangleBottom(pos1, pos2, pos4, interpolates1, interpolates2, interpolates5, interpolates4,
-                rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-
-        amount3 = pos3.y / (pos3.y - pos2.y);
-        pos1.x = pos3.x + amount3 * (pos2.x - pos3.x);
-        pos1.y = 0f;
-        createNewInterpolate(interpolates1, interpolates2, interpolates3, amount3);
-        cullTriangleBottom(pos2, pos1, pos4, interpolates2, interpolates1, interpolates5, interpolates4,
-                rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
+    /**
+     * Draws a solid triangle that is inside the guard band with the rasterizer that suits the pipeline state and the
+     * render target
+     *
+     * @param edgeMask Bit i - 1 is set if the edge opposite vertex i is an edge of the triangle that was drawn, the
+     *                 wire frame isn't drawn along the other edges, which are the diagonals of a clipped triangle's
+     *                 fan.
+     */
+    private static void rasterizeTriangle(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4[] interpolates1,
+                                          Vector4[] interpolates2, Vector4[] interpolates3, Object[] rootSignature,
+                                          Vector4[] pixelShaderInput, PipelineState pipelineState,
+                                          RenderTarget renderTarget, int edgeMask) {
+        final boolean vertexColor = pipelineState.colorInterpolate >= 0 && !pipelineState.antialiasedLines &&
+                renderTarget instanceof ImageRenderTarget && ((ImageRenderTarget)renderTarget).getPixels() != null;
+        if(pipelineState.flatShading && pipelineState.colorInterpolate >= 0 && !vertexColor) {
+            // the other rasterizers interpolate the color for the pixel shader, so every vertex gets the first one's
+            final Vector4 color = interpolates1[pipelineState.colorInterpolate];
+            interpolates2 = withColor(interpolates2, pipelineState.colorInterpolate, color);
+            interpolates3 = withColor(interpolates3, pipelineState.colorInterpolate, color);
+        }
+        if(renderTarget instanceof MultisampleRenderTarget) {
+            rasterizeTriangleMultisampled(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3,
+                    rootSignature, pixelShaderInput, pipelineState, (MultisampleRenderTarget)renderTarget, edgeMask);
+            return;
+        }
+        if(vertexColor) {
+            rasterizeTriangleVertexColor(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3,
+                    rootSignature, pixelShaderInput, pipelineState, (ImageRenderTarget)renderTarget, edgeMask);
+            return;
+        }
+        if(pipelineState.shadingRate > 1 || pipelineState.shadingRateImage != null) {
+            rasterizeTriangleCoarse(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3,
+                    rootSignature, pixelShaderInput, pipelineState, renderTarget, edgeMask);
+            return;
+        }
+        if(pipelineState.fillMode == FillMode.solidWireFrame) {
+            rasterizeTriangleWithEdges(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3,
+                    rootSignature, pixelShaderInput, pipelineState, renderTarget, edgeMask);
+            return;
+        }
+        drawTriangle(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3, rootSignature, pixelShaderInput,
+                pipelineState.pixelShader, renderTarget);
     }
 
-    private static void cullThirdBottom(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4 pos4, Vector4[] interpolates1,
-                                     Vector4[] interpolates2, Vector4[] interpolates3, Vector4[] interpolates4,
-                                     Vector4[] interpolates5, Object[] rootSignature, Vector4[] pixelShaderInput,
-                                     PixelShader solidPixelShader, BufferedImage renderTarget) {
-        final int heightMinusOne = renderTarget.getHeight() - 1;
-        pos4.y = heightMinusOne;
-        float amount3 = (heightMinusOne - pos3.y) / (pos1.y - pos3.y);
-        pos4.x = pos3.x - amount3 * (pos3.x - pos1.x);
-        createNewInterpolate(interpolates5, interpolates1, interpolates3, amount3);
-        cullTriangleLeft(pos1, pos2, pos4, interpolates1, interpolates2, interpolates5, interpolates4,
-                rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-
-        amount3 = (heightMinusOne - pos3.y) / (pos2.y - pos3.y);
-        pos1.x = pos3.x + amount3 * (pos2.x - pos3.x);
-        pos1.y = heightMinusOne;
-        createNewInterpolate(interpolates1, interpolates2, interpolates3, amount3);
-        cullTriangleLeft(pos2, pos1, pos4, interpolates2, interpolates1, interpolates5, interpolates4,
-                rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
+    /**
+     * @return The interpolates with the one at index replaced by color, or the same array if it already has that
+     * color. A vertex's interpolates are shared with the other triangles that use it so they aren't changed.
+     */
+    private static Vector4[] withColor(Vector4[] interpolates, int index, Vector4 color) {
+        final Vector4 current = interpolates[index];
+        if(current == color || (current.x == color.x && current.y == color.y && current.z == color.z &&
+                current.w == color.w)) {
+            return interpolates;
+        }
+        final Vector4[] result = interpolates.clone();
+        result[index] = color;
+        return result;
     }
 
-    private static void cullThirdLeft(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4 pos4, Vector4[] interpolates1,
-                                        Vector4[] interpolates2, Vector4[] interpolates3, Vector4[] interpolates4,
-                                        Vector4[] interpolates5, Object[] rootSignature, Vector4[] pixelShaderInput,
-                                        PixelShader solidPixelShader, BufferedImage renderTarget) {
-        pos4.x = 0f;
-        float amount3 = pos3.x / (pos3.x - pos1.x);
-        pos4.y = pos3.y - amount3 * (pos3.y - pos1.y);
-        createNewInterpolate(interpolates4, interpolates1, interpolates3, amount3);
-        cullTriangleRight(pos1, pos2, pos4, interpolates1, interpolates2, interpolates4, interpolates5,
-                rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-
-        amount3 = pos3.x / (pos3.x - pos2.x);
-        pos1.y = pos3.y + amount3 * (pos2.y - pos3.y);
-        pos1.x = 0f;
-        createNewInterpolate(interpolates1, interpolates2, interpolates3, amount3);
-        cullTriangleRight(pos2, pos1, pos4, interpolates2, interpolates1, interpolates4, interpolates5,
-                rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
+    /**
+     * Draws a solid triangle that is inside the guard band, running the pixel shader at every covered pixel center.
+     * Coverage is found by {@link TriangleEdges}.
+     */
+    private static void drawTriangle(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4[] interpolates1,
+                                     Vector4[] interpolates2, Vector4[] interpolates3, Object[] rootSignature,
+                                     Vector4[] pixelShaderInput, PixelShader solidPixelShader,
+                                     RenderTarget renderTarget) {
+        final TriangleEdges edges = new TriangleEdges();
+        if(!edges.setup(pos1, pos2, pos3, renderTarget.getWidth(), renderTarget.getHeight())) return;
+        if(edges.swapped) {
+            final Vector4[] temp = interpolates2;
+            interpolates2 = interpolates3;
+            interpolates3 = temp;
+        }
+
+        long row1 = edges.row1, row2 = edges.row2, row3 = edges.row3;
+        for(int y = edges.minY; y <= edges.maxY; ++y, row1 += edges.stepY1, row2 += edges.stepY2,
+                row3 += edges.stepY3) {
+            long edge1 = row1, edge2 = row2, edge3 = row3;
+            boolean inside = false;
+            for(int x = edges.minX; x <= edges.maxX; ++x, edge1 += edges.stepX1, edge2 += edges.stepX2,
+                    edge3 += edges.stepX3) {
+                if((edge1 | edge2 | edge3) < 0L) {
+                    // the triangle is convex so once a row has left it it doesn't come back
+                    if(inside) break;
+                    continue;
+                }
+                inside = true;
+                interpolate(edges.weight1(edge1), edges.weight2(edge2), edges.weight3(edge3), interpolates1,
+                        interpolates2, interpolates3, pixelShaderInput);
+                renderTarget.write(x, y, solidPixelShader, rootSignature, pixelShaderInput);
+            }
+        }
     }
 
-    private static void cullThirdRight(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4 pos4, Vector4[] interpolates1,
-                                        Vector4[] interpolates2, Vector4[] interpolates3, Vector4[] interpolates4,
-                                        Vector4[] interpolates5, Object[] rootSignature, Vector4[] pixelShaderInput,
-                                        PixelShader solidPixelShader, BufferedImage renderTarget) {
-        final int widthMinusOne = renderTarget.getWidth() - 1;
-        pos4.x = widthMinusOne;
-        float amount3 = (widthMinusOne - pos3.x) / (pos1.x - pos3.x);
-        pos4.y = pos3.y - amount3 * (pos3.y - pos1.y);
-        createNewInterpolate(interpolates5, interpolates1, interpolates3, amount3);
-        drawTriangle(pos1, pos2, pos4, interpolates1, interpolates2, interpolates5, interpolates4,
-                rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-
-        amount3 = (widthMinusOne - pos3.x) / (pos2.x - pos3.x);
-        pos1.y = pos3.y + amount3 * (pos2.y - pos3.y);
-        pos1.x = widthMinusOne;
-        createNewInterpolate(interpolates1, interpolates2, interpolates3, amount3);
-        drawTriangle(pos2, pos1, pos4, interpolates2, interpolates1, interpolates5, interpolates4,
-                rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
+    /**
+     * @return The position in pixels in fixed point with {@link #subPixelBits} fractional bits
+     */
+    private static int toFixed(float position) {
+        return Math.round(position * subPixelScale);
     }
 
-    private static void cullSecondAndThirdTop(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4[] interpolates1,
-                                              Vector4[] interpolates2, Vector4[] interpolates3,
-                                              Vector4[] interpolates4, Object[] rootSignature, Vector4[] pixelShaderInput,
-                                              PixelShader solidPixelShader, BufferedImage renderTarget) {
-        float amount3 = pos3.y / (pos3.y - pos1.y);
-        createNewInterpolate(interpolates3, interpolates1, interpolates3, amount3);
-        pos3.y = 0;
-        pos3.x += amount3 * (pos1.x - pos3.x);
-
-        float amount2 = pos2.y / (pos2.y - pos1.y);
-        createNewInterpolate(interpolates2, interpolates1, interpolates2, amount2);
-        pos2.y = 0;
-        pos2.x += amount2 * (pos1.x - pos2.x);
-
-        cullTriangleBottom(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3, interpolates4, rootSignature,
-                pixelShaderInput, solidPixelShader, renderTarget);
+    /**
+     * @return Twice the signed area of the triangle (x1, y1), (x2, y2), (x, y), positive if (x, y) is on the inside
+     * of the edge from (x1, y1) to (x2, y2) of a triangle with a positive area
+     */
+    private static long edgeFunction(int x1, int y1, int x2, int y2, int x, int y) {
+        return (long)(x2 - x1) * (y - y1) - (long)(y2 - y1) * (x - x1);
     }
 
-    private static void cullSecondAndThirdBottom(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4[] interpolates1,
-                                              Vector4[] interpolates2, Vector4[] interpolates3,
-                                              Vector4[] interpolates4, Object[] rootSignature, Vector4[] pixelShaderInput,
-                                              PixelShader solidPixelShader, BufferedImage renderTarget) {
-        final int heightMinusOne = renderTarget.getHeight() - 1;
-        float amount3 = (heightMinusOne - pos3.y) / (pos1.y - pos3.y);
-        createNewInterpolate(interpolates3, interpolates1, interpolates3, amount3);
-        pos3.y = heightMinusOne;
-        pos3.x += amount3 * (pos1.x - pos3.x);
-
-        float amount2 = (heightMinusOne - pos2.y) / (pos1.y - pos2.y);
-        createNewInterpolate(interpolates2, interpolates1, interpolates2, amount2);
-        pos2.y = heightMinusOne;
-        pos2.x += amount2 * (pos1.x - pos2.x);
-
-        cullTriangleLeft(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3, interpolates4, rootSignature,
-                pixelShaderInput, solidPixelShader, renderTarget);
+    /**
+     * @return True if the edge from (x1, y1) to (x2, y2) of a triangle with a positive area is a top edge, i.e. a
+     * horizontal edge above the rest of the triangle, or a left edge. y increases down the screen.
+     */
+    private static boolean isTopLeftEdge(int x1, int y1, int x2, int y2) {
+        return y2 < y1 || (y2 == y1 && x2 > x1);
     }
 
-    private static void cullSecondAndThirdLeft(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4[] interpolates1,
-                                              Vector4[] interpolates2, Vector4[] interpolates3,
-                                              Vector4[] interpolates4, Object[] rootSignature, Vector4[] pixelShaderInput,
-                                              PixelShader solidPixelShader, BufferedImage renderTarget) {
-        float amount3 = (-pos3.x) / (pos1.x - pos3.x);
-        createNewInterpolate(interpolates3, interpolates1, interpolates3, amount3);
-        pos3.x = 0;
-        pos3.y += amount3 * (pos1.y - pos3.y);
-
-        float amount2 = (-pos2.x) / (pos1.x - pos2.x);
-        createNewInterpolate(interpolates2, interpolates1, interpolates2, amount2);
-        pos2.x = 0;
-        pos2.y += amount2 * (pos1.y - pos2.y);
-
-        cullTriangleRight(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3, interpolates4, rootSignature,
-                pixelShaderInput, solidPixelShader, renderTarget);
+    /**
+     * The coverage of a solid triangle, shared by all the solid triangle rasterizers so that they cover exactly the
+     * same pixels. The positions are snapped to fixed point with {@link #subPixelBits} fractional bits and a pixel
+     * center or sample is covered if it is inside the triangle. Points exactly on an edge are only covered if it is a
+     * top or left edge, so the pixels along an edge shared by two triangles are drawn by exactly one of them. The
+     * triangle must be inside the guard band so that the edge functions can't overflow.
+     */
+    private static final class TriangleEdges {
+        // true if vertices 2 and 3 were swapped to wind the triangle so that the edge functions are positive inside
+        // it, the rasterizer must swap their interpolates too
+        boolean swapped;
+        // the pixels whose centers are in the triangle's bounding box, grown by the margin passed to setup, and on the
+        // render target
+        int minX, maxX, minY, maxY;
+        // Edge i is opposite vertex i, its edge function is the barycentric weight of vertex i divided by
+        // oneOverArea. Edges that aren't top or left edges are biased by -1 so that points exactly on them are
+        // outside, a point is covered if all three biased edge functions are at least 0.
+        long bias1, bias2, bias3;
+        // the biased edge functions at the center of pixel (minX, minY)
+        long row1, row2, row3;
+        // how much the edge functions change from one pixel to the next
+        long stepX1, stepY1, stepX2, stepY2, stepX3, stepY3;
+        float oneOverArea;
+        // weight i at (x, y) in pixels is weightIX * x + weightIY * y + weightIC, for positions that aren't pixel
+        // centers and for finding how far pixels are from the edges
+        float weight1X, weight1Y, weight1C, weight2X, weight2Y, weight2C, weight3X, weight3Y, weight3C;
+
+        /**
+         * @return False if the triangle has no area or no pixel centers are in its bounding box
+         */
+        boolean setup(Vector4 pos1, Vector4 pos2, Vector4 pos3, int width, int height) {
+            return setup(pos1, pos2, pos3, width, height, 0);
+        }
+
+        /**
+         * @param margin How far outside the triangle's bounding box, in fixed point, the centers of pixels that are
+         *               visited can be, e.g. for pixels whose samples are covered but not their center.
+         */
+        boolean setup(Vector4 pos1, Vector4 pos2, Vector4 pos3, int width, int height, int margin) {
+            final int x1 = toFixed(pos1.x), y1 = toFixed(pos1.y);
+            int x2 = toFixed(pos2.x), y2 = toFixed(pos2.y);
+            int x3 = toFixed(pos3.x), y3 = toFixed(pos3.y);
+            long area = (long)(x2 - x1) * (y3 - y1) - (long)(x3 - x1) * (y2 - y1);
+            if(area == 0L) return false;
+            swapped = area < 0L;
+            if(swapped) {
+                int temp = x2;
+                x2 = x3;
+                x3 = temp;
+                temp = y2;
+                y2 = y3;
+                y3 = temp;
+                area = -area;
+            }
+
+            final int halfPixel = subPixelScale / 2;
+            final int low = halfPixel + margin - subPixelScale + 1, high = halfPixel - margin;
+            minX = Math.max((Math.min(x1, Math.min(x2, x3)) - low) >> subPixelBits, 0);
+            maxX = Math.min((Math.max(x1, Math.max(x2, x3)) - high) >> subPixelBits, width - 1);
+            minY = Math.max((Math.min(y1, Math.min(y2, y3)) - low) >> subPixelBits, 0);
+            maxY = Math.min((Math.max(y1, Math.max(y2, y3)) - high) >> subPixelBits, height - 1);
+            if(minX > maxX || minY > maxY) return false;
+
+            final int startX = (minX << subPixelBits) + halfPixel;
+            final int startY = (minY << subPixelBits) + halfPixel;
+            bias1 = isTopLeftEdge(x2, y2, x3, y3) ? 0L : -1L;
+            bias2 = isTopLeftEdge(x3, y3, x1, y1) ? 0L : -1L;
+            bias3 = isTopLeftEdge(x1, y1, x2, y2) ? 0L : -1L;
+            row1 = edgeFunction(x2, y2, x3, y3, startX, startY) + bias1;
+            row2 = edgeFunction(x3, y3, x1, y1, startX, startY) + bias2;
+            row3 = edgeFunction(x1, y1, x2, y2, startX, startY) + bias3;
+            stepX1 = (long)(y2 - y3) << subPixelBits;
+            stepY1 = (long)(x3 - x2) << subPixelBits;
+            stepX2 = (long)(y3 - y1) << subPixelBits;
+            stepY2 = (long)(x1 - x3) << subPixelBits;
+            stepX3 = (long)(y1 - y2) << subPixelBits;
+            stepY3 = (long)(x2 - x1) << subPixelBits;
+
+            oneOverArea = 1f / area;
+            final float centerX = minX + 0.5f, centerY = minY + 0.5f;
+            weight1X = stepX1 * oneOverArea;
+            weight1Y = stepY1 * oneOverArea;
+            weight1C = weight1(row1) - weight1X * centerX - weight1Y * centerY;
+            weight2X = stepX2 * oneOverArea;
+            weight2Y = stepY2 * oneOverArea;
+            weight2C = weight2(row2) - weight2X * centerX - weight2Y * centerY;
+            weight3X = stepX3 * oneOverArea;
+            weight3Y = stepY3 * oneOverArea;
+            weight3C = weight3(row3) - weight3X * centerX - weight3Y * centerY;
+            return true;
+        }
+
+        /**
+         * @return The biased edge function of edge 1 at the center of pixel (x, y)
+         */
+        long edge1(int x, int y) {
+            return row1 + stepX1 * (x - minX) + stepY1 * (y - minY);
+        }
+
+        long edge2(int x, int y) {
+            return row2 + stepX2 * (x - minX) + stepY2 * (y - minY);
+        }
+
+        long edge3(int x, int y) {
+            return row3 + stepX3 * (x - minX) + stepY3 * (y - minY);
+        }
+
+        /**
+         * @return The barycentric weight of vertex 1 at a point whose biased edge 1 function is edge1
+         */
+        float weight1(long edge1) {
+            return (edge1 - bias1) * oneOverArea;
+        }
+
+        float weight2(long edge2) {
+            return (edge2 - bias2) * oneOverArea;
+        }
+
+        float weight3(long edge3) {
+            return (edge3 - bias3) * oneOverArea;
+        }
+
+        /**
+         * @return The edge mask of the triangle as passed to rasterizeTriangle with the bits of edges 2 and 3 swapped
+         * if the vertices were
+         */
+        int windEdgeMask(int edgeMask) {
+            return swapped ? (edgeMask & 1) | ((edgeMask & 2) << 1) | ((edgeMask & 4) >> 1) : edgeMask;
+        }
     }
 
-    private static void cullSecondAndThirdRight(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4[] interpolates1,
-                                                 Vector4[] interpolates2, Vector4[] interpolates3,
-                                                 Vector4[] interpolates4, Object[] rootSignature, Vector4[] pixelShaderInput,
-                                                 PixelShader solidPixelShader, BufferedImage renderTarget) {
-        final int widthMinusOne = renderTarget.getWidth() - 1;
-        float amount3 = (widthMinusOne - pos3.x) / (pos1.x - pos3.x);
-        createNewInterpolate(interpolates3, interpolates1, interpolates3, amount3);
-        pos3.x = widthMinusOne;
-        pos3.y += amount3 * (pos1.y - pos3.y);
-
-        float amount2 = (widthMinusOne - pos2.x) / (pos1.x - pos2.x);
-        createNewInterpolate(interpolates2, interpolates1, interpolates2, amount2);
-        pos2.x = widthMinusOne;
-        pos2.y += amount2 * (pos1.y - pos2.y);
-
-        drawTriangle(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3, interpolates4, rootSignature,
-                pixelShaderInput, solidPixelShader, renderTarget);
+    /**
+     * @return 0 if the edge is in the edge mask, otherwise infinity so that adding it to the edge's distance keeps the
+     * wire frame off it
+     */
+    private static float hiddenEdgeDistance(int edgeMask, int edge) {
+        return (edgeMask & (1 << edge)) != 0 ? 0f : Float.POSITIVE_INFINITY;
     }
 
-    private static void cullTriangleTop(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4[] interpolates1,
-                                        Vector4[] interpolates2, Vector4[] interpolates3, Vector4[] interpolates4,
-                                        Object[] rootSignature, Vector4[] pixelShaderInput,
-                                        PixelShader solidPixelShader, BufferedImage renderTarget) {
-        Vector4[] interpolates5 = new Vector4[interpolates1.length];
-        for(int i = 0; i < interpolates5.length; ++i) {
-            interpolates5[i] = new Vector4();
-        }
-        Vector4 pos4 = new Vector4();
-        if(pos1.y >= 0) {
-            if(pos2.y >= 0) {
-                if(pos3.y >= 0) {
-                    cullTriangleBottom(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3, interpolates4,
-                            rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                } else {
-                    cullThirdTop(pos1, pos2, pos3, pos4, interpolates1, interpolates2, interpolates3, interpolates4,
-                            interpolates5, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                }
-            } else {
-                if(pos3.y >= 0) {
-                    cullThirdTop(pos1, pos3, pos2, pos4, interpolates1, interpolates3, interpolates2, interpolates4,
-                            interpolates5, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                } else {
-                    cullSecondAndThirdTop(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3,
-                            interpolates4, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                }
-            }
-        } else {
-            if(pos2.y >= 0) {
-                if(pos3.y >= 0) {
-                    cullThirdTop(pos2, pos3, pos1, pos4, interpolates2, interpolates3, interpolates1, interpolates4,
-                            interpolates5, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                } else {
-                    cullSecondAndThirdTop(pos2, pos1, pos3, interpolates2, interpolates1, interpolates3,
-                            interpolates4, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
+    /**
+     * Clips a solid triangle that reaches outside the guard band to the guard band and draws what is left of it as a
+     * fan of triangles. The clipped polygon's vertices are new arrays so the triangle's interpolates aren't changed.
+     */
+    private static void drawClippedTriangle(Vector4[] interpolates1, Vector4[] interpolates2, Vector4[] interpolates3,
+                                            Object[] rootSignature, Vector4[] pixelShaderInput,
+                                            PipelineState pipelineState, RenderTarget renderTarget) {
+        // clipping against each of the 4 edges adds at most one vertex
+        Vector4[][] polygon = new Vector4[7][];
+        Vector4[][] clipped = new Vector4[7][];
+        if(pipelineState.flatShading && pipelineState.colorInterpolate >= 0) {
+            // the fan's triangles don't all start at the first vertex, so every vertex gets its color
+            final Vector4 color = interpolates1[pipelineState.colorInterpolate];
+            interpolates2 = withColor(interpolates2, pipelineState.colorInterpolate, color);
+            interpolates3 = withColor(interpolates3, pipelineState.colorInterpolate, color);
+        }
+        polygon[0] = interpolates1;
+        polygon[1] = interpolates2;
+        polygon[2] = interpolates3;
+        int vertexCount = 3;
+        final float minX = -guardBand, minY = -guardBand;
+        final float maxX = renderTarget.getWidth() + guardBand, maxY = renderTarget.getHeight() + guardBand;
+        for(int edge = 0; edge < 4 && vertexCount != 0; ++edge) {
+            int clippedCount = 0;
+            for(int i = 0; i < vertexCount; ++i) {
+                final Vector4[] start = polygon[i];
+                final Vector4[] end = polygon[i + 1 == vertexCount ? 0 : i + 1];
+                // how far inside the edge each end of the polygon's side is
+                final float startDistance = guardBandDistance(edge, start[0], minX, minY, maxX, maxY);
+                final float endDistance = guardBandDistance(edge, end[0], minX, minY, maxX, maxY);
+                if(startDistance >= 0f) {
+                    clipped[clippedCount++] = start;
                 }
-            } else {
-                if(pos3.y >= 0) {
-                    cullSecondAndThirdTop(pos3, pos1, pos2, interpolates3, interpolates1, interpolates2,
-                            interpolates4, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
+                if((startDistance < 0f) != (endDistance < 0f)) {
+                    final Vector4[] vertex = new Vector4[start.length];
+                    for(int j = 0; j < vertex.length; ++j) {
+                        vertex[j] = new Vector4();
+                    }
+                    final float amount = startDistance / (startDistance - endDistance);
+                    createNewInterpolate(vertex, start, end, amount);
+                    vertex[0].x = start[0].x + amount * (end[0].x - start[0].x);
+                    vertex[0].y = start[0].y + amount * (end[0].y - start[0].y);
+                    // the depth z / w is what is linear in screen space, not z and w
+                    final float startDepth = start[0].z / start[0].w;
+                    vertex[0].z = startDepth + amount * (end[0].z / end[0].w - startDepth);
+                    vertex[0].w = 1f;
+                    clipped[clippedCount++] = vertex;
                 }
             }
+            final Vector4[][] temp = polygon;
+            polygon = clipped;
+            clipped = temp;
+            vertexCount = clippedCount;
+        }
+        for(int i = 2; i < vertexCount; ++i) {
+            // the side opposite the fan's center is always an edge of the polygon, the other two only are for the
+            // first and last triangles
+            final int edgeMask = 1 | (i == vertexCount - 1 ? 2 : 0) | (i == 2 ? 4 : 0);
+            rasterizeTriangle(polygon[0][0], polygon[i - 1][0], polygon[i][0], polygon[0], polygon[i - 1], polygon[i],
+                    rootSignature, pixelShaderInput, pipelineState, renderTarget, edgeMask);
         }
     }
 
-    private static void cullTriangleBottom(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4[] interpolates1,
-                                           Vector4[] interpolates2, Vector4[] interpolates3, Vector4[] interpolates4,
-                                           Object[] rootSignature, Vector4[] pixelShaderInput, PixelShader solidPixelShader,
-                                           BufferedImage renderTarget) {
-        Vector4[] interpolates5 = new Vector4[interpolates1.length];
-        for(int i = 0; i < interpolates5.length; ++i) {
-            interpolates5[i] = new Vector4();
+    /**
+     * @return How far a position is inside edge 0 (left), 1 (right), 2 (top) or 3 (bottom) of the guard band,
+     * negative if it is outside
+     */
+    private static float guardBandDistance(int edge, Vector4 position, float minX, float minY, float maxX,
+                                           float maxY) {
+        switch(edge) {
+            case 0:
+                return position.x - minX;
+            case 1:
+                return maxX - position.x;
+            case 2:
+                return position.y - minY;
+            default:
+                return maxY - position.y;
         }
-        Vector4 pos4 = new Vector4();
-        final int heightMinusOne = renderTarget.getHeight() - 1;
-        if(pos1.y <= heightMinusOne) {
-            if(pos2.y <= heightMinusOne) {
-                if(pos3.y <= heightMinusOne) {
-                    cullTriangleLeft(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3, interpolates4,
-                            rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                } else {
-                    cullThirdBottom(pos1, pos2, pos3, pos4, interpolates1, interpolates2, interpolates3, interpolates4,
-                            interpolates5, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                }
-            } else {
-                if(pos3.y <= heightMinusOne) {
-                    cullThirdBottom(pos1, pos3, pos2, pos4, interpolates1, interpolates3, interpolates2, interpolates4,
-                            interpolates5, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                } else {
-                    cullSecondAndThirdBottom(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3,
-                            interpolates4, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                }
-            }
-        } else {
-            if(pos2.y <= heightMinusOne) {
-                if(pos3.y <= heightMinusOne) {
-                    cullThirdBottom(pos2, pos3, pos1, pos4, interpolates2, interpolates3, interpolates1, interpolates4,
-                            interpolates5, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                } else {
-                    cullSecondAndThirdBottom(pos2, pos1, pos3, interpolates2, interpolates1, interpolates3,
-                            interpolates4, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                }
-            } else {
-                if(pos3.y <= heightMinusOne) {
-                    cullSecondAndThirdBottom(pos3, pos1, pos2, interpolates3, interpolates1, interpolates2,
-                            interpolates4, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
+    }
+
+    private static boolean isInGuardBand(Vector4 position, int width, int height) {
+        return position.x >= -guardBand && position.x <= width + guardBand && position.y >= -guardBand &&
+                position.y <= height + guardBand;
+    }
+
+    /**
+     * Draws a triangle by testing every sample in its on screen bounding box against the triangle's edges. The pixel
+     * shader runs once per pixel, at the pixel's center, if any of the pixel's samples are covered and pass the depth
+     * test. Pixels whose center is on an edge use the wire frame pixel shader in solidWireFrame mode.
+     */
+    private static void rasterizeTriangleMultisampled(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4[] interpolates1,
+                                                      Vector4[] interpolates2, Vector4[] interpolates3,
+                                                      Object[] rootSignature, Vector4[] pixelShaderInput,
+                                                      PipelineState pipelineState,
+                                                      MultisampleRenderTarget renderTarget, int edgeMask) {
+        final TriangleEdges edges = new TriangleEdges();
+        // samples are less than half a pixel from the center so pixels whose center is just outside the triangle can
+        // still have covered samples
+        if(!edges.setup(pos1, pos2, pos3, renderTarget.getWidth(), renderTarget.getHeight(), subPixelScale / 2)) {
+            return;
+        }
+        if(edges.swapped) {
+            final Vector4[] temp = interpolates2;
+            interpolates2 = interpolates3;
+            interpolates3 = temp;
+            final Vector4 tempPos = pos2;
+            pos2 = pos3;
+            pos3 = tempPos;
+        }
+        edgeMask = edges.windEdgeMask(edgeMask);
+
+        // how much each edge function changes from the pixel's center to each sample, the sample positions are
+        // multiples of 1/16 of a pixel so they are exact in fixed point
+        final int sampleCount = renderTarget.getSampleCount();
+        final long[] sampleOffsets1 = new long[sampleCount];
+        final long[] sampleOffsets2 = new long[sampleCount];
+        final long[] sampleOffsets3 = new long[sampleCount];
+        for(int sample = 0; sample < sampleCount; ++sample) {
+            final int offsetX = Math.round((renderTarget.getSampleX(sample) - 0.5f) * subPixelScale);
+            final int offsetY = Math.round((renderTarget.getSampleY(sample) - 0.5f) * subPixelScale);
+            sampleOffsets1[sample] = ((edges.stepX1 * offsetX) >> subPixelBits) +
+                    ((edges.stepY1 * offsetY) >> subPixelBits);
+            sampleOffsets2[sample] = ((edges.stepX2 * offsetX) >> subPixelBits) +
+                    ((edges.stepY2 * offsetY) >> subPixelBits);
+            sampleOffsets3[sample] = ((edges.stepX3 * offsetX) >> subPixelBits) +
+                    ((edges.stepY3 * offsetY) >> subPixelBits);
+        }
+        final float depth1 = pos1.z / pos1.w;
+        final float depth2 = pos2.z / pos2.w;
+        final float depth3 = pos3.z / pos3.w;
+        final boolean drawEdges = pipelineState.fillMode == FillMode.solidWireFrame;
+        final float edgeScale1 = edgeScale(edges.weight1X, edges.weight1Y);
+        final float edgeScale2 = edgeScale(edges.weight2X, edges.weight2Y);
+        final float edgeScale3 = edgeScale(edges.weight3X, edges.weight3Y);
+        final float hidden1 = hiddenEdgeDistance(edgeMask, 0);
+        final float hidden2 = hiddenEdgeDistance(edgeMask, 1);
+        final float hidden3 = hiddenEdgeDistance(edgeMask, 2);
+        final float halfWireFrameWidth = pipelineState.wireFrameWidth * 0.5f;
+
+        final float[] sampleDepths = new float[sampleCount];
+        for(int y = edges.minY; y <= edges.maxY; ++y) {
+            for(int x = edges.minX; x <= edges.maxX; ++x) {
+                final long edge1 = edges.edge1(x, y), edge2 = edges.edge2(x, y), edge3 = edges.edge3(x, y);
+                int coverage = 0;
+                for(int sample = 0; sample < sampleCount; ++sample) {
+                    final long sampleEdge1 = edge1 + sampleOffsets1[sample];
+                    final long sampleEdge2 = edge2 + sampleOffsets2[sample];
+                    final long sampleEdge3 = edge3 + sampleOffsets3[sample];
+                    if((sampleEdge1 | sampleEdge2 | sampleEdge3) >= 0L) {
+                        coverage |= 1 << sample;
+                        sampleDepths[sample] = edges.weight1(sampleEdge1) * depth1 +
+                                edges.weight2(sampleEdge2) * depth2 + edges.weight3(sampleEdge3) * depth3;
+                    }
                 }
+                if(coverage == 0) continue;
+                coverage = renderTarget.testDepth(x, y, coverage, sampleDepths);
+                if(coverage == 0) continue;
+
+                final float weight1 = edges.weight1(edge1);
+                final float weight2 = edges.weight2(edge2);
+                final float weight3 = edges.weight3(edge3);
+                interpolate(weight1, weight2, weight3, interpolates1, interpolates2, interpolates3, pixelShaderInput);
+                final PixelShader pixelShader = drawEdges && edgeDistance(weight1 * edgeScale1 + hidden1,
+                        weight2 * edgeScale2 + hidden2, weight3 * edgeScale3 + hidden3) < halfWireFrameWidth ?
+                        pipelineState.wireFramePixelShader : pipelineState.pixelShader;
+                renderTarget.writeSamples(x, y, coverage, pixelShader.run(rootSignature, pixelShaderInput));
             }
         }
     }
 
-    private static void cullTriangleLeft(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4[] interpolates1,
-                                           Vector4[] interpolates2, Vector4[] interpolates3, Vector4[] interpolates4,
-                                           Object[] rootSignature, Vector4[] pixelShaderInput, PixelShader solidPixelShader,
-                                           BufferedImage renderTarget) {
-        Vector4[] interpolates5 = new Vector4[interpolates1.length];
-        for(int i = 0; i < interpolates5.length; ++i) {
-            interpolates5[i] = new Vector4();
-        }
-        Vector4 pos4 = new Vector4();
-
-        if(pos1.x >= 0) {
-            if(pos2.x >= 0) {
-                if(pos3.x >= 0) {
-                    cullTriangleRight(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3, interpolates4,
-                            rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                } else {
-                    cullThirdLeft(pos1, pos2, pos3, pos4, interpolates1, interpolates2, interpolates3, interpolates4,
-                            interpolates5, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                }
-            } else {
-                if(pos3.x >= 0) {
-                    cullThirdLeft(pos1, pos3, pos2, pos4, interpolates1, interpolates3, interpolates2, interpolates4,
-                            interpolates5, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                } else {
-                    cullSecondAndThirdLeft(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3,
-                            interpolates4, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
+    /**
+     * Draws a solid triangle and its edges in one pass. The distance from each pixel's center to the triangle's edges
+     * is found from its barycentric weights, pixels closer to an edge than half the wire frame width use the wire frame
+     * pixel shader. With anti-aliased lines the wire frame color is blended over the edge pixels by how much of the
+     * pixel the edge covers.
+     */
+    private static void rasterizeTriangleWithEdges(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4[] interpolates1,
+                                                   Vector4[] interpolates2, Vector4[] interpolates3,
+                                                   Object[] rootSignature, Vector4[] pixelShaderInput,
+                                                   PipelineState pipelineState, RenderTarget renderTarget,
+                                                   int edgeMask) {
+        final TriangleEdges edges = new TriangleEdges();
+        if(!edges.setup(pos1, pos2, pos3, renderTarget.getWidth(), renderTarget.getHeight())) return;
+        if(edges.swapped) {
+            final Vector4[] temp = interpolates2;
+            interpolates2 = interpolates3;
+            interpolates3 = temp;
+        }
+        edgeMask = edges.windEdgeMask(edgeMask);
+        final float edgeScale1 = edgeScale(edges.weight1X, edges.weight1Y);
+        final float edgeScale2 = edgeScale(edges.weight2X, edges.weight2Y);
+        final float edgeScale3 = edgeScale(edges.weight3X, edges.weight3Y);
+        final float hidden1 = hiddenEdgeDistance(edgeMask, 0);
+        final float hidden2 = hiddenEdgeDistance(edgeMask, 1);
+        final float hidden3 = hiddenEdgeDistance(edgeMask, 2);
+
+        final PixelShader pixelShader = pipelineState.pixelShader;
+        final PixelShader wireFramePixelShader = pipelineState.wireFramePixelShader;
+        final float halfWireFrameWidth = pipelineState.wireFrameWidth * 0.5f;
+        final boolean antialiased = pipelineState.antialiasedLines;
+        long row1 = edges.row1, row2 = edges.row2, row3 = edges.row3;
+        for(int y = edges.minY; y <= edges.maxY; ++y, row1 += edges.stepY1, row2 += edges.stepY2,
+                row3 += edges.stepY3) {
+            long edge1 = row1, edge2 = row2, edge3 = row3;
+            boolean inside = false;
+            for(int x = edges.minX; x <= edges.maxX; ++x, edge1 += edges.stepX1, edge2 += edges.stepX2,
+                    edge3 += edges.stepX3) {
+                if((edge1 | edge2 | edge3) < 0L) {
+                    if(inside) break;
+                    continue;
                 }
-            }
-        } else {
-            if(pos2.x >= 0) {
-                if(pos3.x >= 0) {
-                    cullThirdLeft(pos2, pos3, pos1, pos4, interpolates2, interpolates3, interpolates1, interpolates4,
-                            interpolates5, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
+                inside = true;
+                final float weight1 = edges.weight1(edge1);
+                final float weight2 = edges.weight2(edge2);
+                final float weight3 = edges.weight3(edge3);
+                interpolate(weight1, weight2, weight3, interpolates1, interpolates2, interpolates3, pixelShaderInput);
+                final float distance = edgeDistance(weight1 * edgeScale1 + hidden1, weight2 * edgeScale2 + hidden2,
+                        weight3 * edgeScale3 + hidden3);
+                if(antialiased) {
+                    // the edge covers the pixel fully up to half the wire width and fades out over the next pixel
+                    final float coverage = halfWireFrameWidth + 0.5f - distance;
+                    if(coverage >= 1f) {
+                        renderTarget.write(x, y, wireFramePixelShader, rootSignature, pixelShaderInput);
+                        continue;
+                    }
+                    renderTarget.write(x, y, pixelShader, rootSignature, pixelShaderInput);
+                    if(coverage > 0f) {
+                        renderTarget.writeCoverage(x, y, (int)(coverage * 256f), wireFramePixelShader, rootSignature,
+                                pixelShaderInput);
+                    }
                 } else {
-                    cullSecondAndThirdLeft(pos2, pos1, pos3, interpolates2, interpolates1, interpolates3,
-                            interpolates4, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                }
-            } else {
-                if(pos3.x >= 0) {
-                    cullSecondAndThirdLeft(pos3, pos1, pos2, interpolates3, interpolates1, interpolates2,
-                            interpolates4, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
+                    renderTarget.write(x, y, distance < halfWireFrameWidth ? wireFramePixelShader : pixelShader,
+                            rootSignature, pixelShaderInput);
                 }
             }
         }
     }
 
-    private static void cullTriangleRight(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4[] interpolates1,
-                                         Vector4[] interpolates2, Vector4[] interpolates3, Vector4[] interpolates4,
-                                         Object[] rootSignature, Vector4[] pixelShaderInput, PixelShader solidPixelShader,
-                                         BufferedImage renderTarget) {
-        final int widthMinusOne = renderTarget.getWidth() - 1;
-        Vector4[] interpolates5 = new Vector4[interpolates1.length];
-        for(int i = 0; i < interpolates5.length; ++i) {
-            interpolates5[i] = new Vector4();
+    /**
+     * Draws a solid triangle with variable rate shading. The screen is split into blocks of shading rate x shading rate
+     * pixels and the pixel shader runs once for each block the triangle covers, at the center of the block. Every
+     * covered pixel of the block is then written with that color. Coverage is still tested at every pixel.
+     */
+    private static void rasterizeTriangleCoarse(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4[] interpolates1,
+                                                Vector4[] interpolates2, Vector4[] interpolates3,
+                                                Object[] rootSignature, Vector4[] pixelShaderInput,
+                                                PipelineState pipelineState, RenderTarget renderTarget,
+                                                int edgeMask) {
+        final TriangleEdges edges = new TriangleEdges();
+        if(!edges.setup(pos1, pos2, pos3, renderTarget.getWidth(), renderTarget.getHeight())) return;
+        if(edges.swapped) {
+            final Vector4[] temp = interpolates2;
+            interpolates2 = interpolates3;
+            interpolates3 = temp;
         }
-        Vector4 pos4 = new Vector4();
-
-        if(pos1.x <= widthMinusOne) {
-            if(pos2.x <= widthMinusOne) {
-                if(pos3.x <= widthMinusOne) {
-                    drawTriangle(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3, interpolates4,
-                            rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                } else {
-                    cullThirdRight(pos1, pos2, pos3, pos4, interpolates1, interpolates2, interpolates3, interpolates4,
-                            interpolates5, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                }
-            } else {
-                if(pos3.x <= widthMinusOne) {
-                    cullThirdRight(pos1, pos3, pos2, pos4, interpolates1, interpolates3, interpolates2, interpolates4,
-                            interpolates5, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                } else {
-                    cullSecondAndThirdRight(pos1, pos2, pos3, interpolates1, interpolates2, interpolates3,
-                            interpolates4, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                }
-            }
-        } else {
-            if(pos2.x <= widthMinusOne) {
-                if(pos3.x <= widthMinusOne) {
-                    cullThirdRight(pos2, pos3, pos1, pos4, interpolates2, interpolates3, interpolates1, interpolates4,
-                            interpolates5, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                } else {
-                    cullSecondAndThirdRight(pos2, pos1, pos3, interpolates2, interpolates1, interpolates3,
-                            interpolates4, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
-                }
-            } else {
-                if(pos3.x <= widthMinusOne) {
-                    cullSecondAndThirdRight(pos3, pos1, pos2, interpolates3, interpolates1, interpolates2,
-                            interpolates4, rootSignature, pixelShaderInput, solidPixelShader, renderTarget);
+        edgeMask = edges.windEdgeMask(edgeMask);
+        final int minX = edges.minX, maxX = edges.maxX, minY = edges.minY, maxY = edges.maxY;
+        final boolean drawEdges = pipelineState.fillMode == FillMode.solidWireFrame;
+        final float edgeScale1 = edgeScale(edges.weight1X, edges.weight1Y);
+        final float edgeScale2 = edgeScale(edges.weight2X, edges.weight2Y);
+        final float edgeScale3 = edgeScale(edges.weight3X, edges.weight3Y);
+        final float hidden1 = hiddenEdgeDistance(edgeMask, 0);
+        final float hidden2 = hiddenEdgeDistance(edgeMask, 1);
+        final float hidden3 = hiddenEdgeDistance(edgeMask, 2);
+        final float halfWireFrameWidth = pipelineState.wireFrameWidth * 0.5f;
+        // the G-buffer stores the pixel shader input as well as the color so it still needs it for every pixel
+        final boolean inputPerPixel = renderTarget instanceof GBuffer ||
+                (renderTarget instanceof HeatmapRenderTarget &&
+                        ((HeatmapRenderTarget)renderTarget).getRenderTarget() instanceof GBuffer);
+        final ConstantPixelShader blockShader = new ConstantPixelShader();
+
+        // an image made for another size of render target would give the rates of the wrong tiles
+        final ShadingRateImage shadingRateImage = pipelineState.shadingRateImage != null &&
+                pipelineState.shadingRateImage.matches(renderTarget.getWidth(), renderTarget.getHeight()) ?
+                pipelineState.shadingRateImage : null;
+        final int tileSize = ShadingRateImage.tileSize;
+        for(int tileY = minY / tileSize * tileSize; tileY <= maxY; tileY += tileSize) {
+            for(int tileX = minX / tileSize * tileSize; tileX <= maxX; tileX += tileSize) {
+                final int rate = shadingRateImage != null ?
+                        shadingRateImage.getRate(tileX / tileSize, tileY / tileSize) : pipelineState.shadingRate;
+                final int blockStartY = Math.max(tileY, minY / rate * rate);
+                final int blockEndY = Math.min(tileY + tileSize - 1, maxY);
+                final int blockStartX = Math.max(tileX, minX / rate * rate);
+                final int blockEndX = Math.min(tileX + tileSize - 1, maxX);
+                for(int blockY = blockStartY; blockY <= blockEndY; blockY += rate) {
+                    for(int blockX = blockStartX; blockX <= blockEndX; blockX += rate) {
+                        boolean shaded = false;
+                        for(int y = Math.max(blockY, minY); y < blockY + rate && y <= maxY; ++y) {
+                            for(int x = Math.max(blockX, minX); x < blockX + rate && x <= maxX; ++x) {
+                                final long edge1 = edges.edge1(x, y);
+                                final long edge2 = edges.edge2(x, y);
+                                final long edge3 = edges.edge3(x, y);
+                                if((edge1 | edge2 | edge3) < 0L) continue;
+                                final float weight1 = edges.weight1(edge1);
+                                final float weight2 = edges.weight2(edge2);
+                                final float weight3 = edges.weight3(edge3);
+                                if(drawEdges && edgeDistance(weight1 * edgeScale1 + hidden1,
+                                        weight2 * edgeScale2 + hidden2, weight3 * edgeScale3 + hidden3) <
+                                        halfWireFrameWidth) {
+                                    interpolate(weight1, weight2, weight3, interpolates1, interpolates2, interpolates3,
+                                            pixelShaderInput);
+                                    renderTarget.write(x, y, pipelineState.wireFramePixelShader, rootSignature,
+                                            pixelShaderInput);
+                                    continue;
+                                }
+                                if(!shaded) {
+                                    // shade at the block's center even if it is just outside the triangle
+                                    final float blockCenterX = blockX + rate * 0.5f;
+                                    final float blockCenterY = blockY + rate * 0.5f;
+                                    interpolate(
+                                            edges.weight1X * blockCenterX + edges.weight1Y * blockCenterY +
+                                                    edges.weight1C,
+                                            edges.weight2X * blockCenterX + edges.weight2Y * blockCenterY +
+                                                    edges.weight2C,
+                                            edges.weight3X * blockCenterX + edges.weight3Y * blockCenterY +
+                                                    edges.weight3C,
+                                            interpolates1, interpolates2, interpolates3, pixelShaderInput);
+                                    blockShader.color = pipelineState.pixelShader.run(rootSignature,
+                                            pixelShaderInput);
+                                    shaded = true;
+                                }
+                                if(inputPerPixel) {
+                                    interpolate(weight1, weight2, weight3, interpolates1, interpolates2, interpolates3,
+                                            pixelShaderInput);
+                                }
+                                renderTarget.write(x, y, blockShader, rootSignature, pixelShaderInput);
+                            }
+                        }
+                    }
                 }
             }
         }
     }
 
     /**
-     * draws a triangle that is fully an screen
+     * Draws a solid triangle whose color was calculated per vertex. Each row of the triangle is found as a span of
+     * pixels and the color is stepped across it in 16.16 fixed point and written straight into the image. Triangles
+     * with the same color at every vertex fill their spans with that color. In solidWireFrame mode the parts of each
+     * span closer to an edge than half the wire frame width are filled with the wire frame color.
      */
-    private static void drawTriangle(Vector4 pos1, Vector4 pos2, Vector4 pos3, Vector4[] interpolates1,
-                                     Vector4[] interpolates2, Vector4[] interpolates3, Vector4[] interpolates4,
-                                     Object[] rootSignature, Vector4[] pixelShaderInput, PixelShader solidPixelShader,
-                                     BufferedImage renderTarget) {
-        int maxX, maxY, midX, midY, minX, minY;
-        Vector4[] maxInterpolate, midInterpolate, minInterpolate;
-        if (pos1.y >= pos2.y) {
-            if (pos1.y >= pos3.y) {
-                maxX = (int) pos1.x;
-                maxY = (int) pos1.y;
-                maxInterpolate = interpolates1;
-                if (pos2.y >= pos3.y) {
-                    midX = (int) pos2.x;
-                    midY = (int) pos2.y;
-                    midInterpolate = interpolates2;
-
-                    minX = (int) pos3.x;
-                    minY = (int) pos3.y;
-                    minInterpolate = interpolates3;
-                } else {
-                    midX = (int) pos3.x;
-                    midY = (int) pos3.y;
-                    midInterpolate = interpolates3;
+    private static void rasterizeTriangleVertexColor(Vector4 pos1, Vector4 pos2, Vector4 pos3,
+                                                     Vector4[] interpolates1, Vector4[] interpolates2,
+                                                     Vector4[] interpolates3, Object[] rootSignature,
+                                                     Vector4[] pixelShaderInput, PipelineState pipelineState,
+                                                     ImageRenderTarget renderTarget, int edgeMask) {
+        final int width = renderTarget.getWidth();
+        final TriangleEdges edges = new TriangleEdges();
+        if(!edges.setup(pos1, pos2, pos3, width, renderTarget.getHeight())) return;
+        if(edges.swapped) {
+            final Vector4[] temp = interpolates2;
+            interpolates2 = interpolates3;
+            interpolates3 = temp;
+        }
+        edgeMask = edges.windEdgeMask(edgeMask);
+        final int minX = edges.minX, maxX = edges.maxX;
+        final float weight1X = edges.weight1X, weight1Y = edges.weight1Y, weight1C = edges.weight1C;
+        final float weight2X = edges.weight2X, weight2Y = edges.weight2Y, weight2C = edges.weight2C;
+        final float weight3X = edges.weight3X, weight3Y = edges.weight3Y, weight3C = edges.weight3C;
+
+        final Vector4 color1 = interpolates1[pipelineState.colorInterpolate];
+        final Vector4 color2 = pipelineState.flatShading ? color1 : interpolates2[pipelineState.colorInterpolate];
+        final Vector4 color3 = pipelineState.flatShading ? color1 : interpolates3[pipelineState.colorInterpolate];
+        final int packedColor1 = packColor(color1);
+        final boolean flat = packedColor1 == packColor(color2) && packedColor1 == packColor(color3);
+        // how much each channel changes per pixel in x
+        final float redX = color1.x * weight1X + color2.x * weight2X + color3.x * weight3X;
+        final float greenX = color1.y * weight1X + color2.y * weight2X + color3.y * weight3X;
+        final float blueX = color1.z * weight1X + color2.z * weight2X + color3.z * weight3X;
+
+        // pixels with weight i less than edgeWeight i are on the edge opposite vertex i, edges that aren't drawn have
+        // an edge weight of minus infinity so that no pixel is on them
+        final boolean drawEdges = pipelineState.fillMode == FillMode.solidWireFrame;
+        final float halfWireFrameWidth = pipelineState.wireFrameWidth * 0.5f;
+        final float edgeWeight1 = drawEdges ? halfWireFrameWidth / edgeScale(weight1X, weight1Y) -
+                hiddenEdgeDistance(edgeMask, 0) : 0f;
+        final float edgeWeight2 = drawEdges ? halfWireFrameWidth / edgeScale(weight2X, weight2Y) -
+                hiddenEdgeDistance(edgeMask, 1) : 0f;
+        final float edgeWeight3 = drawEdges ? halfWireFrameWidth / edgeScale(weight3X, weight3Y) -
+                hiddenEdgeDistance(edgeMask, 2) : 0f;
+        int wireFrameColor = 0;
+        if(drawEdges) {
+            copyInterpolateToPixelShaderInput(interpolates1, pixelShaderInput);
+            wireFrameColor = pipelineState.wireFramePixelShader.run(rootSignature, pixelShaderInput);
+        }
 
-                    minX = (int) pos2.x;
-                    minY = (int) pos2.y;
-                    minInterpolate = interpolates2;
+        final int[] pixels = renderTarget.getPixels();
+        long edgeRow1 = edges.row1, edgeRow2 = edges.row2, edgeRow3 = edges.row3;
+        for(int y = edges.minY; y <= edges.maxY; ++y, edgeRow1 += edges.stepY1, edgeRow2 += edges.stepY2,
+                edgeRow3 += edges.stepY3) {
+            // the pixels whose centers are covered
+            final int spanStart = (int)Math.max(minX, Math.max(coveredSpanStart(edgeRow1, edges.stepX1, minX),
+                    Math.max(coveredSpanStart(edgeRow2, edges.stepX2, minX),
+                            coveredSpanStart(edgeRow3, edges.stepX3, minX))));
+            final int spanEnd = (int)Math.min(maxX, Math.min(coveredSpanEnd(edgeRow1, edges.stepX1, minX),
+                    Math.min(coveredSpanEnd(edgeRow2, edges.stepX2, minX),
+                            coveredSpanEnd(edgeRow3, edges.stepX3, minX))));
+            if(spanStart > spanEnd) continue;
+            final int rowStart = y * width;
+            final float centerY = y + 0.5f;
+            final float row1 = weight1Y * centerY + weight1C;
+            final float row2 = weight2Y * centerY + weight2C;
+            final float row3 = weight3Y * centerY + weight3C;
+
+            // the pixels that aren't on an edge
+            int innerStart = spanStart, innerEnd = spanEnd;
+            if(drawEdges) {
+                innerStart = Math.max(innerStart, spanStart(weight1X, row1, edgeWeight1));
+                innerStart = Math.max(innerStart, spanStart(weight2X, row2, edgeWeight2));
+                innerStart = Math.max(innerStart, spanStart(weight3X, row3, edgeWeight3));
+                innerEnd = Math.min(innerEnd, spanEnd(weight1X, row1, edgeWeight1));
+                innerEnd = Math.min(innerEnd, spanEnd(weight2X, row2, edgeWeight2));
+                innerEnd = Math.min(innerEnd, spanEnd(weight3X, row3, edgeWeight3));
+                if(innerStart > innerEnd) {
+                    Arrays.fill(pixels, rowStart + spanStart, rowStart + spanEnd + 1, wireFrameColor);
+                    continue;
                 }
-            } else {
-                maxX = (int) pos3.x;
-                maxY = (int) pos3.y;
-                maxInterpolate = interpolates3;
-
-                midX = (int) pos1.x;
-                midY = (int) pos1.y;
-                midInterpolate = interpolates1;
-
-                minX = (int) pos2.x;
-                minY = (int) pos2.y;
-                minInterpolate = interpolates2;
+                Arrays.fill(pixels, rowStart + spanStart, rowStart + innerStart, wireFrameColor);
+                Arrays.fill(pixels, rowStart + innerEnd + 1, rowStart + spanEnd + 1, wireFrameColor);
             }
-        } else {
-            if (pos2.y >= pos3.y) {
-                maxX = (int) pos2.x;
-                maxY = (int) pos2.y;
-                maxInterpolate = interpolates2;
-                if (pos1.y >= pos3.y) {
-                    midX = (int) pos1.x;
-                    midY = (int) pos1.y;
-                    midInterpolate = interpolates1;
-
-                    minX = (int) pos3.x;
-                    minY = (int) pos3.y;
-                    minInterpolate = interpolates3;
-                } else {
-                    midX = (int) pos3.x;
-                    midY = (int) pos3.y;
-                    midInterpolate = interpolates3;
 
-                    minX = (int) pos1.x;
-                    minY = (int) pos1.y;
-                    minInterpolate = interpolates1;
-                }
-            } else {
-                maxX = (int) pos3.x;
-                maxY = (int) pos3.y;
-                maxInterpolate = interpolates3;
-
-                midX = (int) pos2.x;
-                midY = (int) pos2.y;
-                midInterpolate = interpolates2;
-
-                minX = (int) pos1.x;
-                minY = (int) pos1.y;
-                minInterpolate = interpolates1;
+            if(flat) {
+                Arrays.fill(pixels, rowStart + innerStart, rowStart + innerEnd + 1, packedColor1);
+                continue;
+            }
+            final float centerX = innerStart + 0.5f;
+            final float weight1 = weight1X * centerX + row1;
+            final float weight2 = weight2X * centerX + row2;
+            final float weight3 = weight3X * centerX + row3;
+            final int steps = innerEnd - innerStart;
+            // a half is added so that truncating the fixed point value rounds it like GouraudPS does
+            int red = toFixedColor(color1.x * weight1 + color2.x * weight2 + color3.x * weight3 + 0.5f);
+            int green = toFixedColor(color1.y * weight1 + color2.y * weight2 + color3.y * weight3 + 0.5f);
+            int blue = toFixedColor(color1.z * weight1 + color2.z * weight2 + color3.z * weight3 + 0.5f);
+            final int redStep = fixedColorStep(red, redX, steps);
+            final int greenStep = fixedColorStep(green, greenX, steps);
+            final int blueStep = fixedColorStep(blue, blueX, steps);
+            for(int index = rowStart + innerStart, end = rowStart + innerEnd; index <= end; ++index) {
+                pixels[index] = 0xff000000 | (red & 0xff0000) | ((green & 0xff0000) >> 8) | (blue >> 16);
+                red += redStep;
+                green += greenStep;
+                blue += blueStep;
             }
         }
+    }
 
-        if (maxY == minY) {
-            if (midX < minX) {
-                int temp = minX;
-                minX = midX;
-                midX = temp;
-
-                Vector4[] temp2 = minInterpolate;
-                minInterpolate = midInterpolate;
-                midInterpolate = temp2;
-            }
-            if (maxX < midX) {
-                int temp = midX;
-                midX = maxX;
-                maxX = temp;
-
-                Vector4[] temp2 = midInterpolate;
-                midInterpolate = maxInterpolate;
-                maxInterpolate = temp2;
-            }
-            if (midX < minX) {
-                int temp = minX;
-                minX = midX;
-                midX = temp;
-
-                Vector4[] temp2 = minInterpolate;
-                minInterpolate = midInterpolate;
-                midInterpolate = temp2;
-            }
-            final float dx = 1f / (midX - minX);
-            for (int lineStart = minX; lineStart < midX; ++lineStart) {
-                lerp(pixelShaderInput, minInterpolate, midInterpolate, (float) (lineStart - minX) * dx);
-                renderTarget.setRGB(lineStart, maxY, solidPixelShader.run(rootSignature, pixelShaderInput));
-            }
-            final float dx2 = 1f / (maxX - midX);
-            for (int lineStart = midX; lineStart <= maxX; ++lineStart) {
-                lerp(pixelShaderInput, midInterpolate, maxInterpolate, (float) (lineStart - midX) * dx2);
-                renderTarget.setRGB(lineStart, maxY, solidPixelShader.run(rootSignature, pixelShaderInput));
-            }
-        } else {
-
-            int newX = maxX + ((minX - maxX) * (maxY - midY)) / (maxY - minY);
-            if (midX == newX) {
-                //0 width triangles divide 0 by 0 when interpolating
-                rasterizeLine(minX, minY, midX, midY, solidPixelShader, rootSignature, renderTarget, minInterpolate,
-                        midInterpolate, pixelShaderInput);
-                rasterizeLine(midX, midY, maxX, maxY, solidPixelShader, rootSignature, renderTarget, midInterpolate,
-                        maxInterpolate, pixelShaderInput);
-            } else if (maxY == midY) {
-                if (maxX < midX) {
-                    int temp = midX;
-                    midX = maxX;
-                    maxX = temp;
-
-                    Vector4[] temp2 = midInterpolate;
-                    midInterpolate = maxInterpolate;
-                    maxInterpolate = temp2;
-                }
-                final float dx = 1f / (maxX - midX);
-                for (int lineStart = midX; lineStart <= maxX; ++lineStart) {
-                    lerp(pixelShaderInput, midInterpolate, maxInterpolate, (float) (lineStart - midX) * dx);
-                    renderTarget.setRGB(lineStart, midY, solidPixelShader.run(rootSignature, pixelShaderInput));
-                }
-                rasterizeTopFlatTriangle(midX, midY, minX, minY, maxX, solidPixelShader, rootSignature,
-                        renderTarget, midInterpolate, maxInterpolate, minInterpolate, pixelShaderInput);
-            } else if (minY == midY) {
-                if (minX >= midX) {
-                    rasterizeBottomFlatTriangle(midX, midY, maxX, maxY, minX, solidPixelShader, rootSignature,
-                            renderTarget, midInterpolate, minInterpolate, maxInterpolate, pixelShaderInput);
-                } else {
-                    rasterizeBottomFlatTriangle(minX, midY, maxX, maxY, midX, solidPixelShader, rootSignature,
-                            renderTarget, minInterpolate, midInterpolate, maxInterpolate, pixelShaderInput);
-                }
-            } else {
-                createNewInterpolate(interpolates4, maxInterpolate, minInterpolate, (float) (maxY - midY) / (float) (maxY - minY));
-
-                if (midX >= newX) {
-                    int temp = newX;
-                    newX = midX;
-                    midX = temp;
-
-                    Vector4[] temp2 = interpolates4;
-                    interpolates4 = midInterpolate;
-                    midInterpolate = temp2;
-                }
-
-                rasterizeBottomFlatTriangle(midX, midY, maxX, maxY, newX, solidPixelShader, rootSignature,
-                        renderTarget, midInterpolate, interpolates4, maxInterpolate, pixelShaderInput);
-                rasterizeTopFlatTriangle(midX, midY, minX, minY, newX, solidPixelShader, rootSignature,
-                        renderTarget, midInterpolate, interpolates4, minInterpolate, pixelShaderInput);
-            }
-        }
+    /**
+     * @return The first x from minX where a biased edge function that is edge at minX and changes by stepX per pixel
+     * isn't negative, or a large number if there isn't one
+     */
+    private static long coveredSpanStart(long edge, long stepX, int minX) {
+        if(edge >= 0L) return minX;
+        if(stepX <= 0L) return Integer.MAX_VALUE;
+        return minX + (stepX - 1 - edge) / stepX;
     }
 
     /**
-     * draws a fully on screen triangle that has a bottom that is parallel to the x-axis
+     * @return The last x where a biased edge function that is edge at minX and changes by stepX per pixel isn't
+     * negative, or a small number if there isn't one
      */
-    private static void rasterizeBottomFlatTriangle(int firstX, int minY, int maxX, int maxY, int secondX,
-                                                    PixelShader pixelShader, Object[] rootSignature, BufferedImage renderTarget,
-                                                    Vector4[] interpolates1, Vector4[] interpolates2, Vector4[] interpolates3,
-                                                    Vector4[] pixelShaderInput) {
-        int dx1 = maxX - firstX;
-        int dy = maxY - minY;
-        int dx2 = maxX - secondX;
-
-        if(dy == 0) {
-            final float dx = 1f / (secondX - firstX);
-            for(int lineStart = firstX; lineStart <= secondX; ++lineStart) {
-                lerp(pixelShaderInput, interpolates1, interpolates2, (float)(lineStart - firstX) * dx);
-                renderTarget.setRGB(lineStart, minY, pixelShader.run(rootSignature, pixelShaderInput));
-            }
-        } else {
-            int x1 = firstX;
-            int x2 = secondX;
-            int y = minY;
-            int eps1 = 0;
-            int eps2 = 0;
-            if(dx1 >= 0) {
-                if(dx2 >= 0) {
-                    //both leaning right
-                    if(dx1 >= dy) {
-                        if(dx2 >= dy) {
-                            while (y < maxY) {
-                                while((eps1 << 1) < dx1) {
-                                    lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                            x1, y, pixelShaderInput);
-                                    renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                    eps1 += dy;
-                                    ++x1;
-                                }
-
-                                int oldx2 = x2;
-                                while((eps2 << 1) < dx2) {
-                                    lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                            x2, y, pixelShaderInput);
-                                    renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                    eps2 += dy;
-                                    ++x2;
-                                }
-
-                                for(int lineStart = x1; lineStart < oldx2; ++lineStart) {
-                                    lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                            lineStart, y, pixelShaderInput);
-                                    renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                }
-
-                                ++y;
-                                eps1 -= dx1;
-                                eps2 -= dx2;
-                            }
-                            copyInterpolateToPixelShaderInput(interpolates3, pixelShaderInput);
-                            renderTarget.setRGB(maxX, maxY, pixelShader.run(rootSignature, pixelShaderInput));
-                        } else {
-                            while (y < maxY) {
-                                while((eps1 << 1) < dx1) {
-                                    lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                            x1, y, pixelShaderInput);
-                                    renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                    eps1 += dy;
-                                    ++x1;
-                                }
-
-                                int oldx2 = x2;
-                                lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                        x2, y, pixelShaderInput);
-                                renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps2 += dx2;
-                                if ((eps2 << 1) >= dy) {
-                                    ++x2;
-                                    eps2 -= dy;
-                                }
-
-                                for(int lineStart = x1; lineStart < oldx2; ++lineStart) {
-                                    lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                            lineStart, y, pixelShaderInput);
-                                    renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                }
-
-                                ++y;
-                                eps1 -= dx1;
-                            }
-                        }
-                        copyInterpolateToPixelShaderInput(interpolates3, pixelShaderInput);
-                        renderTarget.setRGB(maxX, maxY, pixelShader.run(rootSignature, pixelShaderInput));
-                    } else {
-                        if (dx2 >= dy) {
-                            while (y < maxY) {
-                                lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                        x1, y, pixelShaderInput);
-                                renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps1 += dx1;
-                                if ((eps1 << 1) >= dy) {
-                                    ++x1;
-                                    eps1 -= dy;
-                                }
-
-                                int oldx2 = x2;
-                                while((eps2 << 1) < dx2) {
-                                    lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                            x2, y, pixelShaderInput);
-                                    renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                    eps2 += dy;
-                                    ++x2;
-                                }
-
-                                for (int lineStart = x1; lineStart < oldx2; ++lineStart) {
-                                    lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                            lineStart, y, pixelShaderInput);
-                                    renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                }
-
-                                ++y;
-                                eps2 -= dx2;
-                            }
-                            copyInterpolateToPixelShaderInput(interpolates3, pixelShaderInput);
-                            renderTarget.setRGB(maxX, maxY, pixelShader.run(rootSignature, pixelShaderInput));
-                        } else {
-                            while (y < maxY) {
-                                lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                        x1, y, pixelShaderInput);
-                                renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps1 += dx1;
-                                if ((eps1 << 1) >= dy) {
-                                    ++x1;
-                                    eps1 -= dy;
-                                }
-
-                                int oldx2 = x2;
-                                lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                        x2, y, pixelShaderInput);
-                                renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps2 += dx2;
-                                if ((eps2 << 1) >= dy) {
-                                    ++x2;
-                                    eps2 -= dy;
-                                }
-
-                                for (int lineStart = x1; lineStart < oldx2; ++lineStart) {
-                                    lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                            lineStart, y, pixelShaderInput);
-                                    renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                }
-
-                                ++y;
-                            }
-                            copyInterpolateToPixelShaderInput(interpolates3, pixelShaderInput);
-                            renderTarget.setRGB(maxX, maxY, pixelShader.run(rootSignature, pixelShaderInput));
-                        }
-                    }
-                } else {
-                    //both leaning in
-                    if (dx1 >= dy) {
-                        if (-dx2 >= dy) {
-                            while (y < maxY) {
-                                while ((eps1 << 1) < dx1) {
-                                    lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                            x1, y, pixelShaderInput);
-                                    renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                    eps1 += dy;
-                                    ++x1;
-                                }
-
-                                while ((eps2 << 1) > dx2) {
-                                    lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                            x2, y, pixelShaderInput);
-                                    renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                    eps2 -= dy;
-                                    --x2;
-                                }
-
-                                for (int lineStart = x1; lineStart <= x2; ++lineStart) {
-                                    lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                            lineStart, y, pixelShaderInput);
-                                    renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                }
-
-                                ++y;
-                                eps1 -= dx1;
-                                eps2 -= dx2;
-                            }
-                            copyInterpolateToPixelShaderInput(interpolates3, pixelShaderInput);
-                            renderTarget.setRGB(maxX, maxY, pixelShader.run(rootSignature, pixelShaderInput));
-                        } else {
-                            while (y < maxY) {
-                                while ((eps1 << 1) < dx1) {
-                                    lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                            x1, y, pixelShaderInput);
-                                    renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                    eps1 += dy;
-                                    ++x1;
-                                }
-
-                                lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                        x2, y, pixelShaderInput);
-                                renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps2 -= dx2;
-                                if ((eps2 << 1) >= dy) {
-                                    --x2;
-                                    eps2 -= dy;
-                                }
-
-                                for (int lineStart = x1; lineStart <= x2; ++lineStart) {
-                                    lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                            lineStart, y, pixelShaderInput);
-                                    renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                }
-
-                                ++y;
-                                eps1 -= dx1;
-                            }
-                            copyInterpolateToPixelShaderInput(interpolates3, pixelShaderInput);
-                            renderTarget.setRGB(maxX, maxY, pixelShader.run(rootSignature, pixelShaderInput));
-                        }
-                    } else {
-                        if (-dx2 >= dy) {
-                            while (y < maxY) {
-                                lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                        x1, y, pixelShaderInput);
-                                renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps1 += dx1;
-                                if ((eps1 << 1) >= dy) {
-                                    ++x1;
-                                    eps1 -= dy;
-                                }
-
-                                while ((eps2 << 1) > dx2) {
-                                    lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                            x2, y, pixelShaderInput);
-                                    renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                    eps2 -= dy;
-                                    --x2;
-                                }
-
-                                for (int lineStart = x1; lineStart <= x2; ++lineStart) {
-                                    lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                            lineStart, y, pixelShaderInput);
-                                    renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                }
-
-                                ++y;
-                                eps2 -= dx2;
-                            }
-                            copyInterpolateToPixelShaderInput(interpolates3, pixelShaderInput);
-                            renderTarget.setRGB(maxX, maxY, pixelShader.run(rootSignature, pixelShaderInput));
-                        } else {
-                            while (y < maxY) {
-                                lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                        x1, y, pixelShaderInput);
-                                renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps1 += dx1;
-                                if ((eps1 << 1) >= dy) {
-                                    ++x1;
-                                    eps1 -= dy;
-                                }
-
-                                lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                        x2, y, pixelShaderInput);
-                                renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps2 -= dx2;
-                                if ((eps2 << 1) >= dy) {
-                                    --x2;
-                                    eps2 -= dy;
-                                }
-
-                                for (int lineStart = x1; lineStart <= x2; ++lineStart) {
-                                    lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                            lineStart, y, pixelShaderInput);
-                                    renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                }
-
-                                ++y;
-                            }
-                            copyInterpolateToPixelShaderInput(interpolates3, pixelShaderInput);
-                            renderTarget.setRGB(maxX, maxY, pixelShader.run(rootSignature, pixelShaderInput));
-                        }
-                    }
-                }
-            } else {
-                    //both leaning left
-                if(-dx1 >= dy) {
-                    if(-dx2 >= dy) {
-                        while (y < maxY) {
-                            int oldx1 = x1;
-                            while((eps1 << 1) > dx1) {
-                                lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                        x1, y, pixelShaderInput);
-                                renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps1 -= dy;
-                                --x1;
-                            }
-
-                            while((eps2 << 1) > dx2) {
-                                lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                        x2, y, pixelShaderInput);
-                                renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps2 -= dy;
-                                --x2;
-                            }
-
-                            for(int lineStart = oldx1 + 1; lineStart <= x2; ++lineStart) {
-                                lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                        lineStart, y, pixelShaderInput);
-                                renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                            }
-
-                            ++y;
-                            eps1 -= dx1;
-                            eps2 -= dx2;
-                        }
-                        copyInterpolateToPixelShaderInput(interpolates3, pixelShaderInput);
-                        renderTarget.setRGB(maxX, maxY, pixelShader.run(rootSignature, pixelShaderInput));
-                    } else {
-                        while (y < maxY) {
-                            int oldx1 = x1;
-                            while((eps1 << 1) > dx1) {
-                                lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                        x1, y, pixelShaderInput);
-                                renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps1 -= dy;
-                                --x1;
-                            }
-
-                            lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                    x2, y, pixelShaderInput);
-                            renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                            eps2 -= dx2;
-                            if ((eps2 << 1) >= dy) {
-                                --x2;
-                                eps2 -= dy;
-                            }
-
-                            for(int lineStart = oldx1 + 1; lineStart <= x2; ++lineStart) {
-                                lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                        lineStart, y, pixelShaderInput);
-                                renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                            }
-
-                            ++y;
-                            eps1 -= dx1;
-                        }
-                        copyInterpolateToPixelShaderInput(interpolates3, pixelShaderInput);
-                        renderTarget.setRGB(maxX, maxY, pixelShader.run(rootSignature, pixelShaderInput));
-                    }
-                } else {
-                    if(-dx2 >= dy) {
-                        while (y < maxY) {
-                            int oldx1 = x1;
-                            lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                    x1, y, pixelShaderInput);
-                            renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                            eps1 -= dx1;
-                            if ((eps1 << 1) >= dy) {
-                                --x1;
-                                eps1 -= dy;
-                            }
-
-                            while((eps2 << 1) > dx2) {
-                                lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                        x2, y, pixelShaderInput);
-                                renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps2 -= dy;
-                                --x2;
-                            }
-
-                            for(int lineStart = oldx1 + 1; lineStart <= x2; ++lineStart) {
-                                lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                        lineStart, y, pixelShaderInput);
-                                renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                            }
-
-                            ++y;
-                            eps2 -= dx2;
-                        }
-                        copyInterpolateToPixelShaderInput(interpolates3, pixelShaderInput);
-                        renderTarget.setRGB(maxX, maxY, pixelShader.run(rootSignature, pixelShaderInput));
-                    } else {
-                        while (y < maxY) {
-                            int oldx1 = x1;
-                            lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                    x1, y, pixelShaderInput);
-                            renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                            eps1 -= dx1;
-                            if ((eps1 << 1) >= dy) {
-                                --x1;
-                                eps1 -= dy;
-                            }
-
-                            lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                    x2, y, pixelShaderInput);
-                            renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                            eps2 -= dx2;
-                            if ((eps2 << 1) >= dy) {
-                                --x2;
-                                eps2 -= dy;
-                            }
-
-                            for(int lineStart = oldx1 + 1; lineStart <= x2; ++lineStart) {
-                                lerp(firstX, minY, interpolates1, secondX, minY, interpolates2, maxX, maxY, interpolates3,
-                                        lineStart, y, pixelShaderInput);
-                                renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                            }
-
-                            ++y;
-                        }
-                        copyInterpolateToPixelShaderInput(interpolates3, pixelShaderInput);
-                        renderTarget.setRGB(maxX, maxY, pixelShader.run(rootSignature, pixelShaderInput));
-                    }
-                }
-            }
-        }
+    private static long coveredSpanEnd(long edge, long stepX, int minX) {
+        if(stepX > 0L || (stepX == 0L && edge >= 0L)) return Integer.MAX_VALUE;
+        if(edge < 0L) return Integer.MIN_VALUE;
+        return minX + edge / -stepX;
     }
 
     /**
-     * draws a fully on screen triangle that has a top that is parallel to the x-axis
+     * @return The first x whose pixel center has weightX * (x + 0.5) + rowWeight >= minWeight, or a large number if
+     * there isn't one
      */
-    private static void rasterizeTopFlatTriangle(int firstX, int maxY, int minX, int minY, int secondX,
-                                                 PixelShader pixelShader, Object[] rootSignature, BufferedImage renderTarget,
-                                                 Vector4[] interpolates1, Vector4[] interpolates2, Vector4[] interpolates3,
-                                                 Vector4[] pixelShaderInput) {
-
-        int dx1 = minX - firstX;
-        int dy = minY - maxY;
-        int dx2 = minX - secondX;
-
-        if(dy == 0) {
-            final float dx = 1f / (secondX - firstX);
-            for(int lineStart = firstX; lineStart <= secondX; ++lineStart) {
-                lerp(pixelShaderInput, interpolates1, interpolates2, (float)(lineStart - firstX) * dx);
-                renderTarget.setRGB(lineStart, minY, pixelShader.run(rootSignature, pixelShaderInput));
-            }
-        } else {
-            int x1 = minX;
-            int x2 = minX;
-            int y = minY;
-            int eps1 = 0;
-            int eps2 = 0;
-            if(dx1 >= 0) {
-                if(dx2 >= 0) {
-                    //both leaning right
-                    if(dx1 >= -dy) {
-                        if(dx2 >= -dy) {
-                            while (y < maxY) {
-                                int oldx1 = x1;
-                                while((eps1 << 1) < dx1) {
-                                    lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                            x1, y, pixelShaderInput);
-                                    renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                    eps1 -= dy;
-                                    --x1;
-                                }
-
-                                while((eps2 << 1) < dx2) {
-                                    lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                            x2, y, pixelShaderInput);
-                                    renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                    eps2 -= dy;
-                                    --x2;
-                                }
-
-                                for(int lineStart = oldx1 + 1; lineStart <= x2; ++lineStart) {
-                                    lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                            lineStart, y, pixelShaderInput);
-                                    renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                }
-
-                                ++y;
-                                eps1 -= dx1;
-                                eps2 -= dx2;
-                            }
-                        } else {
-                            while (y < maxY) {
-                                int oldx1 = x1;
-                                while((eps1 << 1) < dx1) {
-                                    lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                            x1, y, pixelShaderInput);
-                                    renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                    eps1 -= dy;
-                                    --x1;
-                                }
-
-                                lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                        x2, y, pixelShaderInput);
-                                renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps2 += dx2;
-                                if ((eps2 << 1) >= -dy) {
-                                    --x2;
-                                    eps2 += dy;
-                                }
-
-                                for(int lineStart = oldx1 + 1; lineStart <= x2; ++lineStart) {
-                                    lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                            lineStart, y, pixelShaderInput);
-                                    renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                }
-
-                                ++y;
-                                eps1 -= dx1;
-                            }
-                        }
-                    } else {
-                        if (dx2 >= -dy) {
-                            while (y < maxY) {
-                                int oldx1 = x1;
-                                lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                        x1, y, pixelShaderInput);
-                                renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps1 += dx1;
-                                if ((eps1 << 1) >= -dy) {
-                                    --x1;
-                                    eps1 += dy;
-                                }
-
-                                while((eps2 << 1) < dx2) {
-                                    lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                            x2, y, pixelShaderInput);
-                                    renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                    eps2 -= dy;
-                                    --x2;
-                                }
-
-                                for (int lineStart = oldx1 + 1; lineStart <= x2; ++lineStart) {
-                                    lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                            lineStart, y, pixelShaderInput);
-                                    renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                }
-
-                                ++y;
-                                eps2 -= dx2;
-                            }
-                        } else {
-                            while (y < maxY) {
-                                int oldx1 = x1;
-                                lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                        x1, y, pixelShaderInput);
-                                renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps1 += dx1;
-                                if ((eps1 << 1) >= -dy) {
-                                    --x1;
-                                    eps1 += dy;
-                                }
-
-                                lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                        x2, y, pixelShaderInput);
-                                renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps2 += dx2;
-                                if ((eps2 << 1) >= -dy) {
-                                    --x2;
-                                    eps2 += dy;
-                                }
-
-                                for (int lineStart = oldx1 + 1; lineStart <= x2; ++lineStart) {
-                                    lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                            lineStart, y, pixelShaderInput);
-                                    renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                }
-
-                                ++y;
-                            }
-                        }
-                    }
-                } else {
-                    //both leaning in
-                    if (dx1 >= -dy) {
-                        if (-dx2 >= -dy) {
-                            while (y < maxY) {
-                                int oldx1 = x1;
-                                while ((eps1 << 1) < dx1) {
-                                    lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                            x1, y, pixelShaderInput);
-                                    renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                    eps1 -= dy;
-                                    --x1;
-                                }
-
-                                int oldx2 = x2;
-                                while ((eps2 << 1) > dx2) {
-                                    lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                            x2, y, pixelShaderInput);
-                                    renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                    eps2 += dy;
-                                    ++x2;
-                                }
-
-                                for (int lineStart = oldx1 + 1; lineStart < oldx2; ++lineStart) {
-                                    lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                            lineStart, y, pixelShaderInput);
-                                    renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                }
-
-                                ++y;
-                                eps1 -= dx1;
-                                eps2 -= dx2;
-                            }
-                        } else {
-                            while (y < maxY) {
-                                int oldx1 = x1;
-                                while ((eps1 << 1) < dx1) {
-                                    lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                            x1, y, pixelShaderInput);
-                                    renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                    eps1 -= dy;
-                                    --x1;
-                                }
-
-                                int oldx2 = x2;
-                                lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                        x2, y, pixelShaderInput);
-                                renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps2 -= dx2;
-                                if ((eps2 << 1) >= -dy) {
-                                    ++x2;
-                                    eps2 += dy;
-                                }
-
-                                for (int lineStart = oldx1 + 1; lineStart < oldx2; ++lineStart) {
-                                    lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                            lineStart, y, pixelShaderInput);
-                                    renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                }
-
-                                ++y;
-                                eps1 -= dx1;
-                            }
-                        }
-                    } else {
-                        if (-dx2 >= -dy) {
-                            while (y < maxY) {
-                                int oldx1 = x1;
-                                lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                        x1, y, pixelShaderInput);
-                                renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps1 += dx1;
-                                if ((eps1 << 1) >= -dy) {
-                                    --x1;
-                                    eps1 += dy;
-                                }
-
-                                int oldx2 = x2;
-                                while ((eps2 << 1) > dx2) {
-                                    lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                            x2, y, pixelShaderInput);
-                                    renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                    eps2 += dy;
-                                    ++x2;
-                                }
-
-                                for (int lineStart = oldx1 + 1; lineStart < oldx2; ++lineStart) {
-                                    lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                            lineStart, y, pixelShaderInput);
-                                    renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                }
-
-                                ++y;
-                                eps2 -= dx2;
-                            }
-                        } else {
-                            while (y < maxY) {
-                                int oldx1 = x1;
-                                lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                        x1, y, pixelShaderInput);
-                                renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps1 += dx1;
-                                if ((eps1 << 1) >= -dy) {
-                                    --x1;
-                                    eps1 += dy;
-                                }
-
-                                int oldx2 = x2;
-                                lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                        x2, y, pixelShaderInput);
-                                renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps2 -= dx2;
-                                if ((eps2 << 1) >= -dy) {
-                                    ++x2;
-                                    eps2 += dy;
-                                }
-
-                                for (int lineStart = oldx1 + 1; lineStart < oldx2; ++lineStart) {
-                                    lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                            lineStart, y, pixelShaderInput);
-                                    renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                }
-
-                                ++y;
-                            }
-                        }
-                    }
-                }
-            } else {
-                //both leaning left
-                if(-dx1 >= -dy) {
-                    if(-dx2 >= -dy) {
-                        while (y < maxY) {
-                            while((eps1 << 1) > dx1) {
-                                lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                        x1, y, pixelShaderInput);
-                                renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps1 += dy;
-                                ++x1;
-                            }
-
-                            int oldx2 = x2;
-                            while((eps2 << 1) > dx2) {
-                                lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                        x2, y, pixelShaderInput);
-                                renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps2 += dy;
-                                ++x2;
-                            }
-
-                            for(int lineStart = x1; lineStart < oldx2; ++lineStart) {
-                                lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                        lineStart, y, pixelShaderInput);
-                                renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                            }
-
-                            ++y;
-                            eps1 -= dx1;
-                            eps2 -= dx2;
-                        }
-                    } else {
-                        while (y < maxY) {
-                            while((eps1 << 1) > dx1) {
-                                lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                        x1, y, pixelShaderInput);
-                                renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps1 += dy;
-                                ++x1;
-                            }
-
-                            int oldx2 = x2;
-                            lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                    x2, y, pixelShaderInput);
-                            renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                            eps2 -= dx2;
-                            if ((eps2 << 1) >= -dy) {
-                                ++x2;
-                                eps2 += dy;
-                            }
-
-                            for(int lineStart = x1; lineStart < oldx2; ++lineStart) {
-                                lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                        lineStart, y, pixelShaderInput);
-                                renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                            }
-
-                            ++y;
-                            eps1 -= dx1;
-                        }
-                    }
-                } else {
-                    if(-dx2 >= -dy) {
-                        while (y < maxY) {
-                            lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                    x1, y, pixelShaderInput);
-                            renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                            eps1 -= dx1;
-                            if ((eps1 << 1) >= -dy) {
-                                ++x1;
-                                eps1 += dy;
-                            }
+    private static int spanStart(float weightX, float rowWeight, float minWeight) {
+        if(weightX > 0f) return (int)Math.ceil((minWeight - rowWeight) / weightX - 0.5f);
+        if(weightX == 0f && rowWeight < minWeight) return Integer.MAX_VALUE;
+        return Integer.MIN_VALUE;
+    }
 
-                            int oldx2 = x2;
-                            while((eps2 << 1) > dx2) {
-                                lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                        x2, y, pixelShaderInput);
-                                renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                                eps2 += dy;
-                                ++x2;
-                            }
+    /**
+     * @return The last x whose pixel center has weightX * (x + 0.5) + rowWeight >= minWeight, or a small number if
+     * there isn't one
+     */
+    private static int spanEnd(float weightX, float rowWeight, float minWeight) {
+        if(weightX < 0f) return (int)Math.floor((minWeight - rowWeight) / weightX - 0.5f);
+        if(weightX == 0f && rowWeight < minWeight) return Integer.MIN_VALUE;
+        return Integer.MAX_VALUE;
+    }
 
-                            for(int lineStart = x1; lineStart < oldx2; ++lineStart) {
-                                lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                        lineStart, y, pixelShaderInput);
-                                renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                            }
+    private static int packColor(Vector4 color) {
+        return 0xff000000 | ((int)(color.x + 0.5f) << 16) | ((int)(color.y + 0.5f) << 8) | (int)(color.z + 0.5f);
+    }
 
-                            ++y;
-                            eps2 -= dx2;
-                        }
-                    } else {
-                        while (y < maxY) {
-                            lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                    x1, y, pixelShaderInput);
-                            renderTarget.setRGB(x1, y, pixelShader.run(rootSignature, pixelShaderInput));
-                            eps1 -= dx1;
-                            if ((eps1 << 1) >= -dy) {
-                                ++x1;
-                                eps1 += dy;
-                            }
+    /**
+     * converts a color channel from 0 to 255 to 16.16 fixed point
+     */
+    private static int toFixedColor(float value) {
+        return (int)(Math.max(0f, Math.min(value, 255.99f)) * 65536f);
+    }
 
-                            int oldx2 = x2;
-                            lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                    x2, y, pixelShaderInput);
-                            renderTarget.setRGB(x2, y, pixelShader.run(rootSignature, pixelShaderInput));
-                            eps2 -= dx2;
-                            if ((eps2 << 1) >= -dy) {
-                                ++x2;
-                                eps2 += dy;
-                            }
+    /**
+     * @return The fixed point amount to add to start each pixel so that the channel stays from 0 to 255 after steps
+     * pixels
+     */
+    private static int fixedColorStep(int start, float stepPerPixel, int steps) {
+        if(steps == 0) return 0;
+        final int end = toFixedColor(start / 65536f + stepPerPixel * steps);
+        return (end - start) / steps;
+    }
 
-                            for(int lineStart = x1; lineStart < oldx2; ++lineStart) {
-                                lerp(firstX, maxY, interpolates1, secondX, maxY, interpolates2, minX, minY, interpolates3,
-                                        lineStart, y, pixelShaderInput);
-                                renderTarget.setRGB(lineStart, y, pixelShader.run(rootSignature, pixelShaderInput));
-                            }
+    /**
+     * A pixel shader that returns a color that has already been calculated
+     */
+    private static class ConstantPixelShader implements PixelShader {
+        int color;
 
-                            ++y;
-                        }
-                    }
-                }
-            }
+        @Override
+        public int run(Object[] rootSignature, Vector4[] interpolates) {
+            return color;
         }
     }
 
     /**
-     * Alters the second position to make it on screen
+     * @return The number to multiply a barycentric weight by to get the distance in pixels to the edge opposite its
+     * vertex.
      */
-    private static Vector2 clipSecond(Vector4 pos1, Vector4 pos2, int widthMinusOne, int heightMinusOne) {
-        float x2 = pos2.x, y2 = pos2.y;
-        if(pos2.x < 0) {
-            y2 += (pos1.y - y2) * (-x2) / (pos1.x - x2);
-            x2 = 0;
-        } else if(x2 > widthMinusOne) {
-            y2 += (pos1.y - y2) * (x2 - widthMinusOne) / (x2 - pos1.x);
-            x2 = widthMinusOne;
-        }
-        if(y2 < 0) {
-            x2 += (pos1.x - x2) * (-y2) / (pos1.y - y2);
-            y2 = 0;
-        } else if(y2 > heightMinusOne) {
-            x2 += (pos1.x - x2) * (y2 - heightMinusOne) / (y2 - pos1.y);
-            y2 = heightMinusOne;
-        }
-        return new Vector2(x2, y2);
+    private static float edgeScale(float weightX, float weightY) {
+        return 1f / (float)Math.sqrt(weightX * weightX + weightY * weightY);
+    }
+
+    private static float edgeDistance(float distance1, float distance2, float distance3) {
+        return Math.min(distance1, Math.min(distance2, distance3));
     }
 
     /**
      * Draws a fully on screen line using Bresenham's algorithm
+     * @param start How far along the line from interpolates1 to interpolates2 (x1, y1) is.
+     * @param end How far along the line from interpolates1 to interpolates2 (x2, y2) is.
      */
-    private static void rasterizeLine(int x1, int y1, int x2, int y2, PixelShader pixelShader, Object[] rootSignature,
-                                      BufferedImage renderTarget, Vector4[] interpolates1, Vector4[] interpolates2,
-                                      Vector4[] pixelShaderInput) {
-
-        if (x1 > x2) {
-            int temp = x1;
-            x1 = x2;
-            x2 = temp;
-            temp = y1;
-            y1 = y2;
-            y2 = temp;
-            Vector4[] temp2 = interpolates1;
-            interpolates1 = interpolates2;
-            interpolates2 = temp2;
-        }
-        int dx = x2 - x1;
-        int dy = y2 - y1;
-        if(dy == 0 && dx == 0) {
-            lerp(pixelShaderInput, interpolates1, interpolates2, 0.5f);
-            renderTarget.setRGB(x1, y1, pixelShader.run(rootSignature, pixelShaderInput));
+    private static void rasterizeLine(int x1, int y1, int x2, int y2, float start, float end, PixelShader pixelShader,
+                                      Object[] rootSignature, RenderTarget renderTarget, Vector4[] interpolates1,
+                                      Vector4[] interpolates2, Vector4[] lineStep, Vector4[] pixelShaderInput) {
+        final int dx = Math.abs(x2 - x1);
+        final int dy = Math.abs(y2 - y1);
+        final int stepX = x2 >= x1 ? 1 : -1;
+        final int stepY = y2 >= y1 ? 1 : -1;
+        final int steps = Math.max(dx, dy);
+        if(steps == 0) {
+            lerp(pixelShaderInput, interpolates1, interpolates2, (start + end) * 0.5f);
+            renderTarget.write(x1, y1, pixelShader, rootSignature, pixelShaderInput);
             return;
         }
+        lerp(pixelShaderInput, interpolates1, interpolates2, start);
+        createLineStep(lineStep, interpolates1, interpolates2, (end - start) / steps);
+
+        int x = x1;
+        int y = y1;
         int eps = 0;
-        if(dy >= 0) {
-            if(dy <= dx) {
-                int y = y1;
-                for (int x = x1; x <= x2; x++) {
-                    lerp(pixelShaderInput, interpolates1, interpolates2, (float) (x - x1) / dx);
-                    renderTarget.setRGB(x, y, pixelShader.run(rootSignature, pixelShaderInput));
-                    eps += dy;
-                    if ((eps << 1) >= dx) {
-                        y++;
-                        eps -= dx;
-                    }
-                }
-            } else {
-                int x = x1;
-                for(int y = y1; y <= y2; ++y) {
-                    lerp(pixelShaderInput, interpolates1, interpolates2, (float)(y - y1) / dy);
-                    renderTarget.setRGB(x, y, pixelShader.run(rootSignature, pixelShaderInput));
-                    eps += dx;
-                    if ((eps << 1) >= dy) {
-                        ++x;
-                        eps -= dy;
-                    }
+        if(dx >= dy) {
+            for(int i = 0; i <= steps; ++i) {
+                renderTarget.write(x, y, pixelShader, rootSignature, pixelShaderInput);
+                stepInterpolates(pixelShaderInput, lineStep, interpolates1.length);
+                x += stepX;
+                eps += dy;
+                if((eps << 1) >= dx) {
+                    y += stepY;
+                    eps -= dx;
                 }
             }
         } else {
-            if(-dy <= dx) {
-                int y = y2;
-                for (int x = x2; x >= x1; --x) {
-                    lerp(pixelShaderInput, interpolates1, interpolates2, (float)(x - x1) / dx);
-                    renderTarget.setRGB(x, y, pixelShader.run(rootSignature, pixelShaderInput));
+            for(int i = 0; i <= steps; ++i) {
+                renderTarget.write(x, y, pixelShader, rootSignature, pixelShaderInput);
+                stepInterpolates(pixelShaderInput, lineStep, interpolates1.length);
+                y += stepY;
+                eps += dx;
+                if((eps << 1) >= dy) {
+                    x += stepX;
                     eps -= dy;
-                    if ((eps << 1) >= dx) {
-                        ++y;
-                        eps -= dx;
-                    }
-                }
-            } else {
-                int x = x2;
-                for(int y = y2; y <= y1; ++y) {
-                    lerp(pixelShaderInput, interpolates1, interpolates2, (float)(y - y1) / dy);
-                    renderTarget.setRGB(x, y, pixelShader.run(rootSignature, pixelShaderInput));
-                    eps -= dx;
-                    if ((eps << 1) <= dy) {
-                        --x;
-                        eps -= dy;
-                    }
                 }
             }
         }
     }
 
+    /**
+     * Draws a fully on screen line using Wu's algorithm. Each step along the line covers the two pixels nearest to it,
+     * with the coverage split between them by how close the line is to each one's center.
+     */
+    private static void rasterizeAntialiasedLine(float x1, float y1, float x2, float y2, float start, float end,
+                                                 PixelShader pixelShader, Object[] rootSignature,
+                                                 RenderTarget renderTarget, Vector4[] interpolates1,
+                                                 Vector4[] interpolates2, Vector4[] lineStep,
+                                                 Vector4[] pixelShaderInput, int widthMinusOne, int heightMinusOne) {
+        final boolean steep = Math.abs(y2 - y1) > Math.abs(x2 - x1);
+        // major is the axis that is stepped along one pixel at a time, minor is the other one
+        float major1 = steep ? y1 : x1, minor1 = steep ? x1 : y1;
+        float major2 = steep ? y2 : x2, minor2 = steep ? x2 : y2;
+        final int maxMinor = steep ? widthMinusOne : heightMinusOne;
+        if(major2 < major1) {
+            float temp = major1;
+            major1 = major2;
+            major2 = temp;
+            temp = minor1;
+            minor1 = minor2;
+            minor2 = temp;
+            temp = start;
+            start = end;
+            end = temp;
+        }
+        final int firstMajor = (int)major1;
+        final int lastMajor = (int)major2;
+        final float length = major2 - major1;
+        if(firstMajor == lastMajor || length == 0f) {
+            lerp(pixelShaderInput, interpolates1, interpolates2, (start + end) * 0.5f);
+            renderTarget.write((int)x1, (int)y1, pixelShader, rootSignature, pixelShaderInput);
+            return;
+        }
+        final float gradient = (minor2 - minor1) / length;
+        final float amountStep = (end - start) / length;
+
+        // the pixel centers are at 0.5 so the line is moved back by half a pixel to find the nearest ones
+        final float firstOffset = firstMajor + 0.5f - major1;
+        float minor = minor1 + gradient * firstOffset - 0.5f;
+        lerp(pixelShaderInput, interpolates1, interpolates2, start + amountStep * firstOffset);
+        createLineStep(lineStep, interpolates1, interpolates2, amountStep);
+        for(int major = firstMajor; major <= lastMajor; ++major) {
+            final int nearMinor = (int)Math.floor(minor);
+            final int coverage = (int)((minor - nearMinor) * 256f);
+            if(nearMinor >= 0) {
+                writeLinePixel(steep, major, nearMinor, 256 - coverage, pixelShader, rootSignature, renderTarget,
+                        pixelShaderInput);
+            }
+            if(nearMinor + 1 <= maxMinor) {
+                writeLinePixel(steep, major, nearMinor + 1, coverage, pixelShader, rootSignature, renderTarget,
+                        pixelShaderInput);
+            }
+            minor += gradient;
+            stepInterpolates(pixelShaderInput, lineStep, interpolates1.length);
+        }
+    }
+
+    private static void writeLinePixel(boolean steep, int major, int minor, int coverage, PixelShader pixelShader,
+                                       Object[] rootSignature, RenderTarget renderTarget, Vector4[] pixelShaderInput) {
+        if(coverage <= 0) return;
+        if(steep) {
+            renderTarget.writeCoverage(minor, major, coverage, pixelShader, rootSignature, pixelShaderInput);
+        } else {
+            renderTarget.writeCoverage(major, minor, coverage, pixelShader, rootSignature, pixelShaderInput);
+        }
+    }
+
+    /**
+     * calculates how much each interpolate changes when moving amount along the line from interpolates1 to
+     * interpolates2
+     */
+    private static void createLineStep(Vector4[] lineStep, Vector4[] interpolates1, Vector4[] interpolates2,
+                                       float amount) {
+        for(int i = 1; i < interpolates1.length; ++i) {
+            lineStep[i].x = (interpolates2[i].x - interpolates1[i].x) * amount;
+            lineStep[i].y = (interpolates2[i].y - interpolates1[i].y) * amount;
+            lineStep[i].z = (interpolates2[i].z - interpolates1[i].z) * amount;
+            lineStep[i].w = (interpolates2[i].w - interpolates1[i].w) * amount;
+        }
+    }
+
+    private static void stepInterpolates(Vector4[] pixelShaderInput, Vector4[] lineStep, int interpolateCount) {
+        for(int i = 1; i < interpolateCount; ++i) {
+            Vector4 input = pixelShaderInput[i - 1];
+            Vector4 step = lineStep[i];
+            input.x += step.x;
+            input.y += step.y;
+            input.z += step.z;
+            input.w += step.w;
+        }
+    }
+
     /**
      * linearly interpolates between two vectors
      */
@@ -1779,16 +1618,11 @@ public class GraphicsEngine {
     }
 
     /**
-     * Interpolates between three vectors using barycentric coordinates
+     * Interpolates between three vectors using the given barycentric weights
      */
-    private static void lerp(float x1, float y1, Vector4[] interpolates1, float x2, float y2, Vector4[] interpolates2,
-                             float x3, float y3, Vector4[] interpolates3, float x, float y, Vector4[] pixelShaderInput) {
+    private static void interpolate(float weight1, float weight2, float weight3, Vector4[] interpolates1,
+                                    Vector4[] interpolates2, Vector4[] interpolates3, Vector4[] pixelShaderInput) {
         if(pixelShaderInput != null) {
-            final float denominator = (y2 - y3) * (x1 - x3) + (x3 - x2) * (y1 - y3);
-            float weight1 = ((y2 - y3) * (x - x3) + (x3 - x2) * (y - y3)) / denominator;
-            float weight2 = ((y3 - y1) * (x - x3) + (x1 - x3) * (y - y3)) / denominator;
-            float weight3 = 1 - weight1 - weight2;
-
             for(int i = 1; i < interpolates1.length; ++i) {
                 pixelShaderInput[i - 1].x = interpolates1[i].x * weight1 + interpolates2[i].x * weight2 + interpolates3[i].x * weight3;
                 pixelShaderInput[i - 1].y = interpolates1[i].y * weight1 + interpolates2[i].y * weight2 + interpolates3[i].y * weight3;
@@ -1819,6 +1653,99 @@ public class GraphicsEngine {
         }
     }
 
+    /**
+     * The lighting pass of deferred shading. Runs lightingShader once for every lit pixel in gBuffer and writes the
+     * result to renderTarget. Unlit pixels are written with their albedo and empty pixels are skipped.
+     * The lighting shader receives the world position, normal and albedo of the pixel as interpolates 0, 1 and 2.
+     */
+    public static void drawDeferredLighting(GBuffer gBuffer, PixelShader lightingShader, Object[] rootSignature,
+                                            RenderTarget renderTarget) {
+        drawDeferredLighting(gBuffer, lightingShader, rootSignature, renderTarget, createDeferredLightingInput(),
+                0, 0, gBuffer.getWidth(), gBuffer.getHeight());
+    }
+
+    /**
+     * The lighting pass of deferred shading with tiled light culling. Works like
+     * {@link #drawDeferredLighting(GBuffer, PixelShader, Object[], RenderTarget)} except that while shading each tile
+     * the LightList in rootSignature[lightListIndex] is replaced with only the lights that affect that tile.
+     * @param lightTiles Tiles that have been culled against the lights in rootSignature[lightListIndex].
+     */
+    public static void drawTiledDeferredLighting(GBuffer gBuffer, LightTiles lightTiles, int lightListIndex,
+                                                 PixelShader lightingShader, Object[] rootSignature,
+                                                 RenderTarget renderTarget) {
+        Vector4[] pixelShaderInput = createDeferredLightingInput();
+        LightList lights = (LightList)rootSignature[lightListIndex];
+        LightList tileLights = new LightList();
+        Object[] tileRootSignature = rootSignature.clone();
+        tileRootSignature[lightListIndex] = tileLights;
+
+        final int width = gBuffer.getWidth();
+        final int height = gBuffer.getHeight();
+        for(int tileY = 0; tileY < lightTiles.getTilesY(); ++tileY) {
+            final int startY = tileY * LightTiles.tileSize;
+            final int endY = Math.min(startY + LightTiles.tileSize, height);
+            for(int tileX = 0; tileX < lightTiles.getTilesX(); ++tileX) {
+                final int startX = tileX * LightTiles.tileSize;
+                final int endX = Math.min(startX + LightTiles.tileSize, width);
+                lightTiles.getLights(tileX, tileY, lights, tileLights);
+                drawDeferredLighting(gBuffer, lightingShader, tileRootSignature, renderTarget, pixelShaderInput,
+                        startX, startY, endX, endY);
+            }
+        }
+    }
+
+    private static Vector4[] createDeferredLightingInput() {
+        Vector4[] pixelShaderInput = new Vector4[3];
+        for(int i = 0; i < pixelShaderInput.length; ++i) {
+            pixelShaderInput[i] = new Vector4();
+        }
+        pixelShaderInput[0].w = 1f;
+        pixelShaderInput[2].w = 1f;
+        return pixelShaderInput;
+    }
+
+    /**
+     * does the lighting pass for the pixels from (startX, startY) up to but not including (endX, endY)
+     */
+    private static void drawDeferredLighting(GBuffer gBuffer, PixelShader lightingShader, Object[] rootSignature,
+                                             RenderTarget renderTarget, Vector4[] pixelShaderInput,
+                                             int startX, int startY, int endX, int endY) {
+        Vector4 position = pixelShaderInput[0];
+        Vector4 normal = pixelShaderInput[1];
+        Vector4 albedo = pixelShaderInput[2];
+        final int width = gBuffer.getWidth();
+        for(int y = startY; y < endY; ++y) {
+            for(int x = startX, index = y * width + startX; x < endX; ++x, ++index) {
+                final int material = gBuffer.material[index];
+                final int shadingModel = material >>> 24;
+                if(shadingModel == GBuffer.empty) continue;
+
+                albedo.x = ((material >> 16) & 255) * (1f / 255f);
+                albedo.y = ((material >> 8) & 255) * (1f / 255f);
+                albedo.z = (material & 255) * (1f / 255f);
+                if(shadingModel == GBuffer.unlit) {
+                    renderTarget.write(x, y, unlitPixelShader, rootSignature, pixelShaderInput);
+                    continue;
+                }
+
+                position.x = gBuffer.positionX[index];
+                position.y = gBuffer.positionY[index];
+                position.z = gBuffer.positionZ[index];
+                normal.x = gBuffer.normalX[index];
+                normal.y = gBuffer.normalY[index];
+                normal.z = gBuffer.normalZ[index];
+                renderTarget.write(x, y, lightingShader, rootSignature, pixelShaderInput);
+            }
+        }
+    }
+
+    /**
+     * outputs the albedo of an unlit G-buffer pixel
+     */
+    private static final PixelShader unlitPixelShader = (Object[] rootSignature, Vector4[] in) ->
+            (255 << 24) + (((int)(in[2].x * 255f + 0.5f)) << 16) + (((int)(in[2].y * 255f + 0.5f)) << 8) +
+                    ((int)(in[2].z * 255f + 0.5f));
+
     /**
      * makes every pixel in image equal to color
      * @param image the image to clear
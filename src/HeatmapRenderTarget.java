@@ -0,0 +1,206 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * A diagnostic render target that passes every pixel on to another render target and measures how much work each
+ * part of the screen took, so that it can be drawn as a heat map. It either counts the fragments written to each
+ * pixel, i.e. overdraw, or times the pixel shader and render target for each 16x16 pixel tile.
+ */
+public class HeatmapRenderTarget implements GraphicsEngine.RenderTarget {
+    public static final int tileSize = 16;
+    // fragment counts from this up are shown and counted together
+    private static final int maxOverdraw = 8;
+    private static final int histogramBarLength = 40;
+
+    public enum Mode {
+        overdraw, shadingCost
+    }
+
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    private final int[] fragments;
+    private final long[] tileNanoseconds;
+    private GraphicsEngine.RenderTarget renderTarget;
+    private Mode mode = Mode.overdraw;
+
+    public HeatmapRenderTarget(int width, int height) {
+        this.width = width;
+        this.height = height;
+        tilesX = (width + tileSize - 1) / tileSize;
+        tilesY = (height + tileSize - 1) / tileSize;
+        fragments = new int[width * height];
+        tileNanoseconds = new long[tilesX * tilesY];
+    }
+
+    /**
+     * Clears the counts and sets what is measured and where the pixels are passed on to
+     */
+    public void begin(Mode mode, GraphicsEngine.RenderTarget renderTarget) {
+        this.mode = mode;
+        this.renderTarget = renderTarget;
+        Arrays.fill(fragments, 0);
+        Arrays.fill(tileNanoseconds, 0L);
+    }
+
+    /**
+     * @return The render target that pixels are passed on to
+     */
+    public GraphicsEngine.RenderTarget getRenderTarget() {
+        return renderTarget;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void write(int x, int y, GraphicsEngine.PixelShader pixelShader, Object[] rootSignature,
+                      Vector4[] pixelShaderInput) {
+        ++fragments[y * width + x];
+        if (mode == Mode.shadingCost) {
+            final long start = System.nanoTime();
+            renderTarget.write(x, y, pixelShader, rootSignature, pixelShaderInput);
+            tileNanoseconds[(y / tileSize) * tilesX + x / tileSize] += System.nanoTime() - start;
+        } else {
+            renderTarget.write(x, y, pixelShader, rootSignature, pixelShaderInput);
+        }
+    }
+
+    @Override
+    public void writeCoverage(int x, int y, int coverage, GraphicsEngine.PixelShader pixelShader,
+                              Object[] rootSignature, Vector4[] pixelShaderInput) {
+        ++fragments[y * width + x];
+        if (mode == Mode.shadingCost) {
+            final long start = System.nanoTime();
+            renderTarget.writeCoverage(x, y, coverage, pixelShader, rootSignature, pixelShaderInput);
+            tileNanoseconds[(y / tileSize) * tilesX + x / tileSize] += System.nanoTime() - start;
+        } else {
+            renderTarget.writeCoverage(x, y, coverage, pixelShader, rootSignature, pixelShaderInput);
+        }
+    }
+
+    /**
+     * Draws the measurements over the whole image, from dark blue for little work through green and yellow to red for
+     * the most. Pixels with no fragments are black. The image must be the size of the render target.
+     */
+    public void drawHeatmap(BufferedImage image) {
+        final int[] pixels = image.getType() == BufferedImage.TYPE_INT_RGB ||
+                image.getType() == BufferedImage.TYPE_INT_ARGB ?
+                ((DataBufferInt)image.getRaster().getDataBuffer()).getData() : null;
+        long maxNanoseconds = 1L;
+        for (long nanoseconds : tileNanoseconds) {
+            maxNanoseconds = Math.max(maxNanoseconds, nanoseconds);
+        }
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                final int count = fragments[y * width + x];
+                int color = 0xff000000;
+                if (count > 0) {
+                    final float heat = mode == Mode.overdraw ?
+                            (Math.min(count, maxOverdraw) - 1) / (float)(maxOverdraw - 1) :
+                            tileNanoseconds[(y / tileSize) * tilesX + x / tileSize] / (float)maxNanoseconds;
+                    color = heatColor(heat);
+                }
+                if (pixels != null) {
+                    pixels[y * width + x] = color;
+                } else {
+                    image.setRGB(x, y, color);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param heat From 0 to 1.
+     */
+    private static int heatColor(float heat) {
+        // blue, cyan, green, yellow, red
+        final float position = Math.max(0f, Math.min(heat, 1f)) * 4f;
+        final int segment = Math.min((int)position, 3);
+        final int amount = (int)((position - segment) * 255f);
+        final int red, green, blue;
+        switch (segment) {
+            case 0: red = 0; green = amount; blue = 255; break;
+            case 1: red = 0; green = 255; blue = 255 - amount; break;
+            case 2: red = amount; green = 255; blue = 0; break;
+            default: red = 255; green = 255 - amount; blue = 0; break;
+        }
+        return 0xff000000 | (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * @return The number of pixels with 1, 2 ... maxOverdraw or more fragments at indices 1 to maxOverdraw, index 0 is
+     * the number of pixels with no fragments
+     */
+    public long[] getOverdrawHistogram() {
+        final long[] histogram = new long[maxOverdraw + 1];
+        for (int count : fragments) {
+            ++histogram[Math.min(count, maxOverdraw)];
+        }
+        return histogram;
+    }
+
+    /**
+     * @return The number of tiles whose shading took less than 1 microsecond at index 0, 1 to 2 microseconds at index
+     * 1, 2 to 4 at index 2 and so on. Tiles with no fragments aren't counted.
+     */
+    public long[] getShadingCostHistogram() {
+        final long[] histogram = new long[32];
+        for (long nanoseconds : tileNanoseconds) {
+            if (nanoseconds == 0L) continue;
+            final long microseconds = nanoseconds / 1000L;
+            ++histogram[microseconds == 0L ? 0 : 64 - Long.numberOfLeadingZeros(microseconds)];
+        }
+        return histogram;
+    }
+
+    /**
+     * Prints a histogram of the measurements of the current mode
+     */
+    public void printHistogram() {
+        if (mode == Mode.overdraw) {
+            final long[] histogram = getOverdrawHistogram();
+            long covered = 0, total = 0;
+            for (int count : fragments) {
+                if (count > 0) ++covered;
+                total += count;
+            }
+            System.out.printf("Overdraw: %d fragments over %d pixels (%.2f per covered pixel)%n", total, covered,
+                    covered == 0 ? 0.0 : (double)total / covered);
+            for (int i = 1; i <= maxOverdraw; ++i) {
+                printBar((i == maxOverdraw ? i + "+" : Integer.toString(i)), histogram[i], covered);
+            }
+        } else {
+            final long[] histogram = getShadingCostHistogram();
+            long tiles = 0, total = 0;
+            for (long nanoseconds : tileNanoseconds) {
+                if (nanoseconds == 0L) continue;
+                ++tiles;
+                total += nanoseconds;
+            }
+            System.out.printf("Shading cost: %.2f ms over %d tiles of %dx%d pixels%n", total / 1e6, tiles, tileSize,
+                    tileSize);
+            int last = histogram.length - 1;
+            while (last > 0 && histogram[last] == 0) --last;
+            for (int i = 0; i <= last; ++i) {
+                printBar("<" + (1L << i) + " us", histogram[i], tiles);
+            }
+        }
+    }
+
+    private static void printBar(String label, long count, long total) {
+        final double fraction = total == 0 ? 0.0 : (double)count / total;
+        final char[] bar = new char[(int)Math.round(fraction * histogramBarLength)];
+        Arrays.fill(bar, '#');
+        System.out.printf("  %10s %9d %5.1f%% %s%n", label, count, fraction * 100.0, new String(bar));
+    }
+}
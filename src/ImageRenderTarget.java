@@ -0,0 +1,82 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Lets the {@code GraphicsEngine} draw onto a {@code BufferedImage}.
+ * Images of type TYPE_INT_RGB or TYPE_INT_ARGB are written directly through their pixel array, other types go through
+ * {@code setRGB}.
+ */
+public class ImageRenderTarget implements GraphicsEngine.RenderTarget {
+    private final BufferedImage image;
+    private final int width;
+    private final int height;
+    // the image's pixels in row-major order or null if the image isn't stored as packed ints
+    private final int[] pixels;
+
+    public ImageRenderTarget(BufferedImage image) {
+        this.image = image;
+        width = image.getWidth();
+        height = image.getHeight();
+        final int type = image.getType();
+        if(type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+            pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        } else {
+            pixels = null;
+        }
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * @return The image's pixels in row-major order or null if the image can't be written to directly
+     */
+    int[] getPixels() {
+        return pixels;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void write(int x, int y, GraphicsEngine.PixelShader pixelShader, Object[] rootSignature,
+                      Vector4[] pixelShaderInput) {
+        final int color = pixelShader.run(rootSignature, pixelShaderInput);
+        if(pixels != null) {
+            pixels[y * width + x] = color;
+        } else {
+            image.setRGB(x, y, color);
+        }
+    }
+
+    /**
+     * blends the pixel shader's color over the pixel by coverage
+     */
+    @Override
+    public void writeCoverage(int x, int y, int coverage, GraphicsEngine.PixelShader pixelShader,
+                              Object[] rootSignature, Vector4[] pixelShaderInput) {
+        final int color = pixelShader.run(rootSignature, pixelShaderInput);
+        if(pixels != null) {
+            final int index = y * width + x;
+            pixels[index] = blend(pixels[index], color, coverage);
+        } else {
+            image.setRGB(x, y, blend(image.getRGB(x, y), color, coverage));
+        }
+    }
+
+    private static int blend(int destination, int source, int coverage) {
+        if(coverage >= 256) return source;
+        final int inverse = 256 - coverage;
+        final int redBlue = (((source & 0xff00ff) * coverage + (destination & 0xff00ff) * inverse) >>> 8) & 0xff00ff;
+        final int green = (((source & 0xff00) * coverage + (destination & 0xff00) * inverse) >>> 8) & 0xff00;
+        return 0xff000000 | redBlue | green;
+    }
+}
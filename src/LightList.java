@@ -0,0 +1,66 @@
+/**
+ * A growable list of point lights for passing to a {@code GraphicsEngine.PixelShader}
+ */
+public class LightList {
+    private PointLight[] lights;
+    private int size = 0;
+
+    public LightList() {
+        lights = new PointLight[8];
+    }
+
+    public LightList(int capacity) {
+        lights = new PointLight[Math.max(capacity, 1)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public PointLight get(int index) {
+        return lights[index];
+    }
+
+    public void add(PointLight light) {
+        if(size == lights.length) {
+            PointLight[] newLights = new PointLight[lights.length * 2];
+            System.arraycopy(lights, 0, newLights, 0, size);
+            lights = newLights;
+        }
+        lights[size] = light;
+        ++size;
+    }
+
+    /**
+     * Removes the first occurrence of light from the list
+     * @return True if the light was in the list
+     */
+    public boolean remove(PointLight light) {
+        for(int i = 0; i < size; ++i) {
+            if(lights[i] == light) {
+                --size;
+                System.arraycopy(lights, i + 1, lights, i, size - i);
+                lights[size] = null;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void clear() {
+        for(int i = 0; i < size; ++i) {
+            lights[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Replaces the contents of this list with the lights in source at indices[start] to indices[end - 1]
+     */
+    void setToSubset(LightList source, int[] indices, int start, int end) {
+        clear();
+        for(int i = start; i != end; ++i) {
+            add(source.lights[indices[i]]);
+        }
+    }
+}
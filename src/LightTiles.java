@@ -0,0 +1,179 @@
+/**
+ * Splits the screen into 16x16 pixel tiles and finds which lights can affect the surfaces drawn in each tile, so
+ * that the lighting pass only has to loop over a few lights per pixel.
+ * A light affects a tile if its range reaches the bounding box of the world positions stored in the tile's G-buffer
+ * pixels, which includes the tile's depth bounds.
+ */
+public class LightTiles {
+    public static final int tileSize = 16;
+
+    private final int tilesX;
+    private final int tilesY;
+
+    // bounding box of the lit pixels in each tile. Empty tiles have minX > maxX
+    private final float[] minX, minY, minZ, maxX, maxY, maxZ;
+
+    // the lights of tile i are lightIndices[lightStart[i]] to lightIndices[lightStart[i + 1] - 1]
+    private final int[] lightStart;
+    private int[] lightIndices = new int[256];
+
+    // screen space rectangle of tiles that each light may cover
+    private int[] lightTileRects = new int[0];
+    private final Vector4 corner = new Vector4();
+
+    public LightTiles(int width, int height) {
+        tilesX = (width + tileSize - 1) / tileSize;
+        tilesY = (height + tileSize - 1) / tileSize;
+        final int tileCount = tilesX * tilesY;
+        minX = new float[tileCount];
+        minY = new float[tileCount];
+        minZ = new float[tileCount];
+        maxX = new float[tileCount];
+        maxY = new float[tileCount];
+        maxZ = new float[tileCount];
+        lightStart = new int[tileCount + 1];
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    /**
+     * @return The number of lights that affect the tile at (tileX, tileY)
+     */
+    public int getLightCount(int tileX, int tileY) {
+        final int tile = tileY * tilesX + tileX;
+        return lightStart[tile + 1] - lightStart[tile];
+    }
+
+    /**
+     * Fills tileLights with the lights that affect the tile at (tileX, tileY)
+     */
+    public void getLights(int tileX, int tileY, LightList lights, LightList tileLights) {
+        final int tile = tileY * tilesX + tileX;
+        tileLights.setToSubset(lights, lightIndices, lightStart[tile], lightStart[tile + 1]);
+    }
+
+    /**
+     * Finds the lights that affect each tile.
+     * @param gBuffer A G-buffer that has had the geometry pass drawn to it.
+     * @param lights The lights to cull.
+     * @param projectionMatrix The matrix that transforms world positions into screen space.
+     */
+    public void cull(GBuffer gBuffer, LightList lights, Matrix4x4 projectionMatrix) {
+        calculateTileBounds(gBuffer);
+        calculateLightTileRects(lights, projectionMatrix);
+
+        int count = 0;
+        for(int tileY = 0, tile = 0; tileY < tilesY; ++tileY) {
+            for(int tileX = 0; tileX < tilesX; ++tileX, ++tile) {
+                lightStart[tile] = count;
+                if(minX[tile] > maxX[tile]) continue;
+                for(int i = 0, rect = 0; i < lights.size(); ++i, rect += 4) {
+                    if(tileX < lightTileRects[rect] || tileX > lightTileRects[rect + 2] ||
+                            tileY < lightTileRects[rect + 1] || tileY > lightTileRects[rect + 3]) continue;
+                    if(!lightReachesTile(lights.get(i), tile)) continue;
+                    if(count == lightIndices.length) {
+                        int[] newLightIndices = new int[lightIndices.length * 2];
+                        System.arraycopy(lightIndices, 0, newLightIndices, 0, count);
+                        lightIndices = newLightIndices;
+                    }
+                    lightIndices[count] = i;
+                    ++count;
+                }
+            }
+        }
+        lightStart[tilesX * tilesY] = count;
+    }
+
+    /**
+     * finds the bounding box of the world positions of the lit pixels in each tile
+     */
+    private void calculateTileBounds(GBuffer gBuffer) {
+        for(int tile = 0; tile < minX.length; ++tile) {
+            minX[tile] = Float.POSITIVE_INFINITY;
+            minY[tile] = Float.POSITIVE_INFINITY;
+            minZ[tile] = Float.POSITIVE_INFINITY;
+            maxX[tile] = Float.NEGATIVE_INFINITY;
+            maxY[tile] = Float.NEGATIVE_INFINITY;
+            maxZ[tile] = Float.NEGATIVE_INFINITY;
+        }
+        final int width = gBuffer.getWidth();
+        final int height = gBuffer.getHeight();
+        for(int y = 0, index = 0; y < height; ++y) {
+            final int tileRow = (y / tileSize) * tilesX;
+            for(int x = 0; x < width; ++x, ++index) {
+                final int shadingModel = gBuffer.material[index] >>> 24;
+                if(shadingModel == GBuffer.empty || shadingModel == GBuffer.unlit) continue;
+                final int tile = tileRow + x / tileSize;
+                final float px = gBuffer.positionX[index];
+                final float py = gBuffer.positionY[index];
+                final float pz = gBuffer.positionZ[index];
+                if(px < minX[tile]) minX[tile] = px;
+                if(px > maxX[tile]) maxX[tile] = px;
+                if(py < minY[tile]) minY[tile] = py;
+                if(py > maxY[tile]) maxY[tile] = py;
+                if(pz < minZ[tile]) minZ[tile] = pz;
+                if(pz > maxZ[tile]) maxZ[tile] = pz;
+            }
+        }
+    }
+
+    /**
+     * finds the rectangle of tiles that each light's bounding sphere covers on screen
+     */
+    private void calculateLightTileRects(LightList lights, Matrix4x4 projectionMatrix) {
+        if(lightTileRects.length < lights.size() * 4) {
+            lightTileRects = new int[lights.size() * 4];
+        }
+        for(int i = 0, rect = 0; i < lights.size(); ++i, rect += 4) {
+            final PointLight light = lights.get(i);
+            float left = Float.POSITIVE_INFINITY, top = Float.POSITIVE_INFINITY;
+            float right = Float.NEGATIVE_INFINITY, bottom = Float.NEGATIVE_INFINITY;
+            boolean coversScreen = Float.isInfinite(light.range);
+            for(int j = 0; j < 8 && !coversScreen; ++j) {
+                corner.x = (j & 1) == 0 ? light.x - light.range : light.x + light.range;
+                corner.y = (j & 2) == 0 ? light.y - light.range : light.y + light.range;
+                corner.z = (j & 4) == 0 ? light.z - light.range : light.z + light.range;
+                corner.w = 1f;
+                projectionMatrix.transform(corner);
+                if(corner.w <= 0f) {
+                    coversScreen = true;
+                    break;
+                }
+                final float x = corner.x / corner.w;
+                final float y = corner.y / corner.w;
+                left = Math.min(left, x);
+                right = Math.max(right, x);
+                top = Math.min(top, y);
+                bottom = Math.max(bottom, y);
+            }
+            if(coversScreen) {
+                // the bounding sphere is infinite or crosses the camera plane so it could cover any tile
+                lightTileRects[rect] = 0;
+                lightTileRects[rect + 1] = 0;
+                lightTileRects[rect + 2] = tilesX - 1;
+                lightTileRects[rect + 3] = tilesY - 1;
+            } else {
+                lightTileRects[rect] = (int)Math.max(Math.floor(left / tileSize), 0);
+                lightTileRects[rect + 1] = (int)Math.max(Math.floor(top / tileSize), 0);
+                lightTileRects[rect + 2] = (int)Math.min(Math.floor(right / tileSize), tilesX - 1);
+                lightTileRects[rect + 3] = (int)Math.min(Math.floor(bottom / tileSize), tilesY - 1);
+            }
+        }
+    }
+
+    /**
+     * @return True if the light's bounding sphere intersects the bounding box of the tile
+     */
+    private boolean lightReachesTile(PointLight light, int tile) {
+        float dx = Math.max(Math.max(minX[tile] - light.x, light.x - maxX[tile]), 0f);
+        float dy = Math.max(Math.max(minY[tile] - light.y, light.y - maxY[tile]), 0f);
+        float dz = Math.max(Math.max(minZ[tile] - light.z, light.z - maxZ[tile]), 0f);
+        return dx * dx + dy * dy + dz * dz < light.range * light.range;
+    }
+}
@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 /**
  * 4 by 4 row-major matrix of floats
  */
@@ -97,6 +99,76 @@ public class Matrix4x4 {
                 0f, 0f, 0f, 1f);
     }
 
+    /**
+     * Copies the values of another matrix into this one
+     */
+    void set(final Matrix4x4 other) {
+        m00 = other.m00; m01 = other.m01; m02 = other.m02; m03 = other.m03;
+        m10 = other.m10; m11 = other.m11; m12 = other.m12; m13 = other.m13;
+        m20 = other.m20; m21 = other.m21; m22 = other.m22; m23 = other.m23;
+        m30 = other.m30; m31 = other.m31; m32 = other.m32; m33 = other.m33;
+    }
+
+    /**
+     * Turns this into an identity matrix
+     */
+    void setIdentity() {
+        setScale(1f, 1f, 1f);
+    }
+
+    /**
+     * Turns this into a scale matrix, the same as {@link #getScale} without allocating
+     */
+    void setScale(final float x, final float y, final float z) {
+        m00 = x; m01 = 0f; m02 = 0f; m03 = 0f;
+        m10 = 0f; m11 = y; m12 = 0f; m13 = 0f;
+        m20 = 0f; m21 = 0f; m22 = z; m23 = 0f;
+        m30 = 0f; m31 = 0f; m32 = 0f; m33 = 1f;
+    }
+
+    /**
+     * Turns this into a translation matrix, the same as {@link #getTranslation} without allocating
+     */
+    void setTranslation(final float x, final float y, final float z) {
+        setScale(1f, 1f, 1f);
+        m03 = x;
+        m13 = y;
+        m23 = z;
+    }
+
+    /**
+     * Turns this into a rotation matrix about the x-axis, the same as {@link #getRotationX} without allocating
+     */
+    void setRotationX(float angle) {
+        float cosAngle = (float)Math.cos(angle);
+        float sinAngle = (float)Math.sin(angle);
+        setScale(1f, 1f, 1f);
+        m11 = cosAngle; m12 = -sinAngle;
+        m21 = sinAngle; m22 = cosAngle;
+    }
+
+    /**
+     * Turns this into a rotation matrix about the y-axis, the same as {@link #getRotationY} without allocating
+     */
+    void setRotationY(float angle) {
+        float cosAngle = (float)Math.cos(angle);
+        float sinAngle = (float)Math.sin(angle);
+        setScale(1f, 1f, 1f);
+        m00 = cosAngle; m02 = sinAngle;
+        m20 = -sinAngle; m22 = cosAngle;
+    }
+
+    /**
+     * Turns this into a rotation matrix about the z-axis, the same as {@link #getRotationZ} without allocating
+     */
+    void setRotationZ(float angle) {
+        float cosAngle = (float)Math.cos(angle);
+        float sinAngle = (float)Math.sin(angle);
+        setScale(1f, 1f, 1f);
+        m00 = cosAngle; m01 = -sinAngle;
+        m10 = sinAngle; m11 = cosAngle;
+    }
+
     void translate(final float x, final float y, final float z) {
         m00 += x * m30; m01 += x * m31; m02 += x * m32; m03 += x * m33;
         m10 += y * m30; m11 += y * m31; m12 += y * m32; m13 += y * m33;
@@ -195,6 +267,36 @@ public class Matrix4x4 {
                 m30 * rhs.m03 + m31 * rhs.m13 + m32 * rhs.m23 + m33 * rhs.m33);
     }
 
+    /**
+     * multiplies this with rhs and stores the combined matrix in result without allocating. result can be this or rhs.
+     */
+    void mulInto(final Matrix4x4 rhs, final Matrix4x4 result) {
+        final float r00 = m00 * rhs.m00 + m01 * rhs.m10 + m02 * rhs.m20 + m03 * rhs.m30;
+        final float r01 = m00 * rhs.m01 + m01 * rhs.m11 + m02 * rhs.m21 + m03 * rhs.m31;
+        final float r02 = m00 * rhs.m02 + m01 * rhs.m12 + m02 * rhs.m22 + m03 * rhs.m32;
+        final float r03 = m00 * rhs.m03 + m01 * rhs.m13 + m02 * rhs.m23 + m03 * rhs.m33;
+
+        final float r10 = m10 * rhs.m00 + m11 * rhs.m10 + m12 * rhs.m20 + m13 * rhs.m30;
+        final float r11 = m10 * rhs.m01 + m11 * rhs.m11 + m12 * rhs.m21 + m13 * rhs.m31;
+        final float r12 = m10 * rhs.m02 + m11 * rhs.m12 + m12 * rhs.m22 + m13 * rhs.m32;
+        final float r13 = m10 * rhs.m03 + m11 * rhs.m13 + m12 * rhs.m23 + m13 * rhs.m33;
+
+        final float r20 = m20 * rhs.m00 + m21 * rhs.m10 + m22 * rhs.m20 + m23 * rhs.m30;
+        final float r21 = m20 * rhs.m01 + m21 * rhs.m11 + m22 * rhs.m21 + m23 * rhs.m31;
+        final float r22 = m20 * rhs.m02 + m21 * rhs.m12 + m22 * rhs.m22 + m23 * rhs.m32;
+        final float r23 = m20 * rhs.m03 + m21 * rhs.m13 + m22 * rhs.m23 + m23 * rhs.m33;
+
+        final float r30 = m30 * rhs.m00 + m31 * rhs.m10 + m32 * rhs.m20 + m33 * rhs.m30;
+        final float r31 = m30 * rhs.m01 + m31 * rhs.m11 + m32 * rhs.m21 + m33 * rhs.m31;
+        final float r32 = m30 * rhs.m02 + m31 * rhs.m12 + m32 * rhs.m22 + m33 * rhs.m32;
+        final float r33 = m30 * rhs.m03 + m31 * rhs.m13 + m32 * rhs.m23 + m33 * rhs.m33;
+
+        result.m00 = r00; result.m01 = r01; result.m02 = r02; result.m03 = r03;
+        result.m10 = r10; result.m11 = r11; result.m12 = r12; result.m13 = r13;
+        result.m20 = r20; result.m21 = r21; result.m22 = r22; result.m23 = r23;
+        result.m30 = r30; result.m31 = r31; result.m32 = r32; result.m33 = r33;
+    }
+
     /**
      * Multiples this with rhs and returns the result
      */
@@ -223,6 +325,104 @@ public class Matrix4x4 {
         rhs.w = w;
     }
 
+    /**
+     * transforms the point (x, y, z, 1) and stores the result in out
+     */
+    void transformPoint(final float x, final float y, final float z, final Vector4 out) {
+        out.x = m00 * x + m01 * y + m02 * z + m03;
+        out.y = m10 * x + m11 * y + m12 * z + m13;
+        out.z = m20 * x + m21 * y + m22 * z + m23;
+        out.w = m30 * x + m31 * y + m32 * z + m33;
+    }
+
+    /**
+     * Finds the point that this matrix transforms to (x, y, z), e.g. the camera's position in model space from a world
+     * matrix. The matrix must be affine, i.e. have a bottom row of 0, 0, 0, 1.
+     *
+     * @return False if the matrix can't be inverted, out is unchanged then
+     */
+    boolean inverseTransformAffinePoint(final float x, final float y, final float z, final Vector4 out) {
+        final float c00 = m11 * m22 - m12 * m21;
+        final float c01 = m02 * m21 - m01 * m22;
+        final float c02 = m01 * m12 - m02 * m11;
+        final float determinant = m00 * c00 + m10 * c01 + m20 * c02;
+        if (determinant == 0f) return false;
+        final float c10 = m12 * m20 - m10 * m22;
+        final float c11 = m00 * m22 - m02 * m20;
+        final float c12 = m02 * m10 - m00 * m12;
+        final float c20 = m10 * m21 - m11 * m20;
+        final float c21 = m01 * m20 - m00 * m21;
+        final float c22 = m00 * m11 - m01 * m10;
+        final float px = x - m03, py = y - m13, pz = z - m23;
+        final float oneOverDeterminant = 1f / determinant;
+        out.x = (c00 * px + c01 * py + c02 * pz) * oneOverDeterminant;
+        out.y = (c10 * px + c11 * py + c12 * pz) * oneOverDeterminant;
+        out.z = (c20 * px + c21 * py + c22 * pz) * oneOverDeterminant;
+        out.w = 1f;
+        return true;
+    }
+
+    /**
+     * @return z / w of the transformed point (x, y, z, 1), without allocating
+     */
+    float transformDepth(final float x, final float y, final float z) {
+        return (m20 * x + m21 * y + m22 * z + m23) / (m30 * x + m31 * y + m32 * z + m33);
+    }
+
+    /**
+     * Transforms many points (x, y, z, 1) at once. The points are stored in planes: all the x coordinates, then all
+     * the y coordinates and then all the z coordinates. The results are stored the same way with a fourth plane for w.
+     * Each output plane is written by its own simple loop over the input planes, which the JIT can turn into SIMD
+     * instructions.
+     *
+     * @param positions The points, at least 3 * count floats.
+     * @param count The number of points in each plane.
+     * @param start The first point to transform.
+     * @param end One after the last point to transform.
+     * @param out Receives the transformed points, at least 4 * count floats. Must not be positions.
+     */
+    void transformPoints(final float[] positions, final int count, final int start, final int end,
+                         final float[] out) {
+        final int y = count, z = count * 2, w = count * 3;
+        final float m00 = this.m00, m01 = this.m01, m02 = this.m02, m03 = this.m03;
+        for (int i = start; i < end; ++i) {
+            out[i] = m00 * positions[i] + m01 * positions[y + i] + m02 * positions[z + i] + m03;
+        }
+        final float m10 = this.m10, m11 = this.m11, m12 = this.m12, m13 = this.m13;
+        for (int i = start; i < end; ++i) {
+            out[y + i] = m10 * positions[i] + m11 * positions[y + i] + m12 * positions[z + i] + m13;
+        }
+        final float m20 = this.m20, m21 = this.m21, m22 = this.m22, m23 = this.m23;
+        for (int i = start; i < end; ++i) {
+            out[z + i] = m20 * positions[i] + m21 * positions[y + i] + m22 * positions[z + i] + m23;
+        }
+        final float m30 = this.m30, m31 = this.m31, m32 = this.m32, m33 = this.m33;
+        for (int i = start; i < end; ++i) {
+            out[w + i] = m30 * positions[i] + m31 * positions[y + i] + m32 * positions[z + i] + m33;
+        }
+    }
+
+    /**
+     * Like {@link #transformPoints} but transforms directions (x, y, z, 0) by the top left 3x3 part of the matrix, e.g.
+     * normals. The w plane of the output is set to 0.
+     */
+    void transformVectors(final float[] vectors, final int count, final int start, final int end, final float[] out) {
+        final int y = count, z = count * 2, w = count * 3;
+        final float m00 = this.m00, m01 = this.m01, m02 = this.m02;
+        for (int i = start; i < end; ++i) {
+            out[i] = m00 * vectors[i] + m01 * vectors[y + i] + m02 * vectors[z + i];
+        }
+        final float m10 = this.m10, m11 = this.m11, m12 = this.m12;
+        for (int i = start; i < end; ++i) {
+            out[y + i] = m10 * vectors[i] + m11 * vectors[y + i] + m12 * vectors[z + i];
+        }
+        final float m20 = this.m20, m21 = this.m21, m22 = this.m22;
+        for (int i = start; i < end; ++i) {
+            out[z + i] = m20 * vectors[i] + m21 * vectors[y + i] + m22 * vectors[z + i];
+        }
+        Arrays.fill(out, w + start, w + end, 0f);
+    }
+
     /**
      * transforms a vector ignoring the 4th dimension
      * @param rhs The vector to transform
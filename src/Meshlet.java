@@ -0,0 +1,216 @@
+import java.util.Arrays;
+
+/**
+ * A cluster of up to {@link #maxTriangles} connected triangles of a model with a bounding sphere and a cone that
+ * contains the normals of all its triangles, so that whole clusters can be culled before their vertices are
+ * transformed.
+ */
+public class Meshlet {
+    public static final int maxTriangles = 128;
+    // meshlets keep growing to this size even if the only triangles left to add face away from them
+    private static final int minTriangles = 64;
+
+    /**
+     * The vertex buffer indices of the meshlet's triangles, three per triangle
+     */
+    public final int[] indices;
+
+    public final float centerX, centerY, centerZ, radius;
+
+    // the normalized average normal of the triangles
+    public final float coneAxisX, coneAxisY, coneAxisZ;
+    // sine of the angle between the axis and the normal furthest from it, infinity if the normals can't be bounded by
+    // a cone of less than 90 degrees
+    public final float coneSine;
+
+    private Meshlet(int[] indices, Model.Vertex[] vertices, float[] normals) {
+        this.indices = indices;
+
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for(int index : indices) {
+            Model.Vertex vertex = vertices[index];
+            minX = Math.min(minX, vertex.x); maxX = Math.max(maxX, vertex.x);
+            minY = Math.min(minY, vertex.y); maxY = Math.max(maxY, vertex.y);
+            minZ = Math.min(minZ, vertex.z); maxZ = Math.max(maxZ, vertex.z);
+        }
+        centerX = (minX + maxX) * 0.5f;
+        centerY = (minY + maxY) * 0.5f;
+        centerZ = (minZ + maxZ) * 0.5f;
+        float radiusSq = 0f;
+        for(int index : indices) {
+            Model.Vertex vertex = vertices[index];
+            final float dx = vertex.x - centerX, dy = vertex.y - centerY, dz = vertex.z - centerZ;
+            radiusSq = Math.max(radiusSq, dx * dx + dy * dy + dz * dz);
+        }
+        radius = (float)Math.sqrt(radiusSq);
+
+        // normals holds the normalized normal of each triangle, degenerate triangles have a zero normal and are never
+        // drawn so they don't affect the cone
+        float axisX = 0f, axisY = 0f, axisZ = 0f;
+        for(int i = 0; i < normals.length; i += 3) {
+            axisX += normals[i];
+            axisY += normals[i + 1];
+            axisZ += normals[i + 2];
+        }
+        final float axisLength = (float)Math.sqrt(axisX * axisX + axisY * axisY + axisZ * axisZ);
+        float minDot = -1f;
+        if(axisLength != 0f) {
+            axisX /= axisLength;
+            axisY /= axisLength;
+            axisZ /= axisLength;
+            minDot = 1f;
+            for(int i = 0; i < normals.length; i += 3) {
+                if(normals[i] == 0f && normals[i + 1] == 0f && normals[i + 2] == 0f) continue;
+                minDot = Math.min(minDot, normals[i] * axisX + normals[i + 1] * axisY + normals[i + 2] * axisZ);
+            }
+        }
+        coneAxisX = axisX;
+        coneAxisY = axisY;
+        coneAxisZ = axisZ;
+        coneSine = minDot > 0f ? (float)Math.sqrt(1f - minDot * minDot) : Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Creates a meshlet from values that were calculated before, e.g. by {@code ModelCache}
+     */
+    Meshlet(int[] indices, float centerX, float centerY, float centerZ, float radius, float coneAxisX,
+            float coneAxisY, float coneAxisZ, float coneSine) {
+        this.indices = indices;
+        this.centerX = centerX;
+        this.centerY = centerY;
+        this.centerZ = centerZ;
+        this.radius = radius;
+        this.coneAxisX = coneAxisX;
+        this.coneAxisY = coneAxisY;
+        this.coneAxisZ = coneAxisZ;
+        this.coneSine = coneSine;
+    }
+
+    /**
+     * Splits a model into meshlets. Each meshlet is grown from a seed triangle by repeatedly adding the neighbouring
+     * triangle whose normal is closest to the meshlet's average normal, which keeps the normal cones narrow.
+     * Neighbouring triangles share a vertex.
+     */
+    public static Meshlet[] buildMeshlets(Model.Vertex[] vertices, int[] indexBuffer) {
+        final int triangleCount = indexBuffer.length / 3;
+        final float[] triangleNormals = new float[triangleCount * 3];
+        for(int triangle = 0; triangle < triangleCount; ++triangle) {
+            calculateNormal(vertices, indexBuffer, triangle, triangleNormals);
+        }
+
+        // the triangles that use vertex i are vertexTriangles[vertexTriangleStart[i]] to
+        // vertexTriangles[vertexTriangleStart[i + 1] - 1]
+        final int[] vertexTriangleStart = new int[vertices.length + 1];
+        for(int index : indexBuffer) {
+            ++vertexTriangleStart[index + 1];
+        }
+        for(int i = 0; i < vertices.length; ++i) {
+            vertexTriangleStart[i + 1] += vertexTriangleStart[i];
+        }
+        final int[] vertexTriangles = new int[indexBuffer.length];
+        final int[] vertexTriangleCount = new int[vertices.length];
+        for(int i = 0; i < indexBuffer.length; ++i) {
+            final int vertex = indexBuffer[i];
+            vertexTriangles[vertexTriangleStart[vertex] + vertexTriangleCount[vertex]] = i / 3;
+            ++vertexTriangleCount[vertex];
+        }
+
+        final boolean[] assigned = new boolean[triangleCount];
+        // the meshlet that last added each triangle to its list of candidates
+        final int[] candidateOf = new int[triangleCount];
+        Arrays.fill(candidateOf, -1);
+        final int[] candidates = new int[indexBuffer.length];
+        final int[] meshletTriangles = new int[maxTriangles];
+        Meshlet[] meshlets = new Meshlet[Math.max(triangleCount / 64, 1)];
+        int meshletCount = 0;
+
+        for(int seed = 0; seed < triangleCount; ++seed) {
+            if(assigned[seed]) continue;
+            int size = 0;
+            int candidateCount = 0;
+            float normalX = 0f, normalY = 0f, normalZ = 0f;
+            int next = seed;
+            while(true) {
+                assigned[next] = true;
+                meshletTriangles[size] = next;
+                ++size;
+                normalX += triangleNormals[next * 3];
+                normalY += triangleNormals[next * 3 + 1];
+                normalZ += triangleNormals[next * 3 + 2];
+                if(size == maxTriangles) break;
+
+                for(int corner = next * 3; corner < next * 3 + 3; ++corner) {
+                    final int vertex = indexBuffer[corner];
+                    for(int i = vertexTriangleStart[vertex]; i < vertexTriangleStart[vertex + 1]; ++i) {
+                        final int neighbour = vertexTriangles[i];
+                        if(assigned[neighbour] || candidateOf[neighbour] == meshletCount) continue;
+                        candidateOf[neighbour] = meshletCount;
+                        candidates[candidateCount] = neighbour;
+                        ++candidateCount;
+                    }
+                }
+
+                // pick the candidate that is closest to facing the same way as the meshlet and stop if they all face
+                // more than 90 degrees away from it and the meshlet is big enough
+                int best = -1;
+                float bestDot = 0f;
+                for(int i = 0; i < candidateCount; ++i) {
+                    final int candidate = candidates[i];
+                    if(assigned[candidate]) {
+                        candidates[i] = candidates[candidateCount - 1];
+                        --candidateCount;
+                        --i;
+                        continue;
+                    }
+                    final float dot = triangleNormals[candidate * 3] * normalX +
+                            triangleNormals[candidate * 3 + 1] * normalY + triangleNormals[candidate * 3 + 2] * normalZ;
+                    if(best == -1 || dot > bestDot) {
+                        best = i;
+                        bestDot = dot;
+                    }
+                }
+                if(best == -1 || (bestDot < 0f && size >= minTriangles)) break;
+                next = candidates[best];
+                candidates[best] = candidates[candidateCount - 1];
+                --candidateCount;
+            }
+
+            final int[] indices = new int[size * 3];
+            final float[] normals = new float[size * 3];
+            for(int i = 0; i < size; ++i) {
+                System.arraycopy(indexBuffer, meshletTriangles[i] * 3, indices, i * 3, 3);
+                System.arraycopy(triangleNormals, meshletTriangles[i] * 3, normals, i * 3, 3);
+            }
+            if(meshletCount == meshlets.length) {
+                meshlets = Arrays.copyOf(meshlets, meshlets.length * 2);
+            }
+            meshlets[meshletCount] = new Meshlet(indices, vertices, normals);
+            ++meshletCount;
+        }
+        return Arrays.copyOf(meshlets, meshletCount);
+    }
+
+    /**
+     * calculates the normalized normal of a triangle the same way as {@code Model} does
+     */
+    private static void calculateNormal(Model.Vertex[] vertices, int[] indexBuffer, int triangle, float[] normals) {
+        Model.Vertex vertex1 = vertices[indexBuffer[triangle * 3]];
+        Model.Vertex vertex2 = vertices[indexBuffer[triangle * 3 + 1]];
+        Model.Vertex vertex3 = vertices[indexBuffer[triangle * 3 + 2]];
+        final float x2 = vertex2.x - vertex1.x, y2 = vertex2.y - vertex1.y, z2 = vertex2.z - vertex1.z;
+        final float x3 = vertex3.x - vertex1.x, y3 = vertex3.y - vertex1.y, z3 = vertex3.z - vertex1.z;
+        float x = y2 * z3 - z2 * y3;
+        float y = z2 * x3 - x2 * z3;
+        float z = x2 * y3 - y2 * x3;
+        final float length = (float)Math.sqrt(x * x + y * y + z * z);
+        if(length != 0f) {
+            x /= length;
+            y /= length;
+            z /= length;
+        }
+        normals[triangle * 3] = x;
+        normals[triangle * 3 + 1] = y;
+        normals[triangle * 3 + 2] = z;
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Finds the meshlets of a model that could be visible and gathers their triangles into one index buffer.
+ * A meshlet is skipped if its bounding sphere is outside the screen or in front of the near plane, or if back faces are
+ * culled and every direction from the camera to the sphere is more than 90 degrees from every normal in its cone.
+ * The camera is at the origin of world space.
+ */
+public class MeshletCuller {
+    // the planes that bound the screen in model space, a point p is inside when a * p.x + b * p.y + c * p.z + d >= 0
+    private final float[] planes = new float[5 * 4];
+    private final Vector4 column = new Vector4();
+    private final Vector4 point = new Vector4();
+
+    private int culledMeshletCount;
+
+    /**
+     * @return The number of meshlets skipped by the last call to cull
+     */
+    public int getCulledMeshletCount() {
+        return culledMeshletCount;
+    }
+
+    /**
+     * @param worldMatrix The matrix that transforms the model into world space.
+     * @param wvpMatrix The matrix that transforms the model into screen space.
+     * @param width The width of the screen in pixels.
+     * @param height The height of the screen in pixels.
+     * @param indexBuffer Receives the indices of the visible meshlets' triangles. It must be at least as long as the
+     *                    model's index buffer.
+     * @return The number of indices written to indexBuffer
+     */
+    public int cull(Meshlet[] meshlets, Matrix4x4 worldMatrix, Matrix4x4 wvpMatrix, int width, int height,
+                    boolean cullBackFaces, int[] indexBuffer) {
+        return cull(meshlets, worldMatrix, wvpMatrix, width, height, cullBackFaces, indexBuffer, null);
+    }
+
+    /**
+     * Like cull but also gives each visible triangle a number that stays the same from frame to frame: its position
+     * among the triangles of all the meshlets
+     *
+     * @param triangleIds Receives the number of each triangle written to indexBuffer, or null. It must be at least a
+     *                    third as long as the model's index buffer.
+     */
+    public int cull(Meshlet[] meshlets, Matrix4x4 worldMatrix, Matrix4x4 wvpMatrix, int width, int height,
+                    boolean cullBackFaces, int[] indexBuffer, int[] triangleIds) {
+        calculatePlanes(wvpMatrix, width, height);
+        final float worldScale = calculateMaxScale(worldMatrix);
+        int indexCount = 0;
+        int firstTriangle = 0;
+        culledMeshletCount = 0;
+        for(Meshlet meshlet : meshlets) {
+            final int triangleCount = meshlet.indices.length / 3;
+            if(!isInsideScreen(meshlet) ||
+                    (cullBackFaces && isBackFacing(meshlet, worldMatrix, worldScale))) {
+                ++culledMeshletCount;
+                firstTriangle += triangleCount;
+                continue;
+            }
+            System.arraycopy(meshlet.indices, 0, indexBuffer, indexCount, meshlet.indices.length);
+            if(triangleIds != null) {
+                final int firstId = indexCount / 3;
+                for(int i = 0; i < triangleCount; ++i) {
+                    triangleIds[firstId + i] = firstTriangle + i;
+                }
+            }
+            indexCount += meshlet.indices.length;
+            firstTriangle += triangleCount;
+        }
+        return indexCount;
+    }
+
+    private boolean isInsideScreen(Meshlet meshlet) {
+        return isSphereOnScreen(meshlet.centerX, meshlet.centerY, meshlet.centerZ, meshlet.radius);
+    }
+
+    /**
+     * Sets the screen that {@link #isSphereOnScreen} tests against. {@link #cull} also sets it.
+     */
+    public void setScreen(Matrix4x4 wvpMatrix, int width, int height) {
+        calculatePlanes(wvpMatrix, width, height);
+    }
+
+    /**
+     * @return False if a model space sphere is completely off the screen or in front of the near plane
+     */
+    public boolean isSphereOnScreen(float centerX, float centerY, float centerZ, float radius) {
+        for(int plane = 0; plane < planes.length; plane += 4) {
+            final float distance = planes[plane] * centerX + planes[plane + 1] * centerY +
+                    planes[plane + 2] * centerZ + planes[plane + 3];
+            if(distance < -radius) return false;
+        }
+        return true;
+    }
+
+    private boolean isBackFacing(Meshlet meshlet, Matrix4x4 worldMatrix, float worldScale) {
+        if(meshlet.coneSine == Float.POSITIVE_INFINITY) return false;
+        point.x = meshlet.centerX;
+        point.y = meshlet.centerY;
+        point.z = meshlet.centerZ;
+        point.w = 1f;
+        worldMatrix.transform(point);
+        final float centerX = point.x, centerY = point.y, centerZ = point.z;
+        point.x = meshlet.coneAxisX;
+        point.y = meshlet.coneAxisY;
+        point.z = meshlet.coneAxisZ;
+        point.w = 0f;
+        worldMatrix.transformAsMatrix3x3(point);
+        final float axisLength = (float)Math.sqrt(point.x * point.x + point.y * point.y + point.z * point.z);
+        if(axisLength == 0f) return false;
+        final float distance = (float)Math.sqrt(centerX * centerX + centerY * centerY + centerZ * centerZ);
+        final float viewDot = (centerX * point.x + centerY * point.y + centerZ * point.z) / axisLength;
+        return viewDot >= meshlet.coneSine * distance + meshlet.radius * worldScale;
+    }
+
+    /**
+     * Extracts the left, right, top, bottom and near planes of the screen from the rows of wvpMatrix. A model space
+     * point p is on screen when 0 <= x <= width * w, 0 <= y <= height * w and z >= 0, where (x, y, z, w) is
+     * wvpMatrix * p. The planes are normalized so that they give distances.
+     */
+    private void calculatePlanes(Matrix4x4 wvpMatrix, int width, int height) {
+        // the columns of the matrix give one coefficient of every row
+        for(int i = 0; i < 4; ++i) {
+            column.x = i == 0 ? 1f : 0f;
+            column.y = i == 1 ? 1f : 0f;
+            column.z = i == 2 ? 1f : 0f;
+            column.w = i == 3 ? 1f : 0f;
+            wvpMatrix.transform(column);
+            planes[i] = column.x;
+            planes[4 + i] = width * column.w - column.x;
+            planes[8 + i] = column.y;
+            planes[12 + i] = height * column.w - column.y;
+            planes[16 + i] = column.z;
+        }
+        for(int plane = 0; plane < planes.length; plane += 4) {
+            final float length = (float)Math.sqrt(planes[plane] * planes[plane] +
+                    planes[plane + 1] * planes[plane + 1] + planes[plane + 2] * planes[plane + 2]);
+            if(length == 0f) continue;
+            planes[plane] /= length;
+            planes[plane + 1] /= length;
+            planes[plane + 2] /= length;
+            planes[plane + 3] /= length;
+        }
+    }
+
+    /**
+     * @return The largest amount that worldMatrix scales lengths by
+     */
+    private float calculateMaxScale(Matrix4x4 worldMatrix) {
+        float maxScaleSq = 0f;
+        for(int i = 0; i < 3; ++i) {
+            column.x = i == 0 ? 1f : 0f;
+            column.y = i == 1 ? 1f : 0f;
+            column.z = i == 2 ? 1f : 0f;
+            column.w = 0f;
+            worldMatrix.transformAsMatrix3x3(column);
+            maxScaleSq = Math.max(maxScaleSq, column.x * column.x + column.y * column.y + column.z * column.z);
+        }
+        return (float)Math.sqrt(maxScaleSq);
+    }
+}
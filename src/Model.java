@@ -1,24 +1,59 @@
+import java.io.BufferedInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.CancellationException;
 
  /**
  * This class can load model data from files and manage it.
  */
 public class Model {
+    // how many vertices or triangles are processed between progress reports and checks for cancellation
+    static final int progressInterval = 4096;
+
     public Vertex[] vertexBuffer;
     public int[] indexBuffer;
+    // the triangles of the index buffer split into clusters for culling
+    public Meshlet[] meshlets;
+    // the triangles split into a tree that gives their painter's order for any camera position, or null if it hasn't
+    // been built
+    public BspTree bspTree;
+
+    // true if the texture coordinates came from the file instead of being generated
+    private boolean hasTextureCoordinates;
 
     // the largest absolute coordinate value of the untransformed model data
     private float maxSize;
 
+    // the vertex buffer as packed streams, made the first time they are needed
+    private VertexStreams vertexStreams;
+
+    /**
+     * Receives progress reports while a model loads. It is called on the thread that is loading the model.
+     */
+    public interface ProgressListener {
+        /**
+         * @param task What is being done, e.g. "Reading file".
+         * @param done How much of the task has been done.
+         * @param total How much there is to do in the task.
+         */
+        void progress(String task, long done, long total);
+    }
+
      /**
       * Store per vertex data
       */
     static class Vertex {
         float x, y, z;
         float nx, ny, nz;
+        float u, v;
     }
 
     /**
@@ -28,10 +63,22 @@ public class Model {
      * @return The {@link Model}, or null if an error occurred.
      */
     public static Model loadModel(final File file) {
+        return loadModel(file, null);
+    }
+
+    /**
+     * Creates a {@link Model} instance for the data in the specified file. Loading can be cancelled by interrupting
+     * the thread that is loading it.
+     *
+     * @param file The file to load.
+     * @param progressListener Receives progress reports, or null.
+     * @return The {@link Model}, or null if an error occurred or loading was cancelled.
+     */
+    public static Model loadModel(final File file, final ProgressListener progressListener) {
         final Model model = new Model();
 
         // read the data from the file
-        if (!model.loadModelFromFile(file)) {
+        if (!model.loadModelFromFile(file, progressListener)) {
             return null;
         }
 
@@ -42,12 +89,16 @@ public class Model {
      * Reads model data from the specified file.
      *
      * @param file The file to load.
+     * @param progressListener Receives progress reports, or null.
      * @return True on success, false otherwise.
      */
-    private boolean loadModelFromFile(final File file) {
+    private boolean loadModelFromFile(final File file, final ProgressListener progressListener) {
         maxSize = 0.f;
+        hasTextureCoordinates = true;
 
-        try (final Scanner scanner = new Scanner(file)) {
+        final long fileSize = file.length();
+        try (final CountingInputStream input = new CountingInputStream(new FileInputStream(file));
+             final Scanner scanner = new Scanner(new BufferedInputStream(input))) {
             // the first line specifies the vertex count
             int vertexCount = scanner.nextInt();
             vertexBuffer = new Vertex[vertexCount];
@@ -57,6 +108,9 @@ public class Model {
 
             // read all vertex coordinates
             for (int i = 0; i < vertexCount; ++i) {
+                if (i % progressInterval == 0) {
+                    reportProgress(progressListener, "Reading file", input.getCount(), fileSize);
+                }
                 // advance the position to the beginning of the next line
                 scanner.nextLine();
 
@@ -66,6 +120,22 @@ public class Model {
                 vertexBuffer[i].z = scanner.nextFloat();
                 maxSize = Math.max(maxSize, Math.max(Math.abs(vertexBuffer[i].x),
                         Math.max(Math.abs(vertexBuffer[i].y), Math.abs(vertexBuffer[i].z))));
+
+                // texture coordinates are optional and follow the position on the same line
+                final String u = scanner.findInLine("\\S+");
+                if (u != null) {
+                    final String v = scanner.findInLine("\\S+");
+                    if (v == null) {
+                        throw new NoSuchElementException("Vertex " + (i + 1) + " has a u but no v texture coordinate");
+                    }
+                    vertexBuffer[i].u = Float.parseFloat(u);
+                    vertexBuffer[i].v = Float.parseFloat(v);
+                } else {
+                    hasTextureCoordinates = false;
+                }
+            }
+            if (!hasTextureCoordinates) {
+                generateTextureCoordinates();
             }
 
             // the next line specifies the number of triangles
@@ -76,6 +146,9 @@ public class Model {
             // the vertex array
             indexBuffer = new int[triangleCount * 3];
             for (int i = 0, j = 0; i < triangleCount; ++i) {
+                if (i % progressInterval == 0) {
+                    reportProgress(progressListener, "Reading file", input.getCount(), fileSize);
+                }
                 scanner.nextLine();
 
                 // the model files start with index 1, we start with 0
@@ -90,6 +163,9 @@ public class Model {
             //generate smoothed normals
             Vector3 sum = new Vector3();
             for(int i = 0; i < vertexCount; ++i) {
+                if(i % progressInterval == 0) {
+                    reportProgress(progressListener, "Calculating normals", i, vertexCount);
+                }
                 Vertex vertex = vertexBuffer[i];
                 sum.x = 0f;
                 sum.y = 0f;
@@ -127,8 +203,13 @@ public class Model {
                 vertex.nz = sum.z;
             }
 
+            reportProgress(progressListener, "Building meshlets", 0, 1);
+            meshlets = Meshlet.buildMeshlets(vertexBuffer, indexBuffer);
+            reportProgress(progressListener, "Building meshlets", 1, 1);
+
             System.out.println("Number of vertices in model: " + vertexCount);
             System.out.println("Number of triangles in model: " + triangleCount);
+            System.out.println("Number of meshlets in model: " + meshlets.length);
         } catch (FileNotFoundException e) {
             System.err.println("No such file " + file.toString() + ": "
                     + e.getMessage());
@@ -136,6 +217,9 @@ public class Model {
         } catch (NoSuchElementException e) {
             System.err.println("Invalid file format: " + e.getMessage());
             return false;
+        } catch (CancellationException e) {
+            System.out.println("Loading " + file.toString() + " was cancelled");
+            return false;
         } catch (Exception e) {
             System.err.println("Something went wrong while reading the model file: " + e.getMessage());
             e.printStackTrace();
@@ -145,6 +229,192 @@ public class Model {
         return true;
     }
 
+    /**
+     * Builds {@link #bspTree} if it hasn't been built. Building can be cancelled by interrupting the thread.
+     *
+     * @param progressListener Receives progress reports, or null.
+     * @throws CancellationException If the thread has been interrupted.
+     */
+    public void buildBspTree(final ProgressListener progressListener) {
+        if (bspTree != null) return;
+        reportProgress(progressListener, "Building BSP tree", 0, 1);
+        final BspTree tree = BspTree.build(vertexBuffer, indexBuffer);
+        reportProgress(progressListener, "Building BSP tree", 1, 1);
+        System.out.println("Number of triangles in BSP tree: " + tree.getIndexCount() / 3);
+        bspTree = tree;
+    }
+
+    /**
+     * Writes the model and everything derived from the file, i.e. normals, texture coordinates, meshlets and the BSP
+     * tree if it has been built, in the format read by {@link #readBinary}
+     */
+    void writeBinary(DataOutputStream output) throws IOException {
+        output.writeInt(vertexBuffer.length);
+        output.writeInt(indexBuffer.length);
+        output.writeInt(meshlets.length);
+        output.writeBoolean(hasTextureCoordinates);
+        output.writeFloat(maxSize);
+        for (Vertex vertex : vertexBuffer) {
+            output.writeFloat(vertex.x);
+            output.writeFloat(vertex.y);
+            output.writeFloat(vertex.z);
+            output.writeFloat(vertex.nx);
+            output.writeFloat(vertex.ny);
+            output.writeFloat(vertex.nz);
+            output.writeFloat(vertex.u);
+            output.writeFloat(vertex.v);
+        }
+        for (int index : indexBuffer) {
+            output.writeInt(index);
+        }
+        for (Meshlet meshlet : meshlets) {
+            output.writeInt(meshlet.indices.length);
+            for (int index : meshlet.indices) {
+                output.writeInt(index);
+            }
+            output.writeFloat(meshlet.centerX);
+            output.writeFloat(meshlet.centerY);
+            output.writeFloat(meshlet.centerZ);
+            output.writeFloat(meshlet.radius);
+            output.writeFloat(meshlet.coneAxisX);
+            output.writeFloat(meshlet.coneAxisY);
+            output.writeFloat(meshlet.coneAxisZ);
+            output.writeFloat(meshlet.coneSine);
+        }
+        output.writeBoolean(bspTree != null);
+        if (bspTree != null) {
+            bspTree.writeBinary(output, vertexBuffer.length);
+        }
+    }
+
+    /**
+     * Reads a model written by {@link #writeBinary}, leaving the buffer's position after it
+     *
+     * @throws java.nio.BufferUnderflowException If the buffer ends before the model does.
+     * @throws IllegalArgumentException If the data isn't a valid model.
+     */
+    static Model readBinary(ByteBuffer buffer) {
+        final Model model = new Model();
+        final int vertexCount = buffer.getInt();
+        final int indexCount = buffer.getInt();
+        final int meshletCount = buffer.getInt();
+        if (vertexCount < 0 || indexCount < 0 || indexCount % 3 != 0 || meshletCount < 0) {
+            throw new IllegalArgumentException("Invalid model sizes");
+        }
+        // 8 floats per vertex and at least a count and 8 floats per meshlet
+        checkRemaining(buffer, vertexCount, 32);
+        checkRemaining(buffer, meshletCount, 36);
+        model.hasTextureCoordinates = buffer.get() != 0;
+        model.maxSize = buffer.getFloat();
+
+        final float[] vertexData = new float[vertexCount * 8];
+        final FloatBuffer floats = buffer.asFloatBuffer();
+        floats.get(vertexData);
+        buffer.position(buffer.position() + vertexData.length * 4);
+        model.vertexBuffer = new Vertex[vertexCount];
+        for (int i = 0, j = 0; i < vertexCount; ++i, j += 8) {
+            final Vertex vertex = new Vertex();
+            vertex.x = vertexData[j];
+            vertex.y = vertexData[j + 1];
+            vertex.z = vertexData[j + 2];
+            vertex.nx = vertexData[j + 3];
+            vertex.ny = vertexData[j + 4];
+            vertex.nz = vertexData[j + 5];
+            vertex.u = vertexData[j + 6];
+            vertex.v = vertexData[j + 7];
+            model.vertexBuffer[i] = vertex;
+        }
+
+        model.indexBuffer = readIndices(buffer, indexCount, vertexCount);
+        model.meshlets = new Meshlet[meshletCount];
+        for (int i = 0; i < meshletCount; ++i) {
+            final int meshletIndexCount = buffer.getInt();
+            if (meshletIndexCount < 0 || meshletIndexCount % 3 != 0) {
+                throw new IllegalArgumentException("Invalid meshlet size");
+            }
+            final int[] indices = readIndices(buffer, meshletIndexCount, vertexCount);
+            model.meshlets[i] = new Meshlet(indices, buffer.getFloat(), buffer.getFloat(), buffer.getFloat(),
+                    buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+        }
+        if (buffer.get() != 0) {
+            model.bspTree = BspTree.readBinary(buffer, model.vertexBuffer);
+        }
+        return model;
+    }
+
+    private static int[] readIndices(ByteBuffer buffer, int count, int vertexCount) {
+        checkRemaining(buffer, count, 4);
+        final int[] indices = new int[count];
+        final IntBuffer ints = buffer.asIntBuffer();
+        ints.get(indices);
+        buffer.position(buffer.position() + count * 4);
+        for (int index : indices) {
+            if (index < 0 || index >= vertexCount) {
+                throw new IllegalArgumentException("Vertex index " + index + " is out of range");
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Checks a count read from a buffer before an array is made for it, so that a corrupted count is found instead of
+     * running out of memory
+     *
+     * @param itemSize The number of bytes each item takes in the buffer.
+     * @throws IllegalArgumentException If the buffer doesn't have count items left.
+     */
+    static void checkRemaining(ByteBuffer buffer, int count, int itemSize) {
+        if ((long)count * itemSize > buffer.remaining()) {
+            throw new IllegalArgumentException("The buffer is too short for " + count + " items");
+        }
+    }
+
+    /**
+     * Reports progress if there is a listener and stops loading if the thread has been interrupted
+     *
+     * @throws CancellationException If the thread has been interrupted.
+     */
+    static void reportProgress(ProgressListener progressListener, String task, long done, long total) {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException();
+        }
+        if (progressListener != null) {
+            progressListener.progress(task, done, total);
+        }
+    }
+
+    /**
+     * @return True if the texture coordinates were loaded from the model file, false if they were generated.
+     */
+    public boolean hasTextureCoordinates() {
+        return hasTextureCoordinates;
+    }
+
+    /**
+     * Generates texture coordinates by projecting the vertices onto a sphere around the center of the model
+     */
+    private void generateTextureCoordinates() {
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for (Vertex vertex : vertexBuffer) {
+            minX = Math.min(minX, vertex.x); maxX = Math.max(maxX, vertex.x);
+            minY = Math.min(minY, vertex.y); maxY = Math.max(maxY, vertex.y);
+            minZ = Math.min(minZ, vertex.z); maxZ = Math.max(maxZ, vertex.z);
+        }
+        final float centerX = (minX + maxX) * 0.5f;
+        final float centerY = (minY + maxY) * 0.5f;
+        final float centerZ = (minZ + maxZ) * 0.5f;
+        Vector3 direction = new Vector3();
+        for (Vertex vertex : vertexBuffer) {
+            direction.x = vertex.x - centerX;
+            direction.y = vertex.y - centerY;
+            direction.z = vertex.z - centerZ;
+            direction.normalize();
+            vertex.u = 0.5f + (float)(Math.atan2(direction.z, direction.x) / (2.0 * Math.PI));
+            vertex.v = 0.5f - (float)(Math.asin(direction.y) / Math.PI);
+        }
+    }
+
     /**
      * Returns the largest absolute coordinate value of the original,
      * untransformed model data.
@@ -153,6 +423,17 @@ public class Model {
         return maxSize;
     }
 
+    /**
+     * @return The vertex buffer as packed streams for {@link GraphicsEngine#runVertexStage}. The vertex buffer must
+     * not be changed after this is first called.
+     */
+    public synchronized VertexStreams getVertexStreams() {
+        if (vertexStreams == null) {
+            vertexStreams = VertexStreams.create(vertexBuffer);
+        }
+        return vertexStreams;
+    }
+
      /**
       * Calculates the normal of a triangle
       */
@@ -0,0 +1,266 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Keeps loaded models on disk in a binary form that includes everything derived from the model file, so that loading
+ * the same model again doesn't have to parse the file or recalculate normals, meshlets and BSP trees. Entries are
+ * named by the SHA-256 hash of the model file's contents, so a changed file is never matched with an old entry. When
+ * the entries take up more than the size limit, the least recently used ones are deleted. An entry's last modified
+ * time records when it was last used.
+ */
+public class ModelCache {
+    public static final long defaultMaxSize = 512L * 1024L * 1024L;
+
+    private static final int magic = 0x4D444C43;
+    // must be changed whenever the binary format or the way any of the cached data is calculated changes
+    private static final int version = 2;
+    private static final String entrySuffix = ".model";
+    private static final int hashBufferSize = 1 << 20;
+
+    private final File directory;
+    private final long maxSize;
+
+    /**
+     * @param directory The directory to keep entries in. It is created if it doesn't exist.
+     * @param maxSize The number of bytes that entries can use in total.
+     */
+    public ModelCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return A directory in the user's home directory
+     */
+    public static File getDefaultDirectory() {
+        return new File(new File(System.getProperty("user.home"), ".modelviewer"), "cache");
+    }
+
+    /**
+     * Loads a model from the cache if it has an entry for the file's contents, otherwise loads it from the file and
+     * adds it to the cache. Loading can be cancelled by interrupting the thread that is loading it.
+     *
+     * @param file The file to load.
+     * @param progressListener Receives progress reports, or null.
+     * @return The {@link Model}, or null if an error occurred or loading was cancelled.
+     */
+    public Model load(final File file, final Model.ProgressListener progressListener) {
+        return load(file, progressListener, false);
+    }
+
+    /**
+     * Like load but can also build the model's BSP tree. A cached model without a tree gets one and its entry is
+     * replaced with one that includes it.
+     *
+     * @param buildBspTree True to make sure the model has a {@link BspTree}.
+     */
+    public Model load(final File file, final Model.ProgressListener progressListener, final boolean buildBspTree) {
+        final String hash;
+        try {
+            hash = hashFile(file, progressListener);
+        } catch (CancellationException e) {
+            System.out.println("Loading " + file.toString() + " was cancelled");
+            return null;
+        } catch (IOException e) {
+            System.err.println("Could not read " + file.toString() + ": " + e.getMessage());
+            return null;
+        }
+
+        final File entry = new File(directory, hash + entrySuffix);
+        if (entry.isFile()) {
+            final Model model;
+            try {
+                model = readEntry(entry, hash);
+            } catch (ClosedByInterruptException e) {
+                System.out.println("Loading " + file.toString() + " was cancelled");
+                return null;
+            } catch (IOException e) {
+                // the entry might be fine, so it is kept and the model is loaded from the file instead
+                System.err.println("Could not read cache entry " + entry.toString() + ": " + e.getMessage());
+                return loadFromFile(file, entry, hash, progressListener, buildBspTree);
+            }
+            if (model != null) {
+                if (buildBspTree && model.bspTree == null) {
+                    if (!buildBspTree(file, model, progressListener)) return null;
+                    writeEntry(entry, hash, model);
+                    evict();
+                } else {
+                    // mark it as recently used
+                    entry.setLastModified(System.currentTimeMillis());
+                }
+                return model;
+            }
+            System.err.println("Deleting invalid cache entry " + entry.toString());
+            entry.delete();
+        }
+        return loadFromFile(file, entry, hash, progressListener, buildBspTree);
+    }
+
+    /**
+     * Loads the model from the file and writes it to the entry
+     */
+    private Model loadFromFile(final File file, final File entry, final String hash,
+                               final Model.ProgressListener progressListener, final boolean buildBspTree) {
+        final Model model = Model.loadModel(file, progressListener);
+        if (model != null) {
+            if (buildBspTree && !buildBspTree(file, model, progressListener)) return null;
+            writeEntry(entry, hash, model);
+            evict();
+        }
+        return model;
+    }
+
+    /**
+     * @return False if building was cancelled
+     */
+    private static boolean buildBspTree(final File file, final Model model,
+                                        final Model.ProgressListener progressListener) {
+        try {
+            model.buildBspTree(progressListener);
+            return true;
+        } catch (CancellationException e) {
+            System.out.println("Loading " + file.toString() + " was cancelled");
+            return false;
+        }
+    }
+
+    /**
+     * @return The hash of the file's contents as a hexadecimal string
+     */
+    private static String hashFile(final File file, final Model.ProgressListener progressListener)
+            throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java implementation has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        final long fileSize = file.length();
+        final byte[] buffer = new byte[hashBufferSize];
+        long done = 0;
+        try (final InputStream input = new FileInputStream(file)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                done += read;
+                Model.reportProgress(progressListener, "Hashing file", done, fileSize);
+            }
+        }
+        final StringBuilder hash = new StringBuilder();
+        for (byte value : digest.digest()) {
+            hash.append(Character.forDigit((value >> 4) & 15, 16));
+            hash.append(Character.forDigit(value & 15, 16));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Reads the whole entry into the heap rather than mapping it, because a mapped file can't be replaced on Windows
+     * until the mapping is garbage collected, which would stop {@link #writeEntry} replacing the entry when a BSP tree
+     * is added to it.
+     *
+     * @return The model, or null if the entry isn't valid
+     * @throws IOException If the entry couldn't be read, including {@link ClosedByInterruptException} if loading was
+     *                     cancelled.
+     */
+    private static Model readEntry(final File entry, final String hash) throws IOException {
+        final ByteBuffer buffer;
+        try (final FileChannel channel = new RandomAccessFile(entry, "r").getChannel()) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("The entry is too big to read");
+            buffer = ByteBuffer.allocate((int)size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) return null;
+            }
+        }
+        buffer.flip();
+        try {
+            if (buffer.getInt() != magic || buffer.getInt() != version) return null;
+            final byte[] entryHash = new byte[buffer.getInt()];
+            buffer.get(entryHash);
+            if (!hash.equals(new String(entryHash, "US-ASCII"))) return null;
+            final Model model = Model.readBinary(buffer);
+            // the entry ends with the magic number again so that entries that weren't completely written are found
+            if (buffer.getInt() != magic || buffer.hasRemaining()) return null;
+            return model;
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the entry to a temporary file first and then renames it so that other loads never see a partly written
+     * entry
+     */
+    private void writeEntry(final File entry, final String hash, final Model model) {
+        File temporaryFile = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create the directory " + directory.toString());
+            }
+            temporaryFile = File.createTempFile(hash, ".tmp", directory);
+            try (final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temporaryFile)))) {
+                output.writeInt(magic);
+                output.writeInt(version);
+                final byte[] hashBytes = hash.getBytes("US-ASCII");
+                output.writeInt(hashBytes.length);
+                output.write(hashBytes);
+                model.writeBinary(output);
+                output.writeInt(magic);
+            }
+            try {
+                Files.move(temporaryFile.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryFile.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            temporaryFile = null;
+        } catch (IOException e) {
+            System.err.println("Could not write cache entry " + entry.toString() + ": " + e.getMessage());
+        } finally {
+            if (temporaryFile != null) {
+                temporaryFile.delete();
+            }
+        }
+    }
+
+    /**
+     * deletes the least recently used entries until the entries fit in the size limit
+     */
+    private void evict() {
+        final File[] entries = directory.listFiles((dir, name) -> name.endsWith(entrySuffix));
+        if (entries == null) return;
+        long totalSize = 0;
+        for (File entry : entries) {
+            totalSize += entry.length();
+        }
+        if (totalSize <= maxSize) return;
+
+        final long[] lastUsed = new long[entries.length];
+        final Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < entries.length; ++i) {
+            lastUsed[i] = entries[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> lastUsed[i]));
+        for (int i = 0; i < order.length && totalSize > maxSize; ++i) {
+            final File entry = entries[order[i]];
+            final long size = entry.length();
+            if (entry.delete()) {
+                totalSize -= size;
+            }
+        }
+    }
+}
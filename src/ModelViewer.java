@@ -1,3 +1,4 @@
+import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.border.BevelBorder;
 import javax.swing.border.Border;
@@ -7,11 +8,21 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Allows users to load .dat model files which can then by displayed in different ways
  */
 public class ModelViewer {
+    // model files bigger than this fraction of the maximum heap size are streamed and the chunks of streamed models
+    // in memory are limited to the same amount
+    private static final int streamingFileFraction = 4;
+    // the milliseconds per frame that dynamic resolution can aim for, in the order of cmbFrameTimeBudget
+    private static final float[] frameTimeBudgets = {8f, 16f, 33f, 50f};
+
     private JFrame frame;
     private Canvas canvas;
 
@@ -21,6 +32,8 @@ public class ModelViewer {
     private JSlider sliderRotateX;
     private JSlider sliderRotateY;
     private JSlider sliderRotateZ;
+    // the rotation or scale being applied to the world matrix
+    private final Matrix4x4 rotation = Matrix4x4.getIdentity();
 
     private JButton btnScaleUp;
     private JButton btnScaleDown;
@@ -34,10 +47,43 @@ public class ModelViewer {
     private JCheckBox chkRenderWireframe;
     private JCheckBox chkRenderSolid;
     private JCheckBox chkCullBackFaces;
+    private JCheckBox chkDeferredShading;
+    private JCheckBox chkSmoothWireframe;
+    private JCheckBox chkDynamicResolution;
+    private JCheckBox chkGouraudShading;
+    private JCheckBox chkFlatShading;
+    private JCheckBox chkDepthPrepass;
+    private JCheckBox chkBspOrdering;
+    private JComboBox<String> cmbHeatmap;
+    private JComboBox<String> cmbTransparency;
+    private JComboBox<String> cmbAntiAliasing;
+    private JComboBox<String> cmbShadingRate;
+    private JComboBox<String> cmbFrameTimeBudget;
 
     private JMenuItem menuOpenModelFile;
+    private JMenuItem menuOpenTextureFile;
+    private JMenuItem menuRemoveTexture;
+
+    private JPanel loadingPanel;
+    private JProgressBar progressLoading;
+    private JButton btnCancelLoading;
+    // models are loaded on this thread so that the GUI keeps responding, the old model is drawn until loading finishes
+    private final ExecutorService loadExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "Model loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> loadingTask;
+    // models that fit in memory are loaded through the cache so that opening them again is fast
+    private final ModelCache modelCache = new ModelCache(ModelCache.getDefaultDirectory(), ModelCache.defaultMaxSize);
+    // incremented every time loading starts or is cancelled so that results of old loads can be ignored
+    private int loadId;
 
     private Model currentModel;
+    // the file currentModel was loaded from
+    private File currentFile;
+    // used instead of currentModel when the model file is too big to load into memory
+    private StreamingModel currentStreamingModel;
 
     //////////////////////////////////////////////////////////////////////////////
     /**
@@ -48,23 +94,24 @@ public class ModelViewer {
         @Override
         public void stateChanged(ChangeEvent e) {
             final JSlider source = (JSlider) e.getSource();
-            if (currentModel != null) {
+            if (hasModel()) {
+                // the world matrix is changed in place so that dragging a slider doesn't allocate
+                final Matrix4x4 worldMatrix = canvas.getWorldMatrix();
                 if (source == sliderRotateX) {
-                    canvas.setWorldMatrix(canvas.getWorldMatrix().
-                            mul(Matrix4x4.getRotationX((float)Math.toRadians(sliderRotateX.getValue() - oldRotateX))));
+                    rotation.setRotationX((float)Math.toRadians(sliderRotateX.getValue() - oldRotateX));
                     oldRotateX = sliderRotateX.getValue();
                 } else if (source == sliderRotateY) {
-                    canvas.setWorldMatrix(canvas.getWorldMatrix().
-                            mul(Matrix4x4.getRotationY((float)Math.toRadians(sliderRotateY.getValue() - oldRotateY))));
+                    rotation.setRotationY((float)Math.toRadians(sliderRotateY.getValue() - oldRotateY));
                     oldRotateY = sliderRotateY.getValue();
                 } else if (source == sliderRotateZ) {
-                    canvas.setWorldMatrix(canvas.getWorldMatrix().
-                            mul(Matrix4x4.getRotationZ((float)Math.toRadians(sliderRotateZ.getValue() - oldRotateZ))));
+                    rotation.setRotationZ((float)Math.toRadians(sliderRotateZ.getValue() - oldRotateZ));
                     oldRotateZ = sliderRotateZ.getValue();
+                } else {
+                    rotation.setIdentity();
                 }
+                worldMatrix.mulInto(rotation, worldMatrix);
 
-                canvas.updateTransform();
-                canvas.repaint();
+                canvas.invalidateTransform();
             }
         }
     };
@@ -77,36 +124,37 @@ public class ModelViewer {
         @Override
         public void actionPerformed(ActionEvent e) {
             final Object source = e.getSource();
-            if (currentModel != null) {
+            if (hasModel()) {
                 // scale changes
                 if (source == btnScaleUp) {
-                    canvas.setWorldMatrix(canvas.getWorldMatrix().mul(Matrix4x4.getScale(1.1f, 1.1f, 1.1f)));
+                    rotation.setScale(1.1f, 1.1f, 1.1f);
+                    canvas.getWorldMatrix().mulInto(rotation, canvas.getWorldMatrix());
                 } else if (source == btnScaleDown) {
-                    canvas.setWorldMatrix(canvas.getWorldMatrix().mul(Matrix4x4.getScale(0.9f, 0.9f, 0.9f)));
+                    rotation.setScale(0.9f, 0.9f, 0.9f);
+                    canvas.getWorldMatrix().mulInto(rotation, canvas.getWorldMatrix());
                 }
                 // translation changes
                 else if (source == btnIncrX) {
-                    canvas.getWorldMatrix().translate(0.1f * currentModel.getMaxSize(), 0f, 0f);
+                    canvas.getWorldMatrix().translate(0.1f * getModelSize(), 0f, 0f);
                 } else if (source == btnDecrX) {
-                    canvas.getWorldMatrix().translate(-0.1f * currentModel.getMaxSize(), 0f, 0f);
+                    canvas.getWorldMatrix().translate(-0.1f * getModelSize(), 0f, 0f);
                 } else if (source == btnIncrY) {
-                    canvas.getWorldMatrix().translate(0f, 0.1f * currentModel.getMaxSize(), 0f);
+                    canvas.getWorldMatrix().translate(0f, 0.1f * getModelSize(), 0f);
                 } else if (source == btnDecrY) {
-                    canvas.getWorldMatrix().translate(0.f, -0.1f * currentModel.getMaxSize(), 0f);
+                    canvas.getWorldMatrix().translate(0.f, -0.1f * getModelSize(), 0f);
                 } else if (source == btnIncrZ) {
-                    canvas.getWorldMatrix().translate(0.f, 0f, 0.1f * currentModel.getMaxSize());
+                    canvas.getWorldMatrix().translate(0.f, 0f, 0.1f * getModelSize());
                 } else if (source == btnDecrZ) {
-                    canvas.getWorldMatrix().translate(0.f, 0f, -0.1f * currentModel.getMaxSize());
+                    canvas.getWorldMatrix().translate(0.f, 0f, -0.1f * getModelSize());
                 }
 
-                canvas.updateTransform();
-                canvas.repaint();
+                canvas.invalidateTransform();
             }
         }
     };
 
     /**
-     * Handles input for filling frame mode and culling mode
+     * Handles input for filling frame mode, culling mode, shading mode and anti-aliasing
      */
     private ActionListener chkActionListener = new ActionListener() {
 
@@ -119,6 +167,46 @@ public class ModelViewer {
                 canvas.setFill(chkRenderSolid.isSelected());
             } else if (source == chkCullBackFaces) {
                 canvas.setCullBackFace(chkCullBackFaces.isSelected());
+            } else if (source == chkDeferredShading) {
+                canvas.setDeferred(chkDeferredShading.isSelected());
+            } else if (source == chkSmoothWireframe) {
+                canvas.setAntialiasedLines(chkSmoothWireframe.isSelected());
+            } else if (source == chkDynamicResolution) {
+                canvas.setDynamicResolution(chkDynamicResolution.isSelected());
+                cmbFrameTimeBudget.setEnabled(chkDynamicResolution.isSelected());
+            } else if (source == cmbFrameTimeBudget) {
+                canvas.setFrameTimeBudget(frameTimeBudgets[cmbFrameTimeBudget.getSelectedIndex()]);
+            } else if (source == chkGouraudShading) {
+                canvas.setGouraud(chkGouraudShading.isSelected());
+                chkFlatShading.setEnabled(chkGouraudShading.isSelected());
+            } else if (source == chkFlatShading) {
+                canvas.setFlatShading(chkFlatShading.isSelected());
+            } else if (source == chkDepthPrepass) {
+                canvas.setDepthPrepass(chkDepthPrepass.isSelected());
+            } else if (source == chkBspOrdering) {
+                canvas.setBspOrdering(chkBspOrdering.isSelected());
+                // the tree is built when a model is loaded, so load the current model again through the cache
+                if (chkBspOrdering.isSelected() && currentModel != null && currentModel.bspTree == null) {
+                    startLoadingModel(currentFile);
+                }
+            } else if (source == cmbHeatmap) {
+                final int index = cmbHeatmap.getSelectedIndex();
+                canvas.setHeatmapMode(index == 0 ? null : HeatmapRenderTarget.Mode.values()[index - 1]);
+                // the heat map can't measure the multisampled rasterizer or Gouraud spans, so they are turned off
+                cmbAntiAliasing.setEnabled(index == 0);
+                cmbAntiAliasing.setToolTipText(index == 0 ? null : "Anti-aliasing is off while a heat map is shown");
+                chkGouraudShading.setToolTipText(index == 0 ? null :
+                        "Gouraud colors are interpolated per pixel while a heat map is shown");
+            } else if (source == cmbTransparency) {
+                canvas.setTransparency(Canvas.Transparency.values()[cmbTransparency.getSelectedIndex()]);
+            } else if (source == cmbShadingRate) {
+                final int index = cmbShadingRate.getSelectedIndex();
+                // the last entry picks the rate of each tile from the last frame
+                final boolean adaptive = index == cmbShadingRate.getItemCount() - 1;
+                canvas.setAdaptiveShadingRate(adaptive);
+                canvas.setShadingRate(adaptive ? 1 : 1 << index);
+            } else if (source == cmbAntiAliasing) {
+                canvas.setMultisampleCount(1 << cmbAntiAliasing.getSelectedIndex());
             }
 
             canvas.repaint();
@@ -133,14 +221,21 @@ public class ModelViewer {
         @Override
         public void actionPerformed(ActionEvent e) {
             if (e.getSource() == menuOpenModelFile) {
-                final Model model = loadModelFile();
-                if (model != null) {
-                    currentModel = model;
-                    canvas.setModel(model);
-
-                    canvas.updateTransform();
+                final File file = chooseModelFile();
+                if (file != null) {
+                    startLoadingModel(file);
+                }
+            } else if (e.getSource() == btnCancelLoading) {
+                cancelLoading();
+            } else if (e.getSource() == menuOpenTextureFile) {
+                final Texture2D texture = loadTextureFile();
+                if (texture != null) {
+                    canvas.setTexture(texture);
                     canvas.repaint();
                 }
+            } else if (e.getSource() == menuRemoveTexture) {
+                canvas.setTexture(null);
+                canvas.repaint();
             }
         }
     };
@@ -171,6 +266,7 @@ public class ModelViewer {
         final JComponent controlPanel = createControlPanel();
         controlPanel.setBorder(border);
         contentPane.add(controlPanel, BorderLayout.LINE_START);
+        contentPane.add(createLoadingPanel(), BorderLayout.PAGE_END);
 
         // add the menu
         final JMenuBar menuBar = new JMenuBar();
@@ -180,6 +276,12 @@ public class ModelViewer {
         menuOpenModelFile = new JMenuItem("Open");
         menuOpenModelFile.addActionListener(menuActionListener);
         fileMenu.add(menuOpenModelFile);
+        menuOpenTextureFile = new JMenuItem("Open Texture");
+        menuOpenTextureFile.addActionListener(menuActionListener);
+        fileMenu.add(menuOpenTextureFile);
+        menuRemoveTexture = new JMenuItem("Remove Texture");
+        menuRemoveTexture.addActionListener(menuActionListener);
+        fileMenu.add(menuRemoveTexture);
 
         // register a key event dispatcher to get a turn in handling all
         // key events, independent of which component currently has the focus
@@ -330,39 +432,260 @@ public class ModelViewer {
         chkCullBackFaces = new JCheckBox("Cull Back Faces");
         chkCullBackFaces.setSelected(true);
         chkCullBackFaces.addActionListener(chkActionListener);
+        toolbar.add(chkCullBackFaces, gbc);
+
+        chkDeferredShading = new JCheckBox("Deferred Shading");
+        chkDeferredShading.setSelected(false);
+        chkDeferredShading.addActionListener(chkActionListener);
+        toolbar.add(chkDeferredShading, gbc);
+
+        chkSmoothWireframe = new JCheckBox("Smooth Wireframe");
+        chkSmoothWireframe.setSelected(false);
+        chkSmoothWireframe.addActionListener(chkActionListener);
+        toolbar.add(chkSmoothWireframe, gbc);
+
+        chkDynamicResolution = new JCheckBox("Dynamic Resolution");
+        chkDynamicResolution.setSelected(false);
+        chkDynamicResolution.addActionListener(chkActionListener);
+        toolbar.add(chkDynamicResolution, gbc);
+
+        cmbFrameTimeBudget = new JComboBox<>(new String[]{"8 ms Frames (120 fps)", "16 ms Frames (60 fps)",
+                "33 ms Frames (30 fps)", "50 ms Frames (20 fps)"});
+        // the budget Canvas starts with
+        cmbFrameTimeBudget.setSelectedIndex(1);
+        // only used by dynamic resolution
+        cmbFrameTimeBudget.setEnabled(false);
+        cmbFrameTimeBudget.addActionListener(chkActionListener);
+        toolbar.add(cmbFrameTimeBudget, gbc);
+
+        chkGouraudShading = new JCheckBox("Gouraud Shading");
+        chkGouraudShading.setSelected(false);
+        chkGouraudShading.addActionListener(chkActionListener);
+        toolbar.add(chkGouraudShading, gbc);
+
+        chkFlatShading = new JCheckBox("Flat Shading");
+        chkFlatShading.setSelected(false);
+        // only Gouraud shaded triangles can be flat shaded
+        chkFlatShading.setEnabled(false);
+        chkFlatShading.addActionListener(chkActionListener);
+        toolbar.add(chkFlatShading, gbc);
+
+        chkDepthPrepass = new JCheckBox("Depth Pre-pass");
+        chkDepthPrepass.setSelected(false);
+        chkDepthPrepass.addActionListener(chkActionListener);
+        toolbar.add(chkDepthPrepass, gbc);
+
+        chkBspOrdering = new JCheckBox("BSP Ordering");
+        chkBspOrdering.setSelected(false);
+        chkBspOrdering.addActionListener(chkActionListener);
+        toolbar.add(chkBspOrdering, gbc);
+
+        cmbHeatmap = new JComboBox<>(new String[]{"No Heat Map", "Overdraw Heat Map", "Shading Cost Heat Map"});
+        cmbHeatmap.addActionListener(chkActionListener);
+        toolbar.add(cmbHeatmap, gbc);
+
+        cmbTransparency = new JComboBox<>(new String[]{"Opaque", "Alpha Blended", "Additive", "Premultiplied Alpha",
+                "Weighted Blended OIT"});
+        cmbTransparency.addActionListener(chkActionListener);
+        toolbar.add(cmbTransparency, gbc);
+
+        cmbShadingRate = new JComboBox<>(new String[]{"1x1 Shading Rate", "2x2 Shading Rate", "4x4 Shading Rate",
+                "Adaptive Shading Rate"});
+        cmbShadingRate.addActionListener(chkActionListener);
+        toolbar.add(cmbShadingRate, gbc);
+
+        cmbAntiAliasing = new JComboBox<>(new String[]{"No Anti-aliasing", "2x MSAA", "4x MSAA", "8x MSAA"});
+        cmbAntiAliasing.addActionListener(chkActionListener);
         gbc = (GridBagConstraints) gbcDefault.clone();
         gbc.weighty = 1.;
         gbc.gridheight = GridBagConstraints.REMAINDER;
-        toolbar.add(chkCullBackFaces, gbc);
+        toolbar.add(cmbAntiAliasing, gbc);
 
         return toolbar;
     }
 
+    private boolean hasModel() {
+        return currentModel != null || currentStreamingModel != null;
+    }
+
     /**
-     * Displays a chooser dialog and loads the selected model.
+     * @return The largest absolute coordinate value of the current model
+     */
+    private float getModelSize() {
+        return currentModel != null ? currentModel.getMaxSize() : currentStreamingModel.getMaxSize();
+    }
+
+    /**
+     * Creates the panel that shows the progress of loading a model. It is hidden until a model is loading. Must be
+     * called from the EDT.
+     */
+    private JComponent createLoadingPanel() {
+        loadingPanel = new JPanel(new BorderLayout(10, 0));
+        loadingPanel.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
+        progressLoading = new JProgressBar(0, 100);
+        progressLoading.setStringPainted(true);
+        loadingPanel.add(progressLoading, BorderLayout.CENTER);
+        btnCancelLoading = new JButton("Cancel");
+        btnCancelLoading.addActionListener(menuActionListener);
+        loadingPanel.add(btnCancelLoading, BorderLayout.LINE_END);
+        loadingPanel.setVisible(false);
+        return loadingPanel;
+    }
+
+    /**
+     * Displays a chooser dialog for model files.
      *
-     * @return The model, or null if the user cancels the action or something
-     * goes wrong.
+     * @return The selected file, or null if the user cancels the action.
      */
-    private Model loadModelFile() {
+    private File chooseModelFile() {
         // show a file chooser for model files
         JFileChooser chooser = new JFileChooser("./");
         chooser.setFileFilter(new FileNameExtensionFilter(
                 ".dat model files", "dat"));
         int retVal = chooser.showOpenDialog(frame);
         if (retVal == JFileChooser.APPROVE_OPTION) {
-            File file = chooser.getSelectedFile();
+            return chooser.getSelectedFile();
+        }
+
+        return null;
+    }
+
+    /**
+     * Starts loading a model on the loader thread, cancelling any model that is already loading. Files that are too
+     * big to load into memory are streamed from disk in chunks instead. Must be called from the EDT.
+     */
+    private void startLoadingModel(final File file) {
+        cancelLoading();
+        final int id = loadId;
+        final long memoryBudget = Runtime.getRuntime().maxMemory() / streamingFileFraction;
+        final boolean stream = file.length() > memoryBudget;
+        final boolean buildBspTree = chkBspOrdering.isSelected();
+
+        final Model.ProgressListener progressListener = new Model.ProgressListener() {
+            private String lastTask;
+            private int lastPercent = -1;
+
+            @Override
+            public void progress(String task, long done, long total) {
+                // only bother the EDT when the displayed progress changes
+                final int percent = total > 0 ? (int)(done * 100 / total) : 0;
+                if (percent == lastPercent && task.equals(lastTask)) return;
+                lastPercent = percent;
+                lastTask = task;
+                SwingUtilities.invokeLater(() -> {
+                    if (id != loadId) return;
+                    progressLoading.setValue(percent);
+                    progressLoading.setString(task + " " + percent + "%");
+                });
+            }
+        };
+
+        progressLoading.setValue(0);
+        progressLoading.setString("Loading " + file.getName());
+        loadingPanel.setVisible(true);
+        frame.revalidate();
+        loadingTask = loadExecutor.submit(() -> {
+            Model model = null;
+            StreamingModel streamingModel = null;
+            try {
+                if (stream) {
+                    streamingModel = StreamingModel.open(file, memoryBudget, progressListener);
+                } else {
+                    model = modelCache.load(file, progressListener, buildBspTree);
+                }
+            } catch (Throwable e) {
+                // includes running out of memory, the loading panel must still be hidden
+                System.err.println("Could not load model " + file.toString() + ": " + e);
+            } finally {
+                final Model loadedModel = model;
+                final StreamingModel loadedStreamingModel = streamingModel;
+                SwingUtilities.invokeLater(() -> finishLoading(id, file, loadedModel, loadedStreamingModel));
+            }
+        });
+    }
 
-            // try to load the model from the selected file
-            final Model model = Model.loadModel(file);
+    /**
+     * Stops the model that is loading, if there is one, and keeps the current model. Must be called from the EDT.
+     */
+    private void cancelLoading() {
+        if (loadingTask != null) {
+            loadingTask.cancel(true);
+            loadingTask = null;
+        }
+        ++loadId;
+        loadingPanel.setVisible(false);
+        frame.revalidate();
+    }
 
-            if (model != null) {
-                float scale = Math.min((float)canvas.getWidth() / (float)canvas.getHeight(), 1f) / model.getMaxSize() * 7f;
-                canvas.setWorldMatrix(Matrix4x4.getTranslation(0f, 0f, -10f).mul(Matrix4x4.getScale(scale, scale, scale)));
-                //m_canvas.updateTransform(); //can't update transform yet or it will cause a NullPointerException
+    /**
+     * Replaces the current model with a model that has finished loading, all at once between frames so the canvas
+     * never draws a partly replaced model. Must be called from the EDT.
+     *
+     * @param id The loadId when loading started, the model is thrown away if loading has been cancelled since.
+     * @param file The file that was loaded.
+     * @param model The model, or null if a streaming model was loaded or loading failed.
+     * @param streamingModel The streaming model, or null if a model was loaded or loading failed.
+     */
+    private void finishLoading(int id, File file, Model model, StreamingModel streamingModel) {
+        if (id != loadId) {
+            if (streamingModel != null) {
+                streamingModel.close();
             }
+            return;
+        }
+        loadingTask = null;
+        loadingPanel.setVisible(false);
+        frame.revalidate();
+        if (model == null && streamingModel == null) return;
+
+        // a model loaded again to build its BSP tree keeps its position
+        final boolean reloaded = model != null && currentModel != null && file.equals(currentFile);
+        closeStreamingModel();
+        currentModel = model;
+        currentFile = file;
+        currentStreamingModel = streamingModel;
+        final float maxSize;
+        if (model != null) {
+            canvas.setModel(model);
+            maxSize = model.getMaxSize();
+        } else {
+            canvas.setStreamingModel(streamingModel);
+            maxSize = streamingModel.getMaxSize();
+        }
+        if (reloaded) {
+            canvas.invalidateTransform();
+            return;
+        }
+        float scale = Math.min((float)canvas.getWidth() / (float)canvas.getHeight(), 1f) / maxSize * 7f;
+        canvas.setWorldMatrix(Matrix4x4.getTranslation(0f, 0f, -10f).mul(Matrix4x4.getScale(scale, scale, scale)));
+        canvas.invalidateTransform();
+    }
+
+    private void closeStreamingModel() {
+        if (currentStreamingModel != null) {
+            currentStreamingModel.close();
+            currentStreamingModel = null;
+        }
+    }
 
-            return model;
+    /**
+     * Displays a chooser dialog and loads the selected texture.
+     *
+     * @return The texture, or null if the user cancels the action or something
+     * goes wrong.
+     */
+    private Texture2D loadTextureFile() {
+        JFileChooser chooser = new JFileChooser("./");
+        chooser.setFileFilter(new FileNameExtensionFilter(
+                "image files", ImageIO.getReaderFileSuffixes()));
+        int retVal = chooser.showOpenDialog(frame);
+        if (retVal == JFileChooser.APPROVE_OPTION) {
+            File file = chooser.getSelectedFile();
+            try {
+                return Texture2D.loadTexture(file);
+            } catch (IOException e) {
+                System.err.println("Could not load texture " + file.toString() + ": " + e.getMessage());
+            }
         }
 
         return null;
@@ -0,0 +1,167 @@
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * A render target with 2, 4 or 8 color and depth samples per pixel for multisample anti-aliasing.
+ * Solid triangles drawn to it are rasterized at every sample but their pixel shader only runs once per pixel, the
+ * color is stored in every covered sample that passes the depth test. Other primitives write every sample of a pixel.
+ * {@link #resolve(BufferedImage)} averages the samples to produce the final image.
+ */
+public class MultisampleRenderTarget implements GraphicsEngine.RenderTarget {
+    // standard sample positions relative to the pixel center in 1/16ths of a pixel
+    private static final int[] samplePattern2 = {4, 4, -4, -4};
+    private static final int[] samplePattern4 = {-2, -6, 6, -2, -6, 2, 2, 6};
+    private static final int[] samplePattern8 = {1, -3, -1, 3, 5, 1, -3, -5, -5, 5, -7, -1, 3, 7, 7, -7};
+
+    private final int width;
+    private final int height;
+    private final int sampleCount;
+    private final float[] sampleX;
+    private final float[] sampleY;
+
+    // sample s of pixel (x, y) is at index (y * width + x) * sampleCount + s
+    private final int[] colors;
+    private final float[] depths;
+    private final int[] resolvedRow;
+
+    public MultisampleRenderTarget(int width, int height, int sampleCount) {
+        final int[] pattern;
+        switch(sampleCount) {
+            case 2:
+                pattern = samplePattern2;
+                break;
+            case 4:
+                pattern = samplePattern4;
+                break;
+            case 8:
+                pattern = samplePattern8;
+                break;
+            default:
+                throw new IllegalArgumentException("Sample count must be 2, 4 or 8");
+        }
+        this.width = width;
+        this.height = height;
+        this.sampleCount = sampleCount;
+        sampleX = new float[sampleCount];
+        sampleY = new float[sampleCount];
+        for(int i = 0; i < sampleCount; ++i) {
+            sampleX[i] = 0.5f + pattern[i * 2] / 16f;
+            sampleY[i] = 0.5f + pattern[i * 2 + 1] / 16f;
+        }
+        colors = new int[width * height * sampleCount];
+        depths = new float[width * height * sampleCount];
+        resolvedRow = new int[width];
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return The x position of the sample relative to the left of the pixel
+     */
+    public float getSampleX(int sample) {
+        return sampleX[sample];
+    }
+
+    /**
+     * @return The y position of the sample relative to the top of the pixel
+     */
+    public float getSampleY(int sample) {
+        return sampleY[sample];
+    }
+
+    /**
+     * sets every sample to color and the furthest depth
+     */
+    public void clear(int color) {
+        Arrays.fill(colors, color);
+        Arrays.fill(depths, Float.POSITIVE_INFINITY);
+    }
+
+    @Override
+    public void write(int x, int y, GraphicsEngine.PixelShader pixelShader, Object[] rootSignature,
+                      Vector4[] pixelShaderInput) {
+        final int color = pixelShader.run(rootSignature, pixelShaderInput);
+        final int start = (y * width + x) * sampleCount;
+        for(int i = start; i < start + sampleCount; ++i) {
+            colors[i] = color;
+        }
+    }
+
+    /**
+     * writes the pixel shader's color to the number of samples proportional to coverage
+     */
+    @Override
+    public void writeCoverage(int x, int y, int coverage, GraphicsEngine.PixelShader pixelShader,
+                              Object[] rootSignature, Vector4[] pixelShaderInput) {
+        final int covered = (coverage * sampleCount + 128) >> 8;
+        if(covered == 0) return;
+        final int color = pixelShader.run(rootSignature, pixelShaderInput);
+        final int start = (y * width + x) * sampleCount;
+        for(int i = start; i < start + covered; ++i) {
+            colors[i] = color;
+        }
+    }
+
+    /**
+     * Depth tests the covered samples of a pixel and stores the depth of the ones that pass
+     * @param coverage Bit i is set if sample i is covered.
+     * @param sampleDepths The depth of each sample, smaller is closer.
+     * @return The coverage of the samples that passed the depth test.
+     */
+    int testDepth(int x, int y, int coverage, float[] sampleDepths) {
+        final int start = (y * width + x) * sampleCount;
+        int passed = 0;
+        for(int i = 0; i < sampleCount; ++i) {
+            if((coverage & (1 << i)) != 0 && sampleDepths[i] < depths[start + i]) {
+                depths[start + i] = sampleDepths[i];
+                passed |= 1 << i;
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * writes color to the samples of a pixel that have their bit set in coverage
+     */
+    void writeSamples(int x, int y, int coverage, int color) {
+        final int start = (y * width + x) * sampleCount;
+        for(int i = 0; i < sampleCount; ++i) {
+            if((coverage & (1 << i)) != 0) {
+                colors[start + i] = color;
+            }
+        }
+    }
+
+    /**
+     * Averages the samples of each pixel and writes the result to image
+     */
+    public void resolve(BufferedImage image) {
+        final int half = sampleCount / 2;
+        for(int y = 0, sample = 0; y < height; ++y) {
+            for(int x = 0; x < width; ++x) {
+                int red = half, green = half, blue = half;
+                for(int end = sample + sampleCount; sample < end; ++sample) {
+                    final int color = colors[sample];
+                    red += (color >> 16) & 255;
+                    green += (color >> 8) & 255;
+                    blue += color & 255;
+                }
+                resolvedRow[x] = (255 << 24) + ((red / sampleCount) << 16) + ((green / sampleCount) << 8) +
+                        (blue / sampleCount);
+            }
+            image.setRGB(0, y, width, 1, resolvedRow, 0, width);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import java.awt.image.BufferedImage;
+
+/**
+ * Draws models into images without a {@code Canvas}, with the same lighting and shaders as Canvas uses for solid
+ * surfaces. Each thread that renders needs its own OffscreenRenderer.
+ */
+public class OffscreenRenderer {
+    private final GraphicsEngine.PipelineState pipelineState = new GraphicsEngine.PipelineState();
+    private final GraphicsEngine.PipelineState wireFramePipelineState = new GraphicsEngine.PipelineState();
+    private boolean fill = true;
+    private boolean wireFrame = false;
+    private final Object[] rootArguments = new Object[5];
+    private final Matrix4x4 wvpMatrix = Matrix4x4.getIdentity();
+    private final MeshletCuller meshletCuller = new MeshletCuller();
+    // the sorted triangles of the meshlets that weren't culled, grown to fit the biggest model drawn
+    private int[] visibleIndices = new int[0];
+    private final TransformedVertices transformedVertices = new TransformedVertices();
+
+    /**
+     * @param texture The texture to draw models with, or null to draw them without one.
+     */
+    public OffscreenRenderer(Texture2D texture) {
+        pipelineState.cullBackFace = true;
+        pipelineState.fillMode = GraphicsEngine.FillMode.solid;
+        if (texture != null) {
+            pipelineState.vertexShaderInterpolateCount = TexturedPhongVS.interpolateCount;
+            pipelineState.derivativeInterpolate = TexturedPhongVS.textureCoordinatesInterpolate;
+            final TexturedPhongVS vertexShader = new TexturedPhongVS();
+            pipelineState.vertexShader = vertexShader;
+            pipelineState.batchVertexShader = vertexShader;
+            pipelineState.pixelShader = new TexturedPhongPS();
+        } else {
+            pipelineState.vertexShaderInterpolateCount = PhongVS.interpolateCount;
+            final PhongVS vertexShader = new PhongVS();
+            pipelineState.vertexShader = vertexShader;
+            pipelineState.batchVertexShader = vertexShader;
+            pipelineState.pixelShader = new PhongPS();
+        }
+
+        // the same wire frame color as Canvas
+        final GraphicsEngine.PixelShader wireFramePS =
+                (Object[] rootSignature, Vector4[] in) -> (255 << 24) + (140 << 16);
+        pipelineState.wireFramePixelShader = wireFramePS;
+        wireFramePipelineState.cullBackFace = true;
+        wireFramePipelineState.fillMode = GraphicsEngine.FillMode.wireFrame;
+        wireFramePipelineState.vertexShaderInterpolateCount = WireFrameVS.interpolateCount;
+        final WireFrameVS wireFrameVS = new WireFrameVS();
+        wireFramePipelineState.vertexShader = wireFrameVS;
+        wireFramePipelineState.batchVertexShader = wireFrameVS;
+        wireFramePipelineState.pixelShader = wireFramePS;
+
+        // the same light as Canvas
+        final PointLight pointLight = new PointLight(10f, 5f, -5f, 0.f, 0.f, 6.f);
+        final LightList lights = new LightList();
+        lights.add(pointLight);
+        rootArguments[2] = pointLight;
+        rootArguments[3] = lights;
+        rootArguments[4] = texture;
+    }
+
+    /**
+     * Sets whether surfaces are filled and whether their edges are drawn, the same as the check boxes in
+     * {@code ModelViewer}. Nothing is drawn if both are false.
+     */
+    public void setFillMode(boolean fill, boolean wireFrame) {
+        this.fill = fill;
+        this.wireFrame = wireFrame;
+        pipelineState.fillMode = wireFrame ? GraphicsEngine.FillMode.solidWireFrame : GraphicsEngine.FillMode.solid;
+    }
+
+    /**
+     * Creates a world matrix that places a model in front of the camera so that it fills most of a screen with the
+     * specified size, the same way as {@code ModelViewer} places a newly loaded model
+     *
+     * @param maxSize The largest absolute coordinate value of the model, from {@link Model#getMaxSize()}.
+     */
+    public static Matrix4x4 createFramingMatrix(float maxSize, int width, int height) {
+        final float scale = Math.min((float)width / (float)height, 1f) / maxSize * 7f;
+        return Matrix4x4.getTranslation(0f, 0f, -10f).mul(Matrix4x4.getScale(scale, scale, scale));
+    }
+
+    /**
+     * Clears the image to black and draws the model into it
+     *
+     * @param projectionMatrix A projection matrix for the size of the image, from
+     *                         {@code Canvas.createProjectionMatrix}.
+     */
+    public void render(Model model, Matrix4x4 worldMatrix, Matrix4x4 projectionMatrix, BufferedImage image) {
+        if (visibleIndices.length < model.indexBuffer.length) {
+            visibleIndices = new int[model.indexBuffer.length];
+        }
+        projectionMatrix.mulInto(worldMatrix, wvpMatrix);
+        rootArguments[0] = wvpMatrix;
+        rootArguments[1] = worldMatrix;
+        final int indexCount = meshletCuller.cull(model.meshlets, worldMatrix, wvpMatrix, image.getWidth(),
+                image.getHeight(), pipelineState.cullBackFace, visibleIndices);
+        TriangleSorter.sort(visibleIndices, indexCount, model.vertexBuffer, wvpMatrix);
+        GraphicsEngine.clear(image, 0);
+        if (!fill && !wireFrame) return;
+        final GraphicsEngine.PipelineState state = fill ? pipelineState : wireFramePipelineState;
+        GraphicsEngine.runVertexStage(state.batchVertexShader, state.vertexShaderInterpolateCount, rootArguments,
+                model.getVertexStreams(), visibleIndices, indexCount, transformedVertices);
+        GraphicsEngine.drawTransformed(state, rootArguments, transformedVertices, visibleIndices, indexCount,
+                new ImageRenderTarget(image));
+    }
+}
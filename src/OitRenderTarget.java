@@ -0,0 +1,214 @@
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Accumulates transparent pixels for weighted blended order-independent transparency (McGuire and Bavoil 2013).
+ * Every pixel adds its premultiplied color times a weight that falls off with distance to an accumulation buffer and
+ * multiplies a revealage buffer by one minus its alpha, which doesn't depend on the order the pixels are written in.
+ * {@link #resolve} then blends the weighted average color over the opaque image by how much of it is still revealed.
+ * The screen is split into tiles that are written through their own render targets so that
+ * {@code GraphicsEngine.drawWeightedBlended} can draw them in parallel.
+ */
+public class OitRenderTarget {
+    public static final int tileSize = 64;
+
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    // red, green and blue times alpha and alpha, all times the weight, for each pixel
+    private final float[] accumulation;
+    // the product of one minus the alpha of every pixel written, i.e. how much of the background shows through
+    private final float[] revealage;
+    private final Tile[] tiles;
+
+    public OitRenderTarget(int width, int height) {
+        this.width = width;
+        this.height = height;
+        tilesX = (width + tileSize - 1) / tileSize;
+        tilesY = (height + tileSize - 1) / tileSize;
+        accumulation = new float[width * height * 4];
+        revealage = new float[width * height];
+        tiles = new Tile[tilesX * tilesY];
+        for(int tileY = 0; tileY < tilesY; ++tileY) {
+            for(int tileX = 0; tileX < tilesX; ++tileX) {
+                tiles[tileY * tilesX + tileX] = new Tile(tileX * tileSize, tileY * tileSize);
+            }
+        }
+        clear();
+    }
+
+    public void clear() {
+        Arrays.fill(accumulation, 0f);
+        Arrays.fill(revealage, 1f);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    public int getTileCount() {
+        return tiles.length;
+    }
+
+    Tile getTile(int index) {
+        return tiles[index];
+    }
+
+    /**
+     * Blends the transparent pixels over renderTarget's image, which must be the same size. Tiles are resolved in
+     * parallel.
+     */
+    public void resolve(ImageRenderTarget renderTarget) {
+        final int[] pixels = renderTarget.getPixels();
+        IntStream.range(0, tiles.length).parallel().forEach(tile -> {
+            final int originX = tiles[tile].originX;
+            final int originY = tiles[tile].originY;
+            final int endX = Math.min(originX + tileSize, width);
+            final int endY = Math.min(originY + tileSize, height);
+            for(int y = originY; y < endY; ++y) {
+                for(int x = originX; x < endX; ++x) {
+                    final int index = y * width + x;
+                    final float revealed = revealage[index];
+                    if(revealed == 1f) continue;
+                    final int background = pixels != null ? pixels[index] : renderTarget.getImage().getRGB(x, y);
+                    final int color = composite(index, revealed, background);
+                    if(pixels != null) {
+                        pixels[index] = color;
+                    } else {
+                        renderTarget.getImage().setRGB(x, y, color);
+                    }
+                }
+            }
+        });
+    }
+
+    private int composite(int index, float revealed, int background) {
+        final int accumulationIndex = index * 4;
+        // the average premultiplied color divided by the average alpha gives the average color
+        final float inverseAlpha = 1f / Math.max(accumulation[accumulationIndex + 3], 1e-5f);
+        final float red = accumulation[accumulationIndex] * inverseAlpha;
+        final float green = accumulation[accumulationIndex + 1] * inverseAlpha;
+        final float blue = accumulation[accumulationIndex + 2] * inverseAlpha;
+        final float covered = 1f - revealed;
+        return 0xff000000 |
+                (compositeChannel(red, background >>> 16, covered, revealed) << 16) |
+                (compositeChannel(green, background >>> 8, covered, revealed) << 8) |
+                compositeChannel(blue, background, covered, revealed);
+    }
+
+    private static int compositeChannel(float average, int background, float covered, float revealed) {
+        return Math.min(255, (int)(average * covered + (background & 0xff) * revealed + 0.5f));
+    }
+
+    /**
+     * @param depth The distance from the camera along the view direction.
+     * @return How much a pixel counts towards the average color, from McGuire and Bavoil's equation 10
+     */
+    private static float weight(float alpha, float depth) {
+        final float near = depth / 5f;
+        final float far = depth / 200f;
+        final float far2 = far * far;
+        final float weight = 10f / (1e-5f + near * near + far2 * far2 * far2);
+        return alpha * Math.max(1e-2f, Math.min(3e3f, weight));
+    }
+
+    /**
+     * Writes to the part of the buffers covered by one tile. The triangles drawn to it must be moved so that the
+     * tile's origin is at (0, 0).
+     */
+    class Tile implements GraphicsEngine.TriangleRenderTarget {
+        private final int originX;
+        private final int originY;
+        private final int tileWidth;
+        private final int tileHeight;
+        // one over the view depth across the triangle, which unlike the view depth is linear in screen space
+        private float inverseDepthX;
+        private float inverseDepthY;
+        private float inverseDepthConstant;
+
+        private Tile(int originX, int originY) {
+            this.originX = originX;
+            this.originY = originY;
+            tileWidth = Math.min(tileSize, width - originX);
+            tileHeight = Math.min(tileSize, height - originY);
+        }
+
+        int getOriginX() {
+            return originX;
+        }
+
+        int getOriginY() {
+            return originY;
+        }
+
+        @Override
+        public void setTriangle(Vector4 pos1, Vector4 pos2, Vector4 pos3) {
+            final float inverse1 = 1f / pos1.w;
+            final float inverse2 = 1f / pos2.w;
+            final float inverse3 = 1f / pos3.w;
+            final float x1 = pos2.x - pos1.x, y1 = pos2.y - pos1.y, z1 = inverse2 - inverse1;
+            final float x2 = pos3.x - pos1.x, y2 = pos3.y - pos1.y, z2 = inverse3 - inverse1;
+            final float area = x1 * y2 - x2 * y1;
+            if(area == 0f) {
+                inverseDepthX = 0f;
+                inverseDepthY = 0f;
+                inverseDepthConstant = Math.max(inverse1, Math.max(inverse2, inverse3));
+            } else {
+                inverseDepthX = (z1 * y2 - z2 * y1) / area;
+                inverseDepthY = (x1 * z2 - x2 * z1) / area;
+                // measured at the centers of pixels like the rasterizer's coverage
+                inverseDepthConstant = inverse1 - inverseDepthX * (pos1.x - 0.5f) - inverseDepthY * (pos1.y - 0.5f);
+            }
+        }
+
+        @Override
+        public int getWidth() {
+            return tileWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return tileHeight;
+        }
+
+        @Override
+        public void write(int x, int y, GraphicsEngine.PixelShader pixelShader, Object[] rootSignature,
+                          Vector4[] pixelShaderInput) {
+            accumulate(x, y, pixelShader.run(rootSignature, pixelShaderInput), 1f);
+        }
+
+        @Override
+        public void writeCoverage(int x, int y, int coverage, GraphicsEngine.PixelShader pixelShader,
+                                  Object[] rootSignature, Vector4[] pixelShaderInput) {
+            accumulate(x, y, pixelShader.run(rootSignature, pixelShaderInput), coverage * (1f / 256f));
+        }
+
+        private void accumulate(int x, int y, int color, float coverage) {
+            final float alpha = (color >>> 24) * (1f / 255f) * coverage;
+            if(alpha <= 0f) return;
+            final float inverseDepth = inverseDepthX * x + inverseDepthY * y + inverseDepthConstant;
+            final float weight = weight(alpha, 1f / Math.max(inverseDepth, 1e-20f));
+            final int index = (originY + y) * width + originX + x;
+            final int accumulationIndex = index * 4;
+            final float weightedAlpha = alpha * weight;
+            accumulation[accumulationIndex] += ((color >>> 16) & 0xff) * weightedAlpha;
+            accumulation[accumulationIndex + 1] += ((color >>> 8) & 0xff) * weightedAlpha;
+            accumulation[accumulationIndex + 2] += (color & 0xff) * weightedAlpha;
+            accumulation[accumulationIndex + 3] += weightedAlpha;
+            revealage[index] *= 1f - alpha;
+        }
+    }
+}
@@ -15,12 +15,14 @@ public class PhongPS implements GraphicsEngine.PixelShader {
         if(lDotn > 0) {
             float distSq = minusLightVector.dot(minusLightVector);
             float lightAmount = lDotn / distSq;
+            float falloff = pointLight.falloff(distSq);
             minusLightVector.normalize();
             Vector3 viewDir = new Vector3(worldPos.x - 0f, worldPos.y - 0f, worldPos.z - 0f);
             viewDir.normalize();
             Vector3 h = viewDir.plus(minusLightVector);
             h.normalize();
             lightAmount += Math.pow(Math.max(h.dot(normal), 0f), 4) * 0.15;
+            lightAmount *= falloff;
             light.x += pointLight.brightnessR * lightAmount;
             light.y += pointLight.brightnessG * lightAmount;
             light.z += pointLight.brightnessB * lightAmount;
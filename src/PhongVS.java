@@ -2,7 +2,7 @@
  * A basic vertex shader that outputs normal and world position
  */
 
-public class PhongVS implements GraphicsEngine.VertexShader {
+public class PhongVS implements GraphicsEngine.VertexShader, GraphicsEngine.BatchVertexShader {
     @Override
     public void run(Object v, Object[] rootSignature, Vector4[] out) {
         Model.Vertex vertex = (Model.Vertex)v;
@@ -27,5 +27,14 @@ public class PhongVS implements GraphicsEngine.VertexShader {
         worldMatrix.transformAsMatrix3x3(normal);
     }
 
+    @Override
+    public void run(VertexStreams vertices, Object[] rootSignature, int start, int end, TransformedVertices out) {
+        Matrix4x4 wvpMatrix = (Matrix4x4)rootSignature[0];
+        Matrix4x4 worldMatrix = (Matrix4x4)rootSignature[1];
+        wvpMatrix.transformPoints(vertices.positions, vertices.count, start, end, out.getOutput(0));
+        worldMatrix.transformPoints(vertices.positions, vertices.count, start, end, out.getOutput(1));
+        worldMatrix.transformVectors(vertices.normals, vertices.count, start, end, out.getOutput(2));
+    }
+
     public static final int interpolateCount = 3;
 }
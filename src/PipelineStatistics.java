@@ -0,0 +1,59 @@
+/**
+ * Counts the pixels handled by the passes of {@code GraphicsEngine.drawWithDepthPrepass}. The counts add up over
+ * draws until {@link #reset()} is called.
+ */
+public class PipelineStatistics {
+    private long depthPassPixels;
+    private long shadingPassPixels;
+    private long pixelsShaded;
+
+    public void reset() {
+        depthPassPixels = 0;
+        shadingPassPixels = 0;
+        pixelsShaded = 0;
+    }
+
+    void addDepthPassPixel() {
+        ++depthPassPixels;
+    }
+
+    void addShadingPassPixel(boolean shaded) {
+        ++shadingPassPixels;
+        if (shaded) ++pixelsShaded;
+    }
+
+    /**
+     * @return The number of pixels rasterized by the depth-only pass
+     */
+    public long getDepthPassPixels() {
+        return depthPassPixels;
+    }
+
+    /**
+     * @return The number of pixels rasterized by the shading pass, which is how many times the pixel shader would have
+     * run without the depth pre-pass
+     */
+    public long getShadingPassPixels() {
+        return shadingPassPixels;
+    }
+
+    /**
+     * @return The number of times the pixel shader ran
+     */
+    public long getPixelsShaded() {
+        return pixelsShaded;
+    }
+
+    /**
+     * @return How many times fewer pixels were shaded than without the depth pre-pass
+     */
+    public double getShadingReduction() {
+        return pixelsShaded == 0 ? 1.0 : (double)shadingPassPixels / pixelsShaded;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("depth pass %d px, shading pass %d px, shaded %d px (%.2fx fewer)", depthPassPixels,
+                shadingPassPixels, pixelsShaded, getShadingReduction());
+    }
+}
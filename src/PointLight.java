@@ -4,9 +4,27 @@
 public class PointLight {
     public float x, y, z;
     public float brightnessR, brightnessG, brightnessB;
+    // the distance at which the light fades to nothing. Lights with a finite range can be culled by LightTiles
+    public float range;
 
     public PointLight(float x, float y, float z, float brightnessR, float brightnessG, float brightnessB) {
+        this(x, y, z, brightnessR, brightnessG, brightnessB, Float.POSITIVE_INFINITY);
+    }
+
+    public PointLight(float x, float y, float z, float brightnessR, float brightnessG, float brightnessB, float range) {
         this.x = x; this.y = y; this.z = z;
         this.brightnessR = brightnessR; this.brightnessG = brightnessG; this.brightnessB = brightnessB;
+        this.range = range;
+    }
+
+    /**
+     * Returns how much of the light remains at the given squared distance. Fades smoothly from 1 near the light to 0
+     * at range.
+     */
+    public float falloff(float distSq) {
+        float amount = distSq / (range * range);
+        if(amount >= 1f) return 0f;
+        amount = 1f - amount * amount;
+        return amount * amount;
     }
 }
@@ -0,0 +1,369 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+/**
+ * Serves rendered views of the models in a directory over HTTP, only to the local machine.
+ * <p>
+ * GET /render?model=cow&amp;width=512&amp;height=512&amp;rx=0&amp;ry=30&amp;rz=0&amp;zoom=1&amp;fill=1&amp;wireframe=0
+ * returns a PNG. model is the name of a .dat file in the directory without the extension. rx, ry and rz rotate the
+ * model in degrees and zoom scales it after it has been framed the way {@code ModelViewer} frames models. Instead of
+ * those, matrix can give the whole world matrix as 16 comma separated numbers in row-major order.
+ * <p>
+ * GET /metrics returns request counts, throughput and latency percentiles as text.
+ * <p>
+ * Each request is handled on its own thread, which waits while the render runs on a pool with a thread per core and
+ * a bounded queue. Requests are refused with 503 when the queue is full. Identical requests that arrive while one is
+ * rendering share its result. Loaded models are kept in a least recently used cache.
+ */
+public class RenderServer {
+    public static final int defaultPort = 8235;
+
+    private static final int maxLoadedModels = 16;
+    private static final int maxImageSize = 4096;
+    private static final int defaultImageSize = 512;
+    private static final int renderQueueSize = 64;
+    private static final Pattern modelIdPattern = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9_.-]*");
+
+    private final File modelDirectory;
+    private final ModelCache modelCache = new ModelCache(ModelCache.getDefaultDirectory(), ModelCache.defaultMaxSize);
+    private final HttpServer server;
+    // handles each request on its own thread
+    private final ExecutorService requestExecutor = Executors.newCachedThreadPool();
+    private final ThreadPoolExecutor renderPool;
+    private final ThreadLocal<OffscreenRenderer> renderers = ThreadLocal.withInitial(() -> new OffscreenRenderer(null));
+
+    // loaded and loading models, least recently used first
+    private final LinkedHashMap<String, CompletableFuture<Model>> models =
+            new LinkedHashMap<String, CompletableFuture<Model>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<Model>> eldest) {
+                    return size() > maxLoadedModels;
+                }
+            };
+    // the renders that are running or queued, by their request key
+    private final ConcurrentHashMap<String, CompletableFuture<byte[]>> inFlightRenders = new ConcurrentHashMap<>();
+    private final RenderServerMetrics metrics = new RenderServerMetrics();
+
+    /**
+     * Creates the server without starting it
+     */
+    public RenderServer(File modelDirectory, int port) throws IOException {
+        this.modelDirectory = modelDirectory;
+        final int threadCount = Runtime.getRuntime().availableProcessors();
+        renderPool = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(renderQueueSize));
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(requestExecutor);
+        server.createContext("/render", this::handleRender);
+        server.createContext("/metrics", this::handleMetrics);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        requestExecutor.shutdownNow();
+        renderPool.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public RenderServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * What to render, parsed from the query string of a request
+     */
+    private static class RenderRequest {
+        String modelId;
+        int width = defaultImageSize;
+        int height = defaultImageSize;
+        boolean fill = true;
+        boolean wireFrame = false;
+        float rotationX, rotationY, rotationZ;
+        float zoom = 1f;
+        // the whole world matrix in row-major order, or null to use the rotations and zoom
+        float[] matrix;
+
+        /**
+         * @return A string that is the same for requests that render the same image
+         */
+        String getKey() {
+            return modelId + '|' + width + '|' + height + '|' + fill + '|' + wireFrame + '|' +
+                    (matrix != null ? Arrays.toString(matrix) :
+                            rotationX + "," + rotationY + "," + rotationZ + "," + zoom);
+        }
+
+        Matrix4x4 createWorldMatrix(Model model) {
+            if (matrix != null) {
+                return new Matrix4x4(matrix[0], matrix[1], matrix[2], matrix[3], matrix[4], matrix[5], matrix[6],
+                        matrix[7], matrix[8], matrix[9], matrix[10], matrix[11], matrix[12], matrix[13], matrix[14],
+                        matrix[15]);
+            }
+            return OffscreenRenderer.createFramingMatrix(model.getMaxSize(), width, height).
+                    mul(Matrix4x4.getRotationX((float)Math.toRadians(rotationX))).
+                    mul(Matrix4x4.getRotationY((float)Math.toRadians(rotationY))).
+                    mul(Matrix4x4.getRotationZ((float)Math.toRadians(rotationZ))).
+                    mul(Matrix4x4.getScale(zoom, zoom, zoom));
+        }
+    }
+
+    private void handleRender(HttpExchange exchange) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendText(exchange, 405, "Only GET is supported");
+                return;
+            }
+            final RenderRequest request;
+            try {
+                request = parseRequest(exchange.getRequestURI().getRawQuery());
+            } catch (IllegalArgumentException e) {
+                sendText(exchange, 400, e.getMessage());
+                return;
+            }
+
+            final String key = request.getKey();
+            final CompletableFuture<byte[]> created = new CompletableFuture<>();
+            CompletableFuture<byte[]> render = inFlightRenders.putIfAbsent(key, created);
+            final boolean coalesced = render != null;
+            if (!coalesced) {
+                render = created;
+                try {
+                    renderPool.execute(() -> {
+                        try {
+                            created.complete(render(request));
+                        } catch (Throwable e) {
+                            created.completeExceptionally(e);
+                        } finally {
+                            inFlightRenders.remove(key, created);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    inFlightRenders.remove(key, created);
+                    created.completeExceptionally(e);
+                }
+            }
+
+            final byte[] png;
+            try {
+                png = render.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendText(exchange, 503, "The server is stopping");
+                return;
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof FileNotFoundException) {
+                    sendText(exchange, 404, cause.getMessage());
+                } else if (cause instanceof RejectedExecutionException) {
+                    metrics.recordRejected();
+                    sendText(exchange, 503, "Too many renders are waiting");
+                } else {
+                    metrics.recordError();
+                    System.err.println("Rendering " + key + " failed: " + cause);
+                    sendText(exchange, 500, "Rendering failed");
+                }
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            exchange.sendResponseHeaders(200, png.length);
+            try (final OutputStream body = exchange.getResponseBody()) {
+                body.write(png);
+            }
+            metrics.recordRender(System.nanoTime() - start, coalesced);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            sendText(exchange, 200, metrics.format());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException If a parameter is missing or invalid.
+     */
+    private static RenderRequest parseRequest(String query) {
+        final Map<String, String> parameters = new HashMap<>();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.isEmpty()) continue;
+                final int equals = parameter.indexOf('=');
+                try {
+                    final String name = URLDecoder.decode(equals < 0 ? parameter : parameter.substring(0, equals),
+                            "UTF-8");
+                    final String value = equals < 0 ? "" : URLDecoder.decode(parameter.substring(equals + 1), "UTF-8");
+                    parameters.put(name, value);
+                } catch (UnsupportedEncodingException e) {
+                    // every Java implementation has to support UTF-8
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        final RenderRequest request = new RenderRequest();
+        request.modelId = parameters.get("model");
+        if (request.modelId == null || !modelIdPattern.matcher(request.modelId).matches()) {
+            throw new IllegalArgumentException("model must be the name of a model file without the extension");
+        }
+        try {
+            if (parameters.containsKey("width")) request.width = Integer.parseInt(parameters.get("width"));
+            if (parameters.containsKey("height")) request.height = Integer.parseInt(parameters.get("height"));
+            if (parameters.containsKey("rx")) request.rotationX = Float.parseFloat(parameters.get("rx"));
+            if (parameters.containsKey("ry")) request.rotationY = Float.parseFloat(parameters.get("ry"));
+            if (parameters.containsKey("rz")) request.rotationZ = Float.parseFloat(parameters.get("rz"));
+            if (parameters.containsKey("zoom")) request.zoom = Float.parseFloat(parameters.get("zoom"));
+            if (parameters.containsKey("matrix")) {
+                final String[] values = parameters.get("matrix").split(",");
+                if (values.length != 16) {
+                    throw new IllegalArgumentException("matrix must have 16 numbers");
+                }
+                request.matrix = new float[16];
+                for (int i = 0; i < 16; ++i) {
+                    request.matrix[i] = Float.parseFloat(values[i].trim());
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number: " + e.getMessage());
+        }
+        if (parameters.containsKey("fill")) request.fill = parseBoolean(parameters.get("fill"));
+        if (parameters.containsKey("wireframe")) request.wireFrame = parseBoolean(parameters.get("wireframe"));
+        if (request.width < 1 || request.width > maxImageSize || request.height < 1 ||
+                request.height > maxImageSize) {
+            throw new IllegalArgumentException("width and height must be from 1 to " + maxImageSize);
+        }
+        return request;
+    }
+
+    private static boolean parseBoolean(String value) {
+        if (value.equals("1") || value.equalsIgnoreCase("true")) return true;
+        if (value.equals("0") || value.equalsIgnoreCase("false")) return false;
+        throw new IllegalArgumentException("Flags must be 1, 0, true or false");
+    }
+
+    /**
+     * Renders on a thread of the render pool
+     *
+     * @return The PNG
+     */
+    private byte[] render(RenderRequest request) throws IOException, InterruptedException {
+        final Model model = getModel(request.modelId);
+        final BufferedImage image = new BufferedImage(request.width, request.height, BufferedImage.TYPE_INT_RGB);
+        final OffscreenRenderer renderer = renderers.get();
+        renderer.setFillMode(request.fill, request.wireFrame);
+        renderer.render(model, request.createWorldMatrix(model),
+                Canvas.createProjectionMatrix(request.width, request.height), image);
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, "png", png)) {
+            throw new IOException("No PNG writer is available");
+        }
+        return png.toByteArray();
+    }
+
+    /**
+     * Gets a model from the cache of loaded models, loading it on this thread if it isn't there. Threads that want
+     * a model that another thread is loading wait for it.
+     *
+     * @throws FileNotFoundException If the model doesn't exist or couldn't be loaded.
+     */
+    private Model getModel(String modelId) throws IOException, InterruptedException {
+        CompletableFuture<Model> model;
+        boolean load = false;
+        synchronized (models) {
+            model = models.get(modelId);
+            if (model == null) {
+                model = new CompletableFuture<>();
+                models.put(modelId, model);
+                load = true;
+            }
+        }
+        if (load) {
+            final File file = new File(modelDirectory, modelId + ".dat");
+            Model loaded = null;
+            Throwable error = null;
+            try {
+                loaded = file.isFile() ? modelCache.load(file, null) : null;
+            } catch (Throwable e) {
+                // e.g. running out of memory, which must still complete the future or the waiting threads never return
+                error = e;
+            }
+            if (loaded == null) {
+                // forget the failure so the model can be loaded once it has been fixed
+                synchronized (models) {
+                    models.remove(modelId, model);
+                }
+                model.completeExceptionally(error != null ? error :
+                        new FileNotFoundException("There is no valid model called " + modelId));
+            } else {
+                model.complete(loaded);
+            }
+        }
+        try {
+            return model.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        final byte[] bytes = text.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (final OutputStream body = exchange.getResponseBody()) {
+            body.write(bytes);
+        }
+    }
+
+    /**
+     * Starts a server from the command line. The arguments are the model directory and optionally the port.
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java RenderServer <model directory> [port]");
+            System.exit(1);
+        }
+        int port = defaultPort;
+        if (args.length == 2) {
+            try {
+                port = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                System.err.println("The port must be a whole number: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        try {
+            final RenderServer server = new RenderServer(new File(args[0]), port);
+            server.start();
+            System.out.println("Serving the models in " + args[0] + " at http://localhost:" + server.getPort() +
+                    "/render?model=<name> and metrics at http://localhost:" + server.getPort() + "/metrics");
+        } catch (IOException e) {
+            System.err.println("Could not start the server: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.Arrays;
+
+/**
+ * Counts the requests handled by {@code RenderServer} and keeps the latencies of the most recent successful ones to
+ * calculate throughput and percentiles from. Safe to use from many threads.
+ */
+public class RenderServerMetrics {
+    // how many of the most recent requests latencies are kept for
+    private static final int sampleCount = 4096;
+    // throughput is measured over this many of the most recent nanoseconds
+    private static final long throughputWindow = 60_000_000_000L;
+
+    private final long startTime = System.nanoTime();
+    private final long[] latencies = new long[sampleCount];
+    private final long[] endTimes = new long[sampleCount];
+    private long completed;
+    private long coalesced;
+    private long rejected;
+    private long errors;
+
+    /**
+     * Records a request that returned an image
+     *
+     * @param latency The time from receiving the request to sending the image in nanoseconds.
+     * @param coalesced True if the request shared the render of an identical request.
+     */
+    public synchronized void recordRender(long latency, boolean coalesced) {
+        final int sample = (int)(completed % sampleCount);
+        latencies[sample] = latency;
+        endTimes[sample] = System.nanoTime();
+        ++completed;
+        if (coalesced) ++this.coalesced;
+    }
+
+    /**
+     * Records a request that was refused because the render queue was full
+     */
+    public synchronized void recordRejected() {
+        ++rejected;
+    }
+
+    /**
+     * Records a request that failed while rendering
+     */
+    public synchronized void recordError() {
+        ++errors;
+    }
+
+    public synchronized long getCompletedCount() {
+        return completed;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return coalesced;
+    }
+
+    /**
+     * @return The number of requests completed per second over the last minute, or since starting if that was less
+     * than a minute ago
+     */
+    public synchronized double getThroughput() {
+        final long now = System.nanoTime();
+        final long windowStart = Math.max(now - throughputWindow, startTime);
+        final int samples = (int)Math.min(completed, sampleCount);
+        int count = 0;
+        long oldest = now;
+        for (int i = 0; i < samples; ++i) {
+            if (endTimes[i] >= windowStart) {
+                ++count;
+                oldest = Math.min(oldest, endTimes[i]);
+            }
+        }
+        // if the samples don't cover the whole window only measure over the time they cover
+        final long start = samples == sampleCount && count == sampleCount ? oldest : windowStart;
+        return count / Math.max((now - start) / 1e9, 1e-3);
+    }
+
+    /**
+     * @param percentile From 0 to 100.
+     * @return The latency in milliseconds that the percentile of recent requests completed within, or 0 if no
+     * requests have completed
+     */
+    public synchronized double getLatencyPercentile(double percentile) {
+        final int samples = (int)Math.min(completed, sampleCount);
+        if (samples == 0) return 0.0;
+        final long[] sorted = Arrays.copyOf(latencies, samples);
+        Arrays.sort(sorted);
+        final int index = (int)Math.ceil(percentile / 100.0 * samples) - 1;
+        return sorted[Math.max(0, Math.min(samples - 1, index))] / 1e6;
+    }
+
+    /**
+     * @return The metrics as lines of "name value" text
+     */
+    public synchronized String format() {
+        return String.format("requests_completed %d%n" +
+                        "requests_coalesced %d%n" +
+                        "requests_rejected %d%n" +
+                        "requests_failed %d%n" +
+                        "throughput_per_second %.2f%n" +
+                        "latency_p50_ms %.2f%n" +
+                        "latency_p99_ms %.2f%n" +
+                        "latency_max_ms %.2f%n",
+                completed, coalesced, rejected, errors, getThroughput(), getLatencyPercentile(50),
+                getLatencyPercentile(99), getLatencyPercentile(100));
+    }
+}
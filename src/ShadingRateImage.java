@@ -0,0 +1,91 @@
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Stores a shading rate for each 16x16 pixel tile of the screen for variable rate shading. A rate of n means the pixel
+ * shader runs once per n x n block of pixels in the tile and the result is used for all the covered pixels of the
+ * block. Rates are 1, 2 or 4.
+ */
+public class ShadingRateImage {
+    public static final int tileSize = 16;
+
+    private final int tilesX;
+    private final int tilesY;
+    private final byte[] rates;
+
+    public ShadingRateImage(int width, int height) {
+        tilesX = (width + tileSize - 1) / tileSize;
+        tilesY = (height + tileSize - 1) / tileSize;
+        rates = new byte[tilesX * tilesY];
+        Arrays.fill(rates, (byte)1);
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    /**
+     * @return True if the image has exactly one tile for each tile of a render target of the specified size
+     */
+    public boolean matches(int width, int height) {
+        return tilesX == (width + tileSize - 1) / tileSize && tilesY == (height + tileSize - 1) / tileSize;
+    }
+
+    public int getRate(int tileX, int tileY) {
+        return rates[tileY * tilesX + tileX];
+    }
+
+    public void setRate(int tileX, int tileY, int rate) {
+        rates[tileY * tilesX + tileX] = (byte)checkRate(rate);
+    }
+
+    public void fill(int rate) {
+        Arrays.fill(rates, (byte)checkRate(rate));
+    }
+
+    /**
+     * Sets the rate of each tile from how much the brightness changes across the same tile of an image, usually the
+     * previous frame. Tiles whose brightness range is less than half of threshold get a rate of 4, less than threshold
+     * get 2 and the rest get 1.
+     * @param threshold A brightness difference from 0 to 255.
+     */
+    public void calculateFromImage(BufferedImage image, int threshold) {
+        final int width = Math.min(image.getWidth(), tilesX * tileSize);
+        final int height = Math.min(image.getHeight(), tilesY * tileSize);
+        final int[] row = new int[width];
+        final int[] minLuma = new int[tilesX];
+        final int[] maxLuma = new int[tilesX];
+        for(int tileY = 0; tileY < tilesY; ++tileY) {
+            Arrays.fill(minLuma, 255);
+            Arrays.fill(maxLuma, 0);
+            final int endY = Math.min((tileY + 1) * tileSize, height);
+            for(int y = tileY * tileSize; y < endY; ++y) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                for(int x = 0; x < width; ++x) {
+                    final int color = row[x];
+                    // approximately 0.25 red, 0.625 green and 0.125 blue
+                    final int luma = (((color >> 16) & 255) * 2 + ((color >> 8) & 255) * 5 + (color & 255)) >> 3;
+                    final int tileX = x / tileSize;
+                    if(luma < minLuma[tileX]) minLuma[tileX] = luma;
+                    if(luma > maxLuma[tileX]) maxLuma[tileX] = luma;
+                }
+            }
+            for(int tileX = 0; tileX < tilesX; ++tileX) {
+                final int range = maxLuma[tileX] - minLuma[tileX];
+                final int rate = range * 2 < threshold ? 4 : range < threshold ? 2 : 1;
+                rates[tileY * tilesX + tileX] = (byte)rate;
+            }
+        }
+    }
+
+    private static int checkRate(int rate) {
+        if(rate != 1 && rate != 2 && rate != 4) {
+            throw new IllegalArgumentException("Shading rate must be 1, 2 or 4");
+        }
+        return rate;
+    }
+}
@@ -0,0 +1,538 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A model that doesn't have to fit in memory. When it is opened, the model file is converted into chunks of up to
+ * {@link #trianglesPerChunk} consecutive triangles, each with its own copy of the vertices it uses, which are written
+ * to a temporary file. Chunks are read back when they are drawn and the least recently used ones are dropped when the
+ * chunks in memory would use more than the memory budget, so memory use doesn't depend on the size of the model.
+ */
+public class StreamingModel implements Closeable {
+    public static final int trianglesPerChunk = 16384;
+
+    // the approximate number of bytes of heap that a Model.Vertex and the reference to it use
+    private static final int vertexHeapSize = 56;
+    // x, y, z, nx, ny, nz, u and v as floats
+    private static final int floatsPerVertex = 8;
+    private static final int vertexFileSize = floatsPerVertex * 4;
+    // while converting, the vertices are memory mapped in windows of this many vertices
+    private static final int vertexWindowBits = 25;
+    private static final int verticesPerWindow = 1 << vertexWindowBits;
+
+    /**
+     * A part of the model. Its vertices and indices are null unless it is in memory.
+     */
+    public static class Chunk {
+        public final float centerX, centerY, centerZ, radius;
+        public final int vertexCount;
+        public final int indexCount;
+        private final long offset;
+
+        public Model.Vertex[] vertices;
+        // indices into vertices, three per triangle
+        public int[] indices;
+
+        private Chunk(long offset, int vertexCount, int indexCount, float centerX, float centerY, float centerZ,
+                      float radius) {
+            this.offset = offset;
+            this.vertexCount = vertexCount;
+            this.indexCount = indexCount;
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.centerZ = centerZ;
+            this.radius = radius;
+        }
+
+        private long getHeapSize() {
+            return (long)vertexCount * vertexHeapSize + (long)indexCount * 4;
+        }
+    }
+
+    private Chunk[] chunks;
+    private int triangleCount;
+    private int vertexCount;
+    private boolean hasTextureCoordinates;
+    private float maxSize;
+
+    private File chunkFile;
+    private RandomAccessFile chunkData;
+    // chunks are read through this buffer, it is big enough for the largest chunk
+    private ByteBuffer readBuffer;
+
+    // the chunks that are in memory, least recently used first
+    private final LinkedHashMap<Integer, Chunk> residentChunks = new LinkedHashMap<>(16, 0.75f, true);
+    private long residentBytes;
+    private long memoryBudget;
+    private int chunkLoadCount;
+
+    private StreamingModel(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Converts the specified model file into chunks.
+     *
+     * @param file The file to load.
+     * @param memoryBudget The number of bytes of heap that chunks in memory are allowed to use. At least one chunk is
+     *                     always kept in memory.
+     * @return The {@link StreamingModel}, or null if an error occurred.
+     */
+    public static StreamingModel open(final File file, long memoryBudget) {
+        return open(file, memoryBudget, null);
+    }
+
+    /**
+     * Converts the specified model file into chunks. Converting can be cancelled by interrupting the thread that is
+     * doing it.
+     *
+     * @param file The file to load.
+     * @param memoryBudget The number of bytes of heap that chunks in memory are allowed to use. At least one chunk is
+     *                     always kept in memory.
+     * @param progressListener Receives progress reports, or null.
+     * @return The {@link StreamingModel}, or null if an error occurred or converting was cancelled.
+     */
+    public static StreamingModel open(final File file, long memoryBudget,
+                                      final Model.ProgressListener progressListener) {
+        final StreamingModel model = new StreamingModel(memoryBudget);
+        if (!model.convertModelFile(file, progressListener)) {
+            model.close();
+            return null;
+        }
+        return model;
+    }
+
+    public int getChunkCount() {
+        return chunks.length;
+    }
+
+    /**
+     * @return The chunk, which might not be in memory. Use {@link #load(int)} to get its vertices and indices.
+     */
+    public Chunk getChunk(int index) {
+        return chunks[index];
+    }
+
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * @return True if the texture coordinates were loaded from the model file, false if they were generated.
+     */
+    public boolean hasTextureCoordinates() {
+        return hasTextureCoordinates;
+    }
+
+    /**
+     * Returns the largest absolute coordinate value of the original,
+     * untransformed model data.
+     */
+    public float getMaxSize() {
+        return maxSize;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        evict();
+    }
+
+    /**
+     * @return The approximate number of bytes of heap used by the chunks in memory
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * @return The number of times a chunk has been read from disk
+     */
+    public int getChunkLoadCount() {
+        return chunkLoadCount;
+    }
+
+    /**
+     * Reads a chunk into memory if it isn't already there, which can cause other chunks to be dropped. The chunk stays
+     * usable until the next call to load.
+     */
+    public Chunk load(int index) throws IOException {
+        Chunk chunk = residentChunks.get(index);
+        if (chunk != null) return chunk;
+        chunk = chunks[index];
+
+        final int size = chunk.vertexCount * vertexFileSize + chunk.indexCount * 4;
+        readBuffer.clear();
+        readBuffer.limit(size);
+        final FileChannel channel = chunkData.getChannel();
+        long position = chunk.offset;
+        while (readBuffer.hasRemaining()) {
+            final int read = channel.read(readBuffer, position);
+            if (read < 0) throw new EOFException("The chunk file is truncated");
+            position += read;
+        }
+        readBuffer.flip();
+
+        final Model.Vertex[] vertices = new Model.Vertex[chunk.vertexCount];
+        for (int i = 0; i < vertices.length; ++i) {
+            final Model.Vertex vertex = new Model.Vertex();
+            vertex.x = readBuffer.getFloat();
+            vertex.y = readBuffer.getFloat();
+            vertex.z = readBuffer.getFloat();
+            vertex.nx = readBuffer.getFloat();
+            vertex.ny = readBuffer.getFloat();
+            vertex.nz = readBuffer.getFloat();
+            vertex.u = readBuffer.getFloat();
+            vertex.v = readBuffer.getFloat();
+            vertices[i] = vertex;
+        }
+        final int[] indices = new int[chunk.indexCount];
+        readBuffer.asIntBuffer().get(indices);
+        chunk.vertices = vertices;
+        chunk.indices = indices;
+        ++chunkLoadCount;
+
+        residentChunks.put(index, chunk);
+        residentBytes += chunk.getHeapSize();
+        evict();
+        return chunk;
+    }
+
+    /**
+     * drops the least recently used chunks until the chunks in memory fit in the budget or only one is left
+     */
+    private void evict() {
+        final Iterator<Map.Entry<Integer, Chunk>> iterator = residentChunks.entrySet().iterator();
+        while (residentBytes > memoryBudget && residentChunks.size() > 1) {
+            final Chunk chunk = iterator.next().getValue();
+            iterator.remove();
+            residentBytes -= chunk.getHeapSize();
+            chunk.vertices = null;
+            chunk.indices = null;
+        }
+    }
+
+    /**
+     * Drops all chunks from memory and deletes the chunk file
+     */
+    @Override
+    public void close() {
+        for (Chunk chunk : residentChunks.values()) {
+            chunk.vertices = null;
+            chunk.indices = null;
+        }
+        residentChunks.clear();
+        residentBytes = 0;
+        if (chunkData != null) {
+            try {
+                chunkData.close();
+            } catch (IOException e) {
+                System.err.println("Could not close the chunk file: " + e.getMessage());
+            }
+            chunkData = null;
+        }
+        deleteTemporaryFile(chunkFile);
+        chunkFile = null;
+    }
+
+    /**
+     * Reads the model file once to write the vertices to a memory mapped temporary file, where the normals are added
+     * up, and the triangles to another temporary file. Then reads the triangles back to build the chunks.
+     *
+     * @return True on success, false otherwise.
+     */
+    private boolean convertModelFile(final File file, final Model.ProgressListener progressListener) {
+        maxSize = 0.f;
+        hasTextureCoordinates = true;
+        File vertexFile = null;
+        File indexFile = null;
+
+        final long fileSize = file.length();
+        try (final CountingInputStream input = new CountingInputStream(new FileInputStream(file));
+             final Scanner scanner = new Scanner(new BufferedInputStream(input))) {
+            // the first line specifies the vertex count
+            vertexCount = scanner.nextInt();
+            vertexFile = File.createTempFile("vertices", ".tmp");
+            try (final RandomAccessFile vertexData = new RandomAccessFile(vertexFile, "rw")) {
+                vertexData.setLength((long)vertexCount * vertexFileSize);
+                final FloatBuffer[] vertices = mapVertices(vertexData.getChannel(), vertexCount);
+
+                float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+                float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+                for (int i = 0; i < vertexCount; ++i) {
+                    if (i % Model.progressInterval == 0) {
+                        Model.reportProgress(progressListener, "Reading file", input.getCount(), fileSize);
+                    }
+                    // advance the position to the beginning of the next line
+                    scanner.nextLine();
+
+                    final FloatBuffer window = vertices[i >>> vertexWindowBits];
+                    final int position = (i & (verticesPerWindow - 1)) * floatsPerVertex;
+                    final float x = scanner.nextFloat();
+                    final float y = scanner.nextFloat();
+                    final float z = scanner.nextFloat();
+                    window.put(position, x);
+                    window.put(position + 1, y);
+                    window.put(position + 2, z);
+                    maxSize = Math.max(maxSize, Math.max(Math.abs(x), Math.max(Math.abs(y), Math.abs(z))));
+                    minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+                    minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+                    minZ = Math.min(minZ, z); maxZ = Math.max(maxZ, z);
+
+                    // texture coordinates are optional and follow the position on the same line
+                    final String u = scanner.findInLine("\\S+");
+                    if (u != null) {
+                        final String v = scanner.findInLine("\\S+");
+                        if (v == null) {
+                            throw new NoSuchElementException("Vertex " + (i + 1) + " has a u but no v texture coordinate");
+                        }
+                        window.put(position + 6, Float.parseFloat(u));
+                        window.put(position + 7, Float.parseFloat(v));
+                    } else {
+                        hasTextureCoordinates = false;
+                    }
+                }
+
+                // the next line specifies the number of triangles
+                scanner.nextLine();
+                triangleCount = scanner.nextInt();
+                indexFile = File.createTempFile("indices", ".tmp");
+                try (final DataOutputStream indexOutput = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(indexFile)))) {
+                    for (int i = 0; i < triangleCount; ++i) {
+                        if (i % Model.progressInterval == 0) {
+                            Model.reportProgress(progressListener, "Reading file", input.getCount(), fileSize);
+                        }
+                        scanner.nextLine();
+
+                        // the model files start with index 1, we start with 0
+                        final int index1 = readIndex(scanner);
+                        final int index2 = readIndex(scanner);
+                        final int index3 = readIndex(scanner);
+                        indexOutput.writeInt(index1);
+                        indexOutput.writeInt(index2);
+                        indexOutput.writeInt(index3);
+                        addTriangleNormal(vertices, index1, index2, index3);
+                    }
+                }
+
+                finishVertices(vertices, (minX + maxX) * 0.5f, (minY + maxY) * 0.5f, (minZ + maxZ) * 0.5f,
+                        progressListener);
+                writeChunks(vertices, indexFile, progressListener);
+            }
+
+            System.out.println("Number of vertices in model: " + vertexCount);
+            System.out.println("Number of triangles in model: " + triangleCount);
+            System.out.println("Number of chunks in model: " + chunks.length);
+        } catch (FileNotFoundException e) {
+            System.err.println("No such file " + file.toString() + ": "
+                    + e.getMessage());
+            return false;
+        } catch (NoSuchElementException e) {
+            System.err.println("Invalid file format: " + e.getMessage());
+            return false;
+        } catch (CancellationException | ClosedByInterruptException e) {
+            System.out.println("Loading " + file.toString() + " was cancelled");
+            return false;
+        } catch (Exception e) {
+            System.err.println("Something went wrong while reading the model file: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        } finally {
+            deleteTemporaryFile(vertexFile);
+            deleteTemporaryFile(indexFile);
+        }
+
+        return true;
+    }
+
+    private int readIndex(Scanner scanner) {
+        final int index = scanner.nextInt() - 1;
+        if (index < 0 || index >= vertexCount) {
+            throw new NoSuchElementException("Vertex index " + (index + 1) + " is out of range");
+        }
+        return index;
+    }
+
+    private static FloatBuffer[] mapVertices(FileChannel channel, int vertexCount) throws IOException {
+        final FloatBuffer[] windows = new FloatBuffer[(vertexCount + verticesPerWindow - 1) / verticesPerWindow];
+        for (int i = 0; i < windows.length; ++i) {
+            final long start = (long)i * verticesPerWindow;
+            final long count = Math.min(verticesPerWindow, vertexCount - start);
+            windows[i] = channel.map(FileChannel.MapMode.READ_WRITE, start * vertexFileSize, count * vertexFileSize).
+                    asFloatBuffer();
+        }
+        return windows;
+    }
+
+    /**
+     * adds the normal of a triangle to the normals of its vertices. The normal isn't normalized so bigger triangles
+     * count for more, the same as in {@code Model}
+     */
+    private static void addTriangleNormal(FloatBuffer[] vertices, int index1, int index2, int index3) {
+        final FloatBuffer window1 = vertices[index1 >>> vertexWindowBits];
+        final FloatBuffer window2 = vertices[index2 >>> vertexWindowBits];
+        final FloatBuffer window3 = vertices[index3 >>> vertexWindowBits];
+        final int position1 = (index1 & (verticesPerWindow - 1)) * floatsPerVertex;
+        final int position2 = (index2 & (verticesPerWindow - 1)) * floatsPerVertex;
+        final int position3 = (index3 & (verticesPerWindow - 1)) * floatsPerVertex;
+        final float x1 = window1.get(position1), y1 = window1.get(position1 + 1), z1 = window1.get(position1 + 2);
+        final float x2 = window2.get(position2) - x1, y2 = window2.get(position2 + 1) - y1,
+                z2 = window2.get(position2 + 2) - z1;
+        final float x3 = window3.get(position3) - x1, y3 = window3.get(position3 + 1) - y1,
+                z3 = window3.get(position3 + 2) - z1;
+        final float normalX = y2 * z3 - z2 * y3;
+        final float normalY = z2 * x3 - x2 * z3;
+        final float normalZ = x2 * y3 - y2 * x3;
+        addNormal(window1, position1, normalX, normalY, normalZ);
+        addNormal(window2, position2, normalX, normalY, normalZ);
+        addNormal(window3, position3, normalX, normalY, normalZ);
+    }
+
+    private static void addNormal(FloatBuffer window, int position, float x, float y, float z) {
+        window.put(position + 3, window.get(position + 3) + x);
+        window.put(position + 4, window.get(position + 4) + y);
+        window.put(position + 5, window.get(position + 5) + z);
+    }
+
+    /**
+     * normalizes the summed normals and generates texture coordinates if the file didn't have them, using the same
+     * projection onto a sphere around the center of the model as {@code Model}
+     */
+    private void finishVertices(FloatBuffer[] vertices, float centerX, float centerY, float centerZ,
+                                Model.ProgressListener progressListener) {
+        final Vector3 direction = new Vector3();
+        for (int i = 0; i < vertexCount; ++i) {
+            if (i % Model.progressInterval == 0) {
+                Model.reportProgress(progressListener, "Calculating normals", i, vertexCount);
+            }
+            final FloatBuffer window = vertices[i >>> vertexWindowBits];
+            final int position = (i & (verticesPerWindow - 1)) * floatsPerVertex;
+            final float normalX = window.get(position + 3);
+            final float normalY = window.get(position + 4);
+            final float normalZ = window.get(position + 5);
+            final float length = (float)Math.sqrt(normalX * normalX + normalY * normalY + normalZ * normalZ);
+            if (length != 0f) {
+                window.put(position + 3, normalX / length);
+                window.put(position + 4, normalY / length);
+                window.put(position + 5, normalZ / length);
+            }
+            if (!hasTextureCoordinates) {
+                direction.x = window.get(position) - centerX;
+                direction.y = window.get(position + 1) - centerY;
+                direction.z = window.get(position + 2) - centerZ;
+                direction.normalize();
+                window.put(position + 6, 0.5f + (float)(Math.atan2(direction.z, direction.x) / (2.0 * Math.PI)));
+                window.put(position + 7, 0.5f - (float)(Math.asin(direction.y) / Math.PI));
+            }
+        }
+    }
+
+    /**
+     * Reads the triangles back in groups of trianglesPerChunk and writes each group to the chunk file with the
+     * vertices it uses, renumbered from 0.
+     */
+    private void writeChunks(FloatBuffer[] vertices, File indexFile, Model.ProgressListener progressListener)
+            throws IOException {
+        chunks = new Chunk[(triangleCount + trianglesPerChunk - 1) / trianglesPerChunk];
+        chunkFile = File.createTempFile("chunks", ".tmp");
+        chunkFile.deleteOnExit();
+
+        // maps the index of a vertex in the model to its index in the chunk, using open addressing
+        final int hashBits = 32 - Integer.numberOfLeadingZeros(trianglesPerChunk * 3 * 2 - 1);
+        final int[] hashKeys = new int[1 << hashBits];
+        final int[] hashValues = new int[1 << hashBits];
+        final int[] chunkVertices = new int[trianglesPerChunk * 3];
+        final int[] chunkIndices = new int[trianglesPerChunk * 3];
+        int maxChunkSize = 0;
+
+        try (final DataInputStream indexInput = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexFile)));
+             final DataOutputStream chunkOutput = new DataOutputStream(new BufferedOutputStream(
+                     new FileOutputStream(chunkFile)))) {
+            long offset = 0;
+            for (int chunk = 0; chunk < chunks.length; ++chunk) {
+                Model.reportProgress(progressListener, "Writing chunks", chunk, chunks.length);
+                final int indexCount = Math.min(trianglesPerChunk, triangleCount - chunk * trianglesPerChunk) * 3;
+                Arrays.fill(hashKeys, -1);
+                int chunkVertexCount = 0;
+                for (int i = 0; i < indexCount; ++i) {
+                    final int index = indexInput.readInt();
+                    int slot = (index * 0x9E3779B9) >>> (32 - hashBits);
+                    while (hashKeys[slot] != -1 && hashKeys[slot] != index) {
+                        slot = (slot + 1) & (hashKeys.length - 1);
+                    }
+                    if (hashKeys[slot] == -1) {
+                        hashKeys[slot] = index;
+                        hashValues[slot] = chunkVertexCount;
+                        chunkVertices[chunkVertexCount] = index;
+                        ++chunkVertexCount;
+                    }
+                    chunkIndices[i] = hashValues[slot];
+                }
+
+                float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+                float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+                for (int i = 0; i < chunkVertexCount; ++i) {
+                    final int index = chunkVertices[i];
+                    final FloatBuffer window = vertices[index >>> vertexWindowBits];
+                    final int position = (index & (verticesPerWindow - 1)) * floatsPerVertex;
+                    for (int component = 0; component < floatsPerVertex; ++component) {
+                        chunkOutput.writeFloat(window.get(position + component));
+                    }
+                    final float x = window.get(position), y = window.get(position + 1), z = window.get(position + 2);
+                    minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+                    minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+                    minZ = Math.min(minZ, z); maxZ = Math.max(maxZ, z);
+                }
+                for (int i = 0; i < indexCount; ++i) {
+                    chunkOutput.writeInt(chunkIndices[i]);
+                }
+
+                final float centerX = (minX + maxX) * 0.5f;
+                final float centerY = (minY + maxY) * 0.5f;
+                final float centerZ = (minZ + maxZ) * 0.5f;
+                float radiusSq = 0f;
+                for (int i = 0; i < chunkVertexCount; ++i) {
+                    final int index = chunkVertices[i];
+                    final FloatBuffer window = vertices[index >>> vertexWindowBits];
+                    final int position = (index & (verticesPerWindow - 1)) * floatsPerVertex;
+                    final float dx = window.get(position) - centerX, dy = window.get(position + 1) - centerY,
+                            dz = window.get(position + 2) - centerZ;
+                    radiusSq = Math.max(radiusSq, dx * dx + dy * dy + dz * dz);
+                }
+                chunks[chunk] = new Chunk(offset, chunkVertexCount, indexCount, centerX, centerY, centerZ,
+                        (float)Math.sqrt(radiusSq));
+                final int size = chunkVertexCount * vertexFileSize + indexCount * 4;
+                maxChunkSize = Math.max(maxChunkSize, size);
+                offset += size;
+            }
+        }
+
+        chunkData = new RandomAccessFile(chunkFile, "r");
+        readBuffer = ByteBuffer.allocate(maxChunkSize);
+    }
+
+    private static void deleteTemporaryFile(File file) {
+        // memory mapped files can't be deleted on some systems until the mapping is garbage collected
+        if (file != null && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
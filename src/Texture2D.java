@@ -0,0 +1,261 @@
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A mip mapped texture that can be sampled from pixel shaders.
+ * The texels of each mip level are stored in Morton (Z) order so that texels that are close together in the texture
+ * are also close together in memory. Texture coordinates wrap around and a u, v of (0, 0) is the top left of the
+ * texture.
+ */
+public class Texture2D {
+    private final int width;
+    private final int height;
+    private final int levelCount;
+
+    // all mip levels packed into one array, level i starts at levelOffsets[i]
+    private final int[] texels;
+    private final int[] levelOffsets;
+    private final int[] levelWidths;
+    private final int[] levelHeights;
+
+    // the Morton code of each column and row of each level, or'ing a column and row code gives the texel index
+    private final int[][] mortonX;
+    private final int[][] mortonY;
+
+    /**
+     * Creates a texture and generates its mip chain
+     * @param width The width of the texture, must be a power of two.
+     * @param height The height of the texture, must be a power of two.
+     * @param argb The texels in row-major order.
+     */
+    public Texture2D(int width, int height, int[] argb) {
+        if(!isPowerOfTwo(width) || !isPowerOfTwo(height)) {
+            throw new IllegalArgumentException("Texture sizes must be powers of two");
+        }
+        this.width = width;
+        this.height = height;
+        levelCount = 1 + Math.max(log2(width), log2(height));
+
+        levelOffsets = new int[levelCount];
+        levelWidths = new int[levelCount];
+        levelHeights = new int[levelCount];
+        mortonX = new int[levelCount][];
+        mortonY = new int[levelCount][];
+        int size = 0;
+        for(int level = 0; level < levelCount; ++level) {
+            final int levelWidth = Math.max(width >> level, 1);
+            final int levelHeight = Math.max(height >> level, 1);
+            levelOffsets[level] = size;
+            levelWidths[level] = levelWidth;
+            levelHeights[level] = levelHeight;
+            createMortonTables(level, levelWidth, levelHeight);
+            size += levelWidth * levelHeight;
+        }
+        texels = new int[size];
+
+        for(int y = 0; y < height; ++y) {
+            for(int x = 0; x < width; ++x) {
+                texels[mortonX[0][x] | mortonY[0][y]] = argb[y * width + x];
+            }
+        }
+        for(int level = 1; level < levelCount; ++level) {
+            generateMipLevel(level);
+        }
+    }
+
+    /**
+     * Loads a texture from an image file. Images that are not a power of two in size are scaled up to the next power
+     * of two.
+     */
+    public static Texture2D loadTexture(final File file) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if(image == null) {
+            throw new IOException("Unsupported image format: " + file);
+        }
+        final int width = nextPowerOfTwo(image.getWidth());
+        final int height = nextPowerOfTwo(image.getHeight());
+        if(width != image.getWidth() || height != image.getHeight() || image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D graphics = scaled.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+            graphics.dispose();
+            image = scaled;
+        }
+        return new Texture2D(width, height, image.getRGB(0, 0, width, height, null, 0, width));
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    /**
+     * Calculates the mip level to sample from using the screen space derivatives of the texture coordinates
+     */
+    public float calculateLod(float dudx, float dvdx, float dudy, float dvdy) {
+        dudx *= width;
+        dudy *= width;
+        dvdx *= height;
+        dvdy *= height;
+        final float maxLengthSq = Math.max(dudx * dudx + dvdx * dvdx, dudy * dudy + dvdy * dvdy);
+        if(maxLengthSq <= 1f) return 0f;
+        // log2(sqrt(x)) = 0.5 * log2(x)
+        return (float)(0.5 * Math.log(maxLengthSq) / Math.log(2.0));
+    }
+
+    /**
+     * @return The nearest texel to (u, v) in mip level round(lod)
+     */
+    public int samplePoint(float u, float v, float lod) {
+        final int level = clampLevel((int)(lod + 0.5f));
+        final int levelWidth = levelWidths[level];
+        final int levelHeight = levelHeights[level];
+        final int x = wrap((int)Math.floor(u * levelWidth), levelWidth);
+        final int y = wrap((int)Math.floor(v * levelHeight), levelHeight);
+        return texels[levelOffsets[level] + (mortonX[level][x] | mortonY[level][y])];
+    }
+
+    /**
+     * @return The bilinear filtered color at (u, v) in mip level round(lod)
+     */
+    public int sampleBilinear(float u, float v, float lod) {
+        return sampleLevel(u, v, clampLevel((int)(lod + 0.5f)));
+    }
+
+    /**
+     * @return The color at (u, v) filtered bilinearly in the two nearest mip levels and linearly between them
+     */
+    public int sampleTrilinear(float u, float v, float lod) {
+        if(lod <= 0f) return sampleLevel(u, v, 0);
+        final int level = (int)lod;
+        if(level >= levelCount - 1) return sampleLevel(u, v, levelCount - 1);
+        return lerpColor(sampleLevel(u, v, level), sampleLevel(u, v, level + 1), lod - level);
+    }
+
+    private int sampleLevel(float u, float v, int level) {
+        final int levelWidth = levelWidths[level];
+        final int levelHeight = levelHeights[level];
+        final int[] levelMortonX = mortonX[level];
+        final int[] levelMortonY = mortonY[level];
+        final int offset = levelOffsets[level];
+
+        final float x = u * levelWidth - 0.5f;
+        final float y = v * levelHeight - 0.5f;
+        final float floorX = (float)Math.floor(x);
+        final float floorY = (float)Math.floor(y);
+        final float amountX = x - floorX;
+        final float amountY = y - floorY;
+        final int x0 = wrap((int)floorX, levelWidth);
+        final int y0 = wrap((int)floorY, levelHeight);
+        final int x1 = x0 + 1 == levelWidth ? 0 : x0 + 1;
+        final int y1 = y0 + 1 == levelHeight ? 0 : y0 + 1;
+
+        final int top = lerpColor(texels[offset + (levelMortonX[x0] | levelMortonY[y0])],
+                texels[offset + (levelMortonX[x1] | levelMortonY[y0])], amountX);
+        final int bottom = lerpColor(texels[offset + (levelMortonX[x0] | levelMortonY[y1])],
+                texels[offset + (levelMortonX[x1] | levelMortonY[y1])], amountX);
+        return lerpColor(top, bottom, amountY);
+    }
+
+    /**
+     * Box filters the previous mip level to create this one
+     */
+    private void generateMipLevel(int level) {
+        final int previous = level - 1;
+        final int previousWidth = levelWidths[previous];
+        final int previousHeight = levelHeights[previous];
+        final int levelWidth = levelWidths[level];
+        final int levelHeight = levelHeights[level];
+        for(int y = 0; y < levelHeight; ++y) {
+            final int y0 = Math.min(y * 2, previousHeight - 1);
+            final int y1 = Math.min(y * 2 + 1, previousHeight - 1);
+            for(int x = 0; x < levelWidth; ++x) {
+                final int x0 = Math.min(x * 2, previousWidth - 1);
+                final int x1 = Math.min(x * 2 + 1, previousWidth - 1);
+                final int offset = levelOffsets[previous];
+                final int texel1 = texels[offset + (mortonX[previous][x0] | mortonY[previous][y0])];
+                final int texel2 = texels[offset + (mortonX[previous][x1] | mortonY[previous][y0])];
+                final int texel3 = texels[offset + (mortonX[previous][x0] | mortonY[previous][y1])];
+                final int texel4 = texels[offset + (mortonX[previous][x1] | mortonY[previous][y1])];
+                int color = 0;
+                for(int shift = 0; shift < 32; shift += 8) {
+                    final int sum = ((texel1 >>> shift) & 255) + ((texel2 >>> shift) & 255) +
+                            ((texel3 >>> shift) & 255) + ((texel4 >>> shift) & 255);
+                    color |= ((sum + 2) >> 2) << shift;
+                }
+                texels[levelOffsets[level] + (mortonX[level][x] | mortonY[level][y])] = color;
+            }
+        }
+    }
+
+    /**
+     * Interleaves the bits of x and y for the square part of the level. Any extra bits of the longer side go above
+     * the interleaved bits.
+     */
+    private void createMortonTables(int level, int levelWidth, int levelHeight) {
+        final int squareBits = Math.min(log2(levelWidth), log2(levelHeight));
+        final int squareMask = (1 << squareBits) - 1;
+        mortonX[level] = new int[levelWidth];
+        mortonY[level] = new int[levelHeight];
+        for(int x = 0; x < levelWidth; ++x) {
+            mortonX[level][x] = spreadBits(x & squareMask) | ((x >> squareBits) << (2 * squareBits));
+        }
+        for(int y = 0; y < levelHeight; ++y) {
+            mortonY[level][y] = (spreadBits(y & squareMask) << 1) | ((y >> squareBits) << (2 * squareBits));
+        }
+    }
+
+    /**
+     * inserts a zero bit between each of the lower 16 bits of value
+     */
+    private static int spreadBits(int value) {
+        value = (value | (value << 8)) & 0x00ff00ff;
+        value = (value | (value << 4)) & 0x0f0f0f0f;
+        value = (value | (value << 2)) & 0x33333333;
+        value = (value | (value << 1)) & 0x55555555;
+        return value;
+    }
+
+    private static int lerpColor(int color1, int color2, float amount2) {
+        final int weight2 = (int)(amount2 * 256f);
+        final int weight1 = 256 - weight2;
+        final int redBlue = (((color1 & 0xff00ff) * weight1 + (color2 & 0xff00ff) * weight2) >>> 8) & 0xff00ff;
+        final int alphaGreen = ((((color1 >>> 8) & 0xff00ff) * weight1 + ((color2 >>> 8) & 0xff00ff) * weight2)) &
+                0xff00ff00;
+        return alphaGreen | redBlue;
+    }
+
+    private int clampLevel(int level) {
+        if(level < 0) return 0;
+        if(level >= levelCount) return levelCount - 1;
+        return level;
+    }
+
+    private static int wrap(int value, int size) {
+        // sizes are powers of two
+        return value & (size - 1);
+    }
+
+    private static boolean isPowerOfTwo(int value) {
+        return value > 0 && (value & (value - 1)) == 0;
+    }
+
+    private static int nextPowerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    private static int log2(int powerOfTwo) {
+        return Integer.numberOfTrailingZeros(powerOfTwo);
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * Multiplies the Phong lighting by the trilinear filtered color of the Texture2D in rootSignature[4].
+ * Expects the texture coordinates and their screen space derivatives after the world position and normal.
+ */
+
+public class TexturedPhongPS extends PhongPS {
+    @Override
+    public int run(Object[] rootSignature, Vector4[] in) {
+        final int light = super.run(rootSignature, in);
+        final int albedo = sampleAlbedo(rootSignature, in);
+        return (255 << 24) + ((((light >> 16) & 255) * ((albedo >> 16) & 255) / 255) << 16) +
+                ((((light >> 8) & 255) * ((albedo >> 8) & 255) / 255) << 8) + ((light & 255) * (albedo & 255) / 255);
+    }
+
+    /**
+     * @return The texture color for the pixel
+     */
+    static int sampleAlbedo(Object[] rootSignature, Vector4[] in) {
+        Texture2D texture = (Texture2D)rootSignature[4];
+        Vector4 textureCoordinates = in[2];
+        Vector4 ddx = in[3];
+        Vector4 ddy = in[4];
+        float lod = texture.calculateLod(ddx.x, ddx.y, ddy.x, ddy.y);
+        return texture.sampleTrilinear(textureCoordinates.x, textureCoordinates.y, lod);
+    }
+}
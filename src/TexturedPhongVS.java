@@ -0,0 +1,28 @@
+/**
+ * A vertex shader that outputs normal, world position and texture coordinates
+ */
+
+public class TexturedPhongVS extends PhongVS {
+    @Override
+    public void run(Object v, Object[] rootSignature, Vector4[] out) {
+        super.run(v, rootSignature, out);
+        Model.Vertex vertex = (Model.Vertex)v;
+        Vector4 textureCoordinates = out[3];
+        textureCoordinates.x = vertex.u;
+        textureCoordinates.y = vertex.v;
+    }
+
+    @Override
+    public void run(VertexStreams vertices, Object[] rootSignature, int start, int end, TransformedVertices out) {
+        super.run(vertices, rootSignature, start, end, out);
+        final int count = vertices.count;
+        final float[] textureCoordinates = out.getOutput(3);
+        System.arraycopy(vertices.textureCoordinates, start, textureCoordinates, start, end - start);
+        System.arraycopy(vertices.textureCoordinates, count + start, textureCoordinates, count + start, end - start);
+    }
+
+    public static final int interpolateCount = 4;
+
+    // the texture coordinates are output 3, the pipeline should provide their derivatives for picking a mip level
+    public static final int textureCoordinatesInterpolate = 3;
+}
@@ -0,0 +1,248 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes a PNG thumbnail for every .dat model file in a directory. Models are loaded and rendered in parallel, but a
+ * thread only starts loading a model when the estimated memory of all the models being loaded fits in the memory
+ * budget. Files whose thumbnails are newer than them are skipped.
+ */
+public class ThumbnailService {
+    public static final int defaultSize = 128;
+
+    // a loaded model uses about this many times the size of its file in heap
+    private static final int heapPerFileByte = 3;
+    // how many of the slowest files are reported
+    private static final int slowestFileCount = 10;
+    // the direction thumbnails show models from, in radians
+    private static final float rotationX = 0.4f;
+    private static final float rotationY = 0.6f;
+
+    /**
+     * What happened when thumbnails were made for a directory
+     */
+    public static class Report {
+        public final int rendered;
+        public final int skipped;
+        public final int failed;
+        public final double seconds;
+        // the files that took longest to load and render, slowest first
+        public final List<FileTime> slowestFiles;
+
+        private Report(int rendered, int skipped, int failed, double seconds, List<FileTime> slowestFiles) {
+            this.rendered = rendered;
+            this.skipped = skipped;
+            this.failed = failed;
+            this.seconds = seconds;
+            this.slowestFiles = slowestFiles;
+        }
+
+        /**
+         * @return The number of files rendered or skipped per second
+         */
+        public double getFilesPerSecond() {
+            return (rendered + skipped) / Math.max(seconds, 1e-9);
+        }
+
+        public void print() {
+            System.out.printf("Rendered %d, skipped %d up to date and failed %d in %.2f seconds " +
+                    "(%.1f files per second)%n", rendered, skipped, failed, seconds, getFilesPerSecond());
+            if (!slowestFiles.isEmpty()) {
+                System.out.println("Slowest files:");
+                for (FileTime fileTime : slowestFiles) {
+                    System.out.printf("  %8.1f ms  %s%n", fileTime.milliseconds, fileTime.file.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * How long loading and rendering a file took
+     */
+    public static class FileTime {
+        public final File file;
+        public final double milliseconds;
+
+        private FileTime(File file, double milliseconds) {
+            this.file = file;
+            this.milliseconds = milliseconds;
+        }
+    }
+
+    private final int threadCount;
+    private final long memoryBudget;
+    private final int size;
+
+    /**
+     * Uses a thread per core, half of the maximum heap size and thumbnails of {@link #defaultSize} pixels
+     */
+    public ThumbnailService() {
+        this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / 2, defaultSize);
+    }
+
+    /**
+     * @param memoryBudget The number of bytes of heap that models being loaded can use together. A model that needs
+     *                     more than this is loaded on its own.
+     * @param size The width and height of the thumbnails in pixels.
+     */
+    public ThumbnailService(int threadCount, long memoryBudget, int size) {
+        if (threadCount < 1 || memoryBudget < 1 || size < 1) {
+            throw new IllegalArgumentException("The thread count, memory budget and size must be at least 1");
+        }
+        this.threadCount = threadCount;
+        this.memoryBudget = memoryBudget;
+        this.size = size;
+    }
+
+    /**
+     * @return The file that the thumbnail of a model file is written to
+     */
+    public static File getThumbnailFile(File modelFile, File thumbnailDirectory) {
+        final String name = modelFile.getName();
+        return new File(thumbnailDirectory, name.substring(0, name.length() - ".dat".length()) + ".png");
+    }
+
+    /**
+     * Makes thumbnails for the .dat files in modelDirectory that don't have up to date thumbnails in
+     * thumbnailDirectory
+     */
+    public Report generate(File modelDirectory, File thumbnailDirectory) throws IOException, InterruptedException {
+        final File[] modelFiles = modelDirectory.listFiles((dir, name) -> name.toLowerCase().endsWith(".dat"));
+        if (modelFiles == null) {
+            throw new IOException("Could not list the files in " + modelDirectory.toString());
+        }
+        if (!thumbnailDirectory.isDirectory() && !thumbnailDirectory.mkdirs()) {
+            throw new IOException("Could not create the directory " + thumbnailDirectory.toString());
+        }
+
+        // the memory budget in KiB so that it fits in the permits of a semaphore
+        final int budgetKiB = (int)Math.min(Math.max(memoryBudget / 1024, 1), Integer.MAX_VALUE);
+        final Semaphore memory = new Semaphore(budgetKiB);
+        final Matrix4x4 projectionMatrix = Canvas.createProjectionMatrix(size, size);
+        final ThreadLocal<OffscreenRenderer> renderers = ThreadLocal.withInitial(() -> new OffscreenRenderer(null));
+        final ThreadLocal<BufferedImage> images = ThreadLocal.withInitial(() ->
+                new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB));
+        final AtomicInteger skipped = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final ConcurrentLinkedQueue<FileTime> fileTimes = new ConcurrentLinkedQueue<>();
+
+        final long start = System.nanoTime();
+        final ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        try {
+            final List<Future<?>> tasks = new ArrayList<>(modelFiles.length);
+            for (final File modelFile : modelFiles) {
+                final File thumbnailFile = getThumbnailFile(modelFile, thumbnailDirectory);
+                if (thumbnailFile.lastModified() >= modelFile.lastModified()) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                tasks.add(pool.submit(() -> {
+                    final int permits = (int)Math.min(Math.max(modelFile.length() * heapPerFileByte / 1024, 1),
+                            budgetKiB);
+                    memory.acquire(permits);
+                    try {
+                        final long fileStart = System.nanoTime();
+                        final Model model = Model.loadModel(modelFile);
+                        if (model == null) {
+                            failed.incrementAndGet();
+                            return null;
+                        }
+                        final BufferedImage image = images.get();
+                        renderers.get().render(model, createWorldMatrix(model), projectionMatrix, image);
+                        writeThumbnail(image, thumbnailFile);
+                        fileTimes.add(new FileTime(modelFile, (System.nanoTime() - fileStart) / 1e6));
+                    } catch (IOException e) {
+                        System.err.println(e.getMessage());
+                        failed.incrementAndGet();
+                    } finally {
+                        memory.release(permits);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Making a thumbnail failed", e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        final FileTime[] times = fileTimes.toArray(new FileTime[0]);
+        Arrays.sort(times, Comparator.comparingDouble((FileTime fileTime) -> fileTime.milliseconds).reversed());
+        return new Report(times.length, skipped.get(), failed.get(), seconds,
+                Arrays.asList(Arrays.copyOf(times, Math.min(times.length, slowestFileCount))));
+    }
+
+    /**
+     * frames the model the way ModelViewer does, turned so that more than one side can be seen
+     */
+    private Matrix4x4 createWorldMatrix(Model model) {
+        return OffscreenRenderer.createFramingMatrix(model.getMaxSize(), size, size).
+                mul(Matrix4x4.getRotationX(rotationX)).mul(Matrix4x4.getRotationY(rotationY));
+    }
+
+    /**
+     * Writes the thumbnail to a temporary file first and then renames it so that a thumbnail that was only partly
+     * written is never taken as up to date
+     */
+    private static void writeThumbnail(BufferedImage image, File thumbnailFile) throws IOException {
+        final File temporaryFile = File.createTempFile("thumbnail", ".tmp", thumbnailFile.getParentFile());
+        try {
+            if (!ImageIO.write(image, "png", temporaryFile)) {
+                throw new IOException("No PNG writer is available");
+            }
+            Files.move(temporaryFile.toPath(), thumbnailFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new IOException("Could not write " + thumbnailFile.toString() + ": " + e.getMessage(), e);
+        } finally {
+            temporaryFile.delete();
+        }
+    }
+
+    /**
+     * Makes thumbnails from the command line. The arguments are the model directory, the thumbnail directory and
+     * optionally the size of the thumbnails.
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: java ThumbnailService <model directory> <thumbnail directory> [size]");
+            System.exit(1);
+        }
+        int size = defaultSize;
+        if (args.length == 3) {
+            try {
+                size = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                System.err.println("The size must be a whole number: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        final ThumbnailService service = new ThumbnailService(Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().maxMemory() / 2, size);
+        try {
+            service.generate(new File(args[0]), new File(args[1])).print();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.err.println("Making thumbnails was interrupted");
+            System.exit(1);
+        }
+    }
+}
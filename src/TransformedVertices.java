@@ -0,0 +1,108 @@
+import java.util.Arrays;
+
+/**
+ * The outputs of a {@link GraphicsEngine.BatchVertexShader} for every vertex of a model. Each output is a flat array
+ * of x, y, z and w planes, so output i of vertex v has x at outputs[i][v], y at outputs[i][count + v] and so on.
+ * Output 0 is the clip space position. Instances can be reused for models of any size.
+ */
+public class TransformedVertices {
+    private int count;
+    private float[][] outputs = new float[0][];
+    // scratch space for findUsedRuns
+    private boolean[] used = new boolean[0];
+    private int[] runs = new int[0];
+
+    /**
+     * Makes room for outputCount outputs of count vertices, reusing the arrays when they are big enough
+     */
+    public void resize(int count, int outputCount) {
+        if (outputs.length != outputCount) {
+            outputs = new float[outputCount][];
+        }
+        for (int i = 0; i < outputCount; ++i) {
+            if (outputs[i] == null || outputs[i].length < count * 4) {
+                outputs[i] = new float[count * 4];
+            }
+        }
+        this.count = count;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getOutputCount() {
+        return outputs.length;
+    }
+
+    /**
+     * @return The x, y, z and w planes of an output
+     */
+    public float[] getOutput(int index) {
+        return outputs[index];
+    }
+
+    /**
+     * Finds the vertices used by the first indexCount indices as runs of consecutive vertices. Runs less than maxGap
+     * vertices apart are joined, because transforming a few unused vertices costs less than starting another run, and
+     * runs are split so that none is longer than maxLength.
+     *
+     * @return The number of runs. Run i starts at getRuns()[i * 2] and ends before getRuns()[i * 2 + 1].
+     */
+    int findUsedRuns(int[] indexBuffer, int indexCount, int vertexCount, int maxGap, int maxLength) {
+        if (used.length < vertexCount) {
+            used = new boolean[vertexCount];
+        }
+        for (int i = 0; i < indexCount; ++i) {
+            used[indexBuffer[i]] = true;
+        }
+        int runCount = 0;
+        int start = -1;
+        int end = 0;
+        for (int vertex = 0; vertex < vertexCount; ++vertex) {
+            if (!used[vertex]) continue;
+            used[vertex] = false;
+            if (start >= 0 && vertex - end < maxGap && vertex - start < maxLength) {
+                end = vertex + 1;
+                continue;
+            }
+            if (start >= 0) {
+                runCount = addRun(runCount, start, end);
+            }
+            start = vertex;
+            end = vertex + 1;
+        }
+        if (start >= 0) {
+            runCount = addRun(runCount, start, end);
+        }
+        return runCount;
+    }
+
+    private int addRun(int runCount, int start, int end) {
+        if (runs.length < (runCount + 1) * 2) {
+            runs = Arrays.copyOf(runs, Math.max(16, runs.length * 2));
+        }
+        runs[runCount * 2] = start;
+        runs[runCount * 2 + 1] = end;
+        return runCount + 1;
+    }
+
+    int[] getRuns() {
+        return runs;
+    }
+
+    /**
+     * Copies the first out.length outputs of a vertex into the vectors that the rasterizer interpolates
+     */
+    void get(int vertex, Vector4[] out) {
+        final int y = count + vertex, z = count * 2 + vertex, w = count * 3 + vertex;
+        for (int i = 0; i < out.length; ++i) {
+            final float[] output = outputs[i];
+            final Vector4 value = out[i];
+            value.x = output[vertex];
+            value.y = output[y];
+            value.z = output[z];
+            value.w = output[w];
+        }
+    }
+}
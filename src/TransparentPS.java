@@ -0,0 +1,31 @@
+/**
+ * Makes the color of another pixel shader transparent by scaling its alpha, and its red, green and blue too if the
+ * color is blended as premultiplied alpha.
+ */
+public class TransparentPS implements GraphicsEngine.PixelShader {
+    private final GraphicsEngine.PixelShader pixelShader;
+    // the opacity from 0 to 256
+    private final int opacity;
+    private final boolean premultiplied;
+
+    /**
+     * @param opacity From 0 for invisible to 1 for the other pixel shader's alpha.
+     */
+    public TransparentPS(GraphicsEngine.PixelShader pixelShader, float opacity, boolean premultiplied) {
+        this.pixelShader = pixelShader;
+        this.opacity = Math.round(Math.max(0f, Math.min(1f, opacity)) * 256f);
+        this.premultiplied = premultiplied;
+    }
+
+    @Override
+    public int run(Object[] rootSignature, Vector4[] in) {
+        final int color = pixelShader.run(rootSignature, in);
+        final int alpha = ((color >>> 24) * opacity) >>> 8;
+        if(!premultiplied) {
+            return (alpha << 24) | (color & 0xffffff);
+        }
+        final int redBlue = (((color & 0xff00ff) * opacity) >>> 8) & 0xff00ff;
+        final int green = (((color & 0xff00) * opacity) >>> 8) & 0xff00;
+        return (alpha << 24) | redBlue | green;
+    }
+}
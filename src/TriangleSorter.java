@@ -0,0 +1,250 @@
+import java.util.Arrays;
+
+/**
+ * Sorts triangles by their distance from the camera for drawing with the painter's algorithm. The static sort sorts
+ * from scratch. An instance remembers the order and depths it produced last time, so when the view has only turned a
+ * little it repairs that order instead, which takes close to linear time.
+ */
+public class TriangleSorter {
+    // Repairing the previous order is given up for a full sort once the triangles have moved this many places on
+    // average, i.e. when the view changed abruptly
+    private static final int maxAverageMoves = 64;
+
+    // the triangle numbers in the order of the last sortCoherent call
+    private final int[] order;
+    private int orderCount = 0;
+    // these are indexed by triangle number
+    private final float[] depths;
+    private final int[] sortedFrame;
+    private final int[] visibleFrame;
+    private final int[] slots;
+    // numbered so that no triangle starts as sorted in the previous frame
+    private int frame = 1;
+
+    private final int[] survivors;
+    private final int[] newcomers;
+    private long[] keys = new long[0];
+    private int[] unsortedIndices = new int[0];
+    private boolean lastSortFull = false;
+
+    /**
+     * @param triangleCount The number of triangles that can be sorted, triangles are numbered from 0 to
+     *                      triangleCount - 1.
+     */
+    public TriangleSorter(int triangleCount) {
+        order = new int[triangleCount];
+        depths = new float[triangleCount];
+        sortedFrame = new int[triangleCount];
+        visibleFrame = new int[triangleCount];
+        slots = new int[triangleCount];
+        survivors = new int[triangleCount];
+        newcomers = new int[triangleCount];
+    }
+
+    /**
+     * @return True if the last call to sortCoherent sorted from scratch instead of repairing the previous order
+     */
+    public boolean wasLastSortFull() {
+        return lastSortFull;
+    }
+
+    /**
+     * Sorts triangles for the painter's algorithm starting from the order of the last call. Triangles that were
+     * sorted last time are moved into place by insertion sort, triangles that weren't are sorted on their own and
+     * merged in.
+     *
+     * @param indices The triangles to sort.
+     * @param triangleIds The number of each triangle, the same triangle must have the same number every call, e.g.
+     *                    from {@code MeshletCuller.cull}. They are sorted with the triangles.
+     * @param indexCount The number of indices in the triangles.
+     */
+    public void sortCoherent(int[] indices, int[] triangleIds, int indexCount, Model.Vertex[] vertices,
+                             Matrix4x4 wvpMatrix) {
+        final int count = indexCount / 3;
+        ++frame;
+        for(int i = 0; i < count; ++i) {
+            final int id = triangleIds[i];
+            depths[id] = calculateMeanDepth(vertices[indices[i * 3]], vertices[indices[i * 3 + 1]],
+                    vertices[indices[i * 3 + 2]], wvpMatrix);
+            visibleFrame[id] = frame;
+            slots[id] = i;
+        }
+
+        int survivorCount = 0;
+        for(int i = 0; i < orderCount; ++i) {
+            final int id = order[i];
+            if(visibleFrame[id] == frame) {
+                survivors[survivorCount++] = id;
+            }
+        }
+        int newcomerCount = 0;
+        for(int i = 0; i < count; ++i) {
+            final int id = triangleIds[i];
+            if(sortedFrame[id] != frame - 1) {
+                newcomers[newcomerCount++] = id;
+            }
+        }
+
+        lastSortFull = !insertionSort(survivors, survivorCount, (long)count * maxAverageMoves);
+        if(lastSortFull) {
+            System.arraycopy(triangleIds, 0, order, 0, count);
+            sortByDepth(order, count);
+        } else {
+            sortByDepth(newcomers, newcomerCount);
+            merge(survivors, survivorCount, newcomers, newcomerCount, order);
+        }
+        orderCount = count;
+
+        if(unsortedIndices.length < indexCount) {
+            unsortedIndices = new int[indexCount];
+        }
+        System.arraycopy(indices, 0, unsortedIndices, 0, indexCount);
+        for(int i = 0; i < count; ++i) {
+            final int id = order[i];
+            final int slot = slots[id] * 3;
+            indices[i * 3] = unsortedIndices[slot];
+            indices[i * 3 + 1] = unsortedIndices[slot + 1];
+            indices[i * 3 + 2] = unsortedIndices[slot + 2];
+            triangleIds[i] = id;
+            sortedFrame[id] = frame;
+        }
+    }
+
+    /**
+     * sorts triangle numbers furthest first, giving up when more than maxMoves places have been moved
+     *
+     * @return False if it gave up
+     */
+    private boolean insertionSort(int[] ids, int count, long maxMoves) {
+        long moves = 0;
+        for(int i = 1; i < count; ++i) {
+            final int id = ids[i];
+            final float depth = depths[id];
+            int j = i - 1;
+            while(j >= 0 && depths[ids[j]] < depth) {
+                ids[j + 1] = ids[j];
+                --j;
+            }
+            ids[j + 1] = id;
+            moves += i - 1 - j;
+            if(moves > maxMoves) return false;
+        }
+        return true;
+    }
+
+    /**
+     * sorts triangle numbers furthest first
+     */
+    private void sortByDepth(int[] ids, int count) {
+        if(keys.length < count) {
+            keys = new long[order.length];
+        }
+        for(int i = 0; i < count; ++i) {
+            int bits = Float.floatToIntBits(depths[ids[i]]);
+            // makes negative floats sort in the same order as signed ints
+            bits ^= (bits >> 31) & 0x7fffffff;
+            keys[i] = ((long)bits << 32) | ids[i];
+        }
+        Arrays.sort(keys, 0, count);
+        for(int i = 0; i < count; ++i) {
+            ids[i] = (int)keys[count - 1 - i];
+        }
+    }
+
+    /**
+     * merges two lists of triangle numbers that are sorted furthest first
+     */
+    private void merge(int[] ids1, int count1, int[] ids2, int count2, int[] out) {
+        int i1 = 0, i2 = 0, i = 0;
+        while(i1 < count1 && i2 < count2) {
+            out[i++] = depths[ids1[i1]] >= depths[ids2[i2]] ? ids1[i1++] : ids2[i2++];
+        }
+        while(i1 < count1) out[i++] = ids1[i1++];
+        while(i2 < count2) out[i++] = ids2[i2++];
+    }
+
+    /**
+     * sorts triangles to make them ready for drawing with the painter's algorithm
+     * @param indices the triangles to sort
+     * @param indexCount the number of indices in the triangles
+     */
+    public static void sort(int[] indices, int indexCount, Model.Vertex[] vertices, Matrix4x4 wvpMatrix) {
+        if(indexCount == 0) return;
+        Model.Vertex pivotVertex = vertices[indices[(indexCount / 6) * 3]];
+        float pivot = wvpMatrix.transformDepth(pivotVertex.x, pivotVertex.y, pivotVertex.z);
+        sort(0, pivot, indexCount, indices, vertices, wvpMatrix);
+    }
+
+    /**
+     * modified version of quicksort
+     */
+    private static void sort(int start, float pivot, int end, int[] indices, Model.Vertex[] vertices, Matrix4x4 wvpMatrix) {
+        if(start == end || start + 3 == end) return;
+        int middle = start;
+        for(int i = start; i != end; i += 3) {
+            float distance = calculateMeanDepth(vertices[indices[i]], vertices[indices[i + 1]],
+                    vertices[indices[i + 2]], wvpMatrix);
+            if(distance > pivot) {
+                int temp = indices[i];
+                indices[i] = indices[middle];
+                indices[middle] = temp;
+                ++middle;
+
+                temp = indices[i + 1];
+                indices[i + 1] = indices[middle];
+                indices[middle] = temp;
+                ++middle;
+
+                temp = indices[i + 2];
+                indices[i + 2] = indices[middle];
+                indices[middle] = temp;
+                ++middle;
+            }
+        }
+        if(middle == start) {
+            int pivotIndex = ((end - start) / 6) * 3 + start;
+            int temp = indices[pivotIndex];
+            indices[pivotIndex] = indices[start];
+            indices[start] = temp;
+            ++start;
+            ++pivotIndex;
+
+            temp = indices[pivotIndex];
+            indices[pivotIndex] = indices[start];
+            indices[start] = temp;
+            ++start;
+            ++pivotIndex;
+
+            temp = indices[pivotIndex];
+            indices[pivotIndex] = indices[start];
+            indices[start] = temp;
+            ++start;
+            ++pivotIndex;
+
+            int newPivotIndex = ((end - start) / 6) * 3 + start;
+            float newPivot = calculateMeanDepth(vertices[indices[newPivotIndex]], vertices[indices[newPivotIndex + 1]],
+                    vertices[indices[newPivotIndex + 2]], wvpMatrix);
+            sort(start, newPivot, end, indices, vertices, wvpMatrix);
+            return;
+        }
+        int newPivot1Index = ((middle - start) / 6) * 3 + start;
+        float newPivot1 = calculateMeanDepth(vertices[indices[newPivot1Index]], vertices[indices[newPivot1Index + 1]],
+                vertices[indices[newPivot1Index + 2]], wvpMatrix);
+        sort(start, newPivot1, middle, indices, vertices, wvpMatrix);
+
+        int newPivot2Index = ((end - middle) / 6) * 3 + middle;
+        float newPivot2 = calculateMeanDepth(vertices[indices[newPivot2Index]], vertices[indices[newPivot2Index + 1]],
+                vertices[indices[newPivot2Index + 2]], wvpMatrix);
+        sort(middle, newPivot2, end, indices, vertices, wvpMatrix);
+    }
+
+    /**
+     * Calculates the mean distance of a triangle from the camera
+     */
+    private static float calculateMeanDepth(Model.Vertex vertex1, Model.Vertex vertex2, Model.Vertex vertex3, Matrix4x4 wvpMatrix) {
+        float depth1 = wvpMatrix.transformDepth(vertex1.x, vertex1.y, vertex1.z);
+        float depth2 = wvpMatrix.transformDepth(vertex2.x, vertex2.y, vertex2.z);
+        float depth3 = wvpMatrix.transformDepth(vertex3.x, vertex3.y, vertex3.z);
+        return (depth1 + depth2 + depth3) / 3f;
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * The vertices of a model stored as separate streams of floats instead of as {@link Model.Vertex} objects, so that a
+ * {@link GraphicsEngine.BatchVertexShader} can transform them with simple loops over contiguous arrays. Each stream is
+ * stored in planes: all the x values, then all the y values and so on.
+ */
+public class VertexStreams {
+    public final int count;
+    // x, y and z planes
+    public final float[] positions;
+    // x, y and z planes
+    public final float[] normals;
+    // u and v planes
+    public final float[] textureCoordinates;
+
+    private VertexStreams(int count) {
+        this.count = count;
+        positions = new float[count * 3];
+        normals = new float[count * 3];
+        textureCoordinates = new float[count * 2];
+    }
+
+    /**
+     * Copies the vertices into streams
+     */
+    public static VertexStreams create(Model.Vertex[] vertices) {
+        final int count = vertices.length;
+        final VertexStreams streams = new VertexStreams(count);
+        final float[] positions = streams.positions;
+        final float[] normals = streams.normals;
+        final float[] textureCoordinates = streams.textureCoordinates;
+        for (int i = 0; i < count; ++i) {
+            final Model.Vertex vertex = vertices[i];
+            positions[i] = vertex.x;
+            positions[count + i] = vertex.y;
+            positions[count * 2 + i] = vertex.z;
+            normals[i] = vertex.nx;
+            normals[count + i] = vertex.ny;
+            normals[count * 2 + i] = vertex.nz;
+            textureCoordinates[i] = vertex.u;
+            textureCoordinates[count + i] = vertex.v;
+        }
+        return streams;
+    }
+}
@@ -0,0 +1,25 @@
+/**
+ * A vertex shader that only outputs the position, for drawing wire frames
+ */
+
+public class WireFrameVS implements GraphicsEngine.VertexShader, GraphicsEngine.BatchVertexShader {
+    @Override
+    public void run(Object v, Object[] rootSignature, Vector4[] out) {
+        Model.Vertex vertex = (Model.Vertex)v;
+        Matrix4x4 wvpMatrix = (Matrix4x4)rootSignature[0];
+        Vector4 pos = out[0];
+        pos.x = vertex.x;
+        pos.y = vertex.y;
+        pos.z = vertex.z;
+        pos.w = 1.f;
+        wvpMatrix.transform(pos);
+    }
+
+    @Override
+    public void run(VertexStreams vertices, Object[] rootSignature, int start, int end, TransformedVertices out) {
+        ((Matrix4x4)rootSignature[0]).transformPoints(vertices.positions, vertices.count, start, end,
+                out.getOutput(0));
+    }
+
+    public static final int interpolateCount = 1;
+}